@@ -15,16 +15,21 @@
  */
 package org.societies.android.account.box;
 
+import org.societies.android.box.BoxConstants;
 import org.societies.android.platform.R;
 import org.societies.android.sync.box.BoxSyncAdapter;
+import org.societies.android.sync.box.BoxSyncScheduler;
 
 import android.os.Bundle;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.Toast;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.Activity;
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
 
 public class BoxPreferencesActivity extends Activity {
 
@@ -32,6 +37,12 @@ public class BoxPreferencesActivity extends Activity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_box_preferences);
+        
+        BoxSyncScheduler scheduler = new BoxSyncScheduler(getBoxPreferences());
+        ((EditText) findViewById(R.id.sync_interval_min)).setText(
+        		String.valueOf(scheduler.getMinInterval()));
+        ((EditText) findViewById(R.id.sync_interval_max)).setText(
+        		String.valueOf(scheduler.getMaxInterval()));
     }
     
     public void fullSync(View view) {
@@ -40,14 +51,45 @@ public class BoxPreferencesActivity extends Activity {
     	Toast.makeText(this, "Full Sync Requested.", Toast.LENGTH_LONG).show();
     }
     
+    public void saveSyncInterval(View view) {
+    	try {
+    		long minInterval = Long.parseLong(
+    				((EditText) findViewById(R.id.sync_interval_min)).getText().toString());
+    		long maxInterval = Long.parseLong(
+    				((EditText) findViewById(R.id.sync_interval_max)).getText().toString());
+    		
+    		AccountManager manager = AccountManager.get(this);
+    		BoxSyncScheduler.setBounds(
+    				getBoxPreferences(),
+    				minInterval,
+    				maxInterval,
+    				manager.getAccountsByType(getString(R.string.box_account_type)),
+    				getString(R.string.provider_authority));
+    		
+    		Toast.makeText(this, "Sync Interval Saved.", Toast.LENGTH_LONG).show();
+    	} catch (NumberFormatException e) {
+    		Toast.makeText(this, "Invalid Sync Interval.", Toast.LENGTH_LONG).show();
+    	}
+    }
+    
+    private SharedPreferences getBoxPreferences() {
+    	return getSharedPreferences(BoxConstants.PREFERENCE_FILE, Context.MODE_PRIVATE);
+    }
+    
     private void requestFullSync() {
     	AccountManager manager = AccountManager.get(this);
     	Account[] boxAccounts = manager.getAccountsByType(getString(R.string.box_account_type));
     	String authority = getString(R.string.provider_authority);
     	Bundle extras = new Bundle();
     	extras.putBoolean(BoxSyncAdapter.EXTRA_FULL_SYNC, true);
+    	extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
     	
-    	for (Account account : boxAccounts)
-    		ContentResolver.requestSync(account, authority, extras);
+    	if (boxAccounts.length > 1) {
+    		extras.putBoolean(BoxSyncAdapter.EXTRA_ALL_ACCOUNTS, true);
+    		ContentResolver.requestSync(boxAccounts[0], authority, extras);
+    	} else {
+    		for (Account account : boxAccounts)
+    			ContentResolver.requestSync(account, authority, extras);
+    	}
     }
 }
@@ -31,8 +31,10 @@ public final class BoxConstants {
 
 	/** The account userdata auth-token key. */
 	public static final String ACCOUNT_USERDATA_AUTH_TOKEN = "authToken";
-	/** The account sync frequency. */
+	/** The default minimum (and initial) account sync frequency, in seconds. */
 	public static final long ACCOUNT_SYNC_FREQUENCY = 15;
+	/** The default maximum account sync frequency, in seconds. */
+	public static final long ACCOUNT_SYNC_FREQUENCY_MAX = 30 * 60;
 	
 	/** The name of the share preference file. */
 	public static final String PREFERENCE_FILE = "preferences.box";
@@ -40,5 +42,14 @@ public final class BoxConstants {
 	public static final String PREFERENCE_DIRECTORY_TREE = "dir_tree";
 	/** The timestamp of the last sync. */
 	public static final String PREFERENCE_LAST_SYNC = "last_sync";
+	/** The ID of this device, used to name the pack segments it writes. */
+	public static final String PREFERENCE_DEVICE_ID = "device_id";
+	/** The current interval of the periodic sync, in seconds. Suffixed with
+	 * <code>"_" + account name</code> per account. */
+	public static final String PREFERENCE_SYNC_INTERVAL = "sync_interval";
+	/** The minimum interval of the periodic sync, in seconds. */
+	public static final String PREFERENCE_SYNC_INTERVAL_MIN = "sync_interval_min";
+	/** The maximum interval of the periodic sync, in seconds. */
+	public static final String PREFERENCE_SYNC_INTERVAL_MAX = "sync_interval_max";
 	
 }
@@ -119,6 +119,28 @@ public interface ISocialAdapter {
 	public int updateMe(ContentValues values, String selection,
 			String[] selectionArgs);
 	public int deleteMe(String _selection, String[] _selectionArgs);
+
+	//Sync state (see SyncState). Inserting replaces the row of the same scope:
+	public long insertSyncState(ContentValues values);
+	public Cursor querySyncState(String[] projection, String selection,
+			String[] selectionArgs, String sortOrder);
+	public int deleteSyncState(String _selection, String[] _selectionArgs);
+
+	/**
+	 * Starts a transaction. The writes made until the transaction ends are
+	 * committed together, or not at all.
+	 */
+	public void beginTransaction();
+	/**
+	 * Marks the current transaction as successful, so that its writes are
+	 * committed once it ends.
+	 */
+	public void setTransactionSuccessful();
+	/**
+	 * Ends the current transaction, committing its writes if it was marked
+	 * as successful and rolling them back otherwise.
+	 */
+	public void endTransaction();
 	 
     /**
      * A method that can be used to check whether this adapter is usable.
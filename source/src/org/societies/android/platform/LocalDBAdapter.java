@@ -97,6 +97,8 @@ public class LocalDBAdapter implements ISocialAdapter {
 			android.util.Log.d(TAG, ": Communities activity table created");
 			_db.execSQL(SQLiteContract.SERVICES_ACTIVITIY_TABLE_CREATE);
 			android.util.Log.d(TAG, ": Services activity table created");
+			_db.execSQL(SQLiteContract.SYNC_STATE_TABLE_CREATE);
+			android.util.Log.d(TAG, ": Sync state table created");
 		}
 
 		/* 
@@ -110,6 +112,12 @@ public class LocalDBAdapter implements ISocialAdapter {
 			
 			android.util.Log.d(TAG, ": Upgrading DB...");
 
+			//Version 3 only adds the sync state, so the data is kept:
+			if (_oldVersion == 2) {
+				_db.execSQL(SQLiteContract.SYNC_STATE_TABLE_CREATE);
+				return;
+			}
+
 			// Drop the old table:
 			_db.execSQL("drop table if exists " + SQLiteContract.ME_TABLE_NAME);
 			_db.execSQL("drop table if exists " + SQLiteContract.PEOPLE_ACTIVITIY_TABLE_NAME);
@@ -121,6 +129,7 @@ public class LocalDBAdapter implements ISocialAdapter {
 			_db.execSQL("drop table if exists " + SQLiteContract.PEOPLE_ACTIVITIY_TABLE_NAME);
 			_db.execSQL("drop table if exists " + SQLiteContract.COMMUNITIES_ACTIVITIY_TABLE_NAME);
 			_db.execSQL("drop table if exists " + SQLiteContract.SERVICES_ACTIVITIY_TABLE_NAME);
+			_db.execSQL("drop table if exists " + SQLiteContract.SYNC_STATE_TABLE_NAME);
 			// Create a new table:
 			onCreate(_db);
 		}
@@ -358,6 +367,21 @@ public class LocalDBAdapter implements ISocialAdapter {
 		db = dbHelper.getWritableDatabase();
 		return db.delete(SQLiteContract.ME_TABLE_NAME, _selection, _selectionArgs);
 	}
+	public long insertSyncState(ContentValues _values) {
+		db = dbHelper.getWritableDatabase();
+		return db.insertWithOnConflict(SQLiteContract.SYNC_STATE_TABLE_NAME, null,
+				_values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+	public Cursor querySyncState(String[] _projection, String _selection,
+			String[] _selectionArgs, String _sortOrder) {
+		db = dbHelper.getReadableDatabase();
+		return db.query(SQLiteContract.SYNC_STATE_TABLE_NAME, 
+				_projection, _selection, _selectionArgs, null, null, _sortOrder);
+	}
+	public int deleteSyncState(String _selection, String[] _selectionArgs){
+		db = dbHelper.getWritableDatabase();
+		return db.delete(SQLiteContract.SYNC_STATE_TABLE_NAME, _selection, _selectionArgs);
+	}
 
 	/* (non-Javadoc)
 	 * @see org.societies.android.platform.ISocialAdapter#isOnline()
@@ -374,6 +398,28 @@ public class LocalDBAdapter implements ISocialAdapter {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.societies.android.platform.ISocialAdapter#beginTransaction()
+	 */
+	public void beginTransaction() {
+		db = dbHelper.getWritableDatabase();
+		db.beginTransaction();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.societies.android.platform.ISocialAdapter#setTransactionSuccessful()
+	 */
+	public void setTransactionSuccessful() {
+		dbHelper.getWritableDatabase().setTransactionSuccessful();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.societies.android.platform.ISocialAdapter#endTransaction()
+	 */
+	public void endTransaction() {
+		dbHelper.getWritableDatabase().endTransaction();
+	}
+
 	/* 
 	 * Return 1 if connection 
 	 * (non-Javadoc)
@@ -7,7 +7,7 @@ public final class SQLiteContract {
 	public static final String DB_NAME = "societies.db";
 	public static final String DB_PATH = "/data/data/org.societies.android.platform/databases/";
 	//TODO: This will be a preference and not a constant:
-	public static final int DB_VERSION = 2;
+	public static final int DB_VERSION = 3;
 	
 	//Tables and table names
 	public static final String ME_TABLE_NAME = "me";
@@ -20,6 +20,7 @@ public final class SQLiteContract {
 	public static final String PEOPLE_ACTIVITIY_TABLE_NAME = "people_activities";
 	public static final String COMMUNITIES_ACTIVITIY_TABLE_NAME = "communities_activities";
 	public static final String SERVICES_ACTIVITIY_TABLE_NAME = "services_activities";
+	public static final String SYNC_STATE_TABLE_NAME = "sync_state";
 	
 
 	//SQL commands for creating tables upon DB creation:
@@ -265,4 +266,18 @@ public final class SQLiteContract {
 			SocialContract.ServiceActivity.SYNC4 + " integer not null default -1," +
 			SocialContract.ServiceActivity.SYNC5 + " integer not null default -1," +
 			SocialContract.ServiceActivity.SYNC6 + " integer not null default -1 );";
+
+	//One row per account, table and community (see SyncState):
+	public static final String SYNC_STATE_TABLE_CREATE = "create table if not exists " + SYNC_STATE_TABLE_NAME
+			+ " (" + 
+			SyncState._ID + " integer primary key autoincrement, " +
+			SyncState.ACCOUNT_TYPE + " text not null," +
+			SyncState.ACCOUNT_NAME + " text not null," +
+			SyncState.TABLE + " text not null default ''," +
+			SyncState.COMMUNITY + " text not null default ''," +
+			SyncState.WATERMARK + " integer not null default 0," +
+			SyncState.SEQUENCE + " integer not null default -1," +
+			SyncState.CURSOR + " text," +
+			"unique (" + SyncState.ACCOUNT_TYPE + ", " + SyncState.ACCOUNT_NAME + ", " +
+			SyncState.TABLE + ", " + SyncState.COMMUNITY + ") );";
 }
@@ -24,12 +24,20 @@
  */
 package org.societies.android.platform;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.societies.android.api.cis.SocialContract;
 import org.societies.android.api.cis.SupportedAccountTypes;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.net.Uri;
@@ -54,8 +62,14 @@ public class SocialProvider extends ContentProvider{
 
     //will contain all the legal URIs:
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    //Matcher index of the sync state, which is not part of SocialContract:
+    private static final int SYNC_STATE = 100;
 
     private ISocialAdapter adapter = null;
+    //Requests upload syncs of local changes:
+    private SyncTrigger syncTrigger = null;
+    //Tables changed by the batch applied on the current thread, notified once it commits:
+    private final ThreadLocal<Set<Uri>> batchChanges = new ThreadLocal<Set<Uri>>();
 	//Construct all the legal query URIs. The URIs that are added here are the
     //ones that are supported in calls to SocialProvider. For all others there
     //will be some exception being thrown.
@@ -105,6 +119,8 @@ public class SocialProvider extends ContentProvider{
     			SocialContract.UriPathIndex.SERVICE_ACTIVITY, SocialContract.UriMatcherIndex.SERVICE_ACTIVITY);
     	sUriMatcher.addURI(SocialContract.AUTHORITY.getAuthority(),
     			SocialContract.UriPathIndex.SERVICE_ACTIVITY_SHARP, SocialContract.UriMatcherIndex.SERVICE_ACTIVITY_SHARP);
+    	sUriMatcher.addURI(SocialContract.AUTHORITY.getAuthority(),
+    			SyncState.PATH, SYNC_STATE);
 
     	}
    	/* 
@@ -118,6 +134,7 @@ public class SocialProvider extends ContentProvider{
     	Context context = getContext();
     	adapter = new LocalDBAdapter(context);
     	android.util.Log.d(TAG, ": dbAdapter created.");
+    	syncTrigger = new SyncTrigger(context);
     	//Outsourcing initial data set to a separate class:
     	//If this is the first time, populate the DB:
     	if(adapter.firstRun()){
@@ -265,13 +282,21 @@ public class SocialProvider extends ContentProvider{
 		//case SocialContract.UriMatcherIndex.SERVICE_ACTIVITY_SHARP:
 		//	break;
 			
+		case SYNC_STATE:
+			newID = adapter.insertSyncState(_values);
+			if (newID == -1) { //_values does not contain correct parameters.
+				throw new IllegalArgumentException("Unsupported parameters for new sync state:" + _values.toString());
+			}
+			//The sync state is private to the sync adapters, so nobody is informed:
+			return Uri.withAppendedPath(_uri, Long.toString(newID));
+			
 		default:
 	        throw new IllegalArgumentException("Unsupported URI sent to SocialProvider insert:" + _uri);    	
 			
 		}
 		
 		//Inform content resolvers about changes:
-		getContext().getContentResolver().notifyChange(returnUri, null);
+		notifyChange(returnUri, _values);
 		
 		return returnUri;
 	}
@@ -381,6 +406,9 @@ public class SocialProvider extends ContentProvider{
 			rowID = _uri.getPathSegments().get(2);
 			return adapter.queryServiceActivity(_projection, SocialContract.ServiceActivity._ID+" = "+rowID,
 					_selectionArgs, _sortOrder);
+
+		case SYNC_STATE:
+			return adapter.querySyncState(_projection, _selection, _selectionArgs, _sortOrder);
 		default:
 	        throw new IllegalArgumentException("Unsupported URI in SocialProvider query method:" + _uri);   			
 		}
@@ -402,7 +430,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateMe(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 
@@ -414,7 +442,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateMe(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -422,7 +450,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updatePeople(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -433,7 +461,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");			
 			updateCount = adapter.updatePeople(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -441,7 +469,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateCommunities(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -452,7 +480,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateCommunities(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -460,7 +488,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateServices(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -471,7 +499,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateServices(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -479,7 +507,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateRelationship(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -490,7 +518,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateRelationship(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -498,7 +526,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateMembership(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -509,7 +537,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateMembership(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -517,7 +545,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateSharing(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -528,7 +556,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateSharing(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -536,7 +564,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updatePeopleActivity(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -547,7 +575,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updatePeopleActivity(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -555,7 +583,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateCommunityActivity(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -566,7 +594,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateCommunityActivity(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -574,7 +602,7 @@ public class SocialProvider extends ContentProvider{
 			//Call the right method with original parameters:
 			updateCount = adapter.updateServiceActivity(_values, _selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 			
@@ -585,7 +613,7 @@ public class SocialProvider extends ContentProvider{
 							" AND (" + _selection + ")" : "");
 			updateCount = adapter.updateServiceActivity(_values, selection, _selectionArgs);
 			//Inform resolvers about change:
-			getContext().getContentResolver().notifyChange(_uri, null);
+			notifyChange(_uri, _values);
 			//Return number of rows updated:
 			return updateCount;
 		default:
@@ -612,7 +640,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteMe(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -624,7 +652,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteMe(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -636,7 +664,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deletePeople(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -648,7 +676,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deletePeople(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -660,7 +688,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteCommunities(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -672,7 +700,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteCommunities(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -684,7 +712,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteServices(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -696,7 +724,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteServices(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -708,7 +736,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteRelationship(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -720,7 +748,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteRelationship(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -732,7 +760,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteMembership(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -744,7 +772,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteMembership(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -756,7 +784,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteSharing(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -768,7 +796,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteSharing(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -780,7 +808,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deletePeopleActivity(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -792,7 +820,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deletePeopleActivity(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -804,7 +832,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteCommunityActivity(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -816,7 +844,7 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteCommunityActivity(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -828,7 +856,7 @@ public class SocialProvider extends ContentProvider{
 	    			_selection = "1";
 				deleteCount = adapter.deleteServiceActivity(_selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
 	    		
@@ -840,9 +868,15 @@ public class SocialProvider extends ContentProvider{
 								" AND (" + _selection + ")" : "");
 				deleteCount = adapter.deleteServiceActivity(selection, _selectionArgs);
 				//Inform resolvers about change:
-				getContext().getContentResolver().notifyChange(_uri, null);
+				notifyChange(_uri, null);
 				//Return number of rows updated:
 				return deleteCount;
+	    		
+	    	case SYNC_STATE:
+	    		if (_selection == null)
+	    			_selection = "1";
+	    		//The sync state is private to the sync adapters, so nobody is informed:
+	    		return adapter.deleteSyncState(_selection, _selectionArgs);
 	    	default:
 	            throw new IllegalArgumentException("Unsupported URI in SocialProvider delete method:" + _uri);
 	    	}
@@ -857,6 +891,117 @@ public class SocialProvider extends ContentProvider{
 		// TODO Auto-generated method stub
 		return null;
 		}
+
+		/**
+		 * Applies a batch of operations in a single transaction, so that
+		 * either all or none of them are stored. Content resolvers are
+		 * informed once the batch is committed, with one notification per
+		 * changed table rather than one per row.
+		 * @param operations The operations to apply.
+		 * @return The results of the operations.
+		 * @throws OperationApplicationException If an operation fails. None
+		 * of the operations are stored.
+		 * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+		 */
+		@Override
+		public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+				throws OperationApplicationException {
+			Set<Uri> changes = new LinkedHashSet<Uri>();
+			ContentProviderResult[] results;
+
+			batchChanges.set(changes);
+			adapter.beginTransaction();
+			try {
+				results = super.applyBatch(operations);
+				adapter.setTransactionSuccessful();
+			} finally {
+				adapter.endTransaction();
+				batchChanges.set(null);
+			}
+
+			for (Uri uri : changes)
+				getContext().getContentResolver().notifyChange(uri, null, false);
+
+			return results;
+		}
+
+		/**
+		 * Informs content resolvers about a change. The sync manager is not
+		 * asked to sync the change, as local changes are handed to the sync
+		 * trigger instead, and changes made by a sync adapter (marked by
+		 * {@link SocialContract#CALLER_IS_SYNCADAPTER}) must not be synced back.
+		 * Changes made by a batch are notified per table once the batch commits.
+		 * @param uri The URI of the changed data.
+		 * @param values The new values, or null if the data was deleted.
+		 */
+		private void notifyChange(Uri uri, ContentValues values) {
+			Set<Uri> changes = batchChanges.get();
+			if (changes != null)
+				changes.add(getTableUri(uri));
+			else
+				getContext().getContentResolver().notifyChange(uri, null, false);
+
+			if (!"true".equals(uri.getQueryParameter(SocialContract.CALLER_IS_SYNCADAPTER)))
+				syncTrigger.onLocalChange(uri, getCommunityId(uri, values));
+		}
+
+		/**
+		 * Gets the URI of the table holding the specified data, that is, the
+		 * URI without a trailing row ID or query. Observers of the rows are
+		 * informed by notifications of the table.
+		 * @param uri The URI of the changed data.
+		 * @return The URI of the table.
+		 */
+		private static Uri getTableUri(Uri uri) {
+			List<String> segments = uri.getPathSegments();
+			int count = segments.size();
+
+			if (count > 1 && TextUtils.isDigitsOnly(segments.get(count - 1)))
+				count--;
+
+			return new Uri.Builder()
+					.scheme(uri.getScheme())
+					.authority(uri.getAuthority())
+					.path(TextUtils.join("/", segments.subList(0, count)))
+					.build();
+		}
+
+		/**
+		 * Gets the local ID of the community a change belongs to.
+		 * @param uri The URI of the changed data.
+		 * @param values The new values, or null if the data was deleted.
+		 * @return The local ID of the community, {@link SyncTrigger#UNKNOWN_COMMUNITY}
+		 * if it can not be determined without a query, or
+		 * {@link SyncTrigger#NO_COMMUNITY} if the data does not belong to a community.
+		 */
+		private long getCommunityId(Uri uri, ContentValues values) {
+			String column;
+			switch (sUriMatcher.match(uri)) {
+			case SocialContract.UriMatcherIndex.COMMUNITIES_SHARP:
+				return Long.parseLong(uri.getPathSegments().get(1));
+			case SocialContract.UriMatcherIndex.COMMUNITIES:
+				return SyncTrigger.UNKNOWN_COMMUNITY;
+			case SocialContract.UriMatcherIndex.MEMBERSHIP:
+			case SocialContract.UriMatcherIndex.MEMBERSHIP_SHARP:
+				column = SocialContract.Membership._ID_COMMUNITY;
+				break;
+			case SocialContract.UriMatcherIndex.SHARING:
+			case SocialContract.UriMatcherIndex.SHARING_SHARP:
+				column = SocialContract.Sharing._ID_COMMUNITY;
+				break;
+			case SocialContract.UriMatcherIndex.COMMUNITY_ACTIVITIY:
+			case SocialContract.UriMatcherIndex.COMMUNITY_ACTIVITIY_SHARP:
+				column = SocialContract.CommunityActivity._ID_FEED_OWNER;
+				break;
+			default:
+				return SyncTrigger.NO_COMMUNITY;
+			}
+
+			if (values != null && values.getAsLong(column) != null)
+				return values.getAsLong(column);
+			else
+				return SyncTrigger.UNKNOWN_COMMUNITY;
+		}
 }
 
 
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform;
+
+import org.societies.android.api.cis.SocialContract;
+
+import android.net.Uri;
+
+/**
+ * Contract of the sync state kept by the SocialProvider. The state of a sync
+ * adapter has one row per account, table and community, holding how far the
+ * data of that scope has been synced. As the state is stored in the same
+ * database as the data, it can be written in the same batch, and is
+ * therefore never ahead of, nor behind, the data it describes.
+ *
+ * Inserting a row replaces the existing row of the same scope. Changes of
+ * the sync state are not notified, and never trigger a sync.
+ *
+ * @author Kato
+ */
+public final class SyncState {
+
+	/** The path of the sync state. */
+	public static final String PATH = "sync_state";
+	/** The content URI of the sync state. */
+	public static final Uri CONTENT_URI =
+			Uri.withAppendedPath(SocialContract.AUTHORITY, PATH);
+
+	/** The value of {@link #TABLE} or {@link #COMMUNITY} of rows covering
+	 * all tables or communities. */
+	public static final String ALL = "";
+
+	public static final String _ID = "_id";
+	/** The account type of the synced account. */
+	public static final String ACCOUNT_TYPE = "account_type";
+	/** The account name of the synced account. */
+	public static final String ACCOUNT_NAME = "account_name";
+	/** The path of the synced table, or {@link #ALL}. */
+	public static final String TABLE = "table_path";
+	/** The global ID of the synced community, or {@link #ALL}. */
+	public static final String COMMUNITY = "community";
+	/** The Unix time (in seconds) up to which remote changes have been applied. */
+	public static final String WATERMARK = "watermark";
+	/** The sequence number of the last remote change log applied. */
+	public static final String SEQUENCE = "sequence";
+	/** Opaque position in the remote data, defined by the sync adapter. */
+	public static final String CURSOR = "cursor";
+
+	private SyncState() { }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.societies.android.api.cis.SocialContract;
+import org.societies.android.sync.SyncRequest;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Requests an upload sync shortly after local changes to the SocialProvider.
+ * Changes arriving in quick succession are coalesced into a single sync
+ * request, scoped to the changed tables and communities.
+ *
+ * @author Kato
+ */
+public class SyncTrigger {
+
+	private static final String TAG = "SyncTrigger";
+
+	/** Community ID of changes whose community is not known. */
+	public static final long UNKNOWN_COMMUNITY = -1;
+	/** Community ID of changes to data not belonging to a community. */
+	public static final long NO_COMMUNITY = -2;
+
+	/** The time (in milliseconds) to wait for further changes before syncing. */
+	public static final long DEBOUNCE_DELAY = 500;
+	/** The maximum time (in milliseconds) a change waits while changes keep arriving. */
+	public static final long MAX_DELAY = 2000;
+
+	private Context mContext;
+	private Handler mHandler;
+	private Set<String> mTables;
+	private Set<Long> mCommunities;
+	private boolean mIsCommunityUnknown;
+	private long mFirstChange;
+
+	private final Runnable mRequestSync = new Runnable() {
+		public void run() {
+			requestSync();
+		}
+	};
+
+	/**
+	 * Initializes a new sync trigger.
+	 * @param context The context to operate in.
+	 */
+	public SyncTrigger(Context context) {
+		mContext = context;
+		mTables = new HashSet<String>();
+		mCommunities = new HashSet<Long>();
+		mIsCommunityUnknown = false;
+		mFirstChange = -1;
+
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Records a local change and (re)schedules the sync request. The request
+	 * is sent once no further changes have arrived for {@link #DEBOUNCE_DELAY}
+	 * milliseconds, or at the latest {@link #MAX_DELAY} milliseconds after the
+	 * first recorded change.
+	 * @param uri The URI of the changed data.
+	 * @param communityId The local ID of the community the change belongs to,
+	 * {@link #UNKNOWN_COMMUNITY} or {@link #NO_COMMUNITY}.
+	 */
+	public synchronized void onLocalChange(Uri uri, long communityId) {
+		mTables.add(getTable(uri));
+
+		if (communityId >= 0)
+			mCommunities.add(communityId);
+		else if (communityId == UNKNOWN_COMMUNITY)
+			mIsCommunityUnknown = true;
+
+		long now = SystemClock.elapsedRealtime();
+		if (mFirstChange < 0)
+			mFirstChange = now;
+
+		long delay = Math.min(DEBOUNCE_DELAY, Math.max(0, mFirstChange + MAX_DELAY - now));
+
+		mHandler.removeCallbacks(mRequestSync);
+		mHandler.postDelayed(mRequestSync, delay);
+	}
+
+	/**
+	 * Requests an expedited upload sync of the recorded changes for every
+	 * account syncing the SocialProvider automatically. Accounts of the same
+	 * type are requested together, so that their sync adapter can sync them
+	 * concurrently.
+	 */
+	private void requestSync() {
+		SyncRequest request = new SyncRequest(SyncRequest.DIRECTION_PUSH);
+		request.setExpedited(true);
+
+		synchronized (this) {
+			for (String table : mTables)
+				request.addTable(table);
+
+			if (!mIsCommunityUnknown) {
+				for (Long communityId : mCommunities)
+					request.addCommunity(communityId);
+			}
+
+			mTables.clear();
+			mCommunities.clear();
+			mIsCommunityUnknown = false;
+			mFirstChange = -1;
+		}
+
+		String authority = SocialContract.AUTHORITY.getAuthority();
+		Map<String, List<Account>> accountsByType = new LinkedHashMap<String, List<Account>>();
+
+		for (Account account : AccountManager.get(mContext).getAccounts()) {
+			if (ContentResolver.getIsSyncable(account, authority) > 0 &&
+					ContentResolver.getSyncAutomatically(account, authority)) {
+				List<Account> accounts = accountsByType.get(account.type);
+				if (accounts == null) {
+					accounts = new ArrayList<Account>();
+					accountsByType.put(account.type, accounts);
+				}
+
+				accounts.add(account);
+			}
+		}
+
+		for (List<Account> accounts : accountsByType.values()) {
+			Account account = accounts.get(0);
+			request.setAllAccounts(accounts.size() > 1);
+
+			Log.i(TAG, "Requesting sync (" + request + ") for " + account.name +
+					(accounts.size() > 1 ? " and " + (accounts.size() - 1) + " more" : ""));
+
+			request.request(account, authority);
+		}
+	}
+
+	/**
+	 * Gets the table path of the specified URI, that is, the path without a
+	 * trailing row ID.
+	 * @param uri The URI of the changed data.
+	 * @return The table path, e.g. <code>communities/activity</code>.
+	 */
+	private static String getTable(Uri uri) {
+		List<String> segments = uri.getPathSegments();
+		int count = segments.size();
+
+		if (count > 1 && TextUtils.isDigitsOnly(segments.get(count - 1)))
+			count--;
+
+		return TextUtils.join("/", segments.subList(0, count));
+	}
+}
@@ -15,18 +15,28 @@
  */
 package org.societies.android.platform.entity;
 
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.societies.android.api.cis.SocialContract.SyncColumns.*;
+import static org.societies.android.api.cis.SocialContract.BaseSyncColumns.SYNC1;
+import static org.societies.android.api.cis.SocialContract.BaseSyncColumns.SYNC2;
+import static org.societies.android.api.cis.SocialContract.CALLER_IS_SYNCADAPTER;
 
 import com.google.renamedgson.Gson;
 import com.google.renamedgson.GsonBuilder;
+import com.google.renamedgson.annotations.Expose;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 
 /**
@@ -36,17 +46,118 @@ import android.net.Uri;
  */
 public abstract class Entity {
 	
-	/** Specifies which account type entities have to belong to. */
-	public static String SELECTION_ACCOUNT_TYPE = null;
-	/** Specifies which account name entities have to belong to. */
-	public static String SELECTION_ACCOUNT_NAME = null;
-	
 	/** The default local ID of an entity. */
 	protected static final long ENTITY_DEFAULT_ID = -1;
 	
-	private String accountType = SELECTION_ACCOUNT_TYPE;
-	private String accountName = SELECTION_ACCOUNT_NAME;
+	private static final SelectionAccount NO_SELECTION_ACCOUNT = new SelectionAccount(null, null);
+	private static final Map<String, SelectionAccount> selectionAccounts =
+			new HashMap<String, SelectionAccount>();
+	private static final ThreadLocal<SelectionAccount> selectionAccount =
+			new ThreadLocal<SelectionAccount>() {
+		@Override
+		protected SelectionAccount initialValue() {
+			return NO_SELECTION_ACCOUNT;
+		}
+	};
+	
+	private String accountType = getSelectionAccountType();
+	private String accountName = getSelectionAccountName();
 	private int dirty;
+	private String syncHash;
+	@Expose private String syncVersion;
+	
+	/**
+	 * Sets the account entities have to belong to, for the calling thread.
+	 * Threads syncing different accounts thereby select only the entities of
+	 * their own account, and count their queries and writes separately. The
+	 * selection is not passed on to other threads; tasks run on pooled
+	 * threads are bound to it through {@link #bindSelectionAccount(Runnable)}.
+	 * @param accountType The account type, or <code>null</code> to select
+	 * the entities of all accounts.
+	 * @param accountName The account name, or <code>null</code> to select
+	 * the entities of all accounts of the type.
+	 */
+	public static void setSelectionAccount(String accountType, String accountName) {
+		String key = accountType + "/" + accountName;
+		
+		synchronized (selectionAccounts) {
+			SelectionAccount account = selectionAccounts.get(key);
+			
+			if (account == null) {
+				account = new SelectionAccount(accountType, accountName);
+				selectionAccounts.put(key, account);
+			}
+			
+			selectionAccount.set(account);
+		}
+	}
+	
+	/**
+	 * Binds a task to the account selected by the calling thread. The task
+	 * runs with that selection on whichever thread runs it, and the thread
+	 * gets its own selection back afterwards, so that a pooled thread never
+	 * carries the selection of one account over to the task of another.
+	 * @param task The task to bind.
+	 * @return The bound task.
+	 */
+	public static Runnable bindSelectionAccount(final Runnable task) {
+		final SelectionAccount account = selectionAccount.get();
+		
+		return new Runnable() {
+			public void run() {
+				SelectionAccount previous = selectionAccount.get();
+				selectionAccount.set(account);
+				
+				try {
+					task.run();
+				} finally {
+					selectionAccount.set(previous);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Gets the type of the account entities of the calling thread have to belong to.
+	 * @return The account type, or <code>null</code> if not restricted.
+	 */
+	public static String getSelectionAccountType() {
+		return selectionAccount.get().accountType;
+	}
+	
+	/**
+	 * Gets the name of the account entities of the calling thread have to belong to.
+	 * @return The account name, or <code>null</code> if not restricted.
+	 */
+	public static String getSelectionAccountName() {
+		return selectionAccount.get().accountName;
+	}
+	
+	/**
+	 * Gets the number of queries made through entities of the selected
+	 * account since the counters were last reset.
+	 * @return The number of queries.
+	 */
+	public static int getQueryCount() {
+		return selectionAccount.get().queryCount.get();
+	}
+	
+	/**
+	 * Gets the number of inserts, updates and deletes made through entities
+	 * of the selected account since the counters were last reset.
+	 * @return The number of writes.
+	 */
+	public static int getWriteCount() {
+		return selectionAccount.get().writeCount.get();
+	}
+	
+	/**
+	 * Resets the query and write counters of the selected account.
+	 */
+	public static void resetCounters() {
+		selectionAccount.get().queryCount.set(0);
+		selectionAccount.get().writeCount.set(0);
+	}
 	
 	/**
 	 * Removes the entity with the specified global ID from the database.
@@ -91,6 +202,33 @@ public abstract class Entity {
 		return result;
 	}
 	
+	/**
+	 * Gets the "dirty" entities of the specified type, with the global IDs
+	 * of their related entities fetched.
+	 * @param entityClass The class of the entities.
+	 * @param resolver The content resolver.
+	 * @return The updated entities of the specified type.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	public static <E extends Entity> List<E> getUpdatedEntities(
+			Class<E> entityClass, ContentResolver resolver) throws Exception {
+		E entity = entityClass.newInstance();
+		
+		List<E> result = Entity.getEntities(
+				entityClass,
+				resolver,
+				entity.getContentUri(),
+				null,
+				DIRTY + " = 1",
+				null,
+				null);
+		
+		for (Entity resultEntity : result)
+			resultEntity.fetchGlobalIds(resolver);
+		
+		return result;
+	}
+	
 	/**
 	 * Sets the flag for unsuccessful delete on the specified entity.
 	 * @param entity The entity unsuccessfully deleted.
@@ -102,7 +240,8 @@ public abstract class Entity {
 		ContentValues values = new ContentValues();
 		values.put(DELETED, 2);
 		
-		return resolver.update(contentUri, values, null, null) > 0;
+		selectionAccount.get().writeCount.incrementAndGet();
+		return resolver.update(asSyncAdapter(contentUri), values, null, null) > 0;
 	}
 	
 	/**
@@ -131,6 +270,123 @@ public abstract class Entity {
 			return null;
 	}
 	
+	/**
+	 * Gets the sync hash of every entity of the specified type.
+	 * @param entityClass The class of the entities.
+	 * @param resolver The content resolver.
+	 * @return A mapping between global ID and sync hash.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	public static <E extends Entity> Map<String, String> getSyncHashes(
+			Class<E> entityClass, ContentResolver resolver) throws Exception {
+		return getSyncHashes(entityClass, null, null, resolver);
+	}
+	
+	/**
+	 * Gets the sync hash of the selected entities of the specified type.
+	 * @param entityClass The class of the entities.
+	 * @param selection A filter declaring which rows to return, or null for all rows.
+	 * @param selectionArgs The replacement values for any ?s in the selection filter.
+	 * @param resolver The content resolver.
+	 * @return A mapping between global ID and sync hash.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	public static <E extends Entity> Map<String, String> getSyncHashes(
+			Class<E> entityClass,
+			String selection,
+			String[] selectionArgs,
+			ContentResolver resolver) throws Exception {
+		return getSyncColumn(entityClass, SYNC1, selection, selectionArgs, resolver);
+	}
+	
+	/**
+	 * Gets the sync version of the selected entities of the specified type.
+	 * @param entityClass The class of the entities.
+	 * @param selection A filter declaring which rows to return, or null for all rows.
+	 * @param selectionArgs The replacement values for any ?s in the selection filter.
+	 * @param resolver The content resolver.
+	 * @return A mapping between global ID and sync version.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	public static <E extends Entity> Map<String, String> getSyncVersions(
+			Class<E> entityClass,
+			String selection,
+			String[] selectionArgs,
+			ContentResolver resolver) throws Exception {
+		return getSyncColumn(entityClass, SYNC2, selection, selectionArgs, resolver);
+	}
+	
+	/**
+	 * Gets a sync column of the selected entities of the specified type.
+	 * @param entityClass The class of the entities.
+	 * @param column The sync column to get.
+	 * @param selection A filter declaring which rows to return, or null for all rows.
+	 * @param selectionArgs The replacement values for any ?s in the selection filter.
+	 * @param resolver The content resolver.
+	 * @return A mapping between global ID and the value of the column.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	private static <E extends Entity> Map<String, String> getSyncColumn(
+			Class<E> entityClass,
+			String column,
+			String selection,
+			String[] selectionArgs,
+			ContentResolver resolver) throws Exception {
+		Map<String, String> values = new HashMap<String, String>();
+		E entity = entityClass.newInstance();
+		
+		Cursor cursor = null;
+		try {
+			selectionAccount.get().queryCount.incrementAndGet();
+			cursor = resolver.query(
+					entity.getContentUri(),
+					new String[] { GLOBAL_ID, column },
+					Entity.prepareSelection(selection),
+					selectionArgs,
+					null);
+			
+			if (cursor.moveToFirst()) {
+				for (boolean hasItem = true; hasItem; hasItem = cursor.moveToNext())
+					values.put(
+							Entity.getString(cursor, GLOBAL_ID),
+							Entity.getString(cursor, column));
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Gets the selected entities of the specified type. Only the columns of
+	 * the entities themselves are populated; the global IDs of related
+	 * entities are not fetched.
+	 * @param entityClass The class of the entities.
+	 * @param selection A filter declaring which rows to return, or null for all rows.
+	 * @param selectionArgs The replacement values for any ?s in the selection filter.
+	 * @param resolver The content resolver.
+	 * @return The selected entities of the specified type.
+	 * @throws Exception If an error occurs while fetching.
+	 */
+	public static <E extends Entity> List<E> getEntities(
+			Class<E> entityClass,
+			String selection,
+			String[] selectionArgs,
+			ContentResolver resolver) throws Exception {
+		E entity = entityClass.newInstance();
+		
+		return Entity.getEntities(
+				entityClass,
+				resolver,
+				entity.getContentUri(),
+				null,
+				selection,
+				selectionArgs,
+				null);
+	}
+	
 	/**
 	 * Gets a list of entities of the specified type.
 	 * @param entityClass The class of the entity.
@@ -158,6 +414,7 @@ public abstract class Entity {
 		try {
 			selection = Entity.prepareSelection(selection);
 			
+			selectionAccount.get().queryCount.incrementAndGet();
 			cursor = resolver.query(contentUri, projection, selection, selectionArgs, sortOrder);
 			
 			if (cursor.moveToFirst()) {
@@ -182,15 +439,21 @@ public abstract class Entity {
 	 * @return The prepared selection.
 	 */
 	private static String prepareSelection(String selection) {
+		SelectionAccount account = selectionAccount.get();
 		String preparedSelection = selection;
 		
-		if (SELECTION_ACCOUNT_TYPE != null) {
+		if (account.accountType != null) {
+			String accountSelection = String.format(
+					"%s = %s", ACCOUNT_TYPE, DatabaseUtils.sqlEscapeString(account.accountType));
+			
+			if (account.accountName != null)
+				accountSelection += String.format(
+						" AND %s = %s", ACCOUNT_NAME, DatabaseUtils.sqlEscapeString(account.accountName));
+			
 			if (selection == null)
-				preparedSelection = String.format(
-						"%s = '%s'", ACCOUNT_TYPE, SELECTION_ACCOUNT_TYPE);
+				preparedSelection = accountSelection;
 			else
-				preparedSelection = String.format(
-						"(%s) AND %s = '%s'", selection, ACCOUNT_TYPE, SELECTION_ACCOUNT_TYPE);
+				preparedSelection = String.format("(%s) AND %s", selection, accountSelection);
 		}
 		
 		return preparedSelection;
@@ -216,6 +479,7 @@ public abstract class Entity {
 		
 		Cursor cursor = null;
 		try {
+			selectionAccount.get().queryCount.incrementAndGet();
 			cursor = resolver.query(
 					contentUri,
 					new String[] { idColumnName },
@@ -249,6 +513,7 @@ public abstract class Entity {
 		
 		Cursor cursor = null;
 		try {
+			selectionAccount.get().queryCount.incrementAndGet();
 			cursor = resolver.query(
 					ContentUris.withAppendedId(contentUri, localId),
 					new String[] { globalIdColumnName },
@@ -322,6 +587,8 @@ public abstract class Entity {
 		setAccountType(Entity.getString(cursor, ACCOUNT_TYPE));
 		setAccountName(Entity.getString(cursor, ACCOUNT_NAME));
 		setDirty(Entity.getInt(cursor, DIRTY));
+		setSyncHash(Entity.getString(cursor, SYNC1));
+		setSyncVersion(Entity.getString(cursor, SYNC2));
 	}
 	
 	/**
@@ -334,6 +601,10 @@ public abstract class Entity {
 		values.put(ACCOUNT_NAME, accountName);
 		values.put(ACCOUNT_TYPE, accountType);
 		values.put(DIRTY, dirty);
+		if (syncHash != null)
+			values.put(SYNC1, syncHash);
+		if (syncVersion != null)
+			values.put(SYNC2, syncVersion);
 		
 		return values;
 	}
@@ -344,6 +615,18 @@ public abstract class Entity {
 	 */
 	protected abstract Uri getContentUri();
 	
+	/**
+	 * Marks the specified content URL as used by the sync adapter, so that
+	 * the SocialProvider does not sync the change back to the network.
+	 * @param contentUri The content URL.
+	 * @return The content URL marked as used by the sync adapter.
+	 */
+	protected static Uri asSyncAdapter(Uri contentUri) {
+		return contentUri.buildUpon()
+				.appendQueryParameter(CALLER_IS_SYNCADAPTER, "true")
+				.build();
+	}
+	
 	/**
 	 * Inserts the entity into the database.
 	 * @param resolver The content resolver.
@@ -351,10 +634,12 @@ public abstract class Entity {
 	 * @throws IllegalStateException If the entity is already in the database.
 	 */
 	public Uri insert(ContentResolver resolver) throws IllegalStateException {
-		if (getId() == ENTITY_DEFAULT_ID)
-			return resolver.insert(getContentUri(), getEntityValues());
-		else
+		if (getId() == ENTITY_DEFAULT_ID) {
+			selectionAccount.get().writeCount.incrementAndGet();
+			return resolver.insert(asSyncAdapter(getContentUri()), getEntityValues());
+		} else {
 			throw new IllegalStateException("The entity is already in the database.");
+		}
 	}
 	
 	/**
@@ -367,7 +652,8 @@ public abstract class Entity {
 		if (getId() != ENTITY_DEFAULT_ID) {
 			Uri contentUri = ContentUris.withAppendedId(getContentUri(), getId());
 			
-			return resolver.update(contentUri, getEntityValues(), null, null);
+			selectionAccount.get().writeCount.incrementAndGet();
+			return resolver.update(asSyncAdapter(contentUri), getEntityValues(), null, null);
 		} else {
 			throw new IllegalStateException("The entity is not in the database.");
 		}
@@ -383,7 +669,64 @@ public abstract class Entity {
 		if (getId() != ENTITY_DEFAULT_ID) {
 			Uri contentUri = ContentUris.withAppendedId(getContentUri(), getId());
 			
-			return resolver.delete(contentUri, null, null);
+			selectionAccount.get().writeCount.incrementAndGet();
+			return resolver.delete(asSyncAdapter(contentUri), null, null);
+		} else {
+			throw new IllegalStateException("The entity is not in the database.");
+		}
+	}
+	
+	/**
+	 * Gets the operation inserting the entity into the database, to be
+	 * applied as part of a batch.
+	 * @return The insert operation.
+	 * @throws IllegalStateException If the entity is already in the database.
+	 * @see EntityBatch
+	 */
+	ContentProviderOperation newInsertOperation() throws IllegalStateException {
+		if (getId() == ENTITY_DEFAULT_ID) {
+			selectionAccount.get().writeCount.incrementAndGet();
+			return ContentProviderOperation.newInsert(asSyncAdapter(getContentUri()))
+					.withValues(getEntityValues())
+					.build();
+		} else {
+			throw new IllegalStateException("The entity is already in the database.");
+		}
+	}
+	
+	/**
+	 * Gets the operation updating the entity in the database, to be applied
+	 * as part of a batch.
+	 * @return The update operation.
+	 * @throws IllegalStateException If the entity is not in the database.
+	 * @see EntityBatch
+	 */
+	ContentProviderOperation newUpdateOperation() throws IllegalStateException {
+		if (getId() != ENTITY_DEFAULT_ID) {
+			Uri contentUri = ContentUris.withAppendedId(getContentUri(), getId());
+			
+			selectionAccount.get().writeCount.incrementAndGet();
+			return ContentProviderOperation.newUpdate(asSyncAdapter(contentUri))
+					.withValues(getEntityValues())
+					.build();
+		} else {
+			throw new IllegalStateException("The entity is not in the database.");
+		}
+	}
+	
+	/**
+	 * Gets the operation removing the entity from the database, to be
+	 * applied as part of a batch.
+	 * @return The delete operation.
+	 * @throws IllegalStateException If the entity is not in the database.
+	 * @see EntityBatch
+	 */
+	ContentProviderOperation newDeleteOperation() throws IllegalStateException {
+		if (getId() != ENTITY_DEFAULT_ID) {
+			Uri contentUri = ContentUris.withAppendedId(getContentUri(), getId());
+			
+			selectionAccount.get().writeCount.incrementAndGet();
+			return ContentProviderOperation.newDelete(asSyncAdapter(contentUri)).build();
 		} else {
 			throw new IllegalStateException("The entity is not in the database.");
 		}
@@ -417,6 +760,21 @@ public abstract class Entity {
 		return entity;
 	}
 	
+	/**
+	 * Parses a serialized entity into an object while reading it, without
+	 * holding the serialized entity in memory.
+	 * @param reader The reader of the serialized entity.
+	 * @param entityClass The entity class to parse into.
+	 * @return The parsed entity, or <code>null</code> if the deserialization
+	 * fails.
+	 */
+	public static <T extends Entity> T deserialize(
+			Reader reader, Class<T> entityClass) {
+		Gson serializer = new Gson();
+		
+		return serializer.fromJson(reader, entityClass);
+	}
+	
 	/**
 	 * Gets the local ID of the entity.
 	 * @return The local ID of the entity.
@@ -454,6 +812,12 @@ public abstract class Entity {
 	 * @param globalId The global ID of the entity.
 	 */
 	public abstract void setGlobalId(String globalId);
+	
+	/**
+	 * Gets the time the entity was last modified.
+	 * @return The Unix time (in seconds) of the last modification.
+	 */
+	public abstract long getLastModifiedDate();
 
 	/**
 	 * Gets the account type of the entity.
@@ -502,4 +866,58 @@ public abstract class Entity {
 	public void setDirty(int dirty) {
 		this.dirty = dirty;
 	}
+
+	/**
+	 * Gets the hash of the entity content last synchronized with the server.
+	 * @return The sync hash of the entity.
+	 */
+	public String getSyncHash() {
+		return syncHash;
+	}
+
+	/**
+	 * Sets the hash of the entity content last synchronized with the server.
+	 * @param syncHash The sync hash to set.
+	 */
+	public void setSyncHash(String syncHash) {
+		this.syncHash = syncHash;
+	}
+
+	/**
+	 * Gets the version vector of the entity, counting the changes made to
+	 * the entity by every device.
+	 * @return The serialized version vector of the entity.
+	 */
+	public String getSyncVersion() {
+		return syncVersion;
+	}
+
+	/**
+	 * Sets the version vector of the entity.
+	 * @param syncVersion The serialized version vector to set.
+	 */
+	public void setSyncVersion(String syncVersion) {
+		this.syncVersion = syncVersion;
+	}
+	
+	/**
+	 * Account which selected entities have to belong to, along with the
+	 * number of queries and writes made on its behalf.
+	 */
+	private static class SelectionAccount {
+		private final String accountType;
+		private final String accountName;
+		private final AtomicInteger queryCount = new AtomicInteger();
+		private final AtomicInteger writeCount = new AtomicInteger();
+		
+		/**
+		 * Initializes a new selection account.
+		 * @param accountType The account type, or <code>null</code>.
+		 * @param accountName The account name, or <code>null</code>.
+		 */
+		public SelectionAccount(String accountType, String accountName) {
+			this.accountType = accountType;
+			this.accountName = accountName;
+		}
+	}
 }
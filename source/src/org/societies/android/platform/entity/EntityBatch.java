@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.entity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.societies.android.api.cis.SocialContract;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+
+/**
+ * Batch of entity writes, applied to the SocialProvider in a single call
+ * rather than one call per entity. The SocialProvider stores a batch in a
+ * single transaction, and informs its observers once the batch is committed.
+ *
+ * Writes are not visible before the batch is flushed. The batch remembers
+ * which entities it holds, so that the writer can flush it before reading
+ * entities it has written.
+ *
+ * @author Kato
+ */
+public class EntityBatch {
+
+	/** The number of writes after which the batch is flushed. Keeps a batch
+	 * well below the size limit of a single call to the provider. */
+	public static final int MAX_OPERATIONS = 200;
+
+	private ContentResolver mResolver;
+	private ArrayList<ContentProviderOperation> mOperations;
+	private Map<Class<?>, Set<String>> mGlobalIds;
+
+	/**
+	 * Initializes a new, empty batch.
+	 * @param resolver The content resolver.
+	 */
+	public EntityBatch(ContentResolver resolver) {
+		mResolver = resolver;
+		mOperations = new ArrayList<ContentProviderOperation>();
+		mGlobalIds = new HashMap<Class<?>, Set<String>>();
+	}
+
+	/**
+	 * Adds the insert of the specified entity to the batch.
+	 * @param entity The entity to insert.
+	 * @throws Exception If the entity is already in the database, or if an
+	 * error occurs while flushing a full batch.
+	 */
+	public synchronized void insert(Entity entity) throws Exception {
+		add(entity, entity.newInsertOperation());
+	}
+
+	/**
+	 * Adds the update of the specified entity to the batch.
+	 * @param entity The entity to update.
+	 * @throws Exception If the entity is not in the database, or if an
+	 * error occurs while flushing a full batch.
+	 */
+	public synchronized void update(Entity entity) throws Exception {
+		add(entity, entity.newUpdateOperation());
+	}
+
+	/**
+	 * Adds the removal of the specified entity to the batch.
+	 * @param entity The entity to remove.
+	 * @throws Exception If the entity is not in the database, or if an
+	 * error occurs while flushing a full batch.
+	 */
+	public synchronized void delete(Entity entity) throws Exception {
+		add(entity, entity.newDeleteOperation());
+	}
+
+	/**
+	 * Adds a write of other data than entities, such as the sync state, to
+	 * the batch. The write is stored together with the pending entities.
+	 * @param operation The write operation.
+	 */
+	public synchronized void add(ContentProviderOperation operation) {
+		mOperations.add(operation);
+	}
+
+	/**
+	 * Checks whether the batch holds a write of the specified entity.
+	 * @param entityClass The class of the entity.
+	 * @param globalId The global ID of the entity.
+	 * @return Whether or not the entity has a pending write.
+	 */
+	public synchronized boolean isPending(Class<? extends Entity> entityClass, String globalId) {
+		Set<String> globalIds = mGlobalIds.get(entityClass);
+
+		return globalIds != null && globalIds.contains(globalId);
+	}
+
+	/**
+	 * Checks whether the batch holds a write of any entity of the specified type.
+	 * @param entityClass The class of the entities.
+	 * @return Whether or not the type has pending writes.
+	 */
+	public synchronized boolean isPending(Class<? extends Entity> entityClass) {
+		return mGlobalIds.containsKey(entityClass);
+	}
+
+	/**
+	 * Gets the number of pending writes.
+	 * @return The number of writes in the batch.
+	 */
+	public synchronized int size() {
+		return mOperations.size();
+	}
+
+	/**
+	 * Applies the pending writes, and empties the batch. If the batch fails,
+	 * none of its writes are stored.
+	 * @throws Exception If an error occurs while applying the batch.
+	 */
+	public synchronized void flush() throws Exception {
+		if (mOperations.size() == 0)
+			return;
+
+		try {
+			mResolver.applyBatch(SocialContract.AUTHORITY.getAuthority(), mOperations);
+		} finally {
+			mOperations.clear();
+			mGlobalIds.clear();
+		}
+	}
+
+	/**
+	 * Adds a write to the batch, flushing the batch once it is full.
+	 * @param entity The written entity.
+	 * @param operation The write operation.
+	 * @throws Exception If an error occurs while flushing.
+	 */
+	private void add(Entity entity, ContentProviderOperation operation) throws Exception {
+		Set<String> globalIds = mGlobalIds.get(entity.getClass());
+		if (globalIds == null) {
+			globalIds = new HashSet<String>();
+			mGlobalIds.put(entity.getClass(), globalIds);
+		}
+
+		globalIds.add(entity.getGlobalId());
+		mOperations.add(operation);
+
+		if (mOperations.size() >= MAX_OPERATIONS)
+			flush();
+	}
+}
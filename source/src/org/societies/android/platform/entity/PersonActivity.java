@@ -19,6 +19,8 @@ import static org.societies.android.api.cis.SocialContract.PeopleActivity.*;
 
 import java.util.List;
 
+import org.societies.android.api.cis.SocialContract.People;
+
 import com.google.renamedgson.annotations.Expose;
 
 import android.content.ContentResolver;
@@ -102,13 +104,24 @@ public class PersonActivity extends Entity {
 	
 	@Override
 	protected void fetchGlobalIds(ContentResolver resolver) {
-		// TODO: implement
+		setGlobalIdFeedOwner(
+				Entity.getGlobalId(
+						People.CONTENT_URI,
+						feedOwnerId,
+						People.GLOBAL_ID,
+						resolver));
 	}
 	
 	@Override
 	public void fetchLocalId(ContentResolver resolver) {
 		setId(Entity.getLocalId(CONTENT_URI, _ID, GLOBAL_ID, globalId, resolver));
-		// TODO: fetch feedOwnerId
+		setFeedOwnerId(
+				Entity.getLocalId(
+						People.CONTENT_URI,
+						People._ID,
+						People.GLOBAL_ID,
+						globalIdFeedOwner,
+						resolver));
 	}
 
 	@Override
@@ -17,6 +17,8 @@ package org.societies.android.platform.entity;
 
 import java.util.List;
 
+import org.societies.android.api.cis.SocialContract.People;
+
 import com.google.renamedgson.annotations.Expose;
 
 import android.content.ContentResolver;
@@ -97,13 +99,37 @@ public class Relationship extends Entity {
 	
 	@Override
 	protected void fetchGlobalIds(ContentResolver resolver) {
-		// TODO: implement
+		setGlobalIdP1(
+				Entity.getGlobalId(
+						People.CONTENT_URI,
+						p1Id,
+						People.GLOBAL_ID,
+						resolver));
+		setGlobalIdP2(
+				Entity.getGlobalId(
+						People.CONTENT_URI,
+						p2Id,
+						People.GLOBAL_ID,
+						resolver));
 	}
 	
 	@Override
 	public void fetchLocalId(ContentResolver resolver) {
 		setId(Entity.getLocalId(CONTENT_URI, _ID, GLOBAL_ID, globalId, resolver));
-		// TODO: p1id, p2id
+		setP1Id(
+				Entity.getLocalId(
+						People.CONTENT_URI,
+						People._ID,
+						People.GLOBAL_ID,
+						globalIdP1,
+						resolver));
+		setP2Id(
+				Entity.getLocalId(
+						People.CONTENT_URI,
+						People._ID,
+						People.GLOBAL_ID,
+						globalIdP2,
+						resolver));
 	}
 	
 	@Override
@@ -17,6 +17,8 @@ package org.societies.android.platform.entity;
 
 import java.util.List;
 
+import org.societies.android.api.cis.SocialContract.Services;
+
 import com.google.renamedgson.annotations.Expose;
 
 import android.content.ContentResolver;
@@ -102,13 +104,24 @@ public class ServiceActivity extends Entity {
 	
 	@Override
 	protected void fetchGlobalIds(ContentResolver resolver) {
-		// TODO: implement
+		setGlobalIdFeedOwner(
+				Entity.getGlobalId(
+						Services.CONTENT_URI,
+						feedOwnerId,
+						Services.GLOBAL_ID,
+						resolver));
 	}
 	
 	@Override
 	public void fetchLocalId(ContentResolver resolver) {
 		setId(Entity.getLocalId(CONTENT_URI, _ID, GLOBAL_ID, globalId, resolver));
-		// TODO: feedOwnerId
+		setFeedOwnerId(
+				Entity.getLocalId(
+						Services.CONTENT_URI,
+						Services._ID,
+						Services.GLOBAL_ID,
+						globalIdFeedOwner,
+						resolver));
 	}
 	
 	@Override
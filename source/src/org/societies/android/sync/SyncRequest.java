@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * A request for a (partial) sync of the SocialProvider. A request has a
+ * direction, pushing local changes, pulling remote changes or both, and may
+ * be restricted to a set of tables and communities. A request made for one
+ * account may ask for all the accounts of its type to be synced together.
+ * The request is passed to the sync adapter as sync extras.
+ *
+ * @author Kato
+ */
+public class SyncRequest {
+
+	/** Sync extra holding the direction of the sync. */
+	public static final String EXTRA_DIRECTION = "sync_direction";
+	/** Sync extra holding the comma-separated paths of the tables to sync. */
+	public static final String EXTRA_TABLES = "sync_tables";
+	/** Sync extra holding the comma-separated local IDs of the communities to sync. */
+	public static final String EXTRA_COMMUNITIES = "sync_communities";
+	/** Sync extra requesting all the accounts of the type of the synced account
+	 * to be synced together. */
+	public static final String EXTRA_ALL_ACCOUNTS = "all_accounts";
+
+	/** Push local changes and pull remote changes. */
+	public static final int DIRECTION_BOTH = 0;
+	/** Only push local changes. */
+	public static final int DIRECTION_PUSH = 1;
+	/** Only pull remote changes. */
+	public static final int DIRECTION_PULL = 2;
+
+	private int mDirection;
+	private Set<String> mTables;
+	private Set<Long> mCommunities;
+	private boolean mIsExpedited;
+	private boolean mIsAllAccounts;
+
+	/**
+	 * Initializes a new request for a sync of all tables and communities.
+	 * @param direction The direction of the sync.
+	 */
+	public SyncRequest(int direction) {
+		mDirection = direction;
+		mTables = null;
+		mCommunities = null;
+		mIsExpedited = false;
+		mIsAllAccounts = false;
+	}
+
+	/**
+	 * Reads a request from the specified sync extras. Requests made without
+	 * a direction are pushes if {@link ContentResolver#SYNC_EXTRAS_UPLOAD} is
+	 * set, or syncs in both directions otherwise.
+	 * @param extras The sync extras.
+	 * @return The sync request.
+	 */
+	public static SyncRequest fromExtras(Bundle extras) {
+		int defaultDirection = (extras.getBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD) ?
+				DIRECTION_PUSH : DIRECTION_BOTH);
+
+		SyncRequest request = new SyncRequest(extras.getInt(EXTRA_DIRECTION, defaultDirection));
+		request.mIsExpedited = extras.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED);
+		request.mIsAllAccounts = extras.getBoolean(EXTRA_ALL_ACCOUNTS);
+
+		String tables = extras.getString(EXTRA_TABLES);
+		if (tables != null) {
+			request.mTables = new HashSet<String>();
+			for (String table : tables.split(","))
+				if (table.length() > 0)
+					request.mTables.add(table);
+		}
+
+		String communities = extras.getString(EXTRA_COMMUNITIES);
+		if (communities != null) {
+			request.mCommunities = new HashSet<Long>();
+			for (String community : communities.split(","))
+				if (community.length() > 0)
+					request.mCommunities.add(Long.parseLong(community));
+		}
+
+		return request;
+	}
+
+	/**
+	 * Gets the sync extras of the request.
+	 * @return The sync extras.
+	 */
+	public Bundle toExtras() {
+		Bundle extras = new Bundle();
+		extras.putInt(EXTRA_DIRECTION, mDirection);
+
+		if (mDirection == DIRECTION_PUSH)
+			extras.putBoolean(ContentResolver.SYNC_EXTRAS_UPLOAD, true);
+		if (mIsExpedited)
+			extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+		if (mIsAllAccounts)
+			extras.putBoolean(EXTRA_ALL_ACCOUNTS, true);
+		if (mTables != null)
+			extras.putString(EXTRA_TABLES, TextUtils.join(",", mTables));
+		if (mCommunities != null)
+			extras.putString(EXTRA_COMMUNITIES, TextUtils.join(",", mCommunities));
+
+		return extras;
+	}
+
+	/**
+	 * Requests the sync of the specified account.
+	 * @param account The account to sync.
+	 * @param authority The authority to sync.
+	 */
+	public void request(Account account, String authority) {
+		ContentResolver.requestSync(account, authority, toExtras());
+	}
+
+	/**
+	 * Restricts the sync to the specified table, in addition to any tables
+	 * added earlier.
+	 * @param table The path of the table, e.g. <code>communities/activity</code>.
+	 */
+	public void addTable(String table) {
+		if (mTables == null)
+			mTables = new HashSet<String>();
+
+		mTables.add(table);
+	}
+
+	/**
+	 * Restricts the sync to the specified community, in addition to any
+	 * communities added earlier.
+	 * @param communityId The local ID of the community.
+	 */
+	public void addCommunity(long communityId) {
+		if (mCommunities == null)
+			mCommunities = new HashSet<Long>();
+
+		mCommunities.add(communityId);
+	}
+
+	/**
+	 * Sets whether the sync should start immediately.
+	 * @param isExpedited Whether or not the sync is expedited.
+	 */
+	public void setExpedited(boolean isExpedited) {
+		mIsExpedited = isExpedited;
+	}
+
+	/**
+	 * Sets whether all the accounts of the type of the requested account
+	 * should be synced together with it.
+	 * @param isAllAccounts Whether or not all accounts are synced.
+	 */
+	public void setAllAccounts(boolean isAllAccounts) {
+		mIsAllAccounts = isAllAccounts;
+	}
+
+	/**
+	 * Checks whether all the accounts of the type of the requested account
+	 * are to be synced together with it.
+	 * @return Whether or not all accounts are synced.
+	 */
+	public boolean isAllAccounts() {
+		return mIsAllAccounts;
+	}
+
+	/**
+	 * Gets the direction of the sync.
+	 * @return The direction of the sync.
+	 */
+	public int getDirection() {
+		return mDirection;
+	}
+
+	/**
+	 * Checks whether local changes are to be pushed.
+	 * @return Whether or not local changes are pushed.
+	 */
+	public boolean isPush() {
+		return mDirection != DIRECTION_PULL;
+	}
+
+	/**
+	 * Checks whether remote changes are to be pulled.
+	 * @return Whether or not remote changes are pulled.
+	 */
+	public boolean isPull() {
+		return mDirection != DIRECTION_PUSH;
+	}
+
+	/**
+	 * Checks whether the sync is restricted in direction or scope.
+	 * @return Whether or not the sync is partial.
+	 */
+	public boolean isPartial() {
+		return mDirection != DIRECTION_BOTH || mTables != null || mCommunities != null;
+	}
+
+	/**
+	 * Gets the tables to sync.
+	 * @return The paths of the tables, or <code>null</code> if all tables are synced.
+	 */
+	public Set<String> getTables() {
+		return mTables;
+	}
+
+	/**
+	 * Gets the communities to sync.
+	 * @return The local IDs of the communities, or <code>null</code> if all
+	 * communities are synced.
+	 */
+	public Set<Long> getCommunities() {
+		return mCommunities;
+	}
+
+	/**
+	 * Checks whether the specified table is within the scope of the sync.
+	 * @param table The path of the table.
+	 * @return Whether or not the table is synced.
+	 */
+	public boolean isInScope(String table) {
+		return mTables == null || mTables.contains(table);
+	}
+
+	/**
+	 * Checks whether the specified community is within the scope of the sync.
+	 * @param communityId The local ID of the community.
+	 * @return Whether or not the community is synced.
+	 */
+	public boolean isInScope(long communityId) {
+		return mCommunities == null || mCommunities.contains(communityId);
+	}
+
+	@Override
+	public String toString() {
+		return "direction=" + mDirection + ", tables=" + mTables + ", communities=" + mCommunities;
+	}
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.societies.android.box.BoxConstants;
+import org.societies.android.platform.entity.Entity;
+import org.societies.android.sync.SyncRequest;
+
+import com.box.androidlib.DAO.Update;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.SQLException;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Sync of a single Box account. The state of the sync is kept apart from the
+ * adapter, so that several accounts can be synced concurrently, each through
+ * a Box handler of its own.
+ * 
+ * @author Kato
+ */
+public class BoxAccountSync {
+	
+	private static final String TAG = "BoxAccountSync";
+	private static final String CANCELLED = "Cancelled";
+	
+	private ContentResolver mResolver;
+	private BoxHandler mBoxHandler;
+	private SharedPreferences mPreferences;
+	private BoxSyncScheduler mScheduler;
+	private BoxSyncHistory mHistory;
+	private int mChangeCount;
+	private SyncRequest mRequest;
+	private BoxSyncMetrics mMetrics;
+	private volatile boolean mIsCancelled;
+	
+	/**
+	 * Initializes a new sync of an account.
+	 * @param resolver The content resolver.
+	 * @param boxHandler The Box handler of the account.
+	 * @param preferences The Box preferences.
+	 * @param scheduler The scheduler of the periodic syncs.
+	 * @param history The history of the syncs.
+	 */
+	public BoxAccountSync(
+			ContentResolver resolver,
+			BoxHandler boxHandler,
+			SharedPreferences preferences,
+			BoxSyncScheduler scheduler,
+			BoxSyncHistory history) {
+		mResolver = resolver;
+		mBoxHandler = boxHandler;
+		mPreferences = preferences;
+		mScheduler = scheduler;
+		mHistory = history;
+		mIsCancelled = false;
+	}
+	
+	/**
+	 * Cancels the sync. The running operations stop at their next check of
+	 * the cancellation token of the Box handler, and the calls in progress
+	 * are aborted.
+	 */
+	public void cancel() {
+		mIsCancelled = true;
+		
+		try {
+			mBoxHandler.cancelRunningOperations();
+		} catch (InterruptedException e) { /* IGNORED */ }
+	}
+	
+	/**
+	 * Performs the sync with the specified authentication token. The metrics
+	 * of the sync are reported in the sync result and recorded in the sync
+	 * history. The entities selected by the calling thread, and by the
+	 * operations it hands to the worker threads of the Box handler, are
+	 * restricted to the synced account until the sync ends.
+	 * @param account The account to sync.
+	 * @param extras The sync extras.
+	 * @param authority The authority to sync.
+	 * @param authToken The token used to authenticate with Box.
+	 * @param syncResult The result of the sync.
+	 */
+	public void performSync(
+			Account account,
+			Bundle extras,
+			String authority,
+			String authToken,
+			SyncResult syncResult) {
+		String error = null;
+		mRequest = null;
+		
+		try {
+			Log.i(TAG, "Sync Started: " + account.name);
+			
+			Entity.setSelectionAccount(account.type, account.name);
+			Entity.resetCounters();
+			
+			Log.i(TAG, "Initializing...");
+			mBoxHandler.initialize(authToken);
+			mBoxHandler.getGateway().resetStats();
+			mMetrics = mBoxHandler.getMetrics();
+			mChangeCount = 0;
+			
+			if (mBoxHandler.getGateway().isCircuitOpen()) {
+				Log.i(TAG, "Terminating sync: Box is failing, calls are suspended.");
+				mBoxHandler.waitForRunningOperationsToComplete(true);
+				return;
+			}
+			
+			boolean isFullSync = extras.getBoolean(BoxSyncAdapter.EXTRA_FULL_SYNC);
+			long lastSync = 0;
+			if (isFullSync)
+				mBoxHandler.getSyncState().clear();
+			else
+				lastSync = getWatermark(account);
+			
+			Log.i(TAG, "Last Sync: " + new Date(lastSync * 1000) + " (" + lastSync + ")");
+			
+			mRequest = SyncRequest.fromExtras(extras);
+			if (mRequest.isPartial())
+				Log.i(TAG, "Partial sync: " + mRequest);
+			
+			boolean isManualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL);
+			long throttleInterval = mScheduler.getThrottleInterval();
+			if (!isManualSync && !mRequest.isPartial() &&
+					(new Date().getTime() / 1000) - lastSync < throttleInterval) {
+				Log.i(TAG, "Terminating sync: last sync completed within the last " + 
+							throttleInterval + " seconds.");
+				mBoxHandler.waitForRunningOperationsToComplete(true);
+				return;
+			}
+			
+			if (mRequest.isPull()) {
+				long pullStarted = new Date().getTime() / 1000;
+				int failedBefore = mMetrics.getFailed();
+				
+				mMetrics.startPhase("pull");
+				processBoxUpdates(lastSync);
+				
+				Log.i(TAG, "Waiting for update processing to complete...");
+				mMetrics.startPhase("pull_wait");
+				mBoxHandler.waitForRunningOperationsToComplete(false);
+				
+				if (!mIsCancelled && mMetrics.getFailed() == failedBefore &&
+						mRequest.getTables() == null && mRequest.getCommunities() == null)
+					mBoxHandler.getSyncState().setWatermark(pullStarted);
+			}
+			
+			if (mRequest.isPush()) {
+				mMetrics.startPhase("resume");
+				resumeJournaledOperations();
+				
+				mMetrics.startPhase("delete");
+				processDeletedEntities();
+				
+				syncEntities();
+			}
+			
+			Log.i(TAG, "Waiting for operations to complete...");
+			mMetrics.startPhase("finish");
+			mBoxHandler.waitForRunningOperationsToComplete(true);
+			
+			if (mIsCancelled) {
+				Log.i(TAG, "Sync cancelled: " + account.name);
+				error = CANCELLED;
+				return;
+			}
+			
+			if (!mRequest.isPartial())
+				mScheduler.onSyncCompleted(account, authority, mChangeCount);
+			
+			Log.i(TAG, "Sync finished: " + account.name);
+		} catch (InterruptedIOException e) {
+			if (mIsCancelled) {
+				Log.i(TAG, "Sync cancelled: " + account.name);
+				error = CANCELLED;
+			} else {
+				Log.e(TAG, e.getMessage(), e);
+				error = e.getClass().getSimpleName() + ": " + e.getMessage();
+				syncResult.stats.numIoExceptions++;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+			
+			error = e.getClass().getSimpleName() + ": " + e.getMessage();
+			if (e instanceof IOException)
+				syncResult.stats.numIoExceptions++;
+			else if (e instanceof SQLException)
+				syncResult.databaseError = true;
+			else
+				syncResult.stats.numParseExceptions++;
+		} finally {
+			reportMetrics(account, syncResult, error);
+			Entity.setSelectionAccount(null, null);
+		}
+	}
+	
+	/**
+	 * Reports the metrics of the sync in the sync result and records them in
+	 * the sync history. If the circuit breaker of the gateway is open, the
+	 * next sync is delayed until it closes.
+	 * @param account The synced account.
+	 * @param syncResult The result of the sync.
+	 * @param error The error terminating the sync, or <code>null</code>.
+	 */
+	private void reportMetrics(Account account, SyncResult syncResult, String error) {
+		BoxGateway.Stats stats = mBoxHandler.getGateway().getStats();
+		BoxSyncMetrics metrics = mBoxHandler.getMetrics();
+		
+		metrics.setBoxStats(stats);
+		metrics.setDatabaseCounts(Entity.getQueryCount(), Entity.getWriteCount());
+		metrics.finish();
+		
+		Log.i(TAG, "Sync metrics: " + metrics);
+		Log.i(TAG, "Sync phases: " + metrics.formatPhases());
+		Log.i(TAG, "Box calls: " + stats);
+		Log.i(TAG, "Box endpoints: " + stats.formatEndpoints());
+		
+		if (mBoxHandler.getGateway().getBackend() instanceof BoxHttpBackend) {
+			BoxHttpTransport transport =
+					((BoxHttpBackend) mBoxHandler.getGateway().getBackend()).getTransport();
+			
+			Log.i(TAG, "HTTP connections (all accounts): " + transport.getStats());
+		}
+		
+		syncResult.stats.numEntries += metrics.getScanned();
+		syncResult.stats.numUpdates += metrics.getDownloaded();
+		syncResult.stats.numSkippedEntries += metrics.getSkipped() + metrics.getFailed();
+		syncResult.stats.numIoExceptions += stats.failedCalls + stats.rejected;
+		if (mBoxHandler.getGateway().isCircuitOpen())
+			syncResult.delayUntil = stats.circuitOpenUntil / 1000;
+		
+		try {
+			mHistory.add(
+					account.name,
+					mRequest != null ? mRequest.toString() : null,
+					metrics,
+					error);
+		} catch (SQLException e) {
+			Log.e(TAG, "Failed to record sync history", e);
+		}
+	}
+	
+	/**
+	 * Gets the time up to which the Box updates of an account have been
+	 * applied. Accounts without a sync state fall back to the time of the
+	 * last sync recorded in the preferences by older versions.
+	 * @param account The account.
+	 * @return The Unix time (in seconds) of the watermark, or 0 if the
+	 * account has not been synced.
+	 */
+	private long getWatermark(Account account) {
+		long watermark = mBoxHandler.getSyncState().getWatermark();
+		
+		if (watermark < 0)
+			watermark = mPreferences.getLong(
+					BoxConstants.PREFERENCE_LAST_SYNC + "_" + account.name,
+					mPreferences.getLong(BoxConstants.PREFERENCE_LAST_SYNC, 0));
+		
+		return watermark;
+	}
+	
+	/**
+	 * Gets the entity types of the tables within the scope of the sync.
+	 * @return The type codes of the entities to sync, or <code>null</code>
+	 * if the sync is not restricted to any tables.
+	 */
+	private Set<String> getEntityTypes() {
+		if (mRequest.getTables() == null)
+			return null;
+		
+		Set<String> types = new HashSet<String>();
+		for (BoxSyncDescriptor descriptor : BoxSyncDescriptor.getDescriptors())
+			if (descriptor.isSynced() && mRequest.isInScope(descriptor.getTable()))
+				types.add(descriptor.getType().getCode());
+		
+		return types;
+	}
+	
+	/**
+	 * Checks whether an entity is within the scope of the sync. Entities of
+	 * the account are outside of syncs restricted to some communities.
+	 * @param descriptor The descriptor of the entity.
+	 * @param entity The entity to check.
+	 * @return Whether or not the entity is within the scope of the sync.
+	 */
+	private boolean isInScope(BoxSyncDescriptor descriptor, Entity entity) {
+		if (descriptor.isCommunityScoped())
+			return mRequest.isInScope(descriptor.getCommunityId(entity));
+		else
+			return mRequest.getCommunities() == null;
+	}
+	
+	/**
+	 * Resumes the operations interrupted during an earlier sync.
+	 * @throws Exception If an error occurs while resuming.
+	 */
+	private void resumeJournaledOperations() throws Exception {
+		if (mIsCancelled) return;
+		
+		Log.i(TAG, "Resuming journaled operations...");
+		
+		mBoxHandler.resumeJournaledOperations();
+	}
+	
+	/**
+	 * Processes the deleted entities within the scope of the sync.
+	 * @throws Exception If an error occurs while processing.
+	 */
+	private void processDeletedEntities() throws Exception {
+		if (mIsCancelled) return;
+		
+		Log.i(TAG, "Processing deleted entities...");
+		
+		List<Entity> deletedEntities = new ArrayList<Entity>();
+		
+		for (BoxSyncDescriptor descriptor : BoxSyncDescriptor.getDescriptors()) {
+			if (!descriptor.isSynced() || !mRequest.isInScope(descriptor.getTable()))
+				continue;
+			
+			for (Entity entity : Entity.getDeletedEntities(descriptor.getEntityClass(), mResolver))
+				if (isInScope(descriptor, entity))
+					deletedEntities.add(entity);
+		}
+		
+		Log.i(TAG, "Deleting entities: " + deletedEntities.size());
+		mChangeCount += deletedEntities.size();
+		mMetrics.addScanned(deletedEntities.size());
+		
+		mBoxHandler.deleteEntities(deletedEntities);
+	}
+
+	/**
+	 * Processes the updates from Box. Syncs restricted to some communities or
+	 * tables reconcile those through the community manifests instead of
+	 * listing the updates of the whole account.
+	 * @param lastSync The Unix time (in seconds) of the last synchronization.
+	 * @throws Exception If an error occurs while processing updates.
+	 */
+	private void processBoxUpdates(long lastSync) throws Exception {
+		if (mIsCancelled) return;
+		
+		if (mRequest.getCommunities() != null) {
+			Log.i(TAG, "Reconciling communities: " + mRequest.getCommunities());
+			
+			mBoxHandler.reconcileCommunities(mRequest.getCommunities(), getEntityTypes());
+			return;
+		} else if (mRequest.getTables() != null) {
+			Log.i(TAG, "Reconciling tables: " + mRequest.getTables());
+			
+			mBoxHandler.reconcileCommunities(getEntityTypes());
+			return;
+		}
+		
+		Log.i(TAG, "Fetching updates from Box...");
+		
+		List<Update> updates = null;
+		if (lastSync > 0)
+			updates = mBoxHandler.getUpdatesSince(lastSync);
+		
+		Log.i(TAG, "Processing updates: " + (updates == null ? "full_sync" : updates.size()));
+		mChangeCount += (updates == null ? 1 : updates.size());
+		
+		mBoxHandler.processUpdates(updates);
+	}
+	
+	/**
+	 * Synchronizes the updated entities of all types, one dependency level at
+	 * a time. Communities only get their global ID once their upload has
+	 * completed, so the sync waits for the uploads of a level including
+	 * communities before scanning the levels depending on it.
+	 * @throws Exception If an error occurs while syncing.
+	 */
+	private void syncEntities() throws Exception {
+		List<List<BoxSyncDescriptor>> levels = BoxSyncDescriptor.getLevels();
+		
+		for (int level = 0; level < levels.size(); level++) {
+			boolean isWaitNeeded = false;
+			
+			for (BoxSyncDescriptor descriptor : levels.get(level)) {
+				if (mIsCancelled) return;
+				
+				mMetrics.startPhase(descriptor.getName());
+				int synced = syncEntities(descriptor);
+				
+				if (synced > 0 && descriptor.getScope() == BoxSyncDescriptor.Scope.COMMUNITY)
+					isWaitNeeded = true;
+			}
+			
+			if (isWaitNeeded && level < levels.size() - 1) {
+				Log.i(TAG, "Waiting for level " + level + " to complete...");
+				mMetrics.startPhase("level" + level + "_wait");
+				mBoxHandler.waitForRunningOperationsToComplete(false);
+			}
+		}
+	}
+	
+	/**
+	 * Synchronizes the updated entities of a type.
+	 * @param descriptor The descriptor of the type.
+	 * @return The number of entities synced.
+	 * @throws Exception If an error occurs while syncing.
+	 */
+	private int syncEntities(BoxSyncDescriptor descriptor) throws Exception {
+		if (!mRequest.isInScope(descriptor.getTable())) return 0;
+		
+		Log.i(TAG, "Started sync of " + descriptor);
+		
+		List<Entity> entities = new ArrayList<Entity>();
+		for (Entity entity : Entity.getUpdatedEntities(descriptor.getEntityClass(), mResolver))
+			if (isInScope(descriptor, entity))
+				entities.add(entity);
+		
+		Log.i(TAG, "Syncing " + descriptor + ": " + entities.size());
+		mChangeCount += entities.size();
+		mMetrics.addScanned(entities.size());
+		
+		mBoxHandler.uploadEntities(descriptor, entities);
+		
+		return entities.size();
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+import com.box.androidlib.ResponseParsers.FolderResponseParser;
+import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
+
+/**
+ * The Box calls made by the sync adapter. The calls have the semantics and
+ * status codes of the corresponding calls of the Box library.
+ *
+ * @author Kato
+ */
+public interface BoxBackend {
+
+	/**
+	 * Gets the directory tree of a folder.
+	 * @param authToken The authentication token.
+	 * @param folderId The ID of the root folder of the tree.
+	 * @param params The parameters of the listing.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public AccountTreeResponseParser getAccountTree(
+			String authToken, long folderId, String[] params) throws IOException;
+
+	/**
+	 * Gets the info of a file.
+	 * @param authToken The authentication token.
+	 * @param fileId The ID of the file.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FileResponseParser getFileInfo(String authToken, long fileId) throws IOException;
+
+	/**
+	 * Creates a folder.
+	 * @param authToken The authentication token.
+	 * @param parentFolderId The ID of the parent folder.
+	 * @param folderName The name of the folder.
+	 * @param share Whether or not to share the folder.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FolderResponseParser createFolder(
+			String authToken, long parentFolderId, String folderName, boolean share)
+			throws IOException;
+
+	/**
+	 * Deletes a file or folder.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String delete(String authToken, String type, long targetId) throws IOException;
+
+	/**
+	 * Renames a file or folder.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @param newName The new name of the target.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String rename(String authToken, String type, long targetId, String newName)
+			throws IOException;
+
+	/**
+	 * Gets the updates within a time frame.
+	 * @param authToken The authentication token.
+	 * @param beginTimeStamp The Unix time (in seconds) of the oldest updates to get.
+	 * @param endTimeStamp The Unix time (in seconds) of the newest updates to get.
+	 * @param params The parameters of the call.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public UpdatesResponseParser getUpdates(
+			String authToken, long beginTimeStamp, long endTimeStamp, String[] params)
+			throws IOException;
+
+	/**
+	 * Invites collaborators to a file or folder.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @param userIds The IDs of the users to invite, or <code>null</code>.
+	 * @param emails The email addresses of the users to invite.
+	 * @param itemRoleName The role of the collaborators.
+	 * @param resendInvite Whether or not to resend invitations.
+	 * @param noEmail Whether or not to skip the invitation emails.
+	 * @param params The parameters of the call.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String inviteCollaborators(
+			String authToken,
+			String type,
+			long targetId,
+			long[] userIds,
+			String[] emails,
+			String itemRoleName,
+			boolean resendInvite,
+			boolean noEmail,
+			String[] params) throws IOException;
+
+	/**
+	 * Downloads a file to the specified stream.
+	 * @param authToken The authentication token.
+	 * @param fileId The ID of the file.
+	 * @param outStream The stream to download to.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public DefaultResponseParser download(String authToken, long fileId, OutputStream outStream)
+			throws IOException;
+
+	/**
+	 * Uploads the content of the specified stream.
+	 * @param authToken The authentication token.
+	 * @param action The action to perform (see Box.upload() doc).
+	 * @param inStream The content to upload.
+	 * @param fileName The name of the file to upload to.
+	 * @param destinationId The folder ID or file ID, depending on the action.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FileResponseParser upload(
+			String authToken,
+			String action,
+			InputStream inStream,
+			String fileName,
+			long destinationId) throws IOException;
+
+	/**
+	 * Aborts the calls in progress, which then fail with an
+	 * {@link IOException} instead of waiting for Box to answer.
+	 */
+	public void abortCalls();
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token telling the operations of a sync that the sync is cancelled. The
+ * operations check the token between files, while streaming content and
+ * while walking folders, and stop by throwing an
+ * {@link InterruptedIOException}. They never check it between the writes
+ * to the database and journal completing a file, so a cancelled operation
+ * either completes or leaves its journal entry to be resumed. Listeners are
+ * notified on cancellation, so that calls in progress can be aborted rather
+ * than waited for.
+ *
+ * @author Kato
+ */
+public class BoxCancellationToken {
+
+	private boolean mCancelled;
+	private List<Runnable> mListeners;
+
+	/**
+	 * Initializes a new token which is not cancelled.
+	 */
+	public BoxCancellationToken() {
+		mCancelled = false;
+		mListeners = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Cancels the sync, waking up the threads waiting on the token and
+	 * notifying the listeners. Cancelling a cancelled token has no effect.
+	 */
+	public void cancel() {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (mCancelled)
+				return;
+
+			mCancelled = true;
+			listeners = new ArrayList<Runnable>(mListeners);
+			notifyAll();
+		}
+
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+	/**
+	 * Checks whether the sync is cancelled.
+	 * @return Whether or not the sync is cancelled.
+	 */
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Throws if the sync is cancelled.
+	 * @throws InterruptedIOException If the sync is cancelled.
+	 */
+	public void throwIfCancelled() throws InterruptedIOException {
+		if (isCancelled())
+			throw new InterruptedIOException("Sync cancelled.");
+	}
+
+	/**
+	 * Adds a listener which is run when the sync is cancelled, or right away
+	 * if it is already cancelled.
+	 * @param listener The listener to add.
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!mCancelled) {
+				mListeners.add(listener);
+				return;
+			}
+		}
+
+		listener.run();
+	}
+
+	/**
+	 * Sleeps for the specified time, waking up as soon as the sync is cancelled.
+	 * @param millis The time (in milliseconds) to sleep.
+	 * @throws InterruptedIOException If the sync is cancelled, or the thread
+	 * is interrupted, while sleeping.
+	 */
+	public synchronized void sleep(long millis) throws InterruptedIOException {
+		long end = System.currentTimeMillis() + millis;
+
+		try {
+			for (long wait = millis; wait > 0 && !mCancelled; wait = end - System.currentTimeMillis())
+				wait(wait);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while sleeping.");
+		}
+
+		throwIfCancelled();
+	}
+
+	/**
+	 * Wraps a stream, so that reading it fails once the sync is cancelled.
+	 * @param inStream The stream to wrap.
+	 * @return The wrapped stream.
+	 */
+	public InputStream wrap(InputStream inStream) {
+		return new FilterInputStream(inStream) {
+			@Override
+			public int read() throws IOException {
+				throwIfCancelled();
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				throwIfCancelled();
+				return super.read(buffer, offset, count);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a stream, so that writing it fails once the sync is cancelled.
+	 * @param outStream The stream to wrap.
+	 * @return The wrapped stream.
+	 */
+	public OutputStream wrap(OutputStream outStream) {
+		return new FilterOutputStream(outStream) {
+			@Override
+			public void write(int oneByte) throws IOException {
+				throwIfCancelled();
+				out.write(oneByte);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int count) throws IOException {
+				throwIfCancelled();
+				out.write(buffer, offset, count);
+			}
+		};
+	}
+}
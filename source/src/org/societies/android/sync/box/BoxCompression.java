@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of the files stored in Box. Whether a file is compressed
+ * is told by its first two bytes, the gzip magic number, which never starts
+ * a serialized entity or a pack segment. Uncompressed files written by older
+ * versions are therefore read as before.
+ *
+ * @author Kato
+ */
+public final class BoxCompression {
+
+	/** The size (in bytes) below which content is not worth compressing. */
+	public static final int COMPRESSION_THRESHOLD = 512;
+
+	private static final byte GZIP_MAGIC_1 = (byte) 0x1f;
+	private static final byte GZIP_MAGIC_2 = (byte) 0x8b;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private BoxCompression() {}
+
+	/**
+	 * Compresses the specified content, unless it is too small to gain from it.
+	 * @param content The content to compress.
+	 * @return The compressed content, or the content itself if compressing it
+	 * does not make it smaller.
+	 */
+	public static byte[] compress(byte[] content) {
+		if (content.length < COMPRESSION_THRESHOLD)
+			return content;
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+		try {
+			GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+			gzipStream.write(content);
+			gzipStream.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		return (compressed.size() < content.length ? compressed.toByteArray() : content);
+	}
+
+	/**
+	 * Checks whether the specified content is compressed.
+	 * @param content The start of the content.
+	 * @param length The number of bytes of the content available.
+	 * @return Whether or not the content starts with the gzip magic number.
+	 */
+	public static boolean isCompressed(byte[] content, int length) {
+		return length >= 2 && content[0] == GZIP_MAGIC_1 && content[1] == GZIP_MAGIC_2;
+	}
+
+	/**
+	 * Decompresses the specified content, if it is compressed.
+	 * @param content The content as stored in Box.
+	 * @return The decompressed content.
+	 * @throws IOException If the compressed content is corrupt.
+	 */
+	public static byte[] decompress(byte[] content) throws IOException {
+		if (!isCompressed(content, content.length))
+			return content;
+
+		InputStream inStream = new GZIPInputStream(new ByteArrayInputStream(content));
+		ByteArrayOutputStream decompressed = new ByteArrayOutputStream(content.length * 4);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (int count = inStream.read(buffer); count != -1; count = inStream.read(buffer))
+				decompressed.write(buffer, 0, count);
+		} finally {
+			inStream.close();
+		}
+
+		return decompressed.toByteArray();
+	}
+
+	/**
+	 * Wraps a stream of content as stored in Box, decompressing the content
+	 * while reading if it is compressed.
+	 * @param inStream The stream of the content as stored in Box.
+	 * @return A stream of the decompressed content.
+	 * @throws IOException If an error occurs while reading.
+	 */
+	public static InputStream openStream(InputStream inStream) throws IOException {
+		BufferedInputStream bufferedStream = new BufferedInputStream(inStream);
+
+		bufferedStream.mark(2);
+		byte[] magic = new byte[] { (byte) bufferedStream.read(), (byte) bufferedStream.read() };
+		bufferedStream.reset();
+
+		if (isCompressed(magic, magic.length))
+			return new GZIPInputStream(bufferedStream);
+		else
+			return bufferedStream;
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.societies.android.platform.entity.Entity;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import com.box.androidlib.DAO.BoxFile;
+
+/**
+ * Queue of downloaded entities waiting on a community which does not exist
+ * locally yet. Every missing community folder is fetched once per sync, with
+ * several folders fetched in parallel, after which the entities waiting on
+ * the community are stored.
+ *
+ * @author Kato
+ */
+public class BoxDependencyQueue {
+
+	private static final String TAG = "BoxDependencyQueue";
+
+	/** The number of community folders fetched in parallel. */
+	public static final int FETCH_THREADS = 3;
+
+	private BoxHandler mBoxHandler;
+	private String mAuthToken;
+	private ContentResolver mResolver;
+	private ExecutorService mThreadPool;
+	private Map<String, List<Dependent>> mDependents;
+	private Set<String> mFetchedCommunities;
+	private int mRunningFetches;
+
+	/**
+	 * Initializes a new, empty dependency queue.
+	 * @param authToken The authentication token.
+	 * @param boxHandler The BoxHandler instance.
+	 * @param resolver The content resolver.
+	 */
+	public BoxDependencyQueue(String authToken, BoxHandler boxHandler, ContentResolver resolver) {
+		mAuthToken = authToken;
+		mBoxHandler = boxHandler;
+		mResolver = resolver;
+		mThreadPool = Executors.newFixedThreadPool(FETCH_THREADS);
+		mDependents = new HashMap<String, List<Dependent>>();
+		mFetchedCommunities = new HashSet<String>();
+		mRunningFetches = 0;
+	}
+
+	/**
+	 * Defers storing an entity until its community has been fetched. The
+	 * community folder is fetched unless it is already being fetched, with
+	 * the account selected by the calling thread.
+	 * @param communityGlobalId The global ID of the missing community.
+	 * @param entity The downloaded entity.
+	 * @param syncHash The hash of the entity as stored in Box.
+	 * @return Whether or not the entity was deferred. Entities waiting on a
+	 * community which has already been fetched during this sync, or on a
+	 * community which is not a Box folder, are not deferred.
+	 */
+	public synchronized boolean defer(String communityGlobalId, Entity entity, String syncHash) {
+		if (mFetchedCommunities.contains(communityGlobalId) ||
+			!BoxHandler.isRemoteFileId(communityGlobalId) ||
+			mThreadPool.isShutdown())
+			return false;
+
+		List<Dependent> dependents = mDependents.get(communityGlobalId);
+		if (dependents == null) {
+			dependents = new ArrayList<Dependent>();
+			mDependents.put(communityGlobalId, dependents);
+
+			mRunningFetches++;
+			mThreadPool.execute(
+					Entity.bindSelectionAccount(new FetchOperation(communityGlobalId)));
+		}
+
+		dependents.add(new Dependent(entity, syncHash));
+
+		return true;
+	}
+
+	/**
+	 * Waits for all the community fetches to complete, including the fetches
+	 * of communities found missing while fetching.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public synchronized void waitForFetchesToComplete() throws InterruptedException {
+		while (mRunningFetches > 0)
+			wait();
+	}
+
+	/**
+	 * Stops fetching communities, without waiting for the running fetches.
+	 * Running fetches are interrupted, and stop at their next check of the
+	 * cancellation token without storing the entities waiting on them.
+	 */
+	public void shutdown() {
+		mThreadPool.shutdownNow();
+
+		synchronized (this) {
+			mRunningFetches = 0;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the fetches to stop once the queue is shut down.
+	 * @param timeout The maximum time (in milliseconds) to wait.
+	 * @return Whether or not the fetches stopped before the timeout.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		return mThreadPool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Marks the fetch of a community as completed.
+	 * @param communityGlobalId The global ID of the community.
+	 * @return The entities waiting on the community.
+	 */
+	private synchronized List<Dependent> completeFetch(String communityGlobalId) {
+		mFetchedCommunities.add(communityGlobalId);
+
+		List<Dependent> dependents = mDependents.remove(communityGlobalId);
+
+		return (dependents != null ? dependents : new ArrayList<Dependent>());
+	}
+
+	/**
+	 * Marks a fetch as no longer running.
+	 */
+	private synchronized void endFetch() {
+		if (mRunningFetches > 0)
+			mRunningFetches--;
+
+		notifyAll();
+	}
+
+	/**
+	 * An entity waiting on a community.
+	 */
+	private static class Dependent {
+		private Entity mEntity;
+		private String mSyncHash;
+
+		/**
+		 * Initializes a new dependent entity.
+		 * @param entity The downloaded entity.
+		 * @param syncHash The hash of the entity as stored in Box.
+		 */
+		public Dependent(Entity entity, String syncHash) {
+			mEntity = entity;
+			mSyncHash = syncHash;
+		}
+	}
+
+	/**
+	 * Operation downloading the files of a missing community folder and
+	 * storing the entities waiting on the community.
+	 */
+	private class FetchOperation implements Runnable {
+		private String mCommunityGlobalId;
+
+		/**
+		 * Initializes a new fetch operation.
+		 * @param communityGlobalId The global ID of the community to fetch.
+		 */
+		public FetchOperation(String communityGlobalId) {
+			mCommunityGlobalId = communityGlobalId;
+		}
+
+		public void run() {
+			BoxCancellationToken cancellation = mBoxHandler.getCancellationToken();
+			List<Dependent> dependents = null;
+			try {
+				cancellation.throwIfCancelled();
+				Log.i(TAG, "Fetching missing community: " + mCommunityGlobalId);
+
+				List<BoxFile> communityFiles =
+						mBoxHandler.getFilesInFolder(Long.parseLong(mCommunityGlobalId));
+				cancellation.throwIfCancelled();
+
+				BoxDownloadOperation operation = new BoxDownloadOperation(
+						communityFiles, mAuthToken, mBoxHandler, mResolver);
+				operation.run();
+				cancellation.throwIfCancelled();
+
+				dependents = completeFetch(mCommunityGlobalId);
+				for (Dependent dependent : dependents)
+					operation.replay(dependent.mEntity, dependent.mSyncHash);
+				operation.flush();
+			} catch (InterruptedIOException e) {
+				Log.i(TAG, "Sync cancelled. Dropping fetch of community: " + mCommunityGlobalId);
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage(), e);
+
+				if (dependents == null)
+					dependents = completeFetch(mCommunityGlobalId);
+				mBoxHandler.getMetrics().addFailed(dependents.size());
+			} finally {
+				endFetch();
+			}
+		}
+	}
+}
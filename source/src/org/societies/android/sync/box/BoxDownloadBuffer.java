@@ -0,0 +1,323 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Log;
+
+/**
+ * Buffer receiving the content of a downloaded file. The content is kept in
+ * memory as long as it is smaller than {@link #SPILL_THRESHOLD} and fits
+ * within the memory budget shared by all downloads. Larger content spills to
+ * a temporary file, which is read back through a file channel. The hash of
+ * uncompressed content is computed while it is written, so the content never
+ * has to be held as a string. Compressed content is decompressed while read.
+ *
+ * @author Kato
+ */
+public class BoxDownloadBuffer extends OutputStream {
+
+	private static final String TAG = "BoxDownloadBuffer";
+
+	/** The size (in bytes) above which the content of a download spills to disk. */
+	public static final int SPILL_THRESHOLD = 64 * 1024;
+	/** The number of bytes all downloads together may keep in memory. */
+	public static final long MEMORY_BUDGET = 512 * 1024;
+
+	private static final String CHARSET = "UTF-8";
+	private static final String SPILL_FILE_PREFIX = "download";
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static long sReservedBytes = 0;
+
+	private File mSpillDirectory;
+	private MessageDigest mDigest;
+	private String mHash;
+	private byte[] mMagic;
+	private MemoryBuffer mMemory;
+	private long mReservedBytes;
+	private File mSpillFile;
+	private OutputStream mSpillStream;
+	private long mSize;
+
+	/**
+	 * Initializes a new, empty download buffer.
+	 * @param spillDirectory The directory of the temporary files, or
+	 * <code>null</code> to use the default temporary directory.
+	 */
+	public BoxDownloadBuffer(File spillDirectory) {
+		mSpillDirectory = spillDirectory;
+		mMagic = new byte[2];
+		mMemory = new MemoryBuffer();
+		mReservedBytes = 0;
+		mSize = 0;
+
+		try {
+			mDigest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the number of bytes currently kept in memory by all downloads.
+	 * @return The number of bytes reserved from the memory budget.
+	 */
+	public static synchronized long getReservedBytes() {
+		return sReservedBytes;
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		write(new byte[] { (byte) oneByte }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		if (mHash != null)
+			throw new IOException("Download buffer is closed.");
+
+		mDigest.update(buffer, offset, count);
+		for (int i = 0; i < count && mSize + i < mMagic.length; i++)
+			mMagic[(int) mSize + i] = buffer[offset + i];
+
+		if (mSpillStream == null && !reserve(count))
+			spill();
+
+		if (mSpillStream != null)
+			mSpillStream.write(buffer, offset, count);
+		else
+			mMemory.write(buffer, offset, count);
+
+		mSize += count;
+	}
+
+	/**
+	 * Ends the writing of the content. Further writes fail.
+	 * @throws IOException If an error occurs while flushing the temporary file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mHash != null)
+			return;
+
+		mHash = BoxManifest.toHex(mDigest.digest());
+
+		if (mSpillStream != null)
+			mSpillStream.close();
+	}
+
+	/**
+	 * Gets the hash of the decompressed content, as stored in the manifest.
+	 * @return The hash of the content.
+	 * @throws IOException If an error occurs while reading the content.
+	 */
+	public String getHash() throws IOException {
+		close();
+
+		if (!isCompressed())
+			return mHash;
+
+		InputStream inStream = openStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (int count = inStream.read(buffer); count != -1; count = inStream.read(buffer))
+				mDigest.update(buffer, 0, count);
+		} finally {
+			inStream.close();
+		}
+
+		return BoxManifest.toHex(mDigest.digest());
+	}
+
+	/**
+	 * Checks whether the content is compressed.
+	 * @return Whether or not the content is compressed.
+	 */
+	public boolean isCompressed() {
+		return BoxCompression.isCompressed(mMagic, (int) Math.min(mSize, mMagic.length));
+	}
+
+	/**
+	 * Gets the size of the content as stored in Box.
+	 * @return The size (in bytes) of the content.
+	 */
+	public long size() {
+		return mSize;
+	}
+
+	/**
+	 * Checks whether the content has spilled to disk.
+	 * @return Whether or not the content is stored in a temporary file.
+	 */
+	public boolean isSpilled() {
+		return mSpillFile != null;
+	}
+
+	/**
+	 * Opens a reader of the decompressed content. The caller is responsible
+	 * for closing the reader.
+	 * @return A reader of the content.
+	 * @throws IOException If an error occurs while opening the temporary file.
+	 */
+	public Reader openReader() throws IOException {
+		return new InputStreamReader(openStream(), CHARSET);
+	}
+
+	/**
+	 * Opens a stream of the decompressed content. The caller is responsible
+	 * for closing the stream.
+	 * @return A stream of the content.
+	 * @throws IOException If an error occurs while opening the temporary file.
+	 */
+	public InputStream openStream() throws IOException {
+		close();
+
+		if (mSpillFile != null)
+			return BoxCompression.openStream(
+					Channels.newInputStream(new FileInputStream(mSpillFile).getChannel()));
+		else
+			return BoxCompression.openStream(mMemory.openStream());
+	}
+
+	/**
+	 * Gets the decompressed content as a byte array.
+	 * @return The content.
+	 * @throws IOException If an error occurs while reading the temporary file.
+	 */
+	public byte[] toByteArray() throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream((int) mSize);
+
+		InputStream inStream = openStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (int count = inStream.read(buffer); count != -1; count = inStream.read(buffer))
+				content.write(buffer, 0, count);
+		} finally {
+			inStream.close();
+		}
+
+		return content.toByteArray();
+	}
+
+	/**
+	 * Discards the content written so far, so that the download can be retried.
+	 * @throws IOException If an error occurs while closing the temporary file.
+	 */
+	public void reset() throws IOException {
+		try {
+			if (mSpillStream != null)
+				mSpillStream.close();
+		} finally {
+			if (mSpillFile != null && !mSpillFile.delete())
+				Log.e(TAG, "Failed to delete temporary file: " + mSpillFile);
+
+			mSpillFile = null;
+			mSpillStream = null;
+			mMemory = new MemoryBuffer();
+			releaseReserved();
+			mDigest.reset();
+			mHash = null;
+			mSize = 0;
+		}
+	}
+
+	/**
+	 * Releases the content, deleting the temporary file and returning the
+	 * memory to the budget.
+	 */
+	public void release() {
+		try {
+			reset();
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reserves memory for more content from the memory budget.
+	 * @param count The number of bytes to reserve.
+	 * @return Whether or not the memory is reserved. If not, the content
+	 * should spill to disk.
+	 */
+	private boolean reserve(int count) {
+		if (mMemory.size() + count > SPILL_THRESHOLD)
+			return false;
+
+		synchronized (BoxDownloadBuffer.class) {
+			if (sReservedBytes + count > MEMORY_BUDGET)
+				return false;
+
+			sReservedBytes += count;
+		}
+
+		mReservedBytes += count;
+		return true;
+	}
+
+	/**
+	 * Returns the memory reserved by this buffer to the budget.
+	 */
+	private void releaseReserved() {
+		synchronized (BoxDownloadBuffer.class) {
+			sReservedBytes -= mReservedBytes;
+		}
+
+		mReservedBytes = 0;
+	}
+
+	/**
+	 * Moves the content written so far to a temporary file, to which the
+	 * rest of the content is written.
+	 * @throws IOException If an error occurs while writing the temporary file.
+	 */
+	private void spill() throws IOException {
+		mSpillFile = File.createTempFile(SPILL_FILE_PREFIX, null, mSpillDirectory);
+		mSpillStream = new BufferedOutputStream(new FileOutputStream(mSpillFile));
+
+		mMemory.writeTo(mSpillStream);
+		mMemory = new MemoryBuffer();
+		releaseReserved();
+	}
+
+	/**
+	 * In-memory buffer which can be read without copying its content.
+	 */
+	private static class MemoryBuffer extends ByteArrayOutputStream {
+
+		/**
+		 * Opens a stream reading the content of the buffer.
+		 * @return A stream reading the content of the buffer.
+		 */
+		public InputStream openStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
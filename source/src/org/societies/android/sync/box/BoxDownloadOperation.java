@@ -15,29 +15,36 @@
  */
 package org.societies.android.sync.box;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.societies.android.box.BoxConstants;
+import org.societies.android.api.cis.SocialContract;
 import org.societies.android.platform.entity.Community;
-import org.societies.android.platform.entity.CommunityActivity;
 import org.societies.android.platform.entity.Entity;
-import org.societies.android.platform.entity.Membership;
-import org.societies.android.platform.entity.Sharing;
+import org.societies.android.platform.entity.EntityBatch;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.util.Log;
 
-import com.box.androidlib.BoxSynchronous;
 import com.box.androidlib.DAO.BoxFile;
 import com.box.androidlib.ResponseListeners.FileDownloadListener;
 import com.box.androidlib.ResponseParsers.DefaultResponseParser;
 
 /**
- * Thread handling box download operation.
+ * Thread handling box download operation. Downloaded entities are written
+ * to the SocialProvider in batches, which are flushed before entities
+ * depending on the pending writes are looked up.
  * 
  * @author Kato
  */
@@ -45,12 +52,16 @@ public class BoxDownloadOperation extends Thread {
 	
 	private static final String TAG = "BoxDownloadOperation";
 
-	private BoxSynchronous mBoxInstance;
+	private BoxGateway mGateway;
 	private String mAuthToken;
 	private ContentResolver mResolver;
+	private EntityBatch mBatch;
 	private List<? extends BoxFile> mFiles;
 	private BoxHandler mBoxHandler;
-	private List<String> mMissingCommunities;
+	private Map<BoxSyncDescriptor, Set<String>> mDirtyGlobalIds;
+	private Map<BoxSyncDescriptor, Map<String, String>> mLocalVersions;
+	private List<ContentProviderOperation> mStateWrites;
+	private boolean mIsIncomplete;
 	
 	/**
 	 * Initializes a new download operation.
@@ -67,36 +78,83 @@ public class BoxDownloadOperation extends Thread {
 		mFiles = files;
 		mAuthToken = authToken;
 		mResolver = resolver;
+		mBatch = new EntityBatch(resolver);
 		mBoxHandler = boxHandler;
-		mBoxInstance = BoxSynchronous.getInstance(BoxConstants.API_KEY);
-		mMissingCommunities = new ArrayList<String>();
+		mGateway = boxHandler.getGateway();
+		mDirtyGlobalIds = new HashMap<BoxSyncDescriptor, Set<String>>();
+		mLocalVersions = new HashMap<BoxSyncDescriptor, Map<String, String>>();
+		mIsIncomplete = false;
+	}
+	
+	/**
+	 * Sets the writes of the sync state covered by the downloaded files. The
+	 * writes are stored in the same batch as the last downloaded entities,
+	 * provided that every file was stored.
+	 * @param stateWrites The writes of the sync state, or <code>null</code>.
+	 */
+	public void setStateWrites(List<ContentProviderOperation> stateWrites) {
+		mStateWrites = stateWrites;
 	}
 	
 	@Override
 	public void run() {
+		boolean isComplete = false;
 		try {
 			LinkedList<BoxFile> downloadQueue = new LinkedList<BoxFile>();
+			List<BoxFile> packs = new ArrayList<BoxFile>();
 			
 			for (BoxFile boxFile : mFiles) {
-				if (getEntityClass(boxFile) == Community.class)
+				if (BoxPack.isPackFile(boxFile))
+					packs.add(boxFile);
+				else if (getEntityType(boxFile) == BoxEntityType.COMMUNITY)
 					downloadQueue.addFirst(boxFile);
 				else
 					downloadQueue.addLast(boxFile);
 			}
 			
-			for (BoxFile boxFile : downloadQueue)
-				processFile(boxFile);
+			// Pack segments go last, so that their tombstones supersede the
+			// entity files they delete
+			downloadQueue.addAll(packs);
 			
-			for (String communityGlobalId : mMissingCommunities) {
-				long globalId = Long.parseLong(communityGlobalId);
-				
-				List<BoxFile> communityFiles = mBoxHandler.getFilesInFolder(globalId);
-				
-				new BoxDownloadOperation(
-						communityFiles, mAuthToken, mBoxHandler, mResolver).run();
+			for (BoxFile boxFile : downloadQueue) {
+				mBoxHandler.getCancellationToken().throwIfCancelled();
+				processFile(boxFile);
 			}
+			
+			isComplete = !mIsIncomplete;
+		} catch (InterruptedIOException e) {
+			Log.i(TAG, "Download cancelled: " + e.getMessage());
 		} catch (Exception e) {
 			Log.e(TAG, e.getMessage(), e);
+			mBoxHandler.getMetrics().addFailed(1);
+		} finally {
+			if (isComplete && mStateWrites != null)
+				for (ContentProviderOperation write : mStateWrites)
+					mBatch.add(write);
+			
+			flushQuietly();
+		}
+	}
+	
+	/**
+	 * Stores the entities written since the last flush.
+	 * @throws Exception If an error occurs while storing.
+	 */
+	public void flush() throws Exception {
+		mBatch.flush();
+	}
+	
+	/**
+	 * Stores the entities written since the last flush, counting them as
+	 * failed if the batch fails.
+	 */
+	private void flushQuietly() {
+		int pending = mBatch.size();
+		try {
+			mBatch.flush();
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to store downloaded entities: " + e.getMessage(), e);
+			mBoxHandler.getMetrics().addFailed(pending);
 		}
 	}
 	
@@ -106,72 +164,347 @@ public class BoxDownloadOperation extends Thread {
 	 * @throws Exception If an error occurs while processing file.
 	 */
 	private void processFile(BoxFile boxFile) throws Exception {
-		Class<? extends Entity> entityClass = getEntityClass(boxFile);
-		if (entityClass == null)
+		if (BoxPack.isPackFile(boxFile)) {
+			processPack(boxFile);
+			return;
+		}
+		
+		BoxEntityType type = getEntityType(boxFile);
+		if (type == null)
 			return;
 		
 		if (isDeletedFile(boxFile)) {
-			Entity.deleteEntity(
-					entityClass, String.valueOf(boxFile.getId()), mResolver);
+			deleteEntity(type, String.valueOf(boxFile.getId()));
 		} else {
-			String serialized = downloadFileContents(boxFile);
-			Entity entity = getEntity(boxFile, serialized, entityClass);
+			BoxDownloadBuffer buffer = download(boxFile);
+			try {
+				Entity entity = getEntity(boxFile, buffer, type);
+				
+				if (entity != null)
+					storeEntity(entity, buffer.getHash());
+				else
+					mIsIncomplete = true;
+			} finally {
+				buffer.release();
+			}
+		}
+	}
+	
+	/**
+	 * Processes the latest record of every entity in the specified pack segment.
+	 * @param boxFile The pack segment to process.
+	 * @throws Exception If an error occurs while processing the segment.
+	 */
+	private void processPack(BoxFile boxFile) throws Exception {
+		BoxPack pack;
+		try {
+			pack = BoxPack.parse(downloadFile(boxFile));
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			Log.e(TAG, "Skipping pack segment " + boxFile.getFileName() + ": " + e.getMessage());
+			mBoxHandler.getMetrics().addFailed(1);
+			mIsIncomplete = true;
+			return;
+		}
+		
+		for (BoxPack.Entry entry : getEntriesByLevel(pack)) {
+			mBoxHandler.getCancellationToken().throwIfCancelled();
+			
+			BoxEntityType type = entry.getEntityType();
 			
-			if (entity != null) {
-				if (communityExists(entity)) {
-					entity.setAccountName(Entity.SELECTION_ACCOUNT_NAME);
-					entity.setAccountType(Entity.SELECTION_ACCOUNT_TYPE);
-					
-					if (entity.getId() == -1)
-						entity.insert(mResolver);
-					else
-						entity.update(mResolver);
+			if (entry.isDeleted()) {
+				deleteEntity(type, entry.getGlobalId());
+			} else {
+				String serialized = pack.getRecord(entry);
+				Entity entity = type.deserialize(serialized);
+				
+				if (entity != null) {
+					fetchLocalId(entity);
+					storeEntity(entity, BoxManifest.hash(serialized));
+				} else {
+					mIsIncomplete = true;
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Gets the latest entries of a pack segment of known type, ordered by
+	 * the level of their type. Entities are thereby written before the
+	 * entities referring to them, which lets the batch grow across entries.
+	 * @param pack The pack segment.
+	 * @return The entries of the segment.
+	 */
+	private List<BoxPack.Entry> getEntriesByLevel(BoxPack pack) {
+		List<BoxPack.Entry> entries = new ArrayList<BoxPack.Entry>();
+		
+		for (BoxPack.Entry entry : pack.getLatestEntries()) {
+			if (entry.getEntityType() != null)
+				entries.add(entry);
+			else
+				Log.i(TAG, "Unknown pack entry type: " + entry.getType());
+		}
+		
+		Collections.sort(entries, new Comparator<BoxPack.Entry>() {
+			public int compare(BoxPack.Entry entry1, BoxPack.Entry entry2) {
+				return getLevel(entry1.getEntityType()) - getLevel(entry2.getEntityType());
+			}
+		});
+		
+		return entries;
+	}
+	
+	/**
+	 * Gets the level of the specified entity type.
+	 * @param type The entity type.
+	 * @return The level of the type.
+	 * @see BoxSyncDescriptor#getLevel()
+	 */
+	private static int getLevel(BoxEntityType type) {
+		return BoxSyncDescriptor.forType(type).getLevel();
+	}
+	
+	/**
+	 * Fetches the local IDs of a downloaded entity. The batch is flushed
+	 * first if it holds a write of the entity itself, or of a type the
+	 * entity may refer to.
+	 * @param entity The downloaded entity.
+	 * @throws Exception If an error occurs while flushing the batch.
+	 */
+	private void fetchLocalId(Entity entity) throws Exception {
+		BoxSyncDescriptor descriptor = BoxSyncDescriptor.forEntity(entity);
+		boolean isFlushNeeded = mBatch.isPending(entity.getClass(), entity.getGlobalId());
+		
+		for (BoxSyncDescriptor other : BoxSyncDescriptor.getDescriptors()) {
+			if (other.getLevel() < descriptor.getLevel() && mBatch.isPending(other.getEntityClass()))
+				isFlushNeeded = true;
+		}
+		
+		if (isFlushNeeded)
+			mBatch.flush();
+		
+		entity.fetchLocalId(mResolver);
+	}
+	
+	/**
+	 * Stores an entity which was waiting on its community. The local IDs of
+	 * the entity are fetched again, as they may have been stored in the meantime.
+	 * @param entity The downloaded entity.
+	 * @param syncHash The hash of the entity as stored in Box.
+	 * @throws Exception If an error occurs while storing.
+	 */
+	public void replay(Entity entity, String syncHash) throws Exception {
+		fetchLocalId(entity);
+		
+		storeEntity(entity, syncHash);
+	}
+	
+	/**
+	 * Inserts or updates the specified entity if its community exists.
+	 * Otherwise, the entity is deferred until the community has been fetched.
+	 * Entities which are not newer than the local ones are skipped.
+	 * Communities are stored at once, as other operations look them up.
+	 * @param entity The downloaded entity.
+	 * @param syncHash The hash of the entity as stored in Box.
+	 * @throws Exception If an error occurs while storing.
+	 */
+	private void storeEntity(Entity entity, String syncHash) throws Exception {
+		BoxSyncDescriptor descriptor = BoxSyncDescriptor.forEntity(entity);
+		String communityGlobalId = descriptor.getCommunityGlobalId(entity);
+		
+		if (entity.getId() != -1 && !resolveConflict(descriptor, entity)) {
+			mBoxHandler.getMetrics().addSkipped(1);
+		} else if (descriptor.getScope() != BoxSyncDescriptor.Scope.COMMUNITY_ENTITY ||
+			Community.communityExists(communityGlobalId, mResolver)) {
+			entity.setAccountName(Entity.getSelectionAccountName());
+			entity.setAccountType(Entity.getSelectionAccountType());
+			entity.setSyncHash(syncHash);
+			
+			if (entity.getId() == -1)
+				mBatch.insert(entity);
+			else
+				mBatch.update(entity);
+			
+			if (descriptor.getScope() == BoxSyncDescriptor.Scope.COMMUNITY)
+				mBatch.flush();
+			
+			getDirtyGlobalIds(descriptor).remove(entity.getGlobalId());
+			if (entity.getSyncVersion() != null)
+				getLocalVersions(descriptor).put(entity.getGlobalId(), entity.getSyncVersion());
+			
+			mBoxHandler.getMetrics().addDownloaded(1);
+		} else {
+			// Entities waiting on their community are not stored by this operation
+			mIsIncomplete = true;
+			
+			if (!mBoxHandler.getDependencyQueue().defer(communityGlobalId, entity, syncHash)) {
+				Log.i(TAG, "Community of entity does not exist: " + communityGlobalId);
+				mBoxHandler.getMetrics().addSkipped(1);
+			}
+		}
+	}
+	
+	/**
+	 * Compares a downloaded entity with the local one, by their versions.
+	 * Older or already stored versions are dropped, and newer versions are
+	 * stored unless the local entity changed since it was last synced. Such
+	 * concurrent changes are resolved by {@link BoxVersion#winsOver}, and the
+	 * winner gets the merged version, so that every device makes the same
+	 * choice once. A winning local change stays dirty, and is uploaded with a
+	 * version superseding the downloaded one. Entities written by versions
+	 * predating entity versions are only compared with local changes.
+	 * @param descriptor The descriptor of the entity.
+	 * @param entity The downloaded entity, existing locally.
+	 * @return Whether or not the downloaded entity is to be stored.
+	 * @throws Exception If an error occurs while reading the local entity.
+	 */
+	private boolean resolveConflict(BoxSyncDescriptor descriptor, Entity entity) throws Exception {
+		String globalId = entity.getGlobalId();
+		BoxVersion remoteVersion = BoxVersion.of(entity);
+		BoxVersion localVersion = BoxVersion.parse(getLocalVersions(descriptor).get(globalId));
+		boolean isDirty = getDirtyGlobalIds(descriptor).contains(globalId);
+		boolean isVersioned = entity.getSyncVersion() != null;
+		
+		BoxVersion.Order order =
+				(isVersioned ? remoteVersion.compare(localVersion) : BoxVersion.Order.AFTER);
+		if (order == BoxVersion.Order.EQUAL || order == BoxVersion.Order.BEFORE)
+			return false;
+		else if (order == BoxVersion.Order.AFTER && !isDirty)
+			return true;
+		
+		Entity local = Entity.getEntity(descriptor.getEntityClass(), entity.getId(), mResolver);
+		if (local == null)
+			return true;
+		
+		BoxVersion localChange =
+				(isDirty ? localVersion.increment(mBoxHandler.getDeviceId()) : localVersion);
+		BoxVersion merged = localVersion.merge(remoteVersion);
+		
+		if (remoteVersion.winsOver(
+				localChange, entity.getLastModifiedDate(), local.getLastModifiedDate())) {
+			Log.i(TAG, "Conflicting change of " + descriptor + " " + globalId + ": remote wins.");
+			
+			entity.setSyncVersion(merged.toString());
+			return true;
+		} else {
+			Log.i(TAG, "Conflicting change of " + descriptor + " " + globalId + ": local wins.");
+			
+			local.setSyncVersion(merged.toString());
+			mBatch.update(local);
+			getLocalVersions(descriptor).put(globalId, local.getSyncVersion());
+			return false;
+		}
+	}
+	
+	/**
+	 * Gets the global IDs of the local entities of a type which changed since
+	 * they were last synced. The IDs are read once per operation.
+	 * @param descriptor The descriptor of the type.
+	 * @return The global IDs of the changed entities.
+	 * @throws Exception If an error occurs while reading the entities.
+	 */
+	private Set<String> getDirtyGlobalIds(BoxSyncDescriptor descriptor) throws Exception {
+		Set<String> dirtyIds = mDirtyGlobalIds.get(descriptor);
+		
+		if (dirtyIds == null) {
+			dirtyIds = new HashSet<String>(Entity.getSyncHashes(
+					descriptor.getEntityClass(),
+					SocialContract.SyncColumns.DIRTY + " = 1",
+					null,
+					mResolver).keySet());
+			mDirtyGlobalIds.put(descriptor, dirtyIds);
+		}
+		
+		return dirtyIds;
+	}
+	
+	/**
+	 * Gets the versions of the local entities of a type. The versions are
+	 * read once per operation.
+	 * @param descriptor The descriptor of the type.
+	 * @return A mapping between global ID and version.
+	 * @throws Exception If an error occurs while reading the entities.
+	 */
+	private Map<String, String> getLocalVersions(BoxSyncDescriptor descriptor) throws Exception {
+		Map<String, String> versions = mLocalVersions.get(descriptor);
+		
+		if (versions == null) {
+			versions = Entity.getSyncVersions(descriptor.getEntityClass(), null, null, mResolver);
+			mLocalVersions.put(descriptor, versions);
+		}
+		
+		return versions;
+	}
+	
+	/**
+	 * Deletes the entity with the specified global ID, if it exists locally.
+	 * @param type The type of the entity.
+	 * @param globalId The global ID of the entity.
+	 * @throws Exception If an error occurs while deleting.
+	 */
+	private void deleteEntity(BoxEntityType type, String globalId) throws Exception {
+		Entity entity = type.getEntityClass().newInstance();
+		entity.setGlobalId(globalId);
+		fetchLocalId(entity);
+		
+		if (entity.getId() != -1) {
+			mBatch.delete(entity);
+			mBoxHandler.getMetrics().addDownloaded(1);
+		} else {
+			Log.i(TAG, "Deleted entity does not exist locally: " + globalId);
+		}
+	}
 
 	/**
-	 * Gets the entity class of the file to download.
-	 * @param boxFile The file to get entity class of.
-	 * @return The entity class of the file to download.
-	 * @throws ClassCastException If the class is not a subclass of {@link Entity}.
+	 * Gets the entity type of the file to download, as told by the type code
+	 * (or, for files written by older versions, the class name) prefixing
+	 * its name.
+	 * @param boxFile The file to get entity type of.
+	 * @return The entity type of the file, or <code>null</code> if unknown.
 	 */
-	private Class<? extends Entity> getEntityClass(BoxFile boxFile) throws ClassCastException {
+	private BoxEntityType getEntityType(BoxFile boxFile) {
 		String fileName = boxFile.getFileName();
 		int separatorIndex = fileName.indexOf(BoxHandler.ENTITY_FILE_NAME_SEPARATOR);
 		
 		if (separatorIndex != -1) {
-			String className = fileName.substring(0, separatorIndex);
+			BoxEntityType type = BoxEntityType.forCode(fileName.substring(0, separatorIndex));
 			
-			try {
-				return Class.forName(className).asSubclass(Entity.class);
-			} catch (ClassNotFoundException e) {
+			if (type == null)
 				Log.i(TAG, "Unknown file: " + fileName);
-			}
+			
+			return type;
 		}
 		
 		return null;
 	}
 
 	/**
-	 * Gets the entity represented by the specified string.
+	 * Gets the entity stored in the specified download buffer.
 	 * @param boxFile The file currently in progress.
-	 * @param serialized The serialized entity.
-	 * @param entityClass The class of the entity.
-	 * @return The entity represented by the specified string, or <code>null</code>
+	 * @param buffer The downloaded content of the file.
+	 * @param type The type of the entity.
+	 * @return The entity stored in the buffer, or <code>null</code>
 	 * if the entity cannot be deserialized.
-	 * @throws ClassNotFoundException If the entity class is not found.
+	 * @throws Exception If an error occurs while reading the buffer.
 	 */
-	private Entity getEntity(BoxFile boxFile, String serialized, Class<? extends Entity> entityClass)
-			throws ClassNotFoundException {
-		Entity entity = Entity.deserialize(serialized, entityClass);
+	private Entity getEntity(
+			BoxFile boxFile,
+			BoxDownloadBuffer buffer,
+			BoxEntityType type) throws Exception {
+		Entity entity;
+		Reader reader = buffer.openReader();
+		try {
+			entity = type.deserialize(reader);
+		} finally {
+			reader.close();
+		}
 		
 		if (entity != null) {
 			if (entity.getGlobalId() == null || entity.getGlobalId().length() == 0)
 				entity.setGlobalId(String.valueOf(boxFile.getId()));
 			
-			entity.fetchLocalId(mResolver);
+			fetchLocalId(entity);
 		}
 		
 		return entity;
@@ -187,74 +520,47 @@ public class BoxDownloadOperation extends Thread {
 	}
 	
 	/**
-	 * Checks whether the community of the specified entity exists. If not,
-	 * the community needs to be downloaded before inserting the entity into
-	 * the database.
-	 * @param entity The entity to check.
-	 * @return Whether or not the community of the entity exists.
-	 * @throws Exception If an error occurs while interacting with the database.
+	 * Downloads the raw content of the file.
+	 * @param boxFile The file to download.
+	 * @return The content of the file.
+	 * @throws IOException If an error occurs while downloading.
 	 */
-	private boolean communityExists(Entity entity) throws Exception {
-		if (entity instanceof Community)
-			return true;
-		
-		String communityGlobalId = getCommunityGlobalId(entity);
-		
-		if (Community.communityExists(communityGlobalId, mResolver)) {
-			return true;
-		} else {
-			if (communityGlobalId != null)
-				mMissingCommunities.add(communityGlobalId);
-			
-			return false;
+	private byte[] downloadFile(BoxFile boxFile) throws IOException {
+		BoxDownloadBuffer buffer = download(boxFile);
+		try {
+			return buffer.toByteArray();
+		} finally {
+			buffer.release();
 		}
 	}
 	
 	/**
-	 * Gets the global ID of the community related to the specified entity.
-	 * @param entity An entity related to a community.
-	 * @return The global ID of the community related to the entity.
-	 */
-	private String getCommunityGlobalId(Entity entity) {
-		String communityGlobalId = null;
-		if (entity instanceof Membership)
-			communityGlobalId = ((Membership) entity).getGlobalIdCommunity();
-		else if (entity instanceof CommunityActivity)
-			communityGlobalId = ((CommunityActivity) entity).getGlobalIdFeedOwner();
-		else if (entity instanceof Sharing)
-			communityGlobalId = ((Sharing) entity).getGlobalIdCommunity();
-		else if (entity instanceof Community)
-			communityGlobalId = entity.getGlobalId();
-		
-		return communityGlobalId;
-	}
-
-	/**
-	 * Downloads the content of the file into a string.
+	 * Downloads the file into a download buffer, which keeps small files in
+	 * memory and spills large files to disk. The caller is responsible for
+	 * releasing the buffer.
 	 * @param boxFile The file to download.
-	 * @return A string containing the contents of the file.
+	 * @return The buffer holding the content of the file.
 	 * @throws IOException If an error occurs while downloading.
 	 */
-	private String downloadFileContents(BoxFile boxFile) throws IOException {
-		String fileContents = null;
+	private BoxDownloadBuffer download(BoxFile boxFile) throws IOException {
+		BoxDownloadBuffer buffer = new BoxDownloadBuffer(mBoxHandler.getCacheDirectory());
 		
-		ByteArrayOutputStream outStream = null;
+		boolean isDownloaded = false;
 		try {
-			outStream = new ByteArrayOutputStream();
-			
-			DefaultResponseParser response = mBoxInstance.download(
-					mAuthToken, boxFile.getId(), outStream, null, null, null);
+			DefaultResponseParser response = mGateway.download(
+					mAuthToken, boxFile.getId(), buffer);
 			
 			if (!response.getStatus().equals(FileDownloadListener.STATUS_DOWNLOAD_OK))
 				throw new IOException(
 						"Failed to download file: " + response.getStatus());
-			else
-				fileContents = outStream.toString();
+			
+			buffer.close();
+			isDownloaded = true;
 		} finally {
-			if (outStream != null)
-				outStream.close();
+			if (!isDownloaded)
+				buffer.release();
 		}
 		
-		return fileContents;
+		return buffer;
 	}
 }
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.Reader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.platform.entity.CommunityActivity;
+import org.societies.android.platform.entity.Entity;
+import org.societies.android.platform.entity.Membership;
+import org.societies.android.platform.entity.Person;
+import org.societies.android.platform.entity.PersonActivity;
+import org.societies.android.platform.entity.Relationship;
+import org.societies.android.platform.entity.Service;
+import org.societies.android.platform.entity.ServiceActivity;
+import org.societies.android.platform.entity.Sharing;
+
+/**
+ * Registry of the entity types stored in Box. Every type has a short, stable
+ * code which names its files and identifies its records in pack segments and
+ * manifests, so that entity classes can be renamed without breaking the data
+ * in Box. The fully qualified class names written by older versions are still
+ * recognized.
+ *
+ * @author Kato
+ */
+public final class BoxEntityType {
+
+	private static final Map<String, BoxEntityType> sByCode =
+			new HashMap<String, BoxEntityType>();
+	private static final Map<String, BoxEntityType> sByLegacyName =
+			new HashMap<String, BoxEntityType>();
+	private static final Map<Class<? extends Entity>, BoxEntityType> sByClass =
+			new HashMap<Class<? extends Entity>, BoxEntityType>();
+
+	/** Communities. */
+	public static final BoxEntityType COMMUNITY = register("cm", Community.class);
+	/** Community activities. */
+	public static final BoxEntityType COMMUNITY_ACTIVITY = register("ca", CommunityActivity.class);
+	/** Memberships. */
+	public static final BoxEntityType MEMBERSHIP = register("ms", Membership.class);
+	/** Sharings. */
+	public static final BoxEntityType SHARING = register("sh", Sharing.class);
+	/** People. */
+	public static final BoxEntityType PERSON = register("pe", Person.class);
+	/** Person activities. */
+	public static final BoxEntityType PERSON_ACTIVITY = register("pa", PersonActivity.class);
+	/** Relationships. */
+	public static final BoxEntityType RELATIONSHIP = register("re", Relationship.class);
+	/** Services. */
+	public static final BoxEntityType SERVICE = register("sv", Service.class);
+	/** Service activities. */
+	public static final BoxEntityType SERVICE_ACTIVITY = register("sa", ServiceActivity.class);
+
+	private String mCode;
+	private Class<? extends Entity> mEntityClass;
+
+	/**
+	 * Initializes a new entity type.
+	 * @param code The code of the type.
+	 * @param entityClass The class of the entities.
+	 */
+	private BoxEntityType(String code, Class<? extends Entity> entityClass) {
+		mCode = code;
+		mEntityClass = entityClass;
+	}
+
+	/**
+	 * Registers an entity type.
+	 * @param code The code of the type. Must never change once used.
+	 * @param entityClass The class of the entities.
+	 * @return The registered type.
+	 */
+	private static BoxEntityType register(String code, Class<? extends Entity> entityClass) {
+		BoxEntityType type = new BoxEntityType(code, entityClass);
+
+		sByCode.put(code, type);
+		sByLegacyName.put(entityClass.getName(), type);
+		sByClass.put(entityClass, type);
+
+		return type;
+	}
+
+	/**
+	 * Gets the entity type with the specified code.
+	 * @param code The code of the type, or the class name written by older
+	 * versions.
+	 * @return The entity type, or <code>null</code> if the code is unknown.
+	 */
+	public static BoxEntityType forCode(String code) {
+		BoxEntityType type = sByCode.get(code);
+
+		return (type != null ? type : sByLegacyName.get(code));
+	}
+
+	/**
+	 * Gets the type of the specified entity class.
+	 * @param entityClass The class of the entities.
+	 * @return The entity type, or <code>null</code> if the class is not stored in Box.
+	 */
+	public static BoxEntityType forClass(Class<? extends Entity> entityClass) {
+		return sByClass.get(entityClass);
+	}
+
+	/**
+	 * Gets the type of the specified entity.
+	 * @param entity The entity.
+	 * @return The entity type.
+	 * @throws IllegalArgumentException If the entity is not stored in Box.
+	 */
+	public static BoxEntityType forEntity(Entity entity) {
+		BoxEntityType type = sByClass.get(entity.getClass());
+
+		if (type == null)
+			throw new IllegalArgumentException(
+					"Not a registered entity type: " + entity.getClass().getName());
+
+		return type;
+	}
+
+	/**
+	 * Gets all the registered entity types.
+	 * @return The registered entity types.
+	 */
+	public static Collection<BoxEntityType> getTypes() {
+		return Collections.unmodifiableCollection(sByCode.values());
+	}
+
+	/**
+	 * Gets the code of the type.
+	 * @return The code of the type.
+	 */
+	public String getCode() {
+		return mCode;
+	}
+
+	/**
+	 * Gets the class of the entities of the type.
+	 * @return The class of the entities.
+	 */
+	public Class<? extends Entity> getEntityClass() {
+		return mEntityClass;
+	}
+
+	/**
+	 * Creates a new, empty entity of the type.
+	 * @return A new entity.
+	 */
+	public Entity newEntity() {
+		try {
+			return mEntityClass.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a serialized entity of the type.
+	 * @param serialized The serialized entity.
+	 * @return The parsed entity, or <code>null</code> if the deserialization fails.
+	 */
+	public Entity deserialize(String serialized) {
+		return Entity.deserialize(serialized, mEntityClass);
+	}
+
+	/**
+	 * Parses a serialized entity of the type while reading it.
+	 * @param reader The reader of the serialized entity.
+	 * @return The parsed entity, or <code>null</code> if the deserialization fails.
+	 */
+	public Entity deserialize(Reader reader) {
+		return Entity.deserialize(reader, mEntityClass);
+	}
+
+	@Override
+	public String toString() {
+		return mCode;
+	}
+}
@@ -0,0 +1,989 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.DAO.BoxFile;
+import com.box.androidlib.DAO.BoxFolder;
+import com.box.androidlib.ResponseListeners.CreateFolderListener;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
+import com.box.androidlib.ResponseListeners.GetAccountTreeListener;
+import com.box.androidlib.ResponseListeners.GetFileInfoListener;
+import com.box.androidlib.ResponseListeners.RenameListener;
+import com.box.androidlib.ResponseListeners.ResponseListener;
+import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+import com.box.androidlib.ResponseParsers.FolderResponseParser;
+import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
+
+/**
+ * Gateway through which all the calls to Box are made. Calls failing with a
+ * transient error are retried with exponential backoff and jitter. Reads are
+ * retried as they are; writes which may have reached Box although their
+ * response was lost first look up whether they took effect, and writes which
+ * cannot be looked up are not retried. The rate and concurrency of calls are
+ * limited by a budget shared by all the worker threads, possibly of several
+ * accounts, and a circuit breaker stops calling Box altogether while it keeps
+ * failing. The gateway keeps statistics of the calls per endpoint, including
+ * a latency histogram, and of the bytes moved.
+ *
+ * @author Kato
+ */
+public class BoxGateway {
+
+	private static final String TAG = "BoxGateway";
+
+	/** The maximum number of attempts of a single call. */
+	public static final int MAX_ATTEMPTS = 4;
+	/** The base delay (in milliseconds) of the exponential backoff. */
+	public static final long BACKOFF_BASE = 500;
+	/** The maximum delay (in milliseconds) of the exponential backoff. */
+	public static final long BACKOFF_MAX = 30 * 1000;
+	/** The number of consecutive failures at which the circuit breaker opens. */
+	public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+	/** The time (in milliseconds) the circuit breaker stays open. */
+	public static final long CIRCUIT_OPEN_INTERVAL = 60 * 1000;
+	/** The default number of calls per second allowed by the rate limiter. */
+	public static final double RATE_LIMIT = 4;
+	/** The default number of calls the rate limiter allows in a burst. */
+	public static final double RATE_LIMIT_BURST = 8;
+	/** The upper bounds (in milliseconds) of the buckets of the latency histograms. */
+	public static final long[] LATENCY_BUCKETS = { 50, 100, 250, 500, 1000, 2500, 5000 };
+
+	private BoxBackend mBackend;
+	private Random mRandom;
+
+	private BoxSyncBudget mBudget;
+	private BoxCancellationToken mCancellation;
+
+	private int mConsecutiveFailures;
+	private long mCircuitOpenUntil;
+
+	private Stats mStats;
+
+	/**
+	 * Initializes a new gateway with the default rate limit.
+	 * @param backend The backend to make the calls to.
+	 */
+	public BoxGateway(BoxBackend backend) {
+		this(backend, RATE_LIMIT, RATE_LIMIT_BURST);
+	}
+
+	/**
+	 * Initializes a new gateway.
+	 * @param backend The backend to make the calls to.
+	 * @param rateLimit The number of calls per second allowed.
+	 * @param rateLimitBurst The number of calls allowed in a burst.
+	 */
+	public BoxGateway(BoxBackend backend, double rateLimit, double rateLimitBurst) {
+		this(backend, new BoxSyncBudget(rateLimit, rateLimitBurst));
+	}
+
+	/**
+	 * Initializes a new gateway limited by the specified budget.
+	 * @param backend The backend to make the calls to.
+	 * @param budget The budget of the calls, possibly shared with other gateways.
+	 */
+	public BoxGateway(BoxBackend backend, BoxSyncBudget budget) {
+		mBackend = backend;
+		mRandom = new Random();
+		mBudget = budget;
+		mCancellation = new BoxCancellationToken();
+		mConsecutiveFailures = 0;
+		mCircuitOpenUntil = 0;
+		mStats = new Stats();
+	}
+
+	/**
+	 * Gets the backend the calls are made to.
+	 * @return The backend of the gateway.
+	 */
+	public BoxBackend getBackend() {
+		return mBackend;
+	}
+
+	/**
+	 * Sets the token cancelling the calls of the current sync. Once the token
+	 * is cancelled, the calls in progress are aborted and further calls fail
+	 * without calling Box.
+	 * @param cancellation The cancellation token of the sync.
+	 */
+	public synchronized void setCancellationToken(BoxCancellationToken cancellation) {
+		mCancellation = cancellation;
+		mCancellation.addListener(new Runnable() {
+			public void run() {
+				mBackend.abortCalls();
+			}
+		});
+	}
+
+	/**
+	 * Gets the token cancelling the calls of the current sync.
+	 * @return The cancellation token of the sync.
+	 */
+	public synchronized BoxCancellationToken getCancellationToken() {
+		return mCancellation;
+	}
+
+	/**
+	 * Gets the directory tree of a folder.
+	 * @param authToken The authentication token.
+	 * @param folderId The ID of the root folder of the tree.
+	 * @param params The parameters of the listing.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public AccountTreeResponseParser getAccountTree(
+			final String authToken,
+			final long folderId,
+			final String[] params) throws IOException {
+		return execute("getAccountTree", new Call<AccountTreeResponseParser>() {
+			@Override
+			public AccountTreeResponseParser call() throws IOException {
+				return mBackend.getAccountTree(authToken, folderId, params);
+			}
+		});
+	}
+
+	/**
+	 * Gets the info of a file.
+	 * @param authToken The authentication token.
+	 * @param fileId The ID of the file.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FileResponseParser getFileInfo(
+			final String authToken, final long fileId) throws IOException {
+		return execute("getFileInfo", new Call<FileResponseParser>() {
+			@Override
+			public FileResponseParser call() throws IOException {
+				return mBackend.getFileInfo(authToken, fileId);
+			}
+		});
+	}
+
+	/**
+	 * Creates a folder. Before the call is retried, the parent folder is
+	 * looked up for a folder created by the failed attempt.
+	 * @param authToken The authentication token.
+	 * @param parentFolderId The ID of the parent folder.
+	 * @param folderName The name of the folder.
+	 * @param share Whether or not to share the folder.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FolderResponseParser createFolder(
+			final String authToken,
+			final long parentFolderId,
+			final String folderName,
+			final boolean share) throws IOException {
+		return execute("createFolder", new Call<FolderResponseParser>() {
+			@Override
+			public FolderResponseParser call() throws IOException {
+				return mBackend.createFolder(authToken, parentFolderId, folderName, share);
+			}
+
+			@Override
+			public FolderResponseParser recheck() throws IOException {
+				final BoxFolder folder = findFolder(authToken, parentFolderId, folderName);
+				if (folder == null)
+					return null;
+
+				FolderResponseParser response = new FolderResponseParser() {
+					@Override
+					public BoxFolder getFolder() {
+						return folder;
+					}
+				};
+				response.setStatus(CreateFolderListener.STATUS_CREATE_OK);
+
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Deletes a file or folder.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String delete(
+			final String authToken, final String type, final long targetId) throws IOException {
+		return execute("delete", new Call<String>() {
+			@Override
+			public String call() throws IOException {
+				return mBackend.delete(authToken, type, targetId);
+			}
+		});
+	}
+
+	/**
+	 * Renames a file or folder. Before the call is retried, the target is
+	 * looked up to check whether the failed attempt renamed it.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @param newName The new name of the target.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String rename(
+			final String authToken,
+			final String type,
+			final long targetId,
+			final String newName) throws IOException {
+		return execute("rename", new Call<String>() {
+			@Override
+			public String call() throws IOException {
+				return mBackend.rename(authToken, type, targetId, newName);
+			}
+
+			@Override
+			public String recheck() throws IOException {
+				String name = null;
+				if (type.equals(Box.TYPE_FILE)) {
+					FileResponseParser response = getFileInfo(authToken, targetId);
+					if (response.getStatus().equals(GetFileInfoListener.STATUS_S_GET_FILE_INFO))
+						name = response.getFile().getFileName();
+				} else {
+					AccountTreeResponseParser response = getAccountTree(authToken, targetId,
+							new String[] { Box.PARAM_SIMPLE, Box.PARAM_ONELEVEL, Box.PARAM_NOFILES });
+					if (response.getStatus().equals(GetAccountTreeListener.STATUS_LISTING_OK))
+						name = response.getFolder().getFolderName();
+				}
+
+				return (newName.equals(name) ? RenameListener.STATUS_S_RENAME_NODE : null);
+			}
+		});
+	}
+
+	/**
+	 * Gets the updates within a time frame.
+	 * @param authToken The authentication token.
+	 * @param beginTimeStamp The Unix time (in seconds) of the oldest updates to get.
+	 * @param endTimeStamp The Unix time (in seconds) of the newest updates to get.
+	 * @param params The parameters of the call.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public UpdatesResponseParser getUpdates(
+			final String authToken,
+			final long beginTimeStamp,
+			final long endTimeStamp,
+			final String[] params) throws IOException {
+		return execute("getUpdates", new Call<UpdatesResponseParser>() {
+			@Override
+			public UpdatesResponseParser call() throws IOException {
+				return mBackend.getUpdates(authToken, beginTimeStamp, endTimeStamp, params);
+			}
+		});
+	}
+
+	/**
+	 * Invites collaborators to a file or folder. As the invitations of a
+	 * failed attempt cannot be looked up, the call is never retried; the
+	 * collaborators are invited again by the next sync.
+	 * @param authToken The authentication token.
+	 * @param type The type of the target (file or folder).
+	 * @param targetId The ID of the target.
+	 * @param userIds The IDs of the users to invite, or <code>null</code>.
+	 * @param emails The email addresses of the users to invite.
+	 * @param itemRoleName The role of the collaborators.
+	 * @param resendInvite Whether or not to resend invitations.
+	 * @param noEmail Whether or not to skip the invitation emails.
+	 * @param params The parameters of the call.
+	 * @return The status of the call.
+	 * @throws IOException If the call fails.
+	 */
+	public String inviteCollaborators(
+			final String authToken,
+			final String type,
+			final long targetId,
+			final long[] userIds,
+			final String[] emails,
+			final String itemRoleName,
+			final boolean resendInvite,
+			final boolean noEmail,
+			final String[] params) throws IOException {
+		return execute("inviteCollaborators", new Call<String>() {
+			@Override
+			public boolean prepare(int attempt) throws IOException {
+				return false;
+			}
+
+			@Override
+			public String call() throws IOException {
+				return mBackend.inviteCollaborators(
+						authToken, type, targetId, userIds, emails,
+						itemRoleName, resendInvite, noEmail, params);
+			}
+		});
+	}
+
+	/**
+	 * Downloads a file to the specified stream. The call is only retried if
+	 * the stream is a {@link ByteArrayOutputStream}, which can be reset.
+	 * @param authToken The authentication token.
+	 * @param fileId The ID of the file.
+	 * @param outStream The stream to download to.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public DefaultResponseParser download(
+			final String authToken,
+			final long fileId,
+			final OutputStream outStream) throws IOException {
+		return execute("download", new Call<DefaultResponseParser>() {
+			@Override
+			public boolean prepare(int attempt) throws IOException {
+				if (outStream instanceof BoxDownloadBuffer) {
+					if (attempt > 0)
+						((BoxDownloadBuffer) outStream).reset();
+				} else if (!(outStream instanceof ByteArrayOutputStream))
+					return false;
+				else if (attempt > 0)
+					((ByteArrayOutputStream) outStream).reset();
+
+				return true;
+			}
+
+			@Override
+			public DefaultResponseParser call() throws IOException {
+				return mBackend.download(authToken, fileId,
+						new CountingOutputStream(getCancellationToken().wrap(outStream)));
+			}
+		});
+	}
+
+	/**
+	 * Uploads the content of the specified stream. The call is only retried
+	 * if the stream supports {@link InputStream#mark(int)}. Before an upload
+	 * of a new file is retried, the destination folder is looked up for a
+	 * file created by the failed attempt; overwrites are retried as they are.
+	 * @param authToken The authentication token.
+	 * @param action The action to perform (see Box.upload() doc).
+	 * @param inStream The content to upload.
+	 * @param fileName The name of the file to upload to.
+	 * @param destinationId The folder ID or file ID, depending on the action.
+	 * @return The response.
+	 * @throws IOException If the call fails.
+	 */
+	public FileResponseParser upload(
+			final String authToken,
+			final String action,
+			final InputStream inStream,
+			final String fileName,
+			final long destinationId) throws IOException {
+		return execute("upload", new Call<FileResponseParser>() {
+			@Override
+			public boolean prepare(int attempt) throws IOException {
+				if (!inStream.markSupported())
+					return false;
+				else if (attempt == 0)
+					inStream.mark(Integer.MAX_VALUE);
+				else
+					inStream.reset();
+
+				return true;
+			}
+
+			@Override
+			public FileResponseParser call() throws IOException {
+				return mBackend.upload(
+						authToken,
+						action,
+						new CountingInputStream(getCancellationToken().wrap(inStream)),
+						fileName,
+						destinationId);
+			}
+
+			@Override
+			public FileResponseParser recheck() throws IOException {
+				if (action.equals(Box.UPLOAD_ACTION_OVERWRITE))
+					return null;
+
+				BoxFile file = findFile(authToken, destinationId, fileName);
+				if (file == null)
+					return null;
+
+				FileResponseParser response = new FileResponseParser();
+				response.setFile(file);
+				response.setStatus(FileUploadListener.STATUS_UPLOAD_OK);
+
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Gets the backoff ceiling of a failed attempt, that is, the longest
+	 * time waited before the next attempt. The ceiling doubles with every
+	 * attempt, up to {@link #BACKOFF_MAX}.
+	 * @param attempt The number of the failed attempt, starting at 0.
+	 * @return The backoff ceiling (in milliseconds).
+	 */
+	public static long getBackoffCeiling(int attempt) {
+		if (attempt >= Long.numberOfLeadingZeros(BACKOFF_BASE) - 1)
+			return BACKOFF_MAX;
+
+		return Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt);
+	}
+
+	/**
+	 * Gets a snapshot of the statistics of the gateway.
+	 * @return The statistics of the gateway.
+	 */
+	public synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.calls = mStats.calls;
+		stats.retries = mStats.retries;
+		stats.failures = mStats.failures;
+		stats.failedCalls = mStats.failedCalls;
+		stats.rejected = mStats.rejected;
+		stats.throttledMillis = mStats.throttledMillis;
+		stats.circuitOpenUntil = mCircuitOpenUntil;
+		stats.bytesUploaded = mStats.bytesUploaded;
+		stats.bytesDownloaded = mStats.bytesDownloaded;
+
+		for (Map.Entry<String, EndpointStats> endpoint : mStats.endpoints.entrySet())
+			stats.endpoints.put(endpoint.getKey(), endpoint.getValue().copy());
+
+		return stats;
+	}
+
+	/**
+	 * Resets the statistics of the gateway.
+	 */
+	public synchronized void resetStats() {
+		mStats = new Stats();
+	}
+
+	/**
+	 * Checks whether the circuit breaker is open, that is, whether calls are
+	 * currently rejected without calling Box.
+	 * @return Whether or not the circuit breaker is open.
+	 */
+	public synchronized boolean isCircuitOpen() {
+		return System.currentTimeMillis() < mCircuitOpenUntil;
+	}
+
+	/**
+	 * Executes the specified call, retrying it on transient errors. Before a
+	 * retry, the call may look up whether the failed attempt took effect, in
+	 * which case the looked up result is returned instead of retrying.
+	 * @param name The name of the call, used for logging and statistics.
+	 * @param call The call to execute.
+	 * @return The result of the call.
+	 * @throws IOException If the call fails, or is rejected by the circuit breaker.
+	 * @throws InterruptedIOException If the sync is cancelled.
+	 */
+	private <T> T execute(String name, Call<T> call) throws IOException {
+		BoxCancellationToken cancellation = getCancellationToken();
+
+		for (int attempt = 0; ; attempt++) {
+			cancellation.throwIfCancelled();
+			checkCircuit(name);
+
+			boolean canRetry = call.prepare(attempt) && attempt + 1 < MAX_ATTEMPTS;
+
+			long throttled = mBudget.acquire();
+			synchronized (this) {
+				mStats.throttledMillis += throttled;
+			}
+
+			T result;
+			long start = System.currentTimeMillis();
+			try {
+				synchronized (this) {
+					mStats.calls++;
+				}
+
+				try {
+					result = call.call();
+				} finally {
+					mBudget.release();
+				}
+			} catch (InterruptedIOException e) {
+				recordLatency(name, start, false);
+				throw e;
+			} catch (IOException e) {
+				recordLatency(name, start, false);
+				cancellation.throwIfCancelled();
+				recordFailure();
+
+				if (!canRetry) {
+					recordFailedCall();
+					throw e;
+				}
+
+				T recovered = recheck(name, call);
+				if (recovered != null)
+					return recovered;
+
+				Log.i(TAG, name + " failed (" + e.getMessage() + "), retrying.");
+				backoff(attempt, cancellation);
+				continue;
+			}
+
+			String status = getStatus(result);
+			if (status != null && isTransient(status)) {
+				recordLatency(name, start, false);
+				recordFailure();
+
+				if (!canRetry) {
+					recordFailedCall();
+					return result;
+				}
+
+				T recovered = recheck(name, call);
+				if (recovered != null)
+					return recovered;
+
+				Log.i(TAG, name + " failed (" + status + "), retrying.");
+				backoff(attempt, cancellation);
+				continue;
+			}
+
+			recordLatency(name, start, true);
+			recordSuccess();
+			return result;
+		}
+	}
+
+	/**
+	 * Looks up whether a failed attempt of a call took effect in Box.
+	 * @param name The name of the call.
+	 * @param call The call.
+	 * @return The result of the call if the attempt took effect, or
+	 * <code>null</code> if the call is to be retried.
+	 * @throws IOException If the lookup fails, in which case the call fails
+	 * rather than risking to be applied twice.
+	 */
+	private <T> T recheck(String name, Call<T> call) throws IOException {
+		T recovered;
+		try {
+			recovered = call.recheck();
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			recordFailedCall();
+			throw new IOException("Failed to look up the outcome of " + name + ": " + e.getMessage());
+		}
+
+		if (recovered != null)
+			Log.i(TAG, name + " failed, but took effect.");
+
+		return recovered;
+	}
+
+	/**
+	 * Finds a file in a folder by name.
+	 * @param authToken The authentication token.
+	 * @param folderId The ID of the folder.
+	 * @param fileName The name of the file.
+	 * @return The file, or <code>null</code> if the folder has no such file.
+	 * @throws IOException If the folder cannot be listed.
+	 */
+	private BoxFile findFile(String authToken, long folderId, String fileName)
+			throws IOException {
+		for (BoxFile file : listFolder(authToken, folderId, false).getFilesInFolder())
+			if (file.getFileName().equals(fileName))
+				return file;
+
+		return null;
+	}
+
+	/**
+	 * Finds a subfolder of a folder by name.
+	 * @param authToken The authentication token.
+	 * @param parentFolderId The ID of the parent folder.
+	 * @param folderName The name of the subfolder.
+	 * @return The subfolder, or <code>null</code> if the folder has no such subfolder.
+	 * @throws IOException If the folder cannot be listed.
+	 */
+	private BoxFolder findFolder(String authToken, long parentFolderId, String folderName)
+			throws IOException {
+		for (BoxFolder folder : listFolder(authToken, parentFolderId, true).getFoldersInFolder())
+			if (folder.getFolderName().equals(folderName))
+				return folder;
+
+		return null;
+	}
+
+	/**
+	 * Lists the content of a folder, without its subfolders.
+	 * @param authToken The authentication token.
+	 * @param folderId The ID of the folder.
+	 * @param noFiles Whether or not to leave out the files of the folder.
+	 * @return The folder.
+	 * @throws IOException If the folder cannot be listed.
+	 */
+	private BoxFolder listFolder(String authToken, long folderId, boolean noFiles)
+			throws IOException {
+		AccountTreeResponseParser response = getAccountTree(authToken, folderId, noFiles ?
+				new String[] { Box.PARAM_SIMPLE, Box.PARAM_ONELEVEL, Box.PARAM_NOFILES } :
+				new String[] { Box.PARAM_SIMPLE, Box.PARAM_ONELEVEL });
+
+		if (!response.getStatus().equals(GetAccountTreeListener.STATUS_LISTING_OK))
+			throw new IOException("Failed to list folder " + folderId + ": " + response.getStatus());
+
+		return response.getFolder();
+	}
+
+	/**
+	 * Records the latency of an attempt of a call.
+	 * @param name The name of the call.
+	 * @param start The time (in milliseconds) the attempt started.
+	 * @param succeeded Whether or not the attempt succeeded.
+	 */
+	private synchronized void recordLatency(String name, long start, boolean succeeded) {
+		EndpointStats endpoint = mStats.endpoints.get(name);
+		if (endpoint == null) {
+			endpoint = new EndpointStats();
+			mStats.endpoints.put(name, endpoint);
+		}
+
+		endpoint.record(System.currentTimeMillis() - start, succeeded);
+	}
+
+	/**
+	 * Records a call which failed after its last attempt.
+	 */
+	private synchronized void recordFailedCall() {
+		mStats.failedCalls++;
+	}
+
+	/**
+	 * Gets the status of the specified result.
+	 * @param result The result of a call.
+	 * @return The status of the result, or <code>null</code> if unknown.
+	 */
+	private static String getStatus(Object result) {
+		if (result instanceof String)
+			return (String) result;
+		else if (result instanceof DefaultResponseParser)
+			return ((DefaultResponseParser) result).getStatus();
+		else
+			return null;
+	}
+
+	/**
+	 * Checks whether the specified status is a transient error, worth retrying.
+	 * Name collisions, reported as failed uploads, are permanent.
+	 * @param status The status of a call.
+	 * @return Whether or not the status is a transient error.
+	 */
+	private static boolean isTransient(String status) {
+		return status.equals(ResponseListener.STATUS_SERVICE_UNAVAILABLE)
+				|| status.equals(ResponseListener.STATUS_UNKNOWN_HTTP_RESPONSE_CODE);
+	}
+
+	/**
+	 * Throws if the circuit breaker is open. Once the open interval has
+	 * passed, calls are let through again, and the first failure re-opens
+	 * the circuit.
+	 * @param name The name of the call.
+	 * @throws IOException If the circuit breaker is open.
+	 */
+	private synchronized void checkCircuit(String name) throws IOException {
+		if (System.currentTimeMillis() < mCircuitOpenUntil) {
+			mStats.rejected++;
+			throw new IOException("Circuit breaker is open, rejecting " + name);
+		}
+	}
+
+	/**
+	 * Records a successful call, closing the circuit breaker.
+	 */
+	private synchronized void recordSuccess() {
+		mConsecutiveFailures = 0;
+	}
+
+	/**
+	 * Records a failed call, opening the circuit breaker if Box keeps failing.
+	 */
+	private synchronized void recordFailure() {
+		mStats.failures++;
+		mConsecutiveFailures++;
+
+		if (mConsecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+			Log.i(TAG, "Opening circuit breaker after " + mConsecutiveFailures + " failures.");
+
+			mCircuitOpenUntil = System.currentTimeMillis() + CIRCUIT_OPEN_INTERVAL;
+			mConsecutiveFailures = CIRCUIT_FAILURE_THRESHOLD - 1;
+		}
+	}
+
+	/**
+	 * Sleeps before the next attempt of a call, using exponential backoff
+	 * with full jitter. The sleep ends as soon as the sync is cancelled.
+	 * @param attempt The number of the failed attempt, starting at 0.
+	 * @param cancellation The cancellation token of the sync.
+	 * @throws InterruptedIOException If the sync is cancelled, or the thread
+	 * is interrupted, while sleeping.
+	 */
+	private void backoff(int attempt, BoxCancellationToken cancellation)
+			throws InterruptedIOException {
+		long ceiling = getBackoffCeiling(attempt);
+		long delay;
+		synchronized (this) {
+			mStats.retries++;
+			delay = (long) (mRandom.nextDouble() * ceiling);
+		}
+
+		cancellation.sleep(delay);
+	}
+
+	/**
+	 * Output stream counting the bytes downloaded through it.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			out.write(oneByte);
+			countDownloaded(1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+			countDownloaded(count);
+		}
+	}
+
+	/**
+	 * Input stream counting the bytes uploaded through it.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int oneByte = in.read();
+			if (oneByte >= 0)
+				countUploaded(1);
+
+			return oneByte;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = in.read(buffer, offset, count);
+			if (read > 0)
+				countUploaded(read);
+
+			return read;
+		}
+	}
+
+	/**
+	 * Adds to the number of bytes downloaded.
+	 * @param count The number of bytes.
+	 */
+	private synchronized void countDownloaded(int count) {
+		mStats.bytesDownloaded += count;
+	}
+
+	/**
+	 * Adds to the number of bytes uploaded.
+	 * @param count The number of bytes.
+	 */
+	private synchronized void countUploaded(int count) {
+		mStats.bytesUploaded += count;
+	}
+
+	/**
+	 * A call to Box.
+	 */
+	private abstract static class Call<T> {
+
+		/**
+		 * Prepares an attempt of the call.
+		 * @param attempt The number of the attempt, starting at 0.
+		 * @return Whether or not the call can be retried after this attempt.
+		 * @throws IOException If an error occurs while preparing.
+		 */
+		public boolean prepare(int attempt) throws IOException {
+			return true;
+		}
+
+		/**
+		 * Makes the call.
+		 * @return The result of the call.
+		 * @throws IOException If an error occurs while calling.
+		 */
+		public abstract T call() throws IOException;
+
+		/**
+		 * Looks up whether a failed attempt took effect, before the call is
+		 * retried. Writes which would be applied twice by a retry look up
+		 * their target; reads and idempotent writes are simply retried.
+		 * @return The result of the call if the attempt took effect, or
+		 * <code>null</code> to retry the call.
+		 * @throws IOException If an error occurs while looking up.
+		 */
+		public T recheck() throws IOException {
+			return null;
+		}
+	}
+
+	/**
+	 * Statistics of the gateway.
+	 */
+	public static class Stats {
+		/** The number of attempted calls, including retries. */
+		public long calls;
+		/** The number of retries. */
+		public long retries;
+		/** The number of failed attempts. */
+		public long failures;
+		/** The number of calls which failed on their last attempt. */
+		public long failedCalls;
+		/** The number of calls rejected by the circuit breaker. */
+		public long rejected;
+		/** The time (in milliseconds) spent waiting for the budget of the calls. */
+		public long throttledMillis;
+		/** The time (in milliseconds) until which the circuit breaker is open. */
+		public long circuitOpenUntil;
+		/** The number of bytes uploaded. */
+		public long bytesUploaded;
+		/** The number of bytes downloaded. */
+		public long bytesDownloaded;
+		/** The statistics of every endpoint called, by name. */
+		public Map<String, EndpointStats> endpoints = new HashMap<String, EndpointStats>();
+
+		/**
+		 * Formats the statistics of the endpoints, sorted by name.
+		 * @return The statistics of the endpoints.
+		 */
+		public String formatEndpoints() {
+			StringBuilder builder = new StringBuilder();
+
+			for (Map.Entry<String, EndpointStats> endpoint :
+					new TreeMap<String, EndpointStats>(endpoints).entrySet()) {
+				if (builder.length() > 0)
+					builder.append("; ");
+				builder.append(endpoint.getKey()).append(": ").append(endpoint.getValue());
+			}
+
+			return builder.toString();
+		}
+
+		@Override
+		public String toString() {
+			return "calls=" + calls + ", retries=" + retries + ", failures=" + failures +
+					", failed_calls=" + failedCalls + ", rejected=" + rejected +
+					", throttled=" + throttledMillis + "ms, bytes_up=" + bytesUploaded +
+					", bytes_down=" + bytesDownloaded;
+		}
+	}
+
+	/**
+	 * Statistics of the attempts of calls to a single endpoint.
+	 */
+	public static class EndpointStats {
+		/** The number of attempts. */
+		public long calls;
+		/** The number of failed attempts. */
+		public long failures;
+		/** The total latency (in milliseconds) of the attempts. */
+		public long totalMillis;
+		/** The highest latency (in milliseconds) of an attempt. */
+		public long maxMillis;
+		/**
+		 * The number of attempts per latency bucket. Bucket <i>i</i> counts the
+		 * attempts faster than {@link BoxGateway#LATENCY_BUCKETS}[<i>i</i>],
+		 * the last bucket the attempts slower than all the bounds.
+		 */
+		public long[] histogram = new long[LATENCY_BUCKETS.length + 1];
+
+		/**
+		 * Records an attempt.
+		 * @param latency The latency (in milliseconds) of the attempt.
+		 * @param succeeded Whether or not the attempt succeeded.
+		 */
+		private void record(long latency, boolean succeeded) {
+			calls++;
+			if (!succeeded)
+				failures++;
+			totalMillis += latency;
+			maxMillis = Math.max(maxMillis, latency);
+
+			int bucket = 0;
+			while (bucket < LATENCY_BUCKETS.length && latency >= LATENCY_BUCKETS[bucket])
+				bucket++;
+			histogram[bucket]++;
+		}
+
+		/**
+		 * Copies the statistics.
+		 * @return A copy of the statistics.
+		 */
+		private EndpointStats copy() {
+			EndpointStats copy = new EndpointStats();
+			copy.calls = calls;
+			copy.failures = failures;
+			copy.totalMillis = totalMillis;
+			copy.maxMillis = maxMillis;
+			System.arraycopy(histogram, 0, copy.histogram, 0, histogram.length);
+
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(calls).append(" calls, ")
+				.append(failures).append(" failed, avg ")
+				.append(calls > 0 ? totalMillis / calls : 0).append("ms, max ")
+				.append(maxMillis).append("ms, histogram");
+
+			for (int i = 0; i < histogram.length; i++) {
+				builder.append(i < LATENCY_BUCKETS.length ? " <" : " >=")
+					.append(LATENCY_BUCKETS[Math.min(i, LATENCY_BUCKETS.length - 1)])
+					.append("ms:").append(histogram[i]);
+			}
+
+			return builder.toString();
+		}
+	}
+}
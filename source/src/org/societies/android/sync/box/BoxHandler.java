@@ -15,37 +15,54 @@
  */
 package org.societies.android.sync.box;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import org.societies.android.api.cis.SocialContract;
 import org.societies.android.box.BoxConstants;
 import org.societies.android.platform.entity.Community;
-import org.societies.android.platform.entity.CommunityActivity;
 import org.societies.android.platform.entity.Entity;
 import org.societies.android.platform.entity.Membership;
 import org.societies.android.platform.entity.Person;
-import org.societies.android.platform.entity.Sharing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.util.Log;
 
 import com.box.androidlib.Box;
-import com.box.androidlib.BoxSynchronous;
 import com.box.androidlib.DAO.BoxFile;
 import com.box.androidlib.DAO.BoxFolder;
 import com.box.androidlib.DAO.Update;
 import com.box.androidlib.ResponseListeners.CreateFolderListener;
+import com.box.androidlib.ResponseListeners.FileDownloadListener;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
 import com.box.androidlib.ResponseListeners.GetAccountTreeListener;
 import com.box.androidlib.ResponseListeners.GetFileInfoListener;
 import com.box.androidlib.ResponseListeners.GetUpdatesListener;
 import com.box.androidlib.ResponseListeners.InviteCollaboratorsListener;
 import com.box.androidlib.ResponseListeners.RenameListener;
 import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
 import com.box.androidlib.ResponseParsers.FileResponseParser;
 import com.box.androidlib.ResponseParsers.FolderResponseParser;
 import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
@@ -61,7 +78,7 @@ public class BoxHandler {
 	
 	/** The character used as separator in entity file names. */
 	public static final String ENTITY_FILE_NAME_SEPARATOR = "_";
-	/** The file name format of uploaded entities. */
+	/** The file name format of uploaded entities (type code, global ID). */
 	public static final String ENTITY_FILE_NAME_FORMAT =
 			"%s" + ENTITY_FILE_NAME_SEPARATOR + "%s";
 	/** The extension of deleted entity files. */
@@ -69,42 +86,234 @@ public class BoxHandler {
 	
 	/** The ID of the root folder in Box. */
 	public static final long BOX_ROOT_FOLDER_ID = 0;
+	/** The time (in milliseconds) to wait for cancelled operations to stop. */
+	public static final long CANCEL_TIMEOUT = 1000;
+	/** The name of the root folder holding the entities of the account. */
+	public static final String ACCOUNT_FOLDER_NAME = ".account";
 	
 	private ExecutorService mThreadPool;
 	private String mAuthToken;
 	private boolean mInitialized;
 	private ContentResolver mResolver;
-	private BoxSynchronous mBoxInstance;
+	private BoxGateway mGateway;
+	private String mDeviceId;
+	private Map<Long, List<Entity>> mPendingPackEntities;
+	private Map<Long, List<Entity>> mPendingPackTombstones;
+	private Map<Long, BoxManifest> mPendingManifests;
+	private Map<Long, List<BoxFile>> mManifestFiles;
+	private BoxJournal mJournal;
+	private Set<Long> mQueuedJournalIds;
+	private BoxSyncMetrics mMetrics;
+	private BoxDependencyQueue mDependencyQueue;
+	private File mCacheDirectory;
+	private boolean mCompressionEnabled;
+	private BoxCancellationToken mCancellation;
+	private Long mAccountFolderId;
+	private BoxSyncState mSyncState;
 	
 	/**
 	 * Initializes a new BoxHandler.
 	 * @param resolver The content resolver.
+	 * @param deviceId The ID of this device, used to name the pack segments
+	 * written by this device.
+	 * @param journal The journal of outbound operations.
 	 */
-	public BoxHandler(ContentResolver resolver) {
+	public BoxHandler(ContentResolver resolver, String deviceId, BoxJournal journal) {
+		this(resolver, deviceId, journal, new BoxGateway(
+				new BoxHttpBackend(BoxConstants.API_KEY, new BoxHttpTransport())));
+	}
+	
+	/**
+	 * Initializes a new BoxHandler calling Box through the specified gateway.
+	 * @param resolver The content resolver.
+	 * @param deviceId The ID of this device, used to name the pack segments
+	 * written by this device.
+	 * @param journal The journal of outbound operations.
+	 * @param gateway The gateway to call Box through.
+	 */
+	public BoxHandler(
+			ContentResolver resolver, String deviceId, BoxJournal journal, BoxGateway gateway) {
 		mInitialized = false;
 		mResolver = resolver;
+		mDeviceId = deviceId;
+		mJournal = journal;
+		mQueuedJournalIds = new HashSet<Long>();
+		mGateway = gateway;
+		mPendingPackEntities = new HashMap<Long, List<Entity>>();
+		mPendingPackTombstones = new HashMap<Long, List<Entity>>();
+		mPendingManifests = new HashMap<Long, BoxManifest>();
+		mManifestFiles = new HashMap<Long, List<BoxFile>>();
+		mMetrics = new BoxSyncMetrics();
+		mCompressionEnabled = true;
 	}
 	
 	/**
 	 * Initializes the Box handler. A call to this function is mandatory before
-	 * any other interaction with box.
+	 * any other interaction with box, and starts the metrics of a new sync.
+	 * The sync state is the one of the account selected by the calling thread.
 	 * @param authToken The token used to authenticate.
 	 */
 	public void initialize(String authToken) {
 		mAuthToken = authToken;
+		mSyncState = new BoxSyncState(
+				mResolver, Entity.getSelectionAccountType(), Entity.getSelectionAccountName());
 		mThreadPool = Executors.newSingleThreadExecutor();
-		mBoxInstance = BoxSynchronous.getInstance(BoxConstants.API_KEY);
+		mQueuedJournalIds.clear();
+		mManifestFiles.clear();
+		mMetrics = new BoxSyncMetrics();
+		mDependencyQueue = new BoxDependencyQueue(authToken, this, mResolver);
+		mCancellation = new BoxCancellationToken();
+		mGateway.setCancellationToken(mCancellation);
 		
 		mInitialized = true;
 	}
 	
 	/**
-	 * Cancels all running operations.
+	 * Gets the sync state of the account being synced.
+	 * @return The sync state.
+	 */
+	public BoxSyncState getSyncState() {
+		return mSyncState;
+	}
+	
+	/**
+	 * Gets the gateway through which all calls to Box are made.
+	 * @return The gateway to Box.
+	 */
+	public BoxGateway getGateway() {
+		return mGateway;
+	}
+	
+	/**
+	 * Gets the ID of this device, counting its changes in entity versions.
+	 * @return The ID of this device.
+	 */
+	public String getDeviceId() {
+		return mDeviceId;
+	}
+	
+	/**
+	 * Gets the metrics of the current sync.
+	 * @return The metrics of the current sync.
+	 */
+	public BoxSyncMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Sets the directory in which large downloads are buffered.
+	 * @param cacheDirectory The directory of the temporary files, or
+	 * <code>null</code> to use the default temporary directory.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		mCacheDirectory = cacheDirectory;
+	}
+	
+	/**
+	 * Gets the directory in which large downloads are buffered.
+	 * @return The directory of the temporary files, or <code>null</code> if
+	 * the default temporary directory is used.
+	 */
+	public File getCacheDirectory() {
+		return mCacheDirectory;
+	}
+	
+	/**
+	 * Sets whether or not uploaded entity files and pack segments are
+	 * compressed. Compressed files are always read, whether or not this
+	 * device writes them.
+	 * @param compressionEnabled Whether or not to compress uploads.
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		mCompressionEnabled = compressionEnabled;
+	}
+	
+	/**
+	 * Checks whether uploaded entity files and pack segments are compressed.
+	 * @return Whether or not uploads are compressed.
+	 */
+	public boolean isCompressionEnabled() {
+		return mCompressionEnabled;
+	}
+	
+	/**
+	 * Gets the queue of downloaded entities waiting on missing communities.
+	 * @return The dependency queue of the current sync.
+	 */
+	public BoxDependencyQueue getDependencyQueue() {
+		return mDependencyQueue;
+	}
+	
+	/**
+	 * Gets the token telling the operations that the sync is cancelled.
+	 * @return The cancellation token of the current sync.
+	 */
+	public BoxCancellationToken getCancellationToken() {
+		return mCancellation;
+	}
+	
+	/**
+	 * Gets the journal of outbound operations.
+	 * @return The journal of outbound operations.
+	 */
+	public BoxJournal getJournal() {
+		return mJournal;
+	}
+	
+	/**
+	 * Queues the journaled operations which did not complete during an
+	 * earlier sync. Operations on entities which no longer exist are dropped.
+	 * @throws Exception If an error occurs while resuming.
+	 */
+	public void resumeJournaledOperations() throws Exception {
+		if (!mInitialized)
+			throw new IllegalStateException("Not initialized.");
+		
+		for (BoxJournal.Entry entry : mJournal.getEntries()) {
+			Entity entity = null;
+			try {
+				entity = Entity.getEntity(
+						entry.getEntityClass(), entry.getEntityId(), mResolver);
+			} catch (ClassNotFoundException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			
+			if (entity == null)
+				mJournal.remove(entry);
+			else if (entry.getType().equals(BoxJournal.TYPE_UPLOAD) &&
+					entry.getFileName() == null && !isRemoteFileId(entity.getGlobalId())) {
+				// Upload of a new entity journaled by an older version, which
+				// uploaded new entities as files of their own. Pack it instead.
+				mJournal.remove(entry);
+				addCommunityEntityUpload(entity, entry.getTargetId());
+			} else if (entry.getType().equals(BoxJournal.TYPE_UPLOAD))
+				addUploadOperation(entity, entry.getFileName(), entry.getTargetId());
+			else if (entry.getType().equals(BoxJournal.TYPE_PACK))
+				addToPendingPack(mPendingPackEntities, entry.getTargetId(), entity);
+			else if (entry.getType().equals(BoxJournal.TYPE_TOMBSTONE))
+				addToPendingPack(mPendingPackTombstones, entry.getTargetId(), entity);
+		}
+	}
+	
+	/**
+	 * Cancels all running operations. The operations stop at their next
+	 * check of the cancellation token, and the calls in progress are aborted.
+	 * Operations which have not started remain in the journal.
 	 * @throws InterruptedException If the thread is interrupted while waiting.
 	 */
 	public void cancelRunningOperations() throws InterruptedException {
+		if (!mInitialized)
+			return;
+		
+		mCancellation.cancel();
 		mThreadPool.shutdownNow();
-		mThreadPool.awaitTermination(30, TimeUnit.SECONDS);
+		mDependencyQueue.shutdown();
+		
+		long deadline = System.currentTimeMillis() + CANCEL_TIMEOUT;
+		if (!mThreadPool.awaitTermination(CANCEL_TIMEOUT, TimeUnit.MILLISECONDS) ||
+				!mDependencyQueue.awaitTermination(
+						Math.max(0, deadline - System.currentTimeMillis())))
+			Log.i(TAG, "Operations still running " + CANCEL_TIMEOUT + " ms after cancellation.");
 	}
 	
 	/**
@@ -133,42 +342,105 @@ public class BoxHandler {
 					community,
 					String.format(
 							ENTITY_FILE_NAME_FORMAT,
-							community.getClass().getName(),
+							BoxEntityType.COMMUNITY.getCode(),
 							community.getGlobalId()),
 					targetId);
 		}
 	}
 	
 	/**
-	 * Uploads a community activity to Box.
-	 * @param activity The activity to upload.
+	 * Uploads the updated entities of a type to Box. Communities get a folder
+	 * of their own, while the other entities are packed into the folder of
+	 * their community or, if they belong to the account, into the account
+	 * folder. Entities of communities not yet in Box are skipped until their
+	 * community has been uploaded.
+	 * @param descriptor The descriptor of the type.
+	 * @param entities The updated entities of the type.
+	 * @throws Exception If an error occurs while uploading.
 	 */
-	public void uploadCommunityActivity(CommunityActivity activity) {
+	public void uploadEntities(
+			BoxSyncDescriptor descriptor, List<? extends Entity> entities) throws Exception {
 		if (!mInitialized)
 			throw new IllegalStateException("Not initialized.");
-		else {
-			long targetId = Long.parseLong(activity.getGlobalIdFeedOwner());
-			addUploadOperation(activity, null, targetId);
+		else if (entities.size() == 0 || !descriptor.isSynced())
+			return;
+		else if (descriptor == BoxSyncDescriptor.MEMBERSHIP) {
+			List<Membership> memberships = new ArrayList<Membership>();
+			for (Entity entity : entities)
+				memberships.add((Membership) entity);
+			
+			uploadMemberships(memberships);
+		} else if (descriptor.getScope() == BoxSyncDescriptor.Scope.COMMUNITY) {
+			for (Entity entity : entities)
+				uploadCommunity((Community) entity);
+		} else if (descriptor.getScope() == BoxSyncDescriptor.Scope.ACCOUNT) {
+			long folderId = getAccountFolderId();
+			
+			for (Entity entity : entities)
+				addCommunityEntityUpload(entity, folderId);
+		} else {
+			for (Entity entity : entities) {
+				String communityGlobalId = descriptor.getCommunityGlobalId(entity);
+				
+				if (isRemoteFileId(communityGlobalId))
+					addCommunityEntityUpload(entity, Long.parseLong(communityGlobalId));
+				else {
+					Log.i(TAG, "Community of " + descriptor + " " + entity.getId() +
+							" is not in Box. Skipping.");
+					mMetrics.addSkipped(1);
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Uploads a sharing to Box.
-	 * @param sharing The sharing to upload.
+	 * Gets the ID of the folder holding the entities of the account, which
+	 * is created the first time it is needed.
+	 * @return The ID of the account folder.
+	 * @throws IOException If an error occurs while listing or creating the folder.
 	 */
-	public void uploadSharing(Sharing sharing)
-	{
-		if (!mInitialized)
-			throw new IllegalStateException("Not initialized.");
-		else {
-			long targetId = Long.parseLong(sharing.getGlobalIdCommunity());
-			addUploadOperation(sharing, null, targetId);
+	public long getAccountFolderId() throws IOException {
+		if (mAccountFolderId != null)
+			return mAccountFolderId;
+		
+		AccountTreeResponseParser treeParser = mGateway.getAccountTree(
+				mAuthToken,
+				BOX_ROOT_FOLDER_ID,
+				new String[] { Box.PARAM_SIMPLE, Box.PARAM_ONELEVEL });
+		
+		if (!treeParser.getStatus().equals(GetAccountTreeListener.STATUS_LISTING_OK))
+			throw new IOException("Failed to get directory tree of folder: " + BOX_ROOT_FOLDER_ID);
+		
+		for (BoxFolder folder : treeParser.getFolder().getFoldersInFolder())
+			if (isAccountFolder(folder))
+				mAccountFolderId = folder.getId();
+		
+		if (mAccountFolderId == null) {
+			BoxFolder folder = createFolder(ACCOUNT_FOLDER_NAME, BOX_ROOT_FOLDER_ID);
+			
+			if (folder == null)
+				throw new IOException("Failed to create account folder.");
+			
+			mAccountFolderId = folder.getId();
 		}
+		
+		return mAccountFolderId;
+	}
+	
+	/**
+	 * Checks whether the specified folder is the account folder.
+	 * @param folder The folder to check.
+	 * @return Whether or not the folder holds the entities of the account.
+	 */
+	private static boolean isAccountFolder(BoxFolder folder) {
+		return ACCOUNT_FOLDER_NAME.equals(folder.getFolderName());
 	}
 	
 	/**
-	 * Uploads a membership to Box.
-	 * @param membership The membership to upload.
+	 * Uploads memberships to Box. The memberships are grouped per community,
+	 * and every community gets a single invite of the members who have not
+	 * yet been invited to its folder.
+	 * @param memberships The memberships to upload.
 	 * @throws Exception If an error occurs while uploading.
 	 */
 	public void uploadMemberships(List<Membership> memberships) throws Exception {
@@ -177,38 +449,121 @@ public class BoxHandler {
 		else if (memberships.size() == 0)
 			return;
 		else {
-			Community community = Entity.getEntity(
-					Community.class, memberships.get(0).getCommunityId(), mResolver);
-			
-			long targetId = Long.parseLong(community.getGlobalId());
-			List<String> emails = new ArrayList<String>();
+			Map<Long, List<Membership>> communityMemberships =
+					new LinkedHashMap<Long, List<Membership>>();
+			Set<Long> memberIds = new HashSet<Long>();
 			
 			for (Membership membership : memberships) {
-				addUploadOperation(membership, null, targetId);
+				List<Membership> members = communityMemberships.get(membership.getCommunityId());
 				
-				if (community.getOwnerId() != membership.getMemberId()) {
-					Person collaborator = Entity.getEntity(
-							Person.class, membership.getMemberId(), mResolver);
-					emails.add(collaborator.getUserName());
+				if (members == null) {
+					members = new ArrayList<Membership>();
+					communityMemberships.put(membership.getCommunityId(), members);
 				}
+				
+				members.add(membership);
+				memberIds.add(membership.getMemberId());
 			}
 			
-			if (emails.size() > 0)
+			Map<Long, String> userNames = getUserNames(memberIds);
+			
+			for (Long communityId : communityMemberships.keySet())
+				uploadCommunityMemberships(
+						communityId, communityMemberships.get(communityId), userNames);
+		}
+	}
+	
+	/**
+	 * Uploads the memberships of a community, after inviting the members not
+	 * yet invited to the community folder. If the invite fails, the memberships
+	 * are left dirty so that the invite is retried by the next sync.
+	 * @param communityId The local ID of the community.
+	 * @param memberships The memberships of the community to upload.
+	 * @param userNames A mapping between local person ID and user name.
+	 * @throws Exception If an error occurs while uploading.
+	 */
+	private void uploadCommunityMemberships(
+			long communityId,
+			List<Membership> memberships,
+			Map<Long, String> userNames) throws Exception {
+		Community community = Entity.getEntity(Community.class, communityId, mResolver);
+		
+		if (community == null || !isRemoteFileId(community.getGlobalId())) {
+			Log.i(TAG, "Community " + communityId + " is not in Box. Skipping memberships.");
+			mMetrics.addSkipped(memberships.size());
+			return;
+		}
+		
+		long targetId = Long.parseLong(community.getGlobalId());
+		Set<String> invited = mJournal.getCollaborators(targetId);
+		Set<String> emails = new LinkedHashSet<String>();
+		
+		for (Membership membership : memberships) {
+			String email = userNames.get(membership.getMemberId());
+			
+			if (community.getOwnerId() != membership.getMemberId()
+					&& email != null && !invited.contains(email))
+				emails.add(email);
+		}
+		
+		if (emails.size() > 0) {
+			try {
 				inviteCollaborators(emails.toArray(new String[emails.size()]), targetId);
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+				mMetrics.addFailed(memberships.size());
+				return;
+			}
+			
+			mJournal.addCollaborators(targetId, emails);
 		}
+		
+		for (Membership membership : memberships)
+			addCommunityEntityUpload(membership, targetId);
 	}
 	
 	/**
-	 * Processes the specified Box updates.
+	 * Gets the user names of the specified people in a single query.
+	 * @param personIds The local IDs of the people.
+	 * @return A mapping between local person ID and user name.
+	 * @throws Exception If an error occurs while reading the people.
+	 */
+	private Map<Long, String> getUserNames(Set<Long> personIds) throws Exception {
+		Map<Long, String> userNames = new HashMap<Long, String>();
+		
+		StringBuilder selection = new StringBuilder(SocialContract.People._ID + " IN (");
+		boolean isFirst = true;
+		for (Long personId : personIds) {
+			if (!isFirst)
+				selection.append(',');
+			selection.append(personId);
+			isFirst = false;
+		}
+		selection.append(')');
+		
+		for (Person person : Entity.getEntities(
+				Person.class, selection.toString(), null, mResolver))
+			userNames.put(person.getId(), person.getUserName());
+		
+		return userNames;
+	}
+	
+	/**
+	 * Processes the specified Box updates. The deletions recorded in the
+	 * manifests of the folders holding updated files are applied as well.
 	 * @param updates The Box updates to process, or <code>null</code> to
-	 * retrieve all the data from Box.
-	 * @throws IOException If an error occurs while processing updates.
+	 * reconcile all the data with Box.
+	 * @throws Exception If an error occurs while processing updates.
 	 */
-	public void processUpdates(List<Update> updates) throws IOException {
+	public void processUpdates(List<Update> updates) throws Exception {
 		if (updates == null)
-			fetchAllEntities();
+			reconcileCommunities(null);
 		else {
+			Set<Long> updatedFolderIds = new LinkedHashSet<Long>();
+			
 			for (Update update : updates) {
+				mCancellation.throwIfCancelled();
+				
 				if (update.getUpdateType().equals("added") ||
 					update.getUpdateType().equals("updated")) {
 					if (update.getFiles().size() > 0) {
@@ -218,14 +573,22 @@ public class BoxHandler {
 							Log.i(TAG, file.getFileName());
 
 						downloadEntities(update.getFiles());
+						
+						if (update.getFolderId() != BOX_ROOT_FOLDER_ID)
+							updatedFolderIds.add(update.getFolderId());
 					} else {
 						Log.i(TAG,
-								"Update does not contain files. Fetching all files in folder.");
+								"Update does not contain files. Fetching changed files in folder.");
 
-						downloadAllEntities(update.getFolderId());
+						downloadChangedEntities(update.getFolderId());
 					}
 				}
 			}
+			
+			for (Long folderId : updatedFolderIds) {
+				mCancellation.throwIfCancelled();
+				deleteRemovedEntities(folderId);
+			}
 		}
 	}
 	
@@ -239,7 +602,7 @@ public class BoxHandler {
 		long endTimeStamp = (new Date().getTime() / 1000) + (30 * 60);
 		beginTimestamp = beginTimestamp - (20);
 		
-		UpdatesResponseParser response = mBoxInstance.getUpdates(
+		UpdatesResponseParser response = mGateway.getUpdates(
 				mAuthToken, beginTimestamp, endTimeStamp, null);
 		
 		if (response.getStatus().equals(GetUpdatesListener.STATUS_S_GET_UPDATES))
@@ -249,56 +612,135 @@ public class BoxHandler {
 	}
 	
 	/**
-	 * Marks the specified entities as deleted in Box.
+	 * Marks the specified entities as deleted in Box. Deletions are recorded
+	 * as tombstones in the pack segments of their communities, or of the
+	 * account folder, so that all the deletions of a folder cost a single
+	 * pack upload.
 	 * @param deletedEntities The entities that is deleted.
 	 * @throws Exception If an error occurs while marking.
 	 */
 	public void deleteEntities(List<Entity> deletedEntities) throws Exception {
 		for (Entity entity : deletedEntities) {
-			if (entity instanceof Community)
+			BoxSyncDescriptor descriptor = BoxSyncDescriptor.forEntity(entity);
+			
+			if (descriptor.getScope() == BoxSyncDescriptor.Scope.COMMUNITY)
 				deleteCommunity((Community) entity);
-			else {
-				try {
-					FileResponseParser response =  mBoxInstance.getFileInfo(
-							mAuthToken, Long.parseLong(entity.getGlobalId()));
-					
-					if (!response.getStatus().equals(GetFileInfoListener.STATUS_S_GET_FILE_INFO))
-						Log.e(TAG, "Failed to get file info: " + response.getStatus());
-					else
-						markAsDeleted(response.getFile(), entity);
-				} catch (NumberFormatException e) {
-					Log.e(TAG, e.getMessage(), e);
-				}
-			}
+			else if (descriptor.getScope() == BoxSyncDescriptor.Scope.ACCOUNT)
+				deleteAccountEntity(entity);
+			else if (descriptor.getScope() == BoxSyncDescriptor.Scope.COMMUNITY_ENTITY)
+				deleteCommunityEntity(entity);
 		}
 	}
 	
 	/**
-	 * Marks a community as deleted in Box.
+	 * Appends a tombstone of an entity to the pack segments of the account
+	 * folder. Entities which have never been synced are only deleted locally.
+	 * @param entity The deleted entity.
+	 * @throws Exception If an error occurs while deleting.
+	 */
+	private void deleteAccountEntity(Entity entity) throws Exception {
+		if (isGeneratedId(entity.getGlobalId()) || isRemoteFileId(entity.getGlobalId()))
+			addToPendingPack(mPendingPackTombstones, getAccountFolderId(), entity);
+		else
+			entity.delete(mResolver);
+	}
+	
+	/**
+	 * Appends a tombstone of an entity to the pack segments of its community.
+	 * Entities which have never been synced are only deleted locally, and
+	 * entities stored in their own Box file outside of any known community
+	 * folder have their file renamed instead.
+	 * @param entity The deleted entity.
+	 * @throws Exception If an error occurs while deleting.
+	 */
+	private void deleteCommunityEntity(Entity entity) throws Exception {
+		String communityGlobalId = getCommunityGlobalId(entity);
+		
+		if (!isGeneratedId(entity.getGlobalId()) && !isRemoteFileId(entity.getGlobalId()))
+			entity.delete(mResolver);
+		else if (isRemoteFileId(communityGlobalId))
+			addToPendingPack(
+					mPendingPackTombstones, Long.parseLong(communityGlobalId), entity);
+		else if (isRemoteFileId(entity.getGlobalId()))
+			deleteEntityFile(entity);
+		else
+			entity.delete(mResolver);
+	}
+	
+	/**
+	 * Marks the Box file of an entity as deleted. Only used for entities
+	 * which cannot be tombstoned in a pack segment.
+	 * @param entity The deleted entity.
+	 * @throws Exception If an error occurs while marking.
+	 */
+	private void deleteEntityFile(Entity entity) throws Exception {
+		FileResponseParser response =  mGateway.getFileInfo(
+				mAuthToken, Long.parseLong(entity.getGlobalId()));
+		
+		if (!response.getStatus().equals(GetFileInfoListener.STATUS_S_GET_FILE_INFO)) {
+			Log.e(TAG, "Failed to get file info: " + response.getStatus());
+			mMetrics.addFailed(1);
+		} else
+			markAsDeleted(response.getFile(), entity);
+	}
+	
+	/**
+	 * Marks a community as deleted in Box. The community and all its synced
+	 * entities are tombstoned in a single pack segment, which download clients
+	 * apply in one pass.
 	 * @param community The community that is deleted.
 	 * @throws Exception If an error occurs while marking.
 	 */
 	private void deleteCommunity(Community community) throws Exception {
-		try {
-			long targetId = Long.parseLong(community.getGlobalId());
-			BoxFolder communityFolder = getDirectoryTree(targetId);
-			
-			for (BoxFile file : communityFolder.getFilesInFolder())
-				markAsDeleted(file, community);
-		} catch (NumberFormatException e) {
+		if (!isRemoteFileId(community.getGlobalId())) {
 			Log.i(TAG, "Tried to delete unsynced community.");
+			return;
+		}
+		
+		long folderId = Long.parseLong(community.getGlobalId());
+		String[] communityId = new String[] { String.valueOf(community.getId()) };
+		
+		for (BoxSyncDescriptor descriptor :
+				BoxSyncDescriptor.getDescriptors(BoxSyncDescriptor.Scope.COMMUNITY_ENTITY))
+			deleteCommunityEntities(folderId, descriptor, communityId);
+		
+		addToPendingPack(mPendingPackTombstones, folderId, community);
+	}
+	
+	/**
+	 * Tombstones the local entities of a deleted community. Entities which
+	 * have never been synced are only deleted locally.
+	 * @param folderId The ID of the community folder.
+	 * @param descriptor The descriptor of the entities.
+	 * @param communityId The local ID of the community, as selection argument.
+	 * @throws Exception If an error occurs while reading the local entities.
+	 */
+	private void deleteCommunityEntities(
+			long folderId,
+			BoxSyncDescriptor descriptor,
+			String[] communityId) throws Exception {
+		for (Entity entity : Entity.getEntities(
+				descriptor.getEntityClass(),
+				descriptor.getCommunityColumn() + " = ?",
+				communityId,
+				mResolver)) {
+			if (isGeneratedId(entity.getGlobalId()) || isRemoteFileId(entity.getGlobalId()))
+				addToPendingPack(mPendingPackTombstones, folderId, entity);
+			else
+				entity.delete(mResolver);
 		}
 	}
 	
 	/**
-	 * Marks a file as deleted in Box.
+	 * Marks a file as deleted in Box by renaming it, as understood by clients
+	 * predating pack tombstones.
 	 * @param file The file to mark.
 	 * @param entity The entity related to the file.
 	 * @throws Exception If an error occurs while marking.
 	 */
 	private void markAsDeleted(BoxFile file, Entity entity) throws Exception {
 		if (!file.getFileName().endsWith(ENTITY_DELETED_EXTENSION)) {
-			String status = mBoxInstance.rename(
+			String status = mGateway.rename(
 					mAuthToken,
 					Box.TYPE_FILE,
 					file.getId(),
@@ -306,41 +748,210 @@ public class BoxHandler {
 			
 			if (status.equals(RenameListener.STATUS_E_NO_ACCESS)
 					|| status.equals(RenameListener.STATUS_E_FILENAME_IN_USE)
-					|| status.equals(RenameListener.STATUS_E_RENAME_NODE))
+					|| status.equals(RenameListener.STATUS_E_RENAME_NODE)) {
+				mMetrics.addFailed(1);
 				Entity.setUnsuccessfulDelete(entity, mResolver);
-			else if (status.equals(RenameListener.STATUS_E_NO_TARGET))
+			} else if (status.equals(RenameListener.STATUS_E_NO_TARGET))
 				Entity.deleteEntity(entity.getClass(), entity.getGlobalId(), mResolver);
+			else if (status.equals(RenameListener.STATUS_S_RENAME_NODE))
+				mMetrics.addUploaded(1);
+			
+			if (status.equals(RenameListener.STATUS_S_RENAME_NODE)
+					&& !(entity instanceof Community)
+					&& isRemoteFileId(getCommunityGlobalId(entity)))
+				recordManifestEntry(
+						Long.parseLong(getCommunityGlobalId(entity)),
+						entity.getGlobalId(),
+						new BoxManifest.Entry(
+								BoxEntityType.forEntity(entity).getCode(),
+								null,
+								file.getId(),
+								file.getFileName() + ENTITY_DELETED_EXTENSION,
+								true));
 		}
 	}
 	
 	/**
-	 * Waits for running operations to complete.
+	 * Waits for running operations to complete. Once the sync is cancelled,
+	 * neither the pending packs nor the manifests are written; the pending
+	 * packs remain in the journal.
 	 * @param stop Whether or not the execution of operations should stop after the currently
 	 * running operations are finished.
 	 * @throws InterruptedException If the thread is interrupted while waiting.
 	 */
 	public void waitForRunningOperationsToComplete(boolean stop) throws InterruptedException {
+		if (mCancellation.isCancelled()) {
+			mDependencyQueue.shutdown();
+			return;
+		}
+		
+		flushPendingPacks();
+		
 		mThreadPool.shutdown();
 		mThreadPool.awaitTermination(120, TimeUnit.SECONDS);
+		mDependencyQueue.waitForFetchesToComplete();
 		
-		if (!stop) {
+		if (mCancellation.isCancelled()) {
+			mDependencyQueue.shutdown();
+		} else if (stop) {
+			mDependencyQueue.shutdown();
+			updateManifests();
+		} else {
 			mThreadPool = Executors.newSingleThreadExecutor();
 		}
 	}
 	
+	/**
+	 * Uploads an entity belonging to a community or to the account. Entities
+	 * which are already stored in their own Box file keep being updated there,
+	 * while all other entities are appended to the pack segments of the folder.
+	 * @param entity The entity to upload.
+	 * @param targetId The ID of the community or account folder.
+	 */
+	private void addCommunityEntityUpload(Entity entity, long targetId) {
+		if (isRemoteFileId(entity.getGlobalId())) {
+			addUploadOperation(entity, null, targetId);
+		} else {
+			if (!isGeneratedId(entity.getGlobalId())) {
+				entity.setGlobalId(generateGlobalId());
+				entity.update(mResolver);
+			}
+			
+			addToPendingPack(mPendingPackEntities, targetId, entity);
+		}
+	}
+	
+	/**
+	 * Adds an entity to the pending pack of the specified community folder.
+	 * @param pendingPacks The pending packs to add to.
+	 * @param folderId The ID of the community folder.
+	 * @param entity The entity to add.
+	 */
+	private void addToPendingPack(
+			Map<Long, List<Entity>> pendingPacks, long folderId, Entity entity) {
+		BoxJournal.Entry entry = mJournal.add(
+				(pendingPacks == mPendingPackTombstones ?
+						BoxJournal.TYPE_TOMBSTONE : BoxJournal.TYPE_PACK),
+				entity,
+				null,
+				folderId);
+		
+		if (!mQueuedJournalIds.add(entry.getId()))
+			return;
+		
+		List<Entity> entities = pendingPacks.get(folderId);
+		
+		if (entities == null) {
+			entities = new ArrayList<Entity>();
+			pendingPacks.put(folderId, entities);
+		}
+		
+		entities.add(entity);
+	}
+	
+	/**
+	 * Adds a pack upload operation to the thread pool for every community
+	 * with pending entities or tombstones.
+	 */
+	private void flushPendingPacks() {
+		List<Long> folderIds = new ArrayList<Long>(mPendingPackEntities.keySet());
+		for (Long folderId : mPendingPackTombstones.keySet()) {
+			if (!folderIds.contains(folderId))
+				folderIds.add(folderId);
+		}
+		
+		for (Long folderId : folderIds) {
+			List<Entity> entities = mPendingPackEntities.get(folderId);
+			List<Entity> tombstones = mPendingPackTombstones.get(folderId);
+			
+			BoxPackUploadOperation operation = new BoxPackUploadOperation(
+					folderId,
+					(entities != null ? entities : new ArrayList<Entity>()),
+					(tombstones != null ? tombstones : new ArrayList<Entity>()),
+					mDeviceId,
+					mAuthToken,
+					this,
+					mResolver);
+			
+			execute(operation);
+		}
+		
+		mPendingPackEntities.clear();
+		mPendingPackTombstones.clear();
+	}
+	
+	/**
+	 * Generates a new global ID for an entity stored in a pack segment.
+	 * @return A new, globally unique ID.
+	 */
+	public static String generateGlobalId() {
+		return UUID.randomUUID().toString();
+	}
+	
+	/**
+	 * Checks whether the specified global ID is generated by
+	 * {@link BoxHandler#generateGlobalId()}.
+	 * @param globalId The global ID to check.
+	 * @return Whether or not the global ID is generated.
+	 */
+	public static boolean isGeneratedId(String globalId) {
+		if (globalId == null || globalId.length() != 36)
+			return false;
+		
+		try {
+			UUID.fromString(globalId);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Checks whether the specified global ID is the ID of a Box file or folder.
+	 * @param globalId The global ID to check.
+	 * @return Whether or not the global ID refers to a Box file or folder.
+	 */
+	public static boolean isRemoteFileId(String globalId) {
+		if (globalId == null)
+			return false;
+		
+		try {
+			Long.parseLong(globalId);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Gets the global ID of the community related to the specified entity.
+	 * @param entity An entity related to a community.
+	 * @return The global ID of the community related to the entity, or
+	 * <code>null</code> if the entity does not belong to a community.
+	 */
+	public static String getCommunityGlobalId(Entity entity) {
+		return BoxSyncDescriptor.forEntity(entity).getCommunityGlobalId(entity);
+	}
+	
 	/**
 	 * Adds an upload operation to the thread pool.
 	 * @param entity The entity to upload.
-	 * @param fileName The name of the file to upload to, or <code>null</code> if the
-	 * name should be automatically generated.
+	 * @param fileName The name of the file to upload to, or <code>null</code> to
+	 * overwrite the Box file of the entity.
 	 * @param targetId The ID of the folder to upload to.
 	 */
 	private void addUploadOperation(Entity entity, String fileName, long targetId) {
+		BoxJournal.Entry entry =
+				mJournal.add(BoxJournal.TYPE_UPLOAD, entity, fileName, targetId);
+		
+		if (!mQueuedJournalIds.add(entry.getId()))
+			return;
+		
 		BoxUploadOperation operation =
 				new BoxUploadOperation(
-						entity, fileName, targetId, mAuthToken, mResolver);
+						entity, fileName, targetId, mAuthToken, this, entry, mResolver);
 		
-		mThreadPool.execute(operation);
+		execute(operation);
 	}
 	
 	/**
@@ -350,7 +961,7 @@ public class BoxHandler {
 	 * @throws Exception If an error occurs while inviting.
 	 */
 	private void inviteCollaborators(String[] emails, long targetId) throws Exception {
-		String status = mBoxInstance.inviteCollaborators(
+		String status = mGateway.inviteCollaborators(
 				mAuthToken,
 				Box.TYPE_FOLDER,
 				targetId,
@@ -375,7 +986,7 @@ public class BoxHandler {
 	 * @throws IOException If an error occurs while creating folder.
 	 */
 	private BoxFolder createFolder(String name, long parentId) throws IOException {
-		FolderResponseParser response = mBoxInstance.createFolder(
+		FolderResponseParser response = mGateway.createFolder(
 				mAuthToken, parentId, name, false);
 		
 		if (response.getStatus().equals(CreateFolderListener.STATUS_CREATE_OK))
@@ -384,16 +995,42 @@ public class BoxHandler {
 			return null;
 	}
 	
+	/**
+	 * Adds an operation to the thread pool, bound to the account selected by
+	 * the calling thread. Operations added once the sync is cancelled are
+	 * dropped, and resumed from the journal by the next sync.
+	 * @param operation The operation to run.
+	 */
+	private void execute(Runnable operation) {
+		try {
+			mThreadPool.execute(Entity.bindSelectionAccount(operation));
+		} catch (RejectedExecutionException e) {
+			Log.i(TAG, "Sync cancelled. Dropping operation.");
+		}
+	}
+	
 	/**
 	 * Downloads the specified Box files.
 	 * @param files The list of files to download.
 	 */
 	private void downloadEntities(List<? extends BoxFile> files) {
+		downloadEntities(files, null);
+	}
+	
+	/**
+	 * Downloads the specified Box files, and writes the specified sync state
+	 * together with the last downloaded entities if all the files are stored.
+	 * @param files The list of files to download.
+	 * @param stateWrites The writes of the sync state, or <code>null</code>.
+	 */
+	private void downloadEntities(
+			List<? extends BoxFile> files, List<ContentProviderOperation> stateWrites) {
 		if (files.size() > 0) {
 			BoxDownloadOperation operation = new BoxDownloadOperation(
 					files, mAuthToken, this, mResolver);
+			operation.setStateWrites(stateWrites);
 			
-			mThreadPool.execute(operation);
+			execute(operation);
 		}
 	}
 	
@@ -420,8 +1057,10 @@ public class BoxHandler {
 	 * Downloads all the entities in the directory tree under the
 	 * specified root folder.
 	 * @param rootFolder The root folder.
+	 * @throws InterruptedIOException If the sync is cancelled.
 	 */
-	private void downloadAllEntities(BoxFolder rootFolder) {
+	private void downloadAllEntities(BoxFolder rootFolder) throws InterruptedIOException {
+		mCancellation.throwIfCancelled();
 		downloadEntities(rootFolder.getFilesInFolder());
 		
 		for (BoxFolder subFolder : rootFolder.getFoldersInFolder())
@@ -444,7 +1083,7 @@ public class BoxHandler {
 	 * @throws IOException If an error occurs while fetching directory tree.
 	 */
 	private BoxFolder getDirectoryTree(long rootFolderId) throws IOException {
-		AccountTreeResponseParser treeParser = mBoxInstance.getAccountTree(
+		AccountTreeResponseParser treeParser = mGateway.getAccountTree(
 				mAuthToken, rootFolderId, new String[] { Box.PARAM_SIMPLE });
 		
 		if (!treeParser.getStatus().equals(GetAccountTreeListener.STATUS_LISTING_OK))
@@ -454,10 +1093,487 @@ public class BoxHandler {
 	}
 	
 	/**
-	 * Fetches all the entities from Box.
-	 * @throws IOException If an error occurs while fetching.
+	 * Records a changed entry of the manifest of the specified community folder.
+	 * The manifests are written once all running operations have completed.
+	 * @param folderId The ID of the community folder.
+	 * @param globalId The global ID of the changed entity.
+	 * @param entry The changed entry.
+	 */
+	public void recordManifestEntry(long folderId, String globalId, BoxManifest.Entry entry) {
+		synchronized (mPendingManifests) {
+			BoxManifest manifest = mPendingManifests.get(folderId);
+			
+			if (manifest == null) {
+				manifest = new BoxManifest();
+				mPendingManifests.put(folderId, manifest);
+			}
+			
+			manifest.put(globalId, entry);
+		}
+	}
+	
+	/**
+	 * Merges the recorded manifest entries into the manifests in Box.
+	 */
+	private void updateManifests() {
+		Map<Long, BoxManifest> pendingManifests;
+		synchronized (mPendingManifests) {
+			pendingManifests = new HashMap<Long, BoxManifest>(mPendingManifests);
+			mPendingManifests.clear();
+		}
+		
+		for (Long folderId : pendingManifests.keySet()) {
+			try {
+				updateManifest(folderId, pendingManifests.get(folderId));
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to update manifest of folder " + folderId, e);
+			}
+		}
+	}
+	
+	/**
+	 * Merges the specified changes into the manifest of this device in a
+	 * community folder. No other device writes this manifest, so no entries
+	 * are lost to concurrent writes.
+	 * @param folderId The ID of the community folder.
+	 * @param changes The changed entries.
+	 * @throws IOException If an error occurs while updating.
+	 */
+	private void updateManifest(long folderId, BoxManifest changes) throws IOException {
+		BoxFile manifestFile = getOwnManifestFile(folderId);
+		BoxManifest manifest =
+				(manifestFile != null ? downloadManifest(folderId, manifestFile) : new BoxManifest());
+		
+		manifest.merge(changes);
+		manifest.nextGeneration();
+		
+		FileResponseParser response = mGateway.upload(
+				mAuthToken,
+				(manifestFile != null ? Box.UPLOAD_ACTION_OVERWRITE : Box.UPLOAD_ACTION_UPLOAD),
+				new ByteArrayInputStream(manifest.serialize().getBytes("UTF-8")),
+				BoxManifest.getFileName(mDeviceId),
+				(manifestFile != null ? manifestFile.getId() : folderId));
+		
+		if (!response.getStatus().equals(FileUploadListener.STATUS_UPLOAD_OK))
+			throw new IOException("Failed to upload manifest: " + response.getStatus());
+		
+		mManifestFiles.remove(folderId);
+	}
+	
+	/**
+	 * Downloads the entities of a community folder which differ from the local
+	 * ones, according to the manifest of the folder. Folders without a manifest
+	 * are downloaded in full.
+	 * @param folderId The ID of the community folder.
+	 * @throws Exception If an error occurs while downloading.
+	 */
+	private void downloadChangedEntities(long folderId) throws Exception {
+		BoxManifest manifest = getManifest(folderId);
+		
+		if (manifest == null) {
+			downloadAllEntities(folderId);
+		} else {
+			List<BoxFile> changedFiles = getChangedFiles(manifest);
+			
+			Log.i(TAG, "Manifest of folder " + folderId + " lists " +
+					manifest.getEntries().size() + " entities, " +
+					changedFiles.size() + " files changed.");
+			
+			downloadEntities(changedFiles);
+		}
+	}
+	
+	/**
+	 * Gets the files holding entities which differ from the local ones.
+	 * Entities which the manifest records as deleted are deleted right away,
+	 * as compaction may have dropped their tombstones.
+	 * @param manifest The manifest to compare with.
+	 * @return The files to download.
+	 * @throws Exception If an error occurs while reading the local entities.
+	 */
+	private List<BoxFile> getChangedFiles(BoxManifest manifest) throws Exception {
+		Map<String, Map<String, String>> localHashes = new HashMap<String, Map<String, String>>();
+		Map<Long, BoxFile> changedFiles = new LinkedHashMap<Long, BoxFile>();
+		
+		for (String globalId : manifest.getEntries().keySet()) {
+			BoxManifest.Entry entry = manifest.getEntries().get(globalId);
+			Map<String, String> hashes = getLocalHashes(localHashes, entry);
+			
+			boolean changed;
+			if (entry.isDeleted())
+				changed = hashes.containsKey(globalId);
+			else
+				changed = !entry.getHash().equals(hashes.get(globalId));
+			
+			if (changed && entry.isDeleted()) {
+				Entity.deleteEntity(entry.getEntityType().getEntityClass(), globalId, mResolver);
+				mMetrics.addDownloaded(1);
+			} else if (changed) {
+				BoxFile file = entry.getFile();
+				changedFiles.put(file.getId(), file);
+			} else {
+				mMetrics.addSkipped(1);
+			}
+		}
+		
+		return new ArrayList<BoxFile>(changedFiles.values());
+	}
+	
+	/**
+	 * Deletes the local entities which the manifest of a community folder
+	 * records as deleted. The segments of the folder no longer hold the
+	 * tombstones of these deletions once compaction has dropped them, so
+	 * devices reading only the updated segments would otherwise keep the
+	 * entities.
+	 * @param folderId The ID of the community folder.
+	 * @throws Exception If an error occurs while deleting.
+	 */
+	private void deleteRemovedEntities(long folderId) throws Exception {
+		BoxManifest manifest = getManifest(folderId);
+		
+		if (manifest == null)
+			return;
+		
+		Map<String, Map<String, String>> localHashes = new HashMap<String, Map<String, String>>();
+		
+		for (String globalId : manifest.getEntries().keySet()) {
+			BoxManifest.Entry entry = manifest.getEntries().get(globalId);
+			
+			if (entry.isDeleted() && getLocalHashes(localHashes, entry).containsKey(globalId)) {
+				Entity.deleteEntity(entry.getEntityType().getEntityClass(), globalId, mResolver);
+				mMetrics.addDownloaded(1);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the sync hashes of the local entities of the type of a manifest
+	 * entry, reading every type only once.
+	 * @param localHashes The sync hashes read so far, by type code.
+	 * @param entry The manifest entry.
+	 * @return A mapping between global ID and sync hash, empty if the type
+	 * is unknown.
+	 * @throws Exception If an error occurs while reading the local entities.
+	 */
+	private Map<String, String> getLocalHashes(
+			Map<String, Map<String, String>> localHashes, BoxManifest.Entry entry) throws Exception {
+		Map<String, String> hashes = localHashes.get(entry.getType());
+		
+		if (hashes == null) {
+			BoxEntityType type = entry.getEntityType();
+			
+			if (type != null)
+				hashes = Entity.getSyncHashes(type.getEntityClass(), mResolver);
+			else {
+				Log.i(TAG, "Unknown manifest entry type: " + entry.getType());
+				hashes = new HashMap<String, String>();
+			}
+			localHashes.put(entry.getType(), hashes);
+		}
+		
+		return hashes;
+	}
+	
+	/**
+	 * Gets the manifest of the specified community folder, as stored in Box.
+	 * The manifests written by all devices are merged.
+	 * @param folderId The ID of the community folder.
+	 * @return The manifest, or <code>null</code> if the folder has no manifest.
+	 * @throws IOException If an error occurs while downloading.
+	 */
+	public BoxManifest getManifest(long folderId) throws IOException {
+		List<BoxFile> manifestFiles = getManifestFiles(folderId);
+		
+		if (manifestFiles.size() == 0)
+			return null;
+		
+		BoxManifest manifest = new BoxManifest();
+		for (BoxFile manifestFile : manifestFiles)
+			manifest.mergeLatest(downloadManifest(folderId, manifestFile));
+		
+		return manifest;
+	}
+	
+	/**
+	 * Gets the manifest files of the specified community folder, sorted by
+	 * name. The folder is listed once per sync.
+	 * @param folderId The ID of the community folder.
+	 * @return The manifest files, empty if the folder has no manifest.
+	 * @throws IOException If an error occurs while listing the folder.
+	 */
+	private List<BoxFile> getManifestFiles(long folderId) throws IOException {
+		List<BoxFile> manifestFiles = mManifestFiles.get(folderId);
+		
+		if (manifestFiles == null) {
+			manifestFiles = new ArrayList<BoxFile>();
+			
+			for (BoxFile file : getDirectoryTree(folderId).getFilesInFolder())
+				if (BoxManifest.isManifestFile(file))
+					manifestFiles.add(file);
+			
+			Collections.sort(manifestFiles, new Comparator<BoxFile>() {
+				public int compare(BoxFile lhs, BoxFile rhs) {
+					return lhs.getFileName().compareTo(rhs.getFileName());
+				}
+			});
+			
+			mManifestFiles.put(folderId, manifestFiles);
+		}
+		
+		return manifestFiles;
+	}
+	
+	/**
+	 * Gets the manifest file written by this device in the specified
+	 * community folder.
+	 * @param folderId The ID of the community folder.
+	 * @return The manifest file, or <code>null</code> if this device has not
+	 * written a manifest in the folder yet.
+	 * @throws IOException If an error occurs while listing the folder.
+	 */
+	private BoxFile getOwnManifestFile(long folderId) throws IOException {
+		String fileName = BoxManifest.getFileName(mDeviceId);
+		
+		for (BoxFile manifestFile : getManifestFiles(folderId))
+			if (manifestFile.getFileName().equals(fileName))
+				return manifestFile;
+		
+		return null;
+	}
+	
+	/**
+	 * Downloads the manifest of a community folder.
+	 * @param folderId The ID of the community folder.
+	 * @param manifestFile The manifest file.
+	 * @return The manifest of the folder.
+	 * @throws IOException If an error occurs while downloading.
+	 */
+	private BoxManifest downloadManifest(long folderId, BoxFile manifestFile) throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		
+		DefaultResponseParser response = mGateway.download(
+				mAuthToken, manifestFile.getId(), outStream);
+		
+		if (!response.getStatus().equals(FileDownloadListener.STATUS_DOWNLOAD_OK)) {
+			mManifestFiles.remove(folderId);
+			throw new IOException("Failed to download manifest: " + response.getStatus());
+		}
+		
+		return BoxManifest.parse(outStream.toString("UTF-8"));
+	}
+	
+	/**
+	 * Reconciles the local database with Box. The hash tree of every community,
+	 * and of the account folder, is compared with the hash tree of its
+	 * manifest, and only the entities which differ are downloaded or deleted.
+	 * @param entityTypes The type codes of the entities to reconcile, or
+	 * <code>null</code> to reconcile all entities.
+	 * @throws Exception If an error occurs while reconciling.
+	 */
+	public void reconcileCommunities(Set<String> entityTypes) throws Exception {
+		AccountTreeResponseParser treeParser = mGateway.getAccountTree(
+				mAuthToken,
+				BOX_ROOT_FOLDER_ID,
+				new String[] { Box.PARAM_SIMPLE, Box.PARAM_ONELEVEL });
+		
+		if (!treeParser.getStatus().equals(GetAccountTreeListener.STATUS_LISTING_OK))
+			throw new IOException("Failed to get directory tree of folder: " + BOX_ROOT_FOLDER_ID);
+		
+		BoxFolder root = treeParser.getFolder();
+		
+		if (entityTypes == null || entityTypes.contains(BoxEntityType.COMMUNITY.getCode()))
+			downloadEntities(root.getFilesInFolder());
+		
+		for (BoxFolder folder : root.getFoldersInFolder()) {
+			mCancellation.throwIfCancelled();
+			
+			if (isAccountFolder(folder))
+				mAccountFolderId = folder.getId();
+			
+			reconcileCommunity(folder.getId(), entityTypes);
+		}
+	}
+	
+	/**
+	 * Reconciles the specified communities with Box, without listing the
+	 * other communities. Communities not yet in Box are skipped.
+	 * @param communityIds The local IDs of the communities.
+	 * @param entityTypes The type codes of the entities to reconcile, or
+	 * <code>null</code> to reconcile all entities.
+	 * @throws Exception If an error occurs while reconciling.
+	 */
+	public void reconcileCommunities(
+			Collection<Long> communityIds, Set<String> entityTypes) throws Exception {
+		for (Long communityId : communityIds) {
+			mCancellation.throwIfCancelled();
+			
+			Community community = Entity.getEntity(Community.class, communityId, mResolver);
+			
+			if (community == null || !isRemoteFileId(community.getGlobalId())) {
+				Log.i(TAG, "Community " + communityId + " is not in Box. Skipping.");
+				mMetrics.addSkipped(1);
+			} else
+				reconcileCommunity(Long.parseLong(community.getGlobalId()), entityTypes);
+		}
+	}
+	
+	/**
+	 * Reconciles the entities of a community, or of the account, with the
+	 * manifest of its folder. Folders without a manifest are downloaded in full.
+	 * Folders already reconciled with the current manifest, as recorded in the
+	 * sync state, are skipped without reading the local entities; the
+	 * manifests are downloaded in full either way. The sync state of the
+	 * folder is written together with its entities.
+	 * @param folderId The ID of the community or account folder.
+	 * @param entityTypes The type codes of the entities to reconcile, or
+	 * <code>null</code> to reconcile all entities.
+	 * @throws Exception If an error occurs while reconciling.
+	 */
+	private void reconcileCommunity(long folderId, Set<String> entityTypes) throws Exception {
+		BoxManifest manifest = getManifest(folderId);
+		
+		if (manifest == null) {
+			Log.i(TAG, "Folder " + folderId + " has no manifest. Fetching all files in folder.");
+			
+			downloadAllEntities(folderId);
+			return;
+		}
+		
+		BoxHashTree remoteTree = BoxHashTree.fromManifest(manifest);
+		Set<String> tables = getTables(entityTypes);
+		
+		if (mSyncState.isReconciled(
+				folderId, tables, manifest.getGeneration(), remoteTree.getDigest())) {
+			Log.i(TAG, "Folder " + folderId + " is reconciled with generation " +
+					manifest.getGeneration() + " of its manifest. Skipping.");
+			mMetrics.addSkipped(remoteTree.size());
+			return;
+		}
+		
+		BoxHashTree localTree = getLocalHashTree(folderId, entityTypes);
+		
+		Set<String> differing = localTree.diff(remoteTree);
+		
+		Log.i(TAG, "Reconciling folder " + folderId + ": " + differing.size() + " of " +
+				remoteTree.size() + " entities differ.");
+		
+		int unchanged = 0;
+		for (String globalId : manifest.getEntries().keySet())
+			if (!differing.contains(globalId))
+				unchanged++;
+		mMetrics.addSkipped(unchanged);
+		
+		Map<Long, BoxFile> changedFiles = new LinkedHashMap<Long, BoxFile>();
+		for (String globalId : differing) {
+			BoxManifest.Entry entry = manifest.getEntries().get(globalId);
+			
+			if (entry == null)
+				Log.i(TAG, "Entity is not in manifest: " + globalId);
+			else if (entityTypes != null && !entityTypes.contains(entry.getType()))
+				continue;
+			else if (entry.getEntityType() == null)
+				Log.i(TAG, "Unknown manifest entry type: " + entry.getType());
+			else if (entry.isDeleted()) {
+				Entity.deleteEntity(entry.getEntityType().getEntityClass(), globalId, mResolver);
+				mMetrics.addDownloaded(1);
+			} else {
+				BoxFile file = entry.getFile();
+				changedFiles.put(file.getId(), file);
+			}
+		}
+		
+		List<ContentProviderOperation> stateWrites = mSyncState.newReconciledWrites(
+				folderId, tables, manifest.getGeneration(), remoteTree.getDigest());
+		
+		if (changedFiles.size() > 0)
+			downloadEntities(new ArrayList<BoxFile>(changedFiles.values()), stateWrites);
+		else
+			mSyncState.apply(stateWrites);
+	}
+	
+	/**
+	 * Gets the paths of the tables holding the specified entity types.
+	 * @param entityTypes The type codes of the entities, or <code>null</code>.
+	 * @return The paths of the tables, or <code>null</code> for all tables.
 	 */
-	private void fetchAllEntities() throws IOException {
-		downloadAllEntities(BOX_ROOT_FOLDER_ID);
+	private static Set<String> getTables(Set<String> entityTypes) {
+		if (entityTypes == null)
+			return null;
+		
+		Set<String> tables = new HashSet<String>();
+		for (String code : entityTypes) {
+			BoxEntityType type = BoxEntityType.forCode(code);
+			
+			if (type != null)
+				tables.add(BoxSyncDescriptor.forType(type).getTable());
+		}
+		
+		return tables;
+	}
+	
+	/**
+	 * Builds the hash tree of the local entities stored in a community or
+	 * account folder.
+	 * @param folderId The ID of the community or account folder.
+	 * @param entityTypes The type codes of the entities to include, or
+	 * <code>null</code> to include all entities.
+	 * @return The hash tree of the local entities of the folder.
+	 * @throws Exception If an error occurs while reading the local entities.
+	 */
+	private BoxHashTree getLocalHashTree(
+			long folderId, Set<String> entityTypes) throws Exception {
+		BoxHashTree tree = new BoxHashTree();
+		
+		if (mAccountFolderId != null && mAccountFolderId == folderId) {
+			for (BoxSyncDescriptor descriptor :
+					BoxSyncDescriptor.getDescriptors(BoxSyncDescriptor.Scope.ACCOUNT))
+				putLocalHashes(tree, descriptor, null, entityTypes);
+			
+			return tree;
+		}
+		
+		Community community = new Community();
+		community.setGlobalId(String.valueOf(folderId));
+		community.fetchLocalId(mResolver);
+		
+		if (community.getId() < 0)
+			return tree;
+		
+		String[] communityId = new String[] { String.valueOf(community.getId()) };
+		
+		for (BoxSyncDescriptor descriptor : BoxSyncDescriptor.getDescriptors())
+			if (descriptor.isSynced() && descriptor.isCommunityScoped())
+				putLocalHashes(tree, descriptor, communityId, entityTypes);
+		
+		return tree;
+	}
+	
+	/**
+	 * Adds the sync hashes of the local entities of a folder to a hash tree.
+	 * @param tree The hash tree to add to.
+	 * @param descriptor The descriptor of the entities.
+	 * @param communityId The local ID of the community, as selection argument,
+	 * or <code>null</code> to include the entities of the account.
+	 * @param entityTypes The type codes of the entities to include, or
+	 * <code>null</code> to include all entities.
+	 * @throws Exception If an error occurs while reading the local entities.
+	 */
+	private void putLocalHashes(
+			BoxHashTree tree,
+			BoxSyncDescriptor descriptor,
+			String[] communityId,
+			Set<String> entityTypes) throws Exception {
+		BoxEntityType type = descriptor.getType();
+		
+		if (entityTypes != null && !entityTypes.contains(type.getCode()))
+			return;
+		
+		tree.putAll(
+				type.getCode(),
+				Entity.getSyncHashes(
+						type.getEntityClass(),
+						(communityId != null ? descriptor.getCommunityColumn() + " = ?" : null),
+						communityId,
+						mResolver));
 	}
 }
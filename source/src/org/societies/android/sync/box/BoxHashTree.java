@@ -0,0 +1,282 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A hash tree over the entities of a community, used to find the entities
+ * which differ between the local database and Box without comparing every
+ * single entity.
+ *
+ * The tree has a level per entity type and a fixed number of buckets per
+ * type. The digest of a node is the hash of the digests of its children, so
+ * two trees holding the same entities have the same root digest, and
+ * {@link #diff(BoxHashTree)} only walks down into the subtrees which differ.
+ *
+ * The remote tree is built from the manifests of the folder, which are
+ * downloaded in full, so the tree does not reduce what is transferred from
+ * Box. It saves comparing every local entity with its manifest entry, and
+ * its root digest lets a folder already reconciled with the same manifests
+ * be skipped before the local entities are read.
+ *
+ * @author Kato
+ */
+public class BoxHashTree {
+
+	/** The number of buckets per entity type. */
+	public static final int BUCKET_COUNT = 16;
+
+	private Map<String, TypeNode> mTypes;
+	private String mDigest;
+
+	/**
+	 * Initializes a new, empty hash tree.
+	 */
+	public BoxHashTree() {
+		mTypes = new TreeMap<String, TypeNode>();
+	}
+
+	/**
+	 * Builds the hash tree of the live entities in the specified manifest.
+	 * @param manifest The manifest of a community folder.
+	 * @return The hash tree of the manifest.
+	 */
+	public static BoxHashTree fromManifest(BoxManifest manifest) {
+		BoxHashTree tree = new BoxHashTree();
+
+		for (String globalId : manifest.getEntries().keySet()) {
+			BoxManifest.Entry entry = manifest.getEntries().get(globalId);
+
+			if (!entry.isDeleted())
+				tree.put(entry.getType(), globalId, entry.getHash());
+		}
+
+		return tree;
+	}
+
+	/**
+	 * Adds or replaces the leaf of the specified entity.
+	 * @param type The type code of the entity.
+	 * @param globalId The global ID of the entity.
+	 * @param hash The sync hash of the entity, or <code>null</code> if the
+	 * entity has never been synced.
+	 */
+	public void put(String type, String globalId, String hash) {
+		TypeNode typeNode = mTypes.get(type);
+		if (typeNode == null) {
+			typeNode = new TypeNode();
+			mTypes.put(type, typeNode);
+		}
+
+		typeNode.put(globalId, (hash == null ? "" : hash));
+		mDigest = null;
+	}
+
+	/**
+	 * Adds or replaces the leaves of the specified entities. Entities without
+	 * a global ID are skipped.
+	 * @param type The type code of the entities.
+	 * @param hashes A mapping between global ID and sync hash.
+	 */
+	public void putAll(String type, Map<String, String> hashes) {
+		for (String globalId : hashes.keySet()) {
+			if (globalId != null)
+				put(type, globalId, hashes.get(globalId));
+		}
+	}
+
+	/**
+	 * Gets the root digest of the tree.
+	 * @return The root digest of the tree.
+	 */
+	public String getDigest() {
+		if (mDigest == null) {
+			StringBuilder digests = new StringBuilder();
+
+			for (String type : mTypes.keySet())
+				digests.append(type).append(':').append(mTypes.get(type).getDigest()).append('\n');
+
+			mDigest = BoxManifest.hash(digests.toString());
+		}
+
+		return mDigest;
+	}
+
+	/**
+	 * Finds the entities which differ between this tree and the specified one,
+	 * that is, entities which are missing from either tree or have different
+	 * hashes.
+	 * @param other The tree to compare with.
+	 * @return The global IDs of the differing entities.
+	 */
+	public Set<String> diff(BoxHashTree other) {
+		Set<String> differing = new HashSet<String>();
+
+		if (getDigest().equals(other.getDigest()))
+			return differing;
+
+		Set<String> types = new HashSet<String>(mTypes.keySet());
+		types.addAll(other.mTypes.keySet());
+
+		for (String type : types) {
+			TypeNode typeNode = mTypes.get(type);
+			TypeNode otherTypeNode = other.mTypes.get(type);
+
+			if (typeNode == null)
+				typeNode = new TypeNode();
+			if (otherTypeNode == null)
+				otherTypeNode = new TypeNode();
+
+			if (!typeNode.getDigest().equals(otherTypeNode.getDigest()))
+				typeNode.diff(otherTypeNode, differing);
+		}
+
+		return differing;
+	}
+
+	/**
+	 * Gets the number of entities in the tree.
+	 * @return The number of entities in the tree.
+	 */
+	public int size() {
+		int size = 0;
+		for (TypeNode typeNode : mTypes.values())
+			size += typeNode.size();
+
+		return size;
+	}
+
+	/**
+	 * The subtree of a single entity type.
+	 */
+	private static class TypeNode {
+		private List<Map<String, String>> mBuckets;
+		private String[] mBucketDigests;
+		private String mDigest;
+
+		/**
+		 * Initializes a new, empty type node.
+		 */
+		public TypeNode() {
+			mBuckets = new ArrayList<Map<String, String>>(BUCKET_COUNT);
+			mBucketDigests = new String[BUCKET_COUNT];
+
+			for (int i = 0; i < BUCKET_COUNT; i++)
+				mBuckets.add(new TreeMap<String, String>());
+		}
+
+		/**
+		 * Adds or replaces a leaf.
+		 * @param globalId The global ID of the entity.
+		 * @param hash The sync hash of the entity.
+		 */
+		public void put(String globalId, String hash) {
+			int bucket = getBucket(globalId);
+
+			mBuckets.get(bucket).put(globalId, hash);
+			mBucketDigests[bucket] = null;
+			mDigest = null;
+		}
+
+		/**
+		 * Gets the digest of the type node.
+		 * @return The digest of the type node.
+		 */
+		public String getDigest() {
+			if (mDigest == null) {
+				StringBuilder digests = new StringBuilder();
+
+				for (int i = 0; i < BUCKET_COUNT; i++)
+					digests.append(getBucketDigest(i)).append('\n');
+
+				mDigest = BoxManifest.hash(digests.toString());
+			}
+
+			return mDigest;
+		}
+
+		/**
+		 * Adds the global IDs of the entities which differ from the specified
+		 * type node, walking only the buckets with different digests.
+		 * @param other The type node to compare with.
+		 * @param differing The set to add the differing global IDs to.
+		 */
+		public void diff(TypeNode other, Set<String> differing) {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				if (getBucketDigest(i).equals(other.getBucketDigest(i)))
+					continue;
+
+				Map<String, String> bucket = mBuckets.get(i);
+				Map<String, String> otherBucket = other.mBuckets.get(i);
+
+				for (String globalId : bucket.keySet()) {
+					if (!bucket.get(globalId).equals(otherBucket.get(globalId)))
+						differing.add(globalId);
+				}
+
+				for (String globalId : otherBucket.keySet()) {
+					if (!bucket.containsKey(globalId))
+						differing.add(globalId);
+				}
+			}
+		}
+
+		/**
+		 * Gets the number of leaves of the type node.
+		 * @return The number of leaves of the type node.
+		 */
+		public int size() {
+			int size = 0;
+			for (Map<String, String> bucket : mBuckets)
+				size += bucket.size();
+
+			return size;
+		}
+
+		/**
+		 * Gets the digest of the specified bucket.
+		 * @param bucket The index of the bucket.
+		 * @return The digest of the bucket.
+		 */
+		private String getBucketDigest(int bucket) {
+			if (mBucketDigests[bucket] == null) {
+				StringBuilder leaves = new StringBuilder();
+
+				for (Map.Entry<String, String> leaf : mBuckets.get(bucket).entrySet())
+					leaves.append(leaf.getKey()).append(':').append(leaf.getValue()).append('\n');
+
+				mBucketDigests[bucket] = BoxManifest.hash(leaves.toString());
+			}
+
+			return mBucketDigests[bucket];
+		}
+
+		/**
+		 * Gets the bucket of the specified entity.
+		 * @param globalId The global ID of the entity.
+		 * @return The index of the bucket.
+		 */
+		private static int getBucket(String globalId) {
+			return (globalId.hashCode() & 0x7fffffff) % BUCKET_COUNT;
+		}
+	}
+}
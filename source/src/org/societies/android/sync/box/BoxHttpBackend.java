@@ -0,0 +1,496 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.message.BasicNameValuePair;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import android.net.Uri;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.DAO.BoxFile;
+import com.box.androidlib.ResponseListeners.FileDownloadListener;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
+import com.box.androidlib.ResponseListeners.ResponseListener;
+import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+import com.box.androidlib.ResponseParsers.FolderResponseParser;
+import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
+import com.box.androidlib.Utils.BoxConfig;
+import com.box.androidlib.Utils.BoxUriBuilder;
+
+/**
+ * Backend making the calls to the Box service over a pooled
+ * {@link BoxHttpTransport}. The requests and responses are those of the
+ * Box library, which opens a new connection for every call. The URLs are
+ * taken from {@link BoxConfig}, so the backend can be pointed at a local
+ * HTTP stand-in of Box.
+ *
+ * @author Kato
+ */
+public class BoxHttpBackend implements BoxBackend {
+
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8 * 1024;
+	/** The maximum size (in bytes) of an error message returned by a download. */
+	private static final int DOWNLOAD_ERROR_SIZE = 100;
+
+	private String mApiKey;
+	private BoxHttpTransport mTransport;
+	private Set<HttpUriRequest> mRunningRequests;
+
+	/**
+	 * Initializes a new Box HTTP backend.
+	 * @param apiKey The API key of the application.
+	 * @param transport The transport to make the calls over.
+	 */
+	public BoxHttpBackend(String apiKey, BoxHttpTransport transport) {
+		mApiKey = apiKey;
+		mTransport = transport;
+		mRunningRequests = new HashSet<HttpUriRequest>();
+	}
+
+	/**
+	 * Gets the transport the calls are made over.
+	 * @return The transport of the backend.
+	 */
+	public BoxHttpTransport getTransport() {
+		return mTransport;
+	}
+
+	public AccountTreeResponseParser getAccountTree(
+			String authToken, long folderId, String[] params) throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "get_account_tree")
+				.appendQueryParameter("folder_id", String.valueOf(folderId));
+		appendArray(builder, "params", withParam(params, "nozip"));
+
+		AccountTreeResponseParser parser = new AccountTreeResponseParser();
+		saxRequest(parser, builder);
+
+		return parser;
+	}
+
+	public FileResponseParser getFileInfo(String authToken, long fileId) throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "get_file_info")
+				.appendQueryParameter("file_id", String.valueOf(fileId));
+
+		FileResponseParser parser = new FileResponseParser();
+		saxRequest(parser, builder);
+
+		return parser;
+	}
+
+	public FolderResponseParser createFolder(
+			String authToken, long parentFolderId, String folderName, boolean share)
+			throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "create_folder")
+				.appendQueryParameter("name", folderName)
+				.appendQueryParameter("parent_id", String.valueOf(parentFolderId))
+				.appendQueryParameter("share", share ? "1" : "0");
+
+		FolderResponseParser parser = new FolderResponseParser();
+		saxRequest(parser, builder);
+
+		return parser;
+	}
+
+	public String delete(String authToken, String type, long targetId) throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "delete")
+				.appendQueryParameter("target", type)
+				.appendQueryParameter("target_id", String.valueOf(targetId));
+
+		DefaultResponseParser parser = new DefaultResponseParser();
+		saxRequest(parser, builder);
+
+		return parser.getStatus();
+	}
+
+	public String rename(String authToken, String type, long targetId, String newName)
+			throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "rename")
+				.appendQueryParameter("target", type)
+				.appendQueryParameter("target_id", String.valueOf(targetId))
+				.appendQueryParameter("new_name", newName);
+
+		DefaultResponseParser parser = new DefaultResponseParser();
+		saxRequest(parser, builder);
+
+		return parser.getStatus();
+	}
+
+	public UpdatesResponseParser getUpdates(
+			String authToken, long beginTimeStamp, long endTimeStamp, String[] params)
+			throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "get_updates")
+				.appendQueryParameter("begin_timestamp", String.valueOf(beginTimeStamp))
+				.appendQueryParameter("end_timestamp", String.valueOf(endTimeStamp));
+		appendArray(builder, "params", withParam(params, "use_attributes"));
+
+		UpdatesResponseParser parser = new UpdatesResponseParser();
+		saxRequest(parser, builder);
+
+		return parser;
+	}
+
+	public String inviteCollaborators(
+			String authToken,
+			String type,
+			long targetId,
+			long[] userIds,
+			String[] emails,
+			String itemRoleName,
+			boolean resendInvite,
+			boolean noEmail,
+			String[] params) throws IOException {
+		Uri.Builder builder = BoxUriBuilder.getBuilder(mApiKey, authToken, "invite_collaborators")
+				.appendQueryParameter("target", type)
+				.appendQueryParameter("target_id", String.valueOf(targetId))
+				.appendQueryParameter("item_role_name", itemRoleName)
+				.appendQueryParameter("resend_invite", resendInvite ? "1" : "0")
+				.appendQueryParameter("no_email", noEmail ? "1" : "0");
+
+		List<String> userIdList = new ArrayList<String>();
+		if (userIds != null) {
+			for (long userId : userIds)
+				userIdList.add(String.valueOf(userId));
+		}
+
+		appendArray(builder, "emails", (emails != null ? Arrays.asList(emails) : null));
+		appendArray(builder, "user_ids", userIdList);
+		appendArray(builder, "params", (params != null ? Arrays.asList(params) : null));
+
+		DefaultResponseParser parser = new DefaultResponseParser();
+		saxRequest(parser, builder);
+
+		return parser.getStatus();
+	}
+
+	public DefaultResponseParser download(String authToken, long fileId, OutputStream outStream)
+			throws IOException {
+		BoxConfig config = BoxConfig.getInstance();
+		Uri.Builder builder = new Uri.Builder()
+				.scheme(config.getDownloadUrlScheme())
+				.encodedAuthority(config.getDownloadUrlAuthority())
+				.path(config.getDownloadUrlPath())
+				.appendPath(authToken)
+				.appendPath(String.valueOf(fileId));
+
+		DefaultResponseParser parser = new DefaultResponseParser();
+		HttpGet request = new HttpGet(build(builder));
+		HttpResponse response = execute(request);
+		HttpEntity entity = response.getEntity();
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+
+			if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE)
+				parser.setStatus(ResponseListener.STATUS_SERVICE_UNAVAILABLE);
+			else if (statusCode == HttpStatus.SC_FORBIDDEN)
+				parser.setStatus(FileDownloadListener.STATUS_DOWNLOAD_PERMISSIONS_ERROR);
+			else if (statusCode != HttpStatus.SC_OK)
+				parser.setStatus(FileDownloadListener.STATUS_DOWNLOAD_FAIL);
+			else
+				parser.setStatus(copyDownload(request, entity.getContent(), outStream));
+		} finally {
+			try {
+				if (entity != null)
+					entity.consumeContent();
+			} finally {
+				endRequest(request);
+			}
+		}
+
+		return parser;
+	}
+
+	public FileResponseParser upload(
+			String authToken,
+			String action,
+			InputStream inStream,
+			String fileName,
+			long destinationId) throws IOException {
+		BoxConfig config = BoxConfig.getInstance();
+		Uri.Builder builder = new Uri.Builder()
+				.scheme(config.getUploadUrlScheme())
+				.encodedAuthority(config.getUploadUrlAuthority())
+				.path(config.getUploadUrlPath())
+				.appendPath(action)
+				.appendPath(authToken)
+				.appendPath(String.valueOf(destinationId));
+
+		if (action.equals(Box.UPLOAD_ACTION_OVERWRITE))
+			builder.appendQueryParameter("file_name", fileName);
+		else if (action.equals(Box.UPLOAD_ACTION_NEW_COPY))
+			builder.appendQueryParameter("new_file_name", fileName);
+
+		MultipartEntity content = new MultipartEntity(
+				HttpMultipartMode.BROWSER_COMPATIBLE, null, Charset.forName(CHARSET));
+		content.addPart("file_name", new InputStreamBody(inStream, fileName));
+
+		HttpPost request = new HttpPost(build(builder));
+		request.setEntity(content);
+
+		FileResponseParser parser = new FileResponseParser();
+		HttpResponse response = execute(request);
+		HttpEntity entity = response.getEntity();
+		try {
+			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE)
+				parser.setStatus(ResponseListener.STATUS_SERVICE_UNAVAILABLE);
+			else if (entity != null)
+				parseUploadResponse(parser, entity.getContent());
+
+			if (parser.getStatus() == null)
+				parser.setStatus(ResponseListener.STATUS_UNKNOWN_HTTP_RESPONSE_CODE);
+		} finally {
+			try {
+				if (entity != null)
+					entity.consumeContent();
+			} finally {
+				endRequest(request);
+			}
+		}
+
+		return parser;
+	}
+
+	public void abortCalls() {
+		synchronized (mRunningRequests) {
+			for (HttpUriRequest request : mRunningRequests)
+				request.abort();
+		}
+	}
+
+	/**
+	 * Makes a REST request and parses the response into the specified parser.
+	 * @param parser The parser of the response.
+	 * @param builder The builder of the URL of the request.
+	 * @throws IOException If the request fails.
+	 */
+	private void saxRequest(DefaultResponseParser parser, Uri.Builder builder)
+			throws IOException {
+		HttpGet request = new HttpGet(build(builder));
+		HttpResponse response = execute(request);
+		HttpEntity entity = response.getEntity();
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+
+			if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE)
+				parser.setStatus(ResponseListener.STATUS_SERVICE_UNAVAILABLE);
+			else if (statusCode != HttpStatus.SC_OK || entity == null)
+				parser.setStatus(ResponseListener.STATUS_UNKNOWN_HTTP_RESPONSE_CODE);
+			else {
+				XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+				reader.setContentHandler(parser);
+				reader.parse(new InputSource(entity.getContent()));
+			}
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.getMessage());
+		} catch (SAXException e) {
+			throw new IOException("Malformed response: " + e.getMessage());
+		} finally {
+			try {
+				if (entity != null)
+					entity.consumeContent();
+			} finally {
+				endRequest(request);
+			}
+		}
+	}
+
+	/**
+	 * Executes a request, which can be aborted by {@link #abortCalls()}
+	 * until {@link #endRequest(HttpUriRequest)} is called.
+	 * @param request The request to execute.
+	 * @return The response.
+	 * @throws IOException If the request fails.
+	 */
+	private HttpResponse execute(HttpUriRequest request) throws IOException {
+		synchronized (mRunningRequests) {
+			mRunningRequests.add(request);
+		}
+
+		boolean isExecuted = false;
+		try {
+			HttpResponse response = mTransport.execute(request);
+			isExecuted = true;
+
+			return response;
+		} finally {
+			if (!isExecuted)
+				endRequest(request);
+		}
+	}
+
+	/**
+	 * Marks a request as completed, once its response is consumed.
+	 * @param request The completed request.
+	 */
+	private void endRequest(HttpUriRequest request) {
+		synchronized (mRunningRequests) {
+			mRunningRequests.remove(request);
+		}
+	}
+
+	/**
+	 * Copies the content of a download to the specified stream. A short
+	 * content may be an error message instead of the file.
+	 * @param request The download request, aborted if the thread is interrupted.
+	 * @param inStream The content of the response.
+	 * @param outStream The stream to copy to.
+	 * @return The status of the download.
+	 * @throws IOException If an error occurs while copying.
+	 */
+	private String copyDownload(HttpUriRequest request, InputStream inStream, OutputStream outStream)
+			throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count = inStream.read(buffer);
+
+		if (count > 0 && count <= DOWNLOAD_ERROR_SIZE) {
+			String message = new String(buffer, 0, count, CHARSET).trim();
+
+			if (message.equals(FileDownloadListener.STATUS_DOWNLOAD_WRONG_AUTH_TOKEN) ||
+				message.equals(FileDownloadListener.STATUS_DOWNLOAD_RESTRICTED))
+				return message;
+		}
+
+		for (; count != -1; count = inStream.read(buffer)) {
+			if (Thread.currentThread().isInterrupted()) {
+				request.abort();
+				return FileDownloadListener.STATUS_DOWNLOAD_CANCELLED;
+			}
+
+			outStream.write(buffer, 0, count);
+		}
+
+		outStream.close();
+
+		return FileDownloadListener.STATUS_DOWNLOAD_OK;
+	}
+
+	/**
+	 * Parses the response of an upload into the specified parser.
+	 * @param parser The parser of the upload response.
+	 * @param inStream The content of the response.
+	 * @throws IOException If an error occurs while reading the response.
+	 */
+	private void parseUploadResponse(FileResponseParser parser, InputStream inStream)
+			throws IOException {
+		Document document;
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inStream);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.getMessage());
+		} catch (SAXException e) {
+			return;
+		}
+
+		NodeList statuses = document.getElementsByTagName("status");
+		if (statuses.getLength() > 0 && statuses.item(0).getFirstChild() != null)
+			parser.setStatus(statuses.item(0).getFirstChild().getNodeValue());
+
+		NodeList files = document.getElementsByTagName("file");
+		if (files.getLength() > 0) {
+			BoxFile file;
+			try {
+				file = Box.getBoxFileClass().newInstance();
+			} catch (Exception e) {
+				throw new IOException(e.getMessage());
+			}
+
+			NamedNodeMap attributes = ((Element) files.item(0)).getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Node attribute = attributes.item(i);
+				file.parseAttribute(attribute.getNodeName(), attribute.getNodeValue());
+			}
+
+			parser.setFile(file);
+		}
+	}
+
+	/**
+	 * Builds a URL, including the custom query parameters of the Box library.
+	 * @param builder The builder of the URL.
+	 * @return The URL.
+	 */
+	private static String build(Uri.Builder builder) {
+		for (BasicNameValuePair param : BoxConfig.getInstance().getCustomQueryParameters())
+			builder.appendQueryParameter(param.getName(), param.getValue());
+
+		return builder.build().toString();
+	}
+
+	/**
+	 * Gets the specified parameters, including the specified parameter.
+	 * @param params The parameters, or <code>null</code>.
+	 * @param param The parameter to include.
+	 * @return The parameters, including the specified parameter.
+	 */
+	private static List<String> withParam(String[] params, String param) {
+		List<String> paramList = new ArrayList<String>();
+		if (params != null)
+			paramList.addAll(Arrays.asList(params));
+
+		if (!paramList.contains(param))
+			paramList.add(param);
+
+		return paramList;
+	}
+
+	/**
+	 * Appends an array query parameter, as expected by the Box REST API.
+	 * @param builder The builder of the URL.
+	 * @param name The name of the parameter.
+	 * @param values The values of the parameter, or <code>null</code>.
+	 */
+	private static void appendArray(Uri.Builder builder, String name, List<String> values) {
+		if (values == null || values.size() == 0)
+			builder.appendQueryParameter(name + "[]", "");
+		else {
+			for (int i = 0; i < values.size(); i++)
+				builder.appendQueryParameter(name + "[" + i + "]", values.get(i));
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import com.box.androidlib.Utils.BoxConfig;
+
+/**
+ * HTTP transport of the calls to Box. The connections are kept alive and
+ * pooled, so that consecutive calls from the worker threads reuse them
+ * rather than paying for a new TCP and TLS handshake every time. The number
+ * of requests made and of connections opened are counted, which tells how
+ * well the connections are reused.
+ *
+ * @author Kato
+ */
+public class BoxHttpTransport {
+
+	/** The maximum number of pooled connections, in total and per host. */
+	public static final int MAX_CONNECTIONS = 4;
+	/** The time (in milliseconds) an idle connection is kept alive. */
+	public static final long KEEP_ALIVE_DURATION = 30 * 1000;
+	/** The time (in milliseconds) to wait for a response before failing. */
+	public static final int SOCKET_TIMEOUT = 60 * 1000;
+	/** The time (in milliseconds) to wait for a pooled connection. */
+	public static final long POOL_TIMEOUT = 60 * 1000;
+
+	private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
+	private DefaultHttpClient mClient;
+	private Stats mStats;
+
+	/**
+	 * Initializes a new transport with an empty connection pool.
+	 */
+	public BoxHttpTransport() {
+		mStats = new Stats();
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		HttpProtocolParams.setUserAgent(params, BoxConfig.getInstance().getUserAgent());
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setConnectionTimeout(
+				params, BoxConfig.getInstance().getConnectionTimeOut());
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(
+				params, new ConnPerRouteBean(MAX_CONNECTIONS));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme(
+				"http", new CountingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+		schemes.register(new Scheme(
+				"https", new CountingSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+		mClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+		mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				return KEEP_ALIVE_DURATION;
+			}
+		});
+	}
+
+	/**
+	 * Executes a request on a pooled connection. The entity of the response
+	 * must be consumed, or the request aborted, for the connection to return
+	 * to the pool.
+	 * @param request The request to execute.
+	 * @return The response.
+	 * @throws IOException If the request fails.
+	 */
+	public HttpResponse execute(HttpUriRequest request) throws IOException {
+		ClientConnectionManager connectionManager = mClient.getConnectionManager();
+		connectionManager.closeIdleConnections(KEEP_ALIVE_DURATION, TimeUnit.MILLISECONDS);
+
+		request.setHeader("Accept-Language", BoxConfig.getInstance().getAcceptLanguage());
+
+		synchronized (this) {
+			mStats.requests++;
+		}
+
+		return mClient.execute(request);
+	}
+
+	/**
+	 * Closes all the pooled connections. The transport must not be used
+	 * afterwards.
+	 */
+	public void shutdown() {
+		mClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Gets the connection statistics since the last reset.
+	 * @return A snapshot of the statistics.
+	 */
+	public synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.requests = mStats.requests;
+		stats.connections = mStats.connections;
+
+		return stats;
+	}
+
+	/**
+	 * Resets the connection statistics. The pooled connections are kept.
+	 */
+	public synchronized void resetStats() {
+		mStats = new Stats();
+	}
+
+	/**
+	 * Counts a newly opened connection.
+	 */
+	private synchronized void countConnection() {
+		mStats.connections++;
+	}
+
+	/**
+	 * Socket factory counting the connections it opens.
+	 */
+	private class CountingSocketFactory implements LayeredSocketFactory {
+		private SocketFactory mSocketFactory;
+
+		/**
+		 * Initializes a new counting socket factory.
+		 * @param socketFactory The factory creating the sockets.
+		 */
+		public CountingSocketFactory(SocketFactory socketFactory) {
+			mSocketFactory = socketFactory;
+		}
+
+		public Socket createSocket() throws IOException {
+			return mSocketFactory.createSocket();
+		}
+
+		public Socket connectSocket(
+				Socket sock,
+				String host,
+				int port,
+				InetAddress localAddress,
+				int localPort,
+				HttpParams params)
+				throws IOException, UnknownHostException, ConnectTimeoutException {
+			countConnection();
+
+			return mSocketFactory.connectSocket(
+					sock, host, port, localAddress, localPort, params);
+		}
+
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+				throws IOException, UnknownHostException {
+			if (!(mSocketFactory instanceof LayeredSocketFactory))
+				throw new IOException("Cannot layer a socket over " + host);
+
+			return ((LayeredSocketFactory) mSocketFactory).createSocket(
+					socket, host, port, autoClose);
+		}
+
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return mSocketFactory.isSecure(sock);
+		}
+	}
+
+	/**
+	 * Statistics of the connections of the transport.
+	 */
+	public static class Stats {
+		/** The number of requests made. */
+		public int requests;
+		/** The number of connections opened. */
+		public int connections;
+
+		/**
+		 * Gets the number of requests made over a connection which was
+		 * already open.
+		 * @return The number of requests reusing a connection.
+		 */
+		public int getReusedConnections() {
+			return Math.max(0, requests - connections);
+		}
+
+		@Override
+		public String toString() {
+			return "requests=" + requests +
+					", connections=" + connections +
+					", reused=" + getReusedConnections();
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.societies.android.platform.entity.Entity;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Journal of the outbound operations of the sync adapter. An operation is
+ * journaled when it is queued and removed once it has completed, so that
+ * operations lost to a cancelled sync or a killed process are resumed by
+ * the next sync.
+ *
+ * The journal also records the collaborators invited to every community
+ * folder, so that every collaborator is only invited once.
+ *
+ * @author Kato
+ */
+public class BoxJournal extends SQLiteOpenHelper {
+
+	private static final String TAG = "BoxJournal";
+
+	private static final String DATABASE_NAME = "box_journal.db";
+	private static final String ACCOUNT_DATABASE_NAME_FORMAT = "box_journal_%s.db";
+	private static final int DATABASE_VERSION = 2;
+
+	private static final String TABLE_OPERATIONS = "operations";
+	private static final String COLUMN_ID = "_id";
+	private static final String COLUMN_TYPE = "type";
+	private static final String COLUMN_ENTITY_CLASS = "entity_class";
+	private static final String COLUMN_ENTITY_ID = "entity_id";
+	private static final String COLUMN_TARGET_ID = "target_id";
+	private static final String COLUMN_FILE_NAME = "file_name";
+	private static final String COLUMN_REMOTE_FILE_ID = "remote_file_id";
+	private static final String COLUMN_STATUS = "status";
+
+	private static final String TABLE_OPERATIONS_CREATE =
+			"CREATE TABLE " + TABLE_OPERATIONS + " (" +
+			COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			COLUMN_TYPE + " TEXT NOT NULL, " +
+			COLUMN_ENTITY_CLASS + " TEXT NOT NULL, " +
+			COLUMN_ENTITY_ID + " INTEGER NOT NULL, " +
+			COLUMN_TARGET_ID + " INTEGER NOT NULL, " +
+			COLUMN_FILE_NAME + " TEXT, " +
+			COLUMN_REMOTE_FILE_ID + " INTEGER NOT NULL DEFAULT -1, " +
+			COLUMN_STATUS + " INTEGER NOT NULL DEFAULT 0, " +
+			"UNIQUE (" + COLUMN_TYPE + ", " + COLUMN_ENTITY_CLASS + ", " + COLUMN_ENTITY_ID + "))";
+
+	private static final String TABLE_COLLABORATORS = "collaborators";
+	private static final String COLUMN_FOLDER_ID = "folder_id";
+	private static final String COLUMN_EMAIL = "email";
+
+	private static final String TABLE_COLLABORATORS_CREATE =
+			"CREATE TABLE " + TABLE_COLLABORATORS + " (" +
+			COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			COLUMN_FOLDER_ID + " INTEGER NOT NULL, " +
+			COLUMN_EMAIL + " TEXT NOT NULL, " +
+			"UNIQUE (" + COLUMN_FOLDER_ID + ", " + COLUMN_EMAIL + "))";
+
+	/** Operation uploading an entity to a file of its own. */
+	public static final String TYPE_UPLOAD = "upload";
+	/** Operation appending an entity to a pack segment. */
+	public static final String TYPE_PACK = "pack";
+	/** Operation appending a tombstone to a pack segment. */
+	public static final String TYPE_TOMBSTONE = "tombstone";
+
+	/** The operation has not yet reached Box. */
+	public static final int STATUS_PENDING = 0;
+	/** The file is uploaded, but not yet recorded locally. */
+	public static final int STATUS_UPLOADED = 1;
+
+	/**
+	 * Initializes a new journal.
+	 * @param context The context to operate in.
+	 */
+	public BoxJournal(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Initializes a new journal of the specified account, so that accounts
+	 * synced concurrently never share their journal. The journal written
+	 * before accounts had journals of their own is adopted by the first
+	 * account opening its journal.
+	 * @param context The context to operate in.
+	 * @param accountName The name of the account.
+	 */
+	public BoxJournal(Context context, String accountName) {
+		super(context, getDatabaseName(context, accountName), null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Gets the name of the database of the journal of an account, moving
+	 * the shared journal of older versions to it if it has none yet.
+	 * @param context The context to operate in.
+	 * @param accountName The name of the account.
+	 * @return The name of the database.
+	 */
+	private static synchronized String getDatabaseName(Context context, String accountName) {
+		String databaseName;
+		try {
+			databaseName = String.format(ACCOUNT_DATABASE_NAME_FORMAT,
+					UUID.nameUUIDFromBytes(accountName.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		File legacyDatabase = context.getDatabasePath(DATABASE_NAME);
+		File database = context.getDatabasePath(databaseName);
+		if (legacyDatabase.exists() && !database.exists() && !legacyDatabase.renameTo(database))
+			Log.e(TAG, "Failed to move journal to " + databaseName);
+
+		return databaseName;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(TABLE_OPERATIONS_CREATE);
+		db.execSQL(TABLE_COLLABORATORS_CREATE);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.i(TAG, "Upgrading journal from version " + oldVersion + " to " + newVersion);
+
+		if (oldVersion == 1) {
+			db.execSQL(TABLE_COLLABORATORS_CREATE);
+			return;
+		}
+
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_OPERATIONS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_COLLABORATORS);
+		onCreate(db);
+	}
+
+	/**
+	 * Journals an operation on the specified entity. If the entity already
+	 * has a journaled operation of the same type, the existing entry is
+	 * returned as resumed.
+	 * @param type The type of the operation.
+	 * @param entity The entity of the operation.
+	 * @param fileName The name of the file to upload to, or <code>null</code>.
+	 * @param targetId The ID of the folder to upload to.
+	 * @return The journal entry of the operation.
+	 */
+	public synchronized Entry add(String type, Entity entity, String fileName, long targetId) {
+		Entry entry = get(type, entity);
+
+		if (entry == null) {
+			ContentValues values = new ContentValues();
+			values.put(COLUMN_TYPE, type);
+			values.put(COLUMN_ENTITY_CLASS, entity.getClass().getName());
+			values.put(COLUMN_ENTITY_ID, entity.getId());
+			values.put(COLUMN_TARGET_ID, targetId);
+			values.put(COLUMN_FILE_NAME, fileName);
+
+			entry = new Entry();
+			entry.mId = getWritableDatabase().insert(TABLE_OPERATIONS, null, values);
+			entry.mType = type;
+			entry.mEntityClass = entity.getClass().getName();
+			entry.mEntityId = entity.getId();
+			entry.mTargetId = targetId;
+			entry.mFileName = fileName;
+			entry.mRemoteFileId = -1;
+			entry.mStatus = STATUS_PENDING;
+			entry.mResumed = false;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Gets all the journaled operations, in the order they were journaled.
+	 * @return The journaled operations.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return query(null, null);
+	}
+
+	/**
+	 * Marks an operation as uploaded to the specified file.
+	 * @param entry The journal entry of the operation.
+	 * @param remoteFileId The ID of the uploaded file.
+	 */
+	public synchronized void setUploaded(Entry entry, long remoteFileId) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_REMOTE_FILE_ID, remoteFileId);
+		values.put(COLUMN_STATUS, STATUS_UPLOADED);
+
+		getWritableDatabase().update(
+				TABLE_OPERATIONS,
+				values,
+				COLUMN_ID + " = ?",
+				new String[] { String.valueOf(entry.getId()) });
+
+		entry.mRemoteFileId = remoteFileId;
+		entry.mStatus = STATUS_UPLOADED;
+	}
+
+	/**
+	 * Removes a completed operation from the journal.
+	 * @param entry The journal entry of the operation.
+	 */
+	public synchronized void remove(Entry entry) {
+		getWritableDatabase().delete(
+				TABLE_OPERATIONS,
+				COLUMN_ID + " = ?",
+				new String[] { String.valueOf(entry.getId()) });
+	}
+
+	/**
+	 * Removes a completed operation on the specified entity from the journal.
+	 * @param type The type of the operation.
+	 * @param entity The entity of the operation.
+	 */
+	public synchronized void remove(String type, Entity entity) {
+		getWritableDatabase().delete(
+				TABLE_OPERATIONS,
+				COLUMN_TYPE + " = ? AND " + COLUMN_ENTITY_CLASS + " = ? AND " +
+						COLUMN_ENTITY_ID + " = ?",
+				new String[] {
+						type, entity.getClass().getName(), String.valueOf(entity.getId()) });
+	}
+
+	/**
+	 * Gets the collaborators invited to the specified folder.
+	 * @param folderId The ID of the community folder.
+	 * @return The email addresses of the invited collaborators.
+	 */
+	public synchronized Set<String> getCollaborators(long folderId) {
+		Set<String> emails = new HashSet<String>();
+
+		Cursor cursor = null;
+		try {
+			cursor = getReadableDatabase().query(
+					TABLE_COLLABORATORS,
+					new String[] { COLUMN_EMAIL },
+					COLUMN_FOLDER_ID + " = ?",
+					new String[] { String.valueOf(folderId) },
+					null, null, null);
+
+			if (cursor.moveToFirst()) {
+				for (boolean hasItem = true; hasItem; hasItem = cursor.moveToNext())
+					emails.add(cursor.getString(cursor.getColumnIndex(COLUMN_EMAIL)));
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+
+		return emails;
+	}
+
+	/**
+	 * Records collaborators as invited to the specified folder.
+	 * @param folderId The ID of the community folder.
+	 * @param emails The email addresses of the invited collaborators.
+	 */
+	public synchronized void addCollaborators(long folderId, Collection<String> emails) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		db.beginTransaction();
+		try {
+			for (String email : emails) {
+				ContentValues values = new ContentValues();
+				values.put(COLUMN_FOLDER_ID, folderId);
+				values.put(COLUMN_EMAIL, email);
+
+				db.insertWithOnConflict(
+						TABLE_COLLABORATORS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Gets the journaled operation of the specified type on an entity.
+	 * @param type The type of the operation.
+	 * @param entity The entity of the operation.
+	 * @return The journal entry, or <code>null</code> if none exists.
+	 */
+	private Entry get(String type, Entity entity) {
+		List<Entry> entries = query(
+				COLUMN_TYPE + " = ? AND " + COLUMN_ENTITY_CLASS + " = ? AND " +
+						COLUMN_ENTITY_ID + " = ?",
+				new String[] {
+						type, entity.getClass().getName(), String.valueOf(entity.getId()) });
+
+		return entries.size() > 0 ? entries.get(0) : null;
+	}
+
+	/**
+	 * Queries the journal.
+	 * @param selection A filter declaring which rows to return, or null for all rows.
+	 * @param selectionArgs The replacement values for any ?s in the selection filter.
+	 * @return The selected journal entries.
+	 */
+	private List<Entry> query(String selection, String[] selectionArgs) {
+		List<Entry> entries = new ArrayList<Entry>();
+
+		Cursor cursor = null;
+		try {
+			cursor = getReadableDatabase().query(
+					TABLE_OPERATIONS, null, selection, selectionArgs, null, null, COLUMN_ID);
+
+			if (cursor.moveToFirst()) {
+				for (boolean hasItem = true; hasItem; hasItem = cursor.moveToNext()) {
+					Entry entry = new Entry();
+					entry.mId = cursor.getLong(cursor.getColumnIndex(COLUMN_ID));
+					entry.mType = cursor.getString(cursor.getColumnIndex(COLUMN_TYPE));
+					entry.mEntityClass = cursor.getString(cursor.getColumnIndex(COLUMN_ENTITY_CLASS));
+					entry.mEntityId = cursor.getLong(cursor.getColumnIndex(COLUMN_ENTITY_ID));
+					entry.mTargetId = cursor.getLong(cursor.getColumnIndex(COLUMN_TARGET_ID));
+					entry.mFileName = cursor.getString(cursor.getColumnIndex(COLUMN_FILE_NAME));
+					entry.mRemoteFileId = cursor.getLong(cursor.getColumnIndex(COLUMN_REMOTE_FILE_ID));
+					entry.mStatus = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
+					entry.mResumed = true;
+
+					entries.add(entry);
+				}
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+
+		return entries;
+	}
+
+	/**
+	 * A journaled operation.
+	 */
+	public static class Entry {
+		private long mId;
+		private String mType;
+		private String mEntityClass;
+		private long mEntityId;
+		private long mTargetId;
+		private String mFileName;
+		private long mRemoteFileId;
+		private int mStatus;
+		private boolean mResumed;
+
+		/**
+		 * Gets the ID of the journal entry.
+		 * @return The ID of the journal entry.
+		 */
+		public long getId() {
+			return mId;
+		}
+
+		/**
+		 * Gets the type of the operation.
+		 * @return The type of the operation.
+		 */
+		public String getType() {
+			return mType;
+		}
+
+		/**
+		 * Gets the class of the entity.
+		 * @return The class of the entity.
+		 * @throws ClassNotFoundException If the class no longer exists.
+		 */
+		public Class<? extends Entity> getEntityClass() throws ClassNotFoundException {
+			return Class.forName(mEntityClass).asSubclass(Entity.class);
+		}
+
+		/**
+		 * Gets the local ID of the entity.
+		 * @return The local ID of the entity.
+		 */
+		public long getEntityId() {
+			return mEntityId;
+		}
+
+		/**
+		 * Gets the ID of the folder to upload to.
+		 * @return The ID of the folder to upload to.
+		 */
+		public long getTargetId() {
+			return mTargetId;
+		}
+
+		/**
+		 * Gets the name of the file to upload to.
+		 * @return The name of the file, or <code>null</code> if it is generated.
+		 */
+		public String getFileName() {
+			return mFileName;
+		}
+
+		/**
+		 * Gets the ID of the uploaded file.
+		 * @return The ID of the uploaded file, or -1 if not yet uploaded.
+		 */
+		public long getRemoteFileId() {
+			return mRemoteFileId;
+		}
+
+		/**
+		 * Gets the status of the operation.
+		 * @return The status of the operation.
+		 */
+		public int getStatus() {
+			return mStatus;
+		}
+
+		/**
+		 * Checks whether the operation was journaled by an earlier sync.
+		 * @return Whether or not the operation is resumed.
+		 */
+		public boolean isResumed() {
+			return mResumed;
+		}
+	}
+}
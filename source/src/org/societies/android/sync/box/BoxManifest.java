@@ -0,0 +1,287 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.societies.android.platform.entity.Entity;
+
+import com.box.androidlib.DAO.BoxFile;
+import com.google.renamedgson.Gson;
+import com.google.renamedgson.JsonParseException;
+
+/**
+ * The manifest of a community folder, mapping the global ID of every entity
+ * in the folder to a hash of its content and the Box file holding it.
+ *
+ * A client only needs to download the manifest and compare the hashes with
+ * the ones stored locally (see {@link Entity#getSyncHash()}) to know which
+ * files to download.
+ *
+ * Every device writes its own manifest file, so that no two devices ever
+ * overwrite each other's entries. Readers merge the manifests of all
+ * devices, the latest entry of every entity winning, together with the
+ * manifest shared by all devices which older versions wrote.
+ *
+ * @author Kato
+ */
+public class BoxManifest {
+
+	/** The name of the manifest file shared by all devices, written by older versions. */
+	public static final String MANIFEST_FILE_NAME = "manifest";
+	/** The prefix of the names of the manifest files of every device. */
+	public static final String MANIFEST_FILE_PREFIX = MANIFEST_FILE_NAME + ".";
+
+	private long generation;
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Parses the specified manifest.
+	 * @param serialized The serialized manifest.
+	 * @return The parsed manifest.
+	 * @throws IOException If the manifest is invalid.
+	 */
+	public static BoxManifest parse(String serialized) throws IOException {
+		BoxManifest manifest;
+		try {
+			manifest = new Gson().fromJson(serialized, BoxManifest.class);
+		} catch (JsonParseException e) {
+			throw new IOException("Invalid manifest: " + e.getMessage());
+		}
+
+		if (manifest == null)
+			throw new IOException("Manifest is empty.");
+		else if (manifest.entries == null)
+			manifest.entries = new HashMap<String, Entry>();
+
+		return manifest;
+	}
+
+	/**
+	 * Checks whether the specified Box file is a manifest.
+	 * @param boxFile The file to check.
+	 * @return Whether or not the file is a manifest.
+	 */
+	public static boolean isManifestFile(BoxFile boxFile) {
+		return MANIFEST_FILE_NAME.equals(boxFile.getFileName()) ||
+				boxFile.getFileName().startsWith(MANIFEST_FILE_PREFIX);
+	}
+
+	/**
+	 * Gets the name of the manifest file written by the specified device.
+	 * @param deviceId The ID of the device.
+	 * @return The name of the manifest file of the device.
+	 */
+	public static String getFileName(String deviceId) {
+		return MANIFEST_FILE_PREFIX + deviceId;
+	}
+
+	/**
+	 * Computes the hash of the specified serialized entity.
+	 * @param serialized The serialized entity.
+	 * @return The hash of the serialized entity.
+	 */
+	public static String hash(String serialized) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+			return toHex(digest.digest(serialized.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Formats a hash as stored in the manifest.
+	 * @param hash The SHA-1 digest of a serialized entity.
+	 * @return The hash as a lower case hex string.
+	 */
+	public static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash)
+			hex.append(String.format("%02x", b & 0xff));
+
+		return hex.toString();
+	}
+
+	/**
+	 * Serializes the manifest.
+	 * @return The serialized manifest.
+	 */
+	public String serialize() {
+		return new Gson().toJson(this);
+	}
+
+	/**
+	 * Adds or replaces the entry of the specified entity.
+	 * @param globalId The global ID of the entity.
+	 * @param entry The entry of the entity.
+	 */
+	public void put(String globalId, Entry entry) {
+		entries.put(globalId, entry);
+	}
+
+	/**
+	 * Adds or replaces the entries of the specified manifest.
+	 * @param manifest The manifest to merge into this one.
+	 */
+	public void merge(BoxManifest manifest) {
+		entries.putAll(manifest.entries);
+	}
+
+	/**
+	 * Adds the entries of the manifest of another device which are at least
+	 * as recent as the entries of this manifest. The generations add up, so
+	 * that the generation of the merged manifests grows with every write of
+	 * any device.
+	 * @param manifest The manifest to merge into this one.
+	 */
+	public void mergeLatest(BoxManifest manifest) {
+		generation += manifest.generation;
+
+		for (String globalId : manifest.entries.keySet()) {
+			Entry entry = manifest.entries.get(globalId);
+			Entry existing = entries.get(globalId);
+
+			if (existing == null || entry.ts >= existing.ts)
+				entries.put(globalId, entry);
+		}
+	}
+
+	/**
+	 * Gets the entries of the manifest.
+	 * @return A mapping between global ID and entry.
+	 */
+	public Map<String, Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Checks whether the manifest has any entries.
+	 * @return Whether or not the manifest has any entries.
+	 */
+	public boolean hasEntries() {
+		return entries.size() > 0;
+	}
+
+	/**
+	 * Gets the generation of the manifest, which is incremented on every write.
+	 * @return The generation of the manifest.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Increments the generation of the manifest.
+	 */
+	public void nextGeneration() {
+		generation++;
+	}
+
+	/**
+	 * An entry of the manifest.
+	 */
+	public static class Entry {
+		private String type;
+		private String hash;
+		private long file;
+		private String name;
+		private boolean del;
+		private long ts;
+
+		/**
+		 * Initializes a new manifest entry, written at the current time.
+		 * @param type The type code of the entity.
+		 * @param hash The hash of the serialized entity, or <code>null</code>
+		 * if the entity is deleted.
+		 * @param file The ID of the Box file holding the entity.
+		 * @param name The name of the Box file holding the entity.
+		 * @param deleted Whether or not the entity is deleted.
+		 */
+		public Entry(String type, String hash, long file, String name, boolean deleted) {
+			this.type = type;
+			this.hash = hash;
+			this.file = file;
+			this.name = name;
+			this.del = deleted;
+			this.ts = System.currentTimeMillis() / 1000;
+		}
+
+		/**
+		 * Gets the type code of the entity. Class names written by older
+		 * versions are translated into type codes.
+		 * @return The type code of the entity.
+		 */
+		public String getType() {
+			BoxEntityType entityType = BoxEntityType.forCode(type);
+
+			return (entityType != null ? entityType.getCode() : type);
+		}
+
+		/**
+		 * Gets the type of the entity.
+		 * @return The type of the entity, or <code>null</code> if it is unknown.
+		 */
+		public BoxEntityType getEntityType() {
+			return BoxEntityType.forCode(type);
+		}
+
+		/**
+		 * Gets the hash of the serialized entity.
+		 * @return The hash of the serialized entity.
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Gets the Box file holding the entity.
+		 * @return The Box file holding the entity.
+		 */
+		public BoxFile getFile() {
+			BoxFile boxFile = new BoxFile();
+			boxFile.setId(file);
+			boxFile.setFileName(name);
+
+			return boxFile;
+		}
+
+		/**
+		 * Checks whether the entity is deleted.
+		 * @return Whether or not the entity is deleted.
+		 */
+		public boolean isDeleted() {
+			return del;
+		}
+
+		/**
+		 * Gets the time the entry was written.
+		 * @return The Unix time (in seconds) the entry was written, or 0 if
+		 * it was written by an older version.
+		 */
+		public long getTime() {
+			return ts;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.societies.android.platform.entity.Entity;
+
+import com.box.androidlib.DAO.BoxFile;
+import com.google.renamedgson.Gson;
+import com.google.renamedgson.JsonParseException;
+
+/**
+ * A pack segment storing many entities of a community in a single Box file.
+ *
+ * A segment consists of a magic line, a header line holding the index of the
+ * segment, and the serialized records. Records are only ever appended to a
+ * segment; an updated entity gets a new record which supersedes the older
+ * ones, and a deleted entity gets a tombstone record without a body. The
+ * tombstone records the time of the deletion, so that compaction can drop it
+ * once every device has had the chance to see it.
+ *
+ * Every device only writes to its own segments, so that no two devices ever
+ * overwrite the same Box file.
+ *
+ * @author Kato
+ */
+public class BoxPack {
+
+	/** The prefix of pack segment file names. */
+	public static final String PACK_FILE_PREFIX = "pack.";
+	/** The file name format of pack segments (device ID, sequence number). */
+	public static final String PACK_FILE_NAME_FORMAT = PACK_FILE_PREFIX + "%s.%d";
+	/** The first line of every pack segment. */
+	public static final String PACK_MAGIC = "UBIPACK1";
+
+	private static final String CHARSET = "UTF-8";
+	private static final byte NEWLINE = '\n';
+
+	private Header mHeader;
+	private ByteArrayOutputStream mBody;
+	private byte[] mBodyCache;
+
+	/**
+	 * Initializes a new, empty pack segment.
+	 * @param deviceId The ID of the device writing the segment.
+	 * @param sequence The sequence number of the segment.
+	 */
+	public BoxPack(String deviceId, long sequence) {
+		mHeader = new Header();
+		mHeader.writer = deviceId;
+		mHeader.seq = sequence;
+		mHeader.entries = new ArrayList<Entry>();
+		mBody = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Parses the specified pack segment.
+	 * @param content The raw content of the segment.
+	 * @return The parsed pack segment.
+	 * @throws IOException If the content is not a valid pack segment.
+	 */
+	public static BoxPack parse(byte[] content) throws IOException {
+		int magicEnd = indexOf(content, NEWLINE, 0);
+		if (magicEnd == -1 ||
+			!PACK_MAGIC.equals(new String(content, 0, magicEnd, CHARSET)))
+			throw new IOException("Not a pack segment.");
+
+		int headerEnd = indexOf(content, NEWLINE, magicEnd + 1);
+		if (headerEnd == -1)
+			throw new IOException("Pack segment header is truncated.");
+
+		Header header;
+		try {
+			header = new Gson().fromJson(
+					new String(content, magicEnd + 1, headerEnd - magicEnd - 1, CHARSET),
+					Header.class);
+		} catch (JsonParseException e) {
+			throw new IOException("Invalid pack segment header: " + e.getMessage());
+		}
+
+		if (header == null || header.entries == null)
+			throw new IOException("Pack segment header is empty.");
+
+		BoxPack pack = new BoxPack(header.writer, header.seq);
+		pack.mHeader = header;
+		pack.mBody.write(content, headerEnd + 1, content.length - headerEnd - 1);
+
+		for (Entry entry : header.entries) {
+			if (entry.off < 0 || entry.len < 0 || entry.off + entry.len > pack.mBody.size())
+				throw new IOException("Pack segment index is out of bounds: " + entry.id);
+		}
+
+		return pack;
+	}
+
+	/**
+	 * Checks whether the specified Box file is a live pack segment.
+	 * @param boxFile The file to check.
+	 * @return Whether or not the file is a pack segment.
+	 */
+	public static boolean isPackFile(BoxFile boxFile) {
+		String fileName = boxFile.getFileName();
+
+		return fileName.startsWith(PACK_FILE_PREFIX)
+				&& !fileName.endsWith(BoxHandler.ENTITY_DELETED_EXTENSION);
+	}
+
+	/**
+	 * Checks whether the specified Box file is a pack segment written by
+	 * the specified device.
+	 * @param boxFile The file to check.
+	 * @param deviceId The ID of the device.
+	 * @return Whether or not the file is a pack segment of the device.
+	 */
+	public static boolean isPackFileOf(BoxFile boxFile, String deviceId) {
+		return isPackFile(boxFile) &&
+				boxFile.getFileName().startsWith(PACK_FILE_PREFIX + deviceId + ".");
+	}
+
+	/**
+	 * Gets the sequence number of the specified pack segment file.
+	 * @param boxFile The pack segment file.
+	 * @return The sequence number of the segment, or -1 if the name is invalid.
+	 */
+	public static long getSequence(BoxFile boxFile) {
+		String fileName = boxFile.getFileName();
+
+		try {
+			return Long.parseLong(fileName.substring(fileName.lastIndexOf('.') + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the file name of the pack segment.
+	 * @return The file name of the pack segment.
+	 */
+	public String getFileName() {
+		return String.format(PACK_FILE_NAME_FORMAT, mHeader.writer, mHeader.seq);
+	}
+
+	/**
+	 * Appends a record of the specified entity. The entity must have a global ID.
+	 * @param entity The entity to append.
+	 * @return The serialized entity stored in the record.
+	 */
+	public String append(Entity entity) {
+		String serialized = entity.serialize();
+		byte[] record = getBytes(serialized);
+
+		Entry entry = new Entry();
+		entry.id = entity.getGlobalId();
+		entry.type = BoxEntityType.forEntity(entity).getCode();
+		entry.off = mBody.size();
+		entry.len = record.length;
+		entry.del = false;
+
+		mBody.write(record, 0, record.length);
+		mBody.write(NEWLINE);
+		mBodyCache = null;
+		mHeader.entries.add(entry);
+
+		return serialized;
+	}
+
+	/**
+	 * Appends a tombstone record of the specified entity.
+	 * @param entity The deleted entity.
+	 */
+	public void appendTombstone(Entity entity) {
+		Entry entry = new Entry();
+		entry.id = entity.getGlobalId();
+		entry.type = BoxEntityType.forEntity(entity).getCode();
+		entry.off = mBody.size();
+		entry.len = 0;
+		entry.del = true;
+		entry.ts = System.currentTimeMillis() / 1000;
+
+		mHeader.entries.add(entry);
+	}
+
+	/**
+	 * Appends the live records of the specified pack segment. Records of the
+	 * specified segment supersede the existing records of this segment.
+	 * @param pack The pack segment to append.
+	 */
+	public void appendAll(BoxPack pack) {
+		for (Entry entry : pack.getLatestEntries())
+			append(pack, entry);
+	}
+
+	/**
+	 * Appends a copy of a record of the specified pack segment.
+	 * @param pack The pack segment holding the record.
+	 * @param entry The entry of the record in the specified segment.
+	 */
+	public void append(BoxPack pack, Entry entry) {
+		Entry copy = new Entry();
+		copy.id = entry.id;
+		copy.type = entry.getType();
+		copy.off = mBody.size();
+		copy.len = entry.len;
+		copy.del = entry.del;
+		copy.ts = entry.ts;
+
+		if (!entry.del) {
+			mBody.write(pack.getBody(), entry.off, entry.len);
+			mBody.write(NEWLINE);
+			mBodyCache = null;
+		}
+		mHeader.entries.add(copy);
+	}
+
+	/**
+	 * Gets the latest entry of every entity in the segment. Superseded entries
+	 * are left out, so that readers can skip them without parsing the records.
+	 * @return The latest entry of every entity, in the order they were appended.
+	 */
+	public List<Entry> getLatestEntries() {
+		Map<String, Entry> latest = new LinkedHashMap<String, Entry>();
+
+		for (Entry entry : mHeader.entries) {
+			latest.remove(entry.id);
+			latest.put(entry.id, entry);
+		}
+
+		return new ArrayList<Entry>(latest.values());
+	}
+
+	/**
+	 * Gets the number of records in the segment, including superseded ones.
+	 * @return The number of records in the segment.
+	 */
+	public int getRecordCount() {
+		return mHeader.entries.size();
+	}
+
+	/**
+	 * Gets the serialized entity of the specified entry.
+	 * @param entry An entry of this segment.
+	 * @return The serialized entity, or <code>null</code> if the entry is a tombstone.
+	 */
+	public String getRecord(Entry entry) {
+		if (entry.del)
+			return null;
+
+		try {
+			return new String(getBody(), entry.off, entry.len, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the raw content of the segment.
+	 * @return The raw content of the segment.
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] magic = getBytes(PACK_MAGIC);
+		byte[] header = getBytes(new Gson().toJson(mHeader));
+
+		content.write(magic, 0, magic.length);
+		content.write(NEWLINE);
+		content.write(header, 0, header.length);
+		content.write(NEWLINE);
+
+		byte[] body = getBody();
+		content.write(body, 0, body.length);
+
+		return content.toByteArray();
+	}
+
+	/**
+	 * Gets the size of the segment in bytes.
+	 * @return The size of the segment in bytes.
+	 */
+	public int size() {
+		return mBody.size();
+	}
+
+	/**
+	 * Gets the records of the segment.
+	 * @return The records of the segment.
+	 */
+	private byte[] getBody() {
+		if (mBodyCache == null)
+			mBodyCache = mBody.toByteArray();
+
+		return mBodyCache;
+	}
+
+	/**
+	 * Encodes the specified string.
+	 * @param value The string to encode.
+	 * @return The encoded string.
+	 */
+	private static byte[] getBytes(String value) {
+		try {
+			return value.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Finds the first occurrence of a byte.
+	 * @param content The content to search.
+	 * @param value The byte to find.
+	 * @param fromIndex The index to start from.
+	 * @return The index of the byte, or -1 if not found.
+	 */
+	private static int indexOf(byte[] content, byte value, int fromIndex) {
+		for (int i = fromIndex; i < content.length; i++) {
+			if (content[i] == value)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * The header of a pack segment.
+	 */
+	private static class Header {
+		private String writer;
+		private long seq;
+		private List<Entry> entries;
+	}
+
+	/**
+	 * An index entry of a pack segment.
+	 */
+	public static class Entry {
+		private String id;
+		private String type;
+		private int off;
+		private int len;
+		private boolean del;
+		private long ts;
+
+		/**
+		 * Gets the global ID of the entity.
+		 * @return The global ID of the entity.
+		 */
+		public String getGlobalId() {
+			return id;
+		}
+
+		/**
+		 * Gets the type code of the entity. Class names written by older
+		 * versions are translated into type codes.
+		 * @return The type code of the entity.
+		 */
+		public String getType() {
+			BoxEntityType entityType = BoxEntityType.forCode(type);
+
+			return (entityType != null ? entityType.getCode() : type);
+		}
+
+		/**
+		 * Gets the type of the entity.
+		 * @return The type of the entity, or <code>null</code> if it is unknown.
+		 */
+		public BoxEntityType getEntityType() {
+			return BoxEntityType.forCode(type);
+		}
+
+		/**
+		 * Checks whether the entry is a tombstone.
+		 * @return Whether or not the entity is deleted.
+		 */
+		public boolean isDeleted() {
+			return del;
+		}
+
+		/**
+		 * Gets the time of the deletion of a tombstone.
+		 * @return The Unix time (in seconds) of the deletion, or 0 if the
+		 * entry is not a tombstone or was written by an older version.
+		 */
+		public long getTime() {
+			return ts;
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.societies.android.platform.entity.Entity;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.DAO.BoxFile;
+import com.box.androidlib.ResponseListeners.DeleteListener;
+import com.box.androidlib.ResponseListeners.FileDownloadListener;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+
+/**
+ * Thread appending entities of a community to the pack segments of this
+ * device. Every community costs a folder listing, at most one download and
+ * one upload, no matter how many entities are appended.
+ *
+ * @author Kato
+ */
+public class BoxPackUploadOperation extends Thread {
+
+	private static final String TAG = "BoxPackUploadOperation";
+
+	/** The size (in bytes) at which a segment is sealed and a new one started. */
+	public static final int SEGMENT_MAX_SIZE = 256 * 1024;
+	/** The number of segments of a device at which the segments are compacted. */
+	public static final int COMPACTION_THRESHOLD = 4;
+	/** The time (in seconds) tombstones are kept by compaction, unless the
+	 * manifest of the community records the deletion: long enough for a
+	 * device which was offline for days to read them from the segments. */
+	public static final long TOMBSTONE_RETENTION = 7 * 24 * 60 * 60;
+
+	private BoxGateway mGateway;
+	private BoxHandler mBoxHandler;
+	private String mAuthToken;
+	private ContentResolver mResolver;
+	private String mDeviceId;
+	private long mFolderId;
+	private List<Entity> mEntities;
+	private List<Entity> mDeletedEntities;
+
+	/**
+	 * Initializes a new pack upload operation.
+	 * @param folderId The ID of the community folder.
+	 * @param entities The entities to append.
+	 * @param deletedEntities The deleted entities to append tombstones of.
+	 * @param deviceId The ID of this device.
+	 * @param authToken The authentication token.
+	 * @param boxHandler The BoxHandler instance.
+	 * @param resolver The content resolver.
+	 */
+	public BoxPackUploadOperation(
+			long folderId,
+			List<Entity> entities,
+			List<Entity> deletedEntities,
+			String deviceId,
+			String authToken,
+			BoxHandler boxHandler,
+			ContentResolver resolver) {
+		mFolderId = folderId;
+		mEntities = entities;
+		mDeletedEntities = deletedEntities;
+		mDeviceId = deviceId;
+		mAuthToken = authToken;
+		mBoxHandler = boxHandler;
+		mResolver = resolver;
+		mGateway = boxHandler.getGateway();
+	}
+
+	@Override
+	public void run() {
+		int count = mEntities.size() + mDeletedEntities.size();
+		boolean isAppended = false;
+		try {
+			mBoxHandler.getCancellationToken().throwIfCancelled();
+			
+			List<BoxFile> segments = getOwnSegments();
+
+			appendEntities(segments);
+			isAppended = true;
+			mBoxHandler.getMetrics().addUploaded(count);
+
+			for (Entity entity : mEntities) {
+				entity.setDirty(0);
+				entity.update(mResolver);
+				mBoxHandler.getJournal().remove(BoxJournal.TYPE_PACK, entity);
+			}
+
+			for (Entity entity : mDeletedEntities) {
+				entity.delete(mResolver);
+				mBoxHandler.getJournal().remove(BoxJournal.TYPE_TOMBSTONE, entity);
+			}
+
+			if (segments.size() >= COMPACTION_THRESHOLD)
+				compact(getOwnSegments());
+		} catch (InterruptedIOException e) {
+			Log.i(TAG, "Pack upload cancelled: " + e.getMessage());
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+
+			if (!isAppended)
+				mBoxHandler.getMetrics().addFailed(count);
+		}
+	}
+
+	/**
+	 * Appends the entities to the tail segment, or to a new segment if the
+	 * tail segment is full.
+	 * @param segments The segments of this device, sorted by sequence number.
+	 * @throws IOException If an error occurs while appending.
+	 */
+	private void appendEntities(List<BoxFile> segments) throws IOException {
+		BoxFile tail = segments.size() > 0 ? segments.get(segments.size() - 1) : null;
+		BoxPack pack = null;
+
+		if (tail != null && tail.getSize() < SEGMENT_MAX_SIZE) {
+			pack = BoxPack.parse(download(tail));
+
+			if (pack.size() >= SEGMENT_MAX_SIZE)
+				pack = null;
+		}
+
+		if (pack == null) {
+			long sequence = (tail != null ? BoxPack.getSequence(tail) + 1 : 0);
+			pack = new BoxPack(mDeviceId, sequence);
+			tail = null;
+		}
+
+		for (Entity entity : mEntities) {
+			entity.setSyncVersion(BoxVersion.of(entity).increment(mDeviceId).toString());
+			entity.setSyncHash(BoxManifest.hash(pack.append(entity)));
+		}
+
+		for (Entity entity : mDeletedEntities)
+			pack.appendTombstone(entity);
+
+		BoxFile segment = upload(pack, tail);
+
+		for (Entity entity : mEntities)
+			mBoxHandler.recordManifestEntry(
+					mFolderId,
+					entity.getGlobalId(),
+					new BoxManifest.Entry(
+							BoxEntityType.forEntity(entity).getCode(),
+							entity.getSyncHash(),
+							segment.getId(),
+							pack.getFileName(),
+							false));
+
+		for (Entity entity : mDeletedEntities)
+			mBoxHandler.recordManifestEntry(
+					mFolderId,
+					entity.getGlobalId(),
+					new BoxManifest.Entry(
+							BoxEntityType.forEntity(entity).getCode(),
+							null,
+							segment.getId(),
+							pack.getFileName(),
+							true));
+	}
+
+	/**
+	 * Merges all the segments of this device into as few segments as
+	 * possible, dropping superseded records. Tombstones are kept until the
+	 * manifest of the community records the deletion or they are older than
+	 * {@link #TOMBSTONE_RETENTION}, so that devices which have not yet seen a
+	 * deletion still get it.
+	 * @param segments The segments of this device, sorted by sequence number.
+	 * @throws IOException If an error occurs while compacting.
+	 */
+	private void compact(List<BoxFile> segments) throws IOException {
+		Log.i(TAG, "Compacting " + segments.size() + " segments in folder " + mFolderId);
+
+		BoxPack merged = new BoxPack(mDeviceId, 0);
+		for (BoxFile segment : segments)
+			merged.appendAll(BoxPack.parse(download(segment)));
+
+		BoxManifest manifest = mBoxHandler.getManifest(mFolderId);
+		long sequence = BoxPack.getSequence(segments.get(segments.size() - 1)) + 1;
+
+		for (BoxPack compacted :
+				compact(merged, mDeviceId, sequence, manifest, System.currentTimeMillis() / 1000)) {
+			BoxFile compactedSegment = upload(compacted, null);
+
+			for (BoxPack.Entry entry : compacted.getLatestEntries()) {
+				String record = compacted.getRecord(entry);
+
+				mBoxHandler.recordManifestEntry(
+						mFolderId,
+						entry.getGlobalId(),
+						new BoxManifest.Entry(
+								entry.getType(),
+								(record != null ? BoxManifest.hash(record) : null),
+								compactedSegment.getId(),
+								compacted.getFileName(),
+								entry.isDeleted()));
+			}
+		}
+
+		for (BoxFile segment : segments) {
+			String status = mGateway.delete(mAuthToken, Box.TYPE_FILE, segment.getId());
+
+			if (!status.equals(DeleteListener.STATUS_S_DELETE_NODE))
+				Log.e(TAG, "Failed to delete compacted segment: " + segment.getFileName());
+		}
+	}
+
+	/**
+	 * Compacts the live records of a pack segment into new segments of at
+	 * most {@link #SEGMENT_MAX_SIZE} bytes each, so that readers never hold
+	 * more than one segment in memory. Tombstones of deletions recorded in the
+	 * manifest, or older than {@link #TOMBSTONE_RETENTION}, are dropped.
+	 * @param merged The segment holding the records to compact.
+	 * @param deviceId The ID of this device.
+	 * @param sequence The sequence number of the first compacted segment.
+	 * @param manifest The manifest of the community, or <code>null</code>.
+	 * @param now The current Unix time (in seconds).
+	 * @return The compacted segments, empty if no record is left.
+	 */
+	public static List<BoxPack> compact(
+			BoxPack merged, String deviceId, long sequence, BoxManifest manifest, long now) {
+		List<BoxPack> compacted = new ArrayList<BoxPack>();
+		BoxPack pack = null;
+
+		for (BoxPack.Entry entry : merged.getLatestEntries()) {
+			if (entry.isDeleted() && isTombstoneSettled(entry, manifest, now))
+				continue;
+
+			if (pack == null || pack.size() >= SEGMENT_MAX_SIZE) {
+				pack = new BoxPack(deviceId, sequence++);
+				compacted.add(pack);
+			}
+
+			pack.append(merged, entry);
+		}
+
+		return compacted;
+	}
+
+	/**
+	 * Checks whether every device has had the chance to see a deletion
+	 * without its tombstone. Devices reading the segments of a folder also
+	 * read the deletions recorded in its manifest, so a tombstone is settled
+	 * as soon as the manifest records it. Tombstones written by older
+	 * versions have no time, and are only settled by the manifest.
+	 * @param tombstone The tombstone.
+	 * @param manifest The manifest of the community, or <code>null</code>.
+	 * @param now The current Unix time (in seconds).
+	 * @return Whether or not the tombstone can be dropped.
+	 */
+	private static boolean isTombstoneSettled(
+			BoxPack.Entry tombstone, BoxManifest manifest, long now) {
+		if (tombstone.getTime() > 0 && now - tombstone.getTime() >= TOMBSTONE_RETENTION)
+			return true;
+
+		BoxManifest.Entry entry = (manifest != null ?
+				manifest.getEntries().get(tombstone.getGlobalId()) : null);
+
+		return entry != null && entry.isDeleted();
+	}
+
+	/**
+	 * Gets the pack segments written by this device, sorted by sequence number.
+	 * @return The pack segments written by this device.
+	 */
+	private List<BoxFile> getOwnSegments() {
+		List<BoxFile> segments = new ArrayList<BoxFile>();
+
+		for (BoxFile file : mBoxHandler.getFilesInFolder(mFolderId)) {
+			if (BoxPack.isPackFileOf(file, mDeviceId))
+				segments.add(file);
+		}
+
+		Collections.sort(segments, new Comparator<BoxFile>() {
+			public int compare(BoxFile lhs, BoxFile rhs) {
+				long lhsSequence = BoxPack.getSequence(lhs);
+				long rhsSequence = BoxPack.getSequence(rhs);
+
+				return lhsSequence < rhsSequence ? -1 : (lhsSequence == rhsSequence ? 0 : 1);
+			}
+		});
+
+		return segments;
+	}
+
+	/**
+	 * Uploads the specified segment, compressed if compression is enabled.
+	 * @param pack The segment to upload.
+	 * @param existing The existing file to overwrite, or <code>null</code> to
+	 * upload a new file.
+	 * @return The uploaded file.
+	 * @throws IOException If an error occurs while uploading.
+	 */
+	private BoxFile upload(BoxPack pack, BoxFile existing) throws IOException {
+		byte[] content = pack.toByteArray();
+		if (mBoxHandler.isCompressionEnabled())
+			content = BoxCompression.compress(content);
+
+		FileResponseParser response = mGateway.upload(
+				mAuthToken,
+				(existing != null ? Box.UPLOAD_ACTION_OVERWRITE : Box.UPLOAD_ACTION_UPLOAD),
+				new ByteArrayInputStream(content),
+				pack.getFileName(),
+				(existing != null ? existing.getId() : mFolderId));
+
+		if (!response.getStatus().equals(FileUploadListener.STATUS_UPLOAD_OK))
+			throw new IOException("Failed to upload pack segment: " + response.getStatus());
+
+		return response.getFile();
+	}
+
+	/**
+	 * Downloads the decompressed content of the specified file.
+	 * @param boxFile The file to download.
+	 * @return The content of the file.
+	 * @throws IOException If an error occurs while downloading.
+	 */
+	private byte[] download(BoxFile boxFile) throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+		DefaultResponseParser response = mGateway.download(
+				mAuthToken, boxFile.getId(), outStream);
+
+		if (!response.getStatus().equals(FileDownloadListener.STATUS_DOWNLOAD_OK))
+			throw new IOException("Failed to download pack segment: " + response.getStatus());
+
+		return BoxCompression.decompress(outStream.toByteArray());
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.box.androidlib.BoxSynchronous;
+import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+import com.box.androidlib.ResponseParsers.FolderResponseParser;
+import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
+
+/**
+ * Backend making the calls to the Box service.
+ *
+ * @author Kato
+ */
+public class BoxServiceBackend implements BoxBackend {
+
+	private BoxSynchronous mBoxInstance;
+
+	/**
+	 * Initializes a new Box service backend.
+	 * @param boxInstance The Box instance to make the calls with.
+	 */
+	public BoxServiceBackend(BoxSynchronous boxInstance) {
+		mBoxInstance = boxInstance;
+	}
+
+	public AccountTreeResponseParser getAccountTree(
+			String authToken, long folderId, String[] params) throws IOException {
+		return mBoxInstance.getAccountTree(authToken, folderId, params);
+	}
+
+	public FileResponseParser getFileInfo(String authToken, long fileId) throws IOException {
+		return mBoxInstance.getFileInfo(authToken, fileId);
+	}
+
+	public FolderResponseParser createFolder(
+			String authToken, long parentFolderId, String folderName, boolean share)
+			throws IOException {
+		return mBoxInstance.createFolder(authToken, parentFolderId, folderName, share);
+	}
+
+	public String delete(String authToken, String type, long targetId) throws IOException {
+		return mBoxInstance.delete(authToken, type, targetId);
+	}
+
+	public String rename(String authToken, String type, long targetId, String newName)
+			throws IOException {
+		return mBoxInstance.rename(authToken, type, targetId, newName);
+	}
+
+	public UpdatesResponseParser getUpdates(
+			String authToken, long beginTimeStamp, long endTimeStamp, String[] params)
+			throws IOException {
+		return mBoxInstance.getUpdates(authToken, beginTimeStamp, endTimeStamp, params);
+	}
+
+	public String inviteCollaborators(
+			String authToken,
+			String type,
+			long targetId,
+			long[] userIds,
+			String[] emails,
+			String itemRoleName,
+			boolean resendInvite,
+			boolean noEmail,
+			String[] params) throws IOException {
+		return mBoxInstance.inviteCollaborators(
+				authToken, type, targetId, userIds, emails,
+				itemRoleName, resendInvite, noEmail, params);
+	}
+
+	public DefaultResponseParser download(String authToken, long fileId, OutputStream outStream)
+			throws IOException {
+		return mBoxInstance.download(authToken, fileId, outStream, null, null, null);
+	}
+
+	public FileResponseParser upload(
+			String authToken,
+			String action,
+			InputStream inStream,
+			String fileName,
+			long destinationId) throws IOException {
+		return mBoxInstance.upload(
+				authToken, action, inStream, fileName, destinationId, null, null);
+	}
+
+	/**
+	 * Does nothing, as the calls of the Box library cannot be aborted. They
+	 * complete within the timeouts of the library.
+	 */
+	public void abortCalls() {
+	}
+}
@@ -17,20 +17,18 @@ package org.societies.android.sync.box;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.societies.android.box.BoxConstants;
-import org.societies.android.platform.entity.Community;
-import org.societies.android.platform.entity.CommunityActivity;
-import org.societies.android.platform.entity.Entity;
-import org.societies.android.platform.entity.Membership;
-import org.societies.android.platform.entity.Person;
-import org.societies.android.platform.entity.PersonActivity;
-import org.societies.android.platform.entity.Relationship;
-import org.societies.android.platform.entity.Sharing;
-
-import com.box.androidlib.DAO.Update;
+import org.societies.android.sync.SyncRequest;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -46,21 +44,37 @@ import android.util.Log;
 /**
  * Adapter for synchronizing SocialProvider data with Box.
  * 
+ * Every account is synced through a Box handler and journal of its own. The
+ * handlers share a single pool of HTTP connections and a single budget of
+ * calls, so that accounts synced concurrently together stay within the
+ * limits of a single sync.
+ * 
  * @author Kato
  */
 public class BoxSyncAdapter extends AbstractThreadedSyncAdapter {
 	
 	public static final String EXTRA_FULL_SYNC = "full_sync";
+	/**
+	 * Extra requesting all the accounts of the type of the synced account
+	 * to be synced concurrently, rather than one after the other by the
+	 * sync manager. Set by the sync trigger and by full syncs requested by
+	 * the user whenever there is more than one account.
+	 */
+	public static final String EXTRA_ALL_ACCOUNTS = SyncRequest.EXTRA_ALL_ACCOUNTS;
+	/** The maximum number of accounts synced concurrently. */
+	public static final int MAX_CONCURRENT_ACCOUNTS = 2;
 	private static final String TAG = "BoxSyncAdapter";
 	
-	/** The minimum amount of time between each sync, in seconds. */
-	private static final int MIN_SYNC_INTERVAL = 10;
-	
 	private ContentResolver mResolver;
 	private AccountManager mAccountManager;
 	private BoxHandler mBoxHandler;
+	private Map<String, BoxHandler> mAccountHandlers;
+	private BoxHttpTransport mTransport;
+	private BoxSyncBudget mBudget;
 	private SharedPreferences mPreferences;
-	private boolean mIsCancelled;
+	private BoxSyncScheduler mScheduler;
+	private BoxSyncHistory mHistory;
+	private Map<BoxHandler, BoxAccountSync> mRunningSyncs;
 
 	/**
 	 * Initiates a new BoxSyncAdapter.
@@ -68,24 +82,44 @@ public class BoxSyncAdapter extends AbstractThreadedSyncAdapter {
 	 * @param autoInitialize Whether or not to auto initialize the adapter.
 	 */
 	public BoxSyncAdapter(Context context, boolean autoInitialize) {
+		this(context, autoInitialize, null);
+	}
+	
+	/**
+	 * Initiates a new BoxSyncAdapter syncing through the specified Box handler.
+	 * @param context The context to operate in.
+	 * @param autoInitialize Whether or not to auto initialize the adapter.
+	 * @param boxHandler The Box handler to sync all the accounts through, or
+	 * <code>null</code> to sync every account with the Box service through
+	 * a handler of its own.
+	 */
+	public BoxSyncAdapter(Context context, boolean autoInitialize, BoxHandler boxHandler) {
 		super(context, autoInitialize);
 		
 		mPreferences = context.getSharedPreferences(
 				BoxConstants.PREFERENCE_FILE, Context.MODE_PRIVATE);
 		mResolver = context.getContentResolver();
 		mAccountManager = AccountManager.get(context);
-		mBoxHandler = new BoxHandler(mResolver);
-		
-		mIsCancelled = false;
+		mBoxHandler = boxHandler;
+		mAccountHandlers = new HashMap<String, BoxHandler>();
+		if (boxHandler == null) {
+			mTransport = new BoxHttpTransport();
+			mBudget = new BoxSyncBudget(
+					BoxGateway.RATE_LIMIT,
+					BoxGateway.RATE_LIMIT_BURST,
+					BoxHttpTransport.MAX_CONNECTIONS);
+		}
+		mScheduler = new BoxSyncScheduler(mPreferences);
+		mHistory = new BoxSyncHistory(context);
+		mRunningSyncs = new HashMap<BoxHandler, BoxAccountSync>();
 	}
 	
 	@Override
 	public void onSyncCanceled() {
-		mIsCancelled = true;
-		
-		try {
-			mBoxHandler.cancelRunningOperations();
-		} catch (InterruptedException e) { /* IGNORED */ }
+		synchronized (mRunningSyncs) {
+			for (BoxAccountSync sync : mRunningSyncs.values())
+				sync.cancel();
+		}
 		
 		super.onSyncCanceled();
 	}
@@ -97,226 +131,200 @@ public class BoxSyncAdapter extends AbstractThreadedSyncAdapter {
 			String authority,
 			ContentProviderClient provider,
 			SyncResult syncResult) {
-		try {
-			Log.i(TAG, "Sync Started.");
-			
-			Entity.SELECTION_ACCOUNT_TYPE = account.type;
-			Entity.SELECTION_ACCOUNT_NAME = account.name;
-			
-			String authToken = mAccountManager.blockingGetAuthToken(
-				account, BoxConstants.AUTH_TOKEN_FLAG, true);
-			
-			Log.i(TAG, "Initializing...");
-			mBoxHandler.initialize(authToken);
-			
-			boolean isFullSync = extras.getBoolean(EXTRA_FULL_SYNC);
-			long lastSync = 0;
-			if (!isFullSync)
-				lastSync = mPreferences.getLong(BoxConstants.PREFERENCE_LAST_SYNC, 0);
-			
-			Log.i(TAG, "Last Sync: " + new Date(lastSync * 1000) + " (" + lastSync + ")");
-			
-			if ((new Date().getTime() / 1000) - lastSync < MIN_SYNC_INTERVAL) {
-				Log.i(TAG, "Terminating sync: last sync completed within the last " + 
-							MIN_SYNC_INTERVAL + " seconds.");
-				mBoxHandler.waitForRunningOperationsToComplete(true);
-				return;
-			}
-			
-			processBoxUpdates(lastSync);
-			
-			Log.i(TAG, "Waiting for update processing to complete...");
-			mBoxHandler.waitForRunningOperationsToComplete(false);
-			
-			processDeletedEntities();
-			
-			syncCommunities();
-			
-			Log.i(TAG, "Waiting for community sync to complete...");
-			mBoxHandler.waitForRunningOperationsToComplete(false);
-			
-			syncCommunityActivities();
-			
-			syncMemberships();
-			
-			syncSharings();
-			
-			Log.i(TAG, "Waiting for operations to complete...");
-			mBoxHandler.waitForRunningOperationsToComplete(true);
-			
-			mPreferences.edit().putLong(
-					BoxConstants.PREFERENCE_LAST_SYNC,
-					new Date().getTime() / 1000
-			).commit();
-			
-			Log.i(TAG, "Sync finished!");
-		} catch (Exception e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
-	}
-	
-	/**
-	 * Processes the deleted entities.
-	 * @throws Exception If an error occurs while processing.
-	 */
-	private void processDeletedEntities() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Processing deleted entities...");
-		
-		List<Entity> deletedEntities = new ArrayList<Entity>();
-		
-		deletedEntities.addAll(Entity.getDeletedEntities(Community.class, mResolver));
-		deletedEntities.addAll(Entity.getDeletedEntities(CommunityActivity.class, mResolver));
-		deletedEntities.addAll(Entity.getDeletedEntities(Membership.class, mResolver));
-		deletedEntities.addAll(Entity.getDeletedEntities(Sharing.class, mResolver));
-		// TODO: add the rest
-		
-		Log.i(TAG, "Deleting entities: " + deletedEntities.size());
-		
-		mBoxHandler.deleteEntities(deletedEntities);
-	}
-
-	/**
-	 * Processes the updates from Box.
-	 * @param lastSync The Unix time (in seconds) of the last synchronization.
-	 * @throws IOException If an error occurs while fetching updates.
-	 */
-	private void processBoxUpdates(long lastSync) throws IOException {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Fetching updates from Box...");
-		
-		List<Update> updates = null;
-		if (lastSync > 0)
-			updates = mBoxHandler.getUpdatesSince(lastSync);
-		
-		Log.i(TAG, "Processing updates: " + (updates == null ? "full_sync" : updates.size()));
-		
-		mBoxHandler.processUpdates(updates);
+		if (extras.getBoolean(EXTRA_ALL_ACCOUNTS))
+			syncAllAccounts(account.type, extras, authority, syncResult);
+		else
+			syncAccount(account, extras, authority, syncResult);
 	}
 	
 	/**
-	 * Synchronizes the people.
-	 * @throws Exception If an error occurs while syncing.
+	 * Performs a sync with the specified authentication token. The metrics of
+	 * the sync are reported in the sync result and recorded in the sync history.
+	 * An account is synced by one thread at a time; a sync of an account which
+	 * is already syncing is skipped.
+	 * @param account The account to sync.
+	 * @param extras The sync extras.
+	 * @param authority The authority to sync.
+	 * @param authToken The token used to authenticate with Box.
+	 * @param syncResult The result of the sync.
 	 */
-	private void syncPeople() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Started People Sync");
-		
-		List<Person> people = Person.getUpdatedPeople(mResolver);
-		
-		Log.i(TAG, "Syncing people: " + people.size());
+	public void performSync(
+			Account account,
+			Bundle extras,
+			String authority,
+			String authToken,
+			SyncResult syncResult) {
+		BoxHandler boxHandler = getBoxHandler(account);
+		BoxAccountSync sync = new BoxAccountSync(
+				mResolver, boxHandler, mPreferences, mScheduler, mHistory);
+		
+		synchronized (mRunningSyncs) {
+			if (mRunningSyncs.containsKey(boxHandler)) {
+				Log.i(TAG, "Skipping sync: " + account.name + " is already syncing.");
+				syncResult.stats.numSkippedEntries++;
+				return;
+			}
+			
+			mRunningSyncs.put(boxHandler, sync);
+		}
 		
-		for (Person person : people)
-			Log.i(TAG, "Person ID: " + person.getId());
+		try {
+			sync.performSync(account, extras, authority, authToken, syncResult);
+		} finally {
+			synchronized (mRunningSyncs) {
+				mRunningSyncs.remove(boxHandler);
+			}
+		}
 	}
 	
 	/**
-	 * Synchronizes the people activities.
-	 * @throws Exception If an error occurs while syncing.
+	 * Syncs the specified account, authenticating with the token stored by
+	 * the account manager.
+	 * @param account The account to sync.
+	 * @param extras The sync extras.
+	 * @param authority The authority to sync.
+	 * @param syncResult The result of the sync.
 	 */
-	private void syncPeopleActivities() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Started Person Activities Sync");
-		
-		List<PersonActivity> activities =
-				PersonActivity.getUpdatedPersonActivities(mResolver);
-		
-		Log.i(TAG, "Syncing person activities: " + activities.size());
+	private void syncAccount(
+			Account account,
+			Bundle extras,
+			String authority,
+			SyncResult syncResult) {
+		String authToken;
+		try {
+			authToken = mAccountManager.blockingGetAuthToken(
+				account, BoxConstants.AUTH_TOKEN_FLAG, true);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+			syncResult.stats.numIoExceptions++;
+			return;
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+			syncResult.stats.numAuthExceptions++;
+			return;
+		}
 		
-		/*for (PersonActivity activity : activities)
-			mBoxHandler.uploadEntity(activity);*/
+		performSync(account, extras, authority, authToken, syncResult);
 	}
 	
 	/**
-	 * Synchronizes the communities.
-	 * @throws Exception If an error occurs while syncing.
+	 * Syncs all the accounts of the specified type concurrently, at most
+	 * {@link #MAX_CONCURRENT_ACCOUNTS} at a time. Accounts which the sync
+	 * manager would not sync are skipped: accounts not syncing the authority
+	 * and, unless the sync was requested by the user, accounts not syncing
+	 * automatically. The results of the syncs of the accounts are added up
+	 * in the specified sync result.
+	 * @param accountType The type of the accounts to sync.
+	 * @param extras The sync extras.
+	 * @param authority The authority to sync.
+	 * @param syncResult The result of the sync.
 	 */
-	private void syncCommunities() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Started Communities Sync");
-		
-		List<Community> communities =
-				Community.getUpdatedCommunities(mResolver);
+	private void syncAllAccounts(
+			String accountType,
+			final Bundle extras,
+			final String authority,
+			SyncResult syncResult) {
+		boolean isManualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL);
+		List<Account> accounts = new ArrayList<Account>();
 		
-		Log.i(TAG, "Syncing communities: " + communities.size());
+		for (Account account : mAccountManager.getAccountsByType(accountType)) {
+			if (ContentResolver.getIsSyncable(account, authority) > 0 &&
+					(isManualSync || ContentResolver.getSyncAutomatically(account, authority)))
+				accounts.add(account);
+		}
 		
-		for (Community community : communities)
-			mBoxHandler.uploadCommunity(community);
-	}
-	
-	/**
-	 * Synchronizes the community activities.
-	 * @throws Exception If an error occurs while syncing.
-	 */
-	private void syncCommunityActivities() throws Exception {
-		if (mIsCancelled) return;
+		if (accounts.size() == 0)
+			return;
 		
-		Log.i(TAG, "Started Community Activities Sync");
+		Log.i(TAG, "Syncing accounts: " + accounts.size());
 		
-		List<CommunityActivity> activities =
-				CommunityActivity.getUpdatedCommunityActivities(mResolver);
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(accounts.size(), MAX_CONCURRENT_ACCOUNTS));
+		List<Future<SyncResult>> results = new ArrayList<Future<SyncResult>>();
 		
-		Log.i(TAG, "Syncing community activities: " + activities.size());
+		for (final Account account : accounts) {
+			results.add(executor.submit(new Callable<SyncResult>() {
+				public SyncResult call() {
+					SyncResult accountResult = new SyncResult();
+					syncAccount(account, extras, authority, accountResult);
+					
+					return accountResult;
+				}
+			}));
+		}
 		
-		for (CommunityActivity activity : activities)
-			mBoxHandler.uploadCommunityActivity(activity);
+		executor.shutdown();
+		
+		for (Future<SyncResult> result : results) {
+			try {
+				addSyncResult(result.get(), syncResult);
+			} catch (ExecutionException e) {
+				Log.e(TAG, e.getMessage(), e);
+				syncResult.stats.numParseExceptions++;
+			} catch (InterruptedException e) {
+				Log.i(TAG, "Interrupted while syncing accounts.");
+				
+				onSyncCanceled();
+				executor.shutdownNow();
+				return;
+			}
+		}
 	}
 	
 	/**
-	 * Synchronizes the memberships.
-	 * @throws Exception If an error occurs while syncing.
+	 * Adds the result of the sync of an account to the result of the sync
+	 * of all accounts.
+	 * @param accountResult The result of the sync of an account.
+	 * @param syncResult The result of the sync of all accounts.
 	 */
-	private void syncMemberships() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Started Memberships Sync");
-		
-		List<Membership> memberships =
-				Membership.getUpdatedMemberships(mResolver);
-		
-		Log.i(TAG, "Syncing memberships: " + memberships.size());
-		
-		mBoxHandler.uploadMemberships(memberships);
+	private static void addSyncResult(SyncResult accountResult, SyncResult syncResult) {
+		syncResult.stats.numAuthExceptions += accountResult.stats.numAuthExceptions;
+		syncResult.stats.numIoExceptions += accountResult.stats.numIoExceptions;
+		syncResult.stats.numParseExceptions += accountResult.stats.numParseExceptions;
+		syncResult.stats.numEntries += accountResult.stats.numEntries;
+		syncResult.stats.numUpdates += accountResult.stats.numUpdates;
+		syncResult.stats.numSkippedEntries += accountResult.stats.numSkippedEntries;
+		syncResult.databaseError |= accountResult.databaseError;
+		syncResult.delayUntil = Math.max(syncResult.delayUntil, accountResult.delayUntil);
 	}
 	
 	/**
-	 * Synchronizes the relationships.
-	 * @throws Exception If an error occurs while syncing.
+	 * Gets the Box handler of the specified account, creating it on first use.
+	 * @param account The account.
+	 * @return The Box handler to sync the account through.
 	 */
-	private void syncRelationships() throws Exception {
-		if (mIsCancelled) return;
-		
-		Log.i(TAG, "Started Relationships Sync");
-		
-		List<Relationship> relationships =
-				Relationship.getUpdatedRelationships(mResolver);
-		
-		Log.i(TAG, "Syncing relationships: " + relationships.size());
+	private synchronized BoxHandler getBoxHandler(Account account) {
+		if (mBoxHandler != null)
+			return mBoxHandler;
+		
+		BoxHandler boxHandler = mAccountHandlers.get(account.name);
+		if (boxHandler == null) {
+			boxHandler = new BoxHandler(
+					mResolver,
+					getDeviceId(),
+					new BoxJournal(getContext(), account.name),
+					new BoxGateway(
+							new BoxHttpBackend(BoxConstants.API_KEY, mTransport), mBudget));
+			boxHandler.setCacheDirectory(getContext().getCacheDir());
+			
+			mAccountHandlers.put(account.name, boxHandler);
+		}
 		
-		/*
-		for (Relationship relationship : relationships)
-			mBoxHandler.uploadEntity(relationship);*/
+		return boxHandler;
 	}
 	
 	/**
-	 * Synchronizes the sharings.
-	 * @throws Exception If an error occurs while syncing.
+	 * Gets the ID of this device, generating one on first use.
+	 * @return The ID of this device.
 	 */
-	private void syncSharings() throws Exception {
-		if (mIsCancelled) return;
+	private String getDeviceId() {
+		String deviceId = mPreferences.getString(BoxConstants.PREFERENCE_DEVICE_ID, null);
 		
-		Log.i(TAG, "Started Sharing Sync");
-		
-		List<Sharing> sharings = Sharing.getUpdatedSharings(mResolver);
-		
-		Log.i(TAG, "Syncing sharings: " + sharings.size());
+		if (deviceId == null) {
+			deviceId = UUID.randomUUID().toString();
+			mPreferences.edit().putString(BoxConstants.PREFERENCE_DEVICE_ID, deviceId).commit();
+		}
 		
-		for (Sharing sharing : sharings)
-			mBoxHandler.uploadSharing(sharing);
+		return deviceId;
 	}
 }
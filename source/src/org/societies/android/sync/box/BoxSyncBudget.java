@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Budget of the calls to Box. The rate of calls is limited by a token
+ * bucket, and the number of calls in progress by a semaphore. A budget can
+ * be shared by the gateways of several accounts, so that syncing them
+ * concurrently stays within the limits of a single sync.
+ *
+ * @author Kato
+ */
+public class BoxSyncBudget {
+
+	private double mRateLimit;
+	private double mRateLimitBurst;
+	private double mTokens;
+	private long mLastRefill;
+	private Semaphore mCallPermits;
+
+	/**
+	 * Initializes a new budget which does not limit the number of calls in
+	 * progress.
+	 * @param rateLimit The number of calls per second allowed.
+	 * @param rateLimitBurst The number of calls allowed in a burst.
+	 */
+	public BoxSyncBudget(double rateLimit, double rateLimitBurst) {
+		this(rateLimit, rateLimitBurst, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Initializes a new budget.
+	 * @param rateLimit The number of calls per second allowed.
+	 * @param rateLimitBurst The number of calls allowed in a burst.
+	 * @param maxConcurrentCalls The number of calls allowed to be in progress
+	 * at the same time.
+	 */
+	public BoxSyncBudget(double rateLimit, double rateLimitBurst, int maxConcurrentCalls) {
+		mRateLimit = rateLimit;
+		mRateLimitBurst = rateLimitBurst;
+		mTokens = rateLimitBurst;
+		mLastRefill = System.currentTimeMillis();
+		mCallPermits = new Semaphore(maxConcurrentCalls, true);
+	}
+
+	/**
+	 * Acquires the budget of a call, waiting for a token to be refilled and
+	 * for a call in progress to complete if needed. Every successful
+	 * acquisition must be followed by a call to {@link #release()}.
+	 * @return The time (in milliseconds) spent waiting for the budget.
+	 * @throws InterruptedIOException If the thread is interrupted while waiting.
+	 */
+	public long acquire() throws InterruptedIOException {
+		long start = System.currentTimeMillis();
+
+		acquireToken();
+
+		try {
+			mCallPermits.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a call to complete.");
+		}
+
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Releases the budget of a completed call.
+	 */
+	public void release() {
+		mCallPermits.release();
+	}
+
+	/**
+	 * Takes a token from the bucket, waiting for one to be refilled if the
+	 * bucket is empty.
+	 * @throws InterruptedIOException If the thread is interrupted while waiting.
+	 */
+	private synchronized void acquireToken() throws InterruptedIOException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			mTokens = Math.min(
+					mRateLimitBurst, mTokens + (now - mLastRefill) * mRateLimit / 1000);
+			mLastRefill = now;
+
+			if (mTokens >= 1) {
+				mTokens -= 1;
+				return;
+			}
+
+			try {
+				wait((long) Math.ceil((1 - mTokens) * 1000 / mRateLimit));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while rate limited.");
+			}
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.societies.android.api.cis.SocialContract;
+import org.societies.android.api.cis.SocialContract.UriPathIndex;
+import org.societies.android.platform.entity.Community;
+import org.societies.android.platform.entity.CommunityActivity;
+import org.societies.android.platform.entity.Entity;
+import org.societies.android.platform.entity.Me;
+import org.societies.android.platform.entity.Membership;
+import org.societies.android.platform.entity.Person;
+import org.societies.android.platform.entity.PersonActivity;
+import org.societies.android.platform.entity.Relationship;
+import org.societies.android.platform.entity.Service;
+import org.societies.android.platform.entity.ServiceActivity;
+import org.societies.android.platform.entity.Sharing;
+
+/**
+ * Registry describing how every entity type is synced: the table it is
+ * stored in, the folder it is stored under in Box and the types it depends
+ * on. The sync scans, uploads, deletes and reconciles all types through
+ * their descriptors, level by level, so that a type is only uploaded once
+ * the global IDs of the types it depends on are known. Conflicting changes
+ * are resolved the same way for all types, through the versions of the
+ * entities (see {@link BoxVersion}).
+ *
+ * @author Kato
+ */
+public class BoxSyncDescriptor {
+
+	/**
+	 * The folder entities are stored under in Box.
+	 */
+	public enum Scope {
+		/** A community, stored in its own folder. */
+		COMMUNITY,
+		/** An entity of a community, stored in the folder of the community. */
+		COMMUNITY_ENTITY,
+		/** An entity of the account, stored in the account folder. */
+		ACCOUNT,
+		/** An entity which is never synced. */
+		LOCAL
+	}
+
+	private static final List<BoxSyncDescriptor> sDescriptors =
+			new ArrayList<BoxSyncDescriptor>();
+	private static final Map<Class<? extends Entity>, BoxSyncDescriptor> sByClass =
+			new HashMap<Class<? extends Entity>, BoxSyncDescriptor>();
+
+	/** The user of the device, never synced as it holds the credentials. */
+	public static final BoxSyncDescriptor ME = register(new BoxSyncDescriptor(
+			Me.class, null, UriPathIndex.ME, "me", Scope.LOCAL, null));
+	/** People. */
+	public static final BoxSyncDescriptor PERSON = register(new BoxSyncDescriptor(
+			Person.class, BoxEntityType.PERSON, UriPathIndex.PEOPLE, "people",
+			Scope.ACCOUNT, null));
+	/** Communities. */
+	public static final BoxSyncDescriptor COMMUNITY = register(new BoxSyncDescriptor(
+			Community.class, BoxEntityType.COMMUNITY, UriPathIndex.COMMUNITIES, "communities",
+			Scope.COMMUNITY, SocialContract.Communities._ID,
+			PERSON));
+	/** Services. */
+	public static final BoxSyncDescriptor SERVICE = register(new BoxSyncDescriptor(
+			Service.class, BoxEntityType.SERVICE, UriPathIndex.SERVICES, "services",
+			Scope.ACCOUNT, null,
+			PERSON));
+	/** Person activities. */
+	public static final BoxSyncDescriptor PERSON_ACTIVITY = register(new BoxSyncDescriptor(
+			PersonActivity.class, BoxEntityType.PERSON_ACTIVITY,
+			UriPathIndex.PEOPLE_ACTIVITIY, "person_activities",
+			Scope.ACCOUNT, null,
+			PERSON));
+	/** Relationships. */
+	public static final BoxSyncDescriptor RELATIONSHIP = register(new BoxSyncDescriptor(
+			Relationship.class, BoxEntityType.RELATIONSHIP, UriPathIndex.RELATIONSHIP,
+			"relationships", Scope.ACCOUNT, null,
+			PERSON));
+	/** Service activities. */
+	public static final BoxSyncDescriptor SERVICE_ACTIVITY = register(new BoxSyncDescriptor(
+			ServiceActivity.class, BoxEntityType.SERVICE_ACTIVITY,
+			UriPathIndex.SERVICE_ACTIVITY, "service_activities",
+			Scope.ACCOUNT, null,
+			SERVICE));
+	/** Community activities. */
+	public static final BoxSyncDescriptor COMMUNITY_ACTIVITY = register(new BoxSyncDescriptor(
+			CommunityActivity.class, BoxEntityType.COMMUNITY_ACTIVITY,
+			UriPathIndex.COMMUNITY_ACTIVITIY, "community_activities",
+			Scope.COMMUNITY_ENTITY,
+			SocialContract.CommunityActivity._ID_FEED_OWNER,
+			COMMUNITY) {
+		@Override
+		public long getCommunityId(Entity entity) {
+			return ((CommunityActivity) entity).getFeedOwnerId();
+		}
+
+		@Override
+		public String getCommunityGlobalId(Entity entity) {
+			return ((CommunityActivity) entity).getGlobalIdFeedOwner();
+		}
+	});
+	/** Memberships. */
+	public static final BoxSyncDescriptor MEMBERSHIP = register(new BoxSyncDescriptor(
+			Membership.class, BoxEntityType.MEMBERSHIP, UriPathIndex.MEMBERSHIP, "memberships",
+			Scope.COMMUNITY_ENTITY,
+			SocialContract.Membership._ID_COMMUNITY,
+			COMMUNITY, PERSON) {
+		@Override
+		public long getCommunityId(Entity entity) {
+			return ((Membership) entity).getCommunityId();
+		}
+
+		@Override
+		public String getCommunityGlobalId(Entity entity) {
+			return ((Membership) entity).getGlobalIdCommunity();
+		}
+	});
+	/** Sharings. */
+	public static final BoxSyncDescriptor SHARING = register(new BoxSyncDescriptor(
+			Sharing.class, BoxEntityType.SHARING, UriPathIndex.SHARING, "sharings",
+			Scope.COMMUNITY_ENTITY,
+			SocialContract.Sharing._ID_COMMUNITY,
+			COMMUNITY, SERVICE) {
+		@Override
+		public long getCommunityId(Entity entity) {
+			return ((Sharing) entity).getCommunityId();
+		}
+
+		@Override
+		public String getCommunityGlobalId(Entity entity) {
+			return ((Sharing) entity).getGlobalIdCommunity();
+		}
+	});
+
+	private Class<? extends Entity> mEntityClass;
+	private BoxEntityType mType;
+	private String mTable;
+	private String mName;
+	private Scope mScope;
+	private String mCommunityColumn;
+	private List<BoxSyncDescriptor> mDependencies;
+	private int mLevel;
+
+	/**
+	 * Initializes a new descriptor.
+	 * @param entityClass The class of the entities.
+	 * @param type The type of the entities in Box, or <code>null</code> if
+	 * they are never synced.
+	 * @param table The path of the table of the entities.
+	 * @param name The name of the type, naming the phases of the sync.
+	 * @param scope The folder the entities are stored under in Box.
+	 * @param communityColumn The column referencing the community, or
+	 * <code>null</code> if the entities do not belong to a community.
+	 * @param dependencies The types whose global IDs the entities reference.
+	 * Must be registered first.
+	 */
+	private BoxSyncDescriptor(
+			Class<? extends Entity> entityClass,
+			BoxEntityType type,
+			String table,
+			String name,
+			Scope scope,
+			String communityColumn,
+			BoxSyncDescriptor... dependencies) {
+		mEntityClass = entityClass;
+		mType = type;
+		mTable = table;
+		mName = name;
+		mScope = scope;
+		mCommunityColumn = communityColumn;
+		mDependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+
+		mLevel = 0;
+		for (BoxSyncDescriptor dependency : dependencies)
+			mLevel = Math.max(mLevel, dependency.getLevel() + 1);
+	}
+
+	/**
+	 * Registers a descriptor.
+	 * @param descriptor The descriptor to register.
+	 * @return The registered descriptor.
+	 */
+	private static BoxSyncDescriptor register(BoxSyncDescriptor descriptor) {
+		sDescriptors.add(descriptor);
+		sByClass.put(descriptor.getEntityClass(), descriptor);
+
+		return descriptor;
+	}
+
+	/**
+	 * Gets the descriptor of the specified entity class.
+	 * @param entityClass The class of the entities.
+	 * @return The descriptor, or <code>null</code> if the class is not registered.
+	 */
+	public static BoxSyncDescriptor forClass(Class<? extends Entity> entityClass) {
+		return sByClass.get(entityClass);
+	}
+
+	/**
+	 * Gets the descriptor of the specified entity.
+	 * @param entity The entity.
+	 * @return The descriptor.
+	 * @throws IllegalArgumentException If the class of the entity is not registered.
+	 */
+	public static BoxSyncDescriptor forEntity(Entity entity) {
+		BoxSyncDescriptor descriptor = sByClass.get(entity.getClass());
+
+		if (descriptor == null)
+			throw new IllegalArgumentException(
+					"Not a registered entity class: " + entity.getClass().getName());
+
+		return descriptor;
+	}
+
+	/**
+	 * Gets the descriptor of the specified entity type.
+	 * @param type The type of the entities in Box.
+	 * @return The descriptor.
+	 */
+	public static BoxSyncDescriptor forType(BoxEntityType type) {
+		return sByClass.get(type.getEntityClass());
+	}
+
+	/**
+	 * Gets all the descriptors, every descriptor following the ones it
+	 * depends on.
+	 * @return The registered descriptors.
+	 */
+	public static List<BoxSyncDescriptor> getDescriptors() {
+		return Collections.unmodifiableList(sDescriptors);
+	}
+
+	/**
+	 * Gets the descriptors of the specified scope, every descriptor
+	 * following the ones it depends on.
+	 * @param scope The scope of the descriptors.
+	 * @return The descriptors of the scope.
+	 */
+	public static List<BoxSyncDescriptor> getDescriptors(Scope scope) {
+		List<BoxSyncDescriptor> descriptors = new ArrayList<BoxSyncDescriptor>();
+
+		for (BoxSyncDescriptor descriptor : sDescriptors)
+			if (descriptor.getScope() == scope)
+				descriptors.add(descriptor);
+
+		return descriptors;
+	}
+
+	/**
+	 * Gets the synced descriptors grouped by dependency level. The
+	 * descriptors of a level only depend on the descriptors of the levels
+	 * before it.
+	 * @return The levels of synced descriptors.
+	 */
+	public static List<List<BoxSyncDescriptor>> getLevels() {
+		List<List<BoxSyncDescriptor>> levels = new ArrayList<List<BoxSyncDescriptor>>();
+
+		for (BoxSyncDescriptor descriptor : sDescriptors) {
+			if (!descriptor.isSynced())
+				continue;
+
+			while (levels.size() <= descriptor.getLevel())
+				levels.add(new ArrayList<BoxSyncDescriptor>());
+
+			levels.get(descriptor.getLevel()).add(descriptor);
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Gets the class of the entities.
+	 * @return The class of the entities.
+	 */
+	public Class<? extends Entity> getEntityClass() {
+		return mEntityClass;
+	}
+
+	/**
+	 * Gets the type of the entities in Box.
+	 * @return The type of the entities, or <code>null</code> if they are never synced.
+	 */
+	public BoxEntityType getType() {
+		return mType;
+	}
+
+	/**
+	 * Gets the path of the table of the entities.
+	 * @return The path of the table.
+	 */
+	public String getTable() {
+		return mTable;
+	}
+
+	/**
+	 * Gets the name of the type, naming the phases of the sync.
+	 * @return The name of the type.
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Gets the folder the entities are stored under in Box.
+	 * @return The scope of the entities.
+	 */
+	public Scope getScope() {
+		return mScope;
+	}
+
+	/**
+	 * Gets the column referencing the community of the entities.
+	 * @return The column, or <code>null</code> if the entities do not belong
+	 * to a community.
+	 */
+	public String getCommunityColumn() {
+		return mCommunityColumn;
+	}
+
+	/**
+	 * Gets the types whose global IDs the entities reference.
+	 * @return The dependencies of the type.
+	 */
+	public List<BoxSyncDescriptor> getDependencies() {
+		return mDependencies;
+	}
+
+	/**
+	 * Gets the dependency level of the type, which is one more than the
+	 * highest level of its dependencies.
+	 * @return The dependency level.
+	 */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * Checks whether the entities are synced with Box.
+	 * @return Whether or not the entities are synced.
+	 */
+	public boolean isSynced() {
+		return mScope != Scope.LOCAL && mType != null;
+	}
+
+	/**
+	 * Checks whether the entities are stored in the folder of a community.
+	 * @return Whether or not the entities belong to a community.
+	 */
+	public boolean isCommunityScoped() {
+		return mScope == Scope.COMMUNITY || mScope == Scope.COMMUNITY_ENTITY;
+	}
+
+	/**
+	 * Gets the local ID of the community of an entity.
+	 * @param entity An entity of the type.
+	 * @return The local ID of the community, or -1 if the entity does not
+	 * belong to a community.
+	 */
+	public long getCommunityId(Entity entity) {
+		return (mScope == Scope.COMMUNITY ? entity.getId() : -1);
+	}
+
+	/**
+	 * Gets the global ID of the community of an entity.
+	 * @param entity An entity of the type.
+	 * @return The global ID of the community, or <code>null</code> if the
+	 * entity does not belong to a community.
+	 */
+	public String getCommunityGlobalId(Entity entity) {
+		return (mScope == Scope.COMMUNITY ? entity.getGlobalId() : null);
+	}
+
+	@Override
+	public String toString() {
+		return mName;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Rolling history of the metrics of the most recent syncs. Once the history
+ * holds {@link #MAX_ENTRIES} syncs, the oldest sync is dropped for every new
+ * one.
+ *
+ * @author Kato
+ */
+public class BoxSyncHistory extends SQLiteOpenHelper {
+
+	private static final String TAG = "BoxSyncHistory";
+
+	private static final String DATABASE_NAME = "box_sync_history.db";
+	private static final int DATABASE_VERSION = 1;
+
+	/** The number of syncs kept in the history. */
+	public static final int MAX_ENTRIES = 50;
+
+	/** The table holding one row per sync. */
+	public static final String TABLE_SYNCS = "syncs";
+	/** The ID of the sync. */
+	public static final String COLUMN_ID = "_id";
+	/** The time (in milliseconds since the epoch) the sync started. */
+	public static final String COLUMN_STARTED = "started";
+	/** The duration (in milliseconds) of the sync. */
+	public static final String COLUMN_DURATION = "duration";
+	/** The name of the synced account. */
+	public static final String COLUMN_ACCOUNT = "account";
+	/** The direction and scope of the sync. */
+	public static final String COLUMN_REQUEST = "request";
+	/** The error terminating the sync, or <code>null</code>. */
+	public static final String COLUMN_ERROR = "error";
+	/** The number of entities scanned. */
+	public static final String COLUMN_SCANNED = "scanned";
+	/** The number of entities uploaded. */
+	public static final String COLUMN_UPLOADED = "uploaded";
+	/** The number of entities downloaded. */
+	public static final String COLUMN_DOWNLOADED = "downloaded";
+	/** The number of entities skipped. */
+	public static final String COLUMN_SKIPPED = "skipped";
+	/** The number of entities which failed to sync. */
+	public static final String COLUMN_FAILED = "failed";
+	/** The number of attempted calls to Box. */
+	public static final String COLUMN_BOX_CALLS = "box_calls";
+	/** The number of failed attempts of calls to Box. */
+	public static final String COLUMN_BOX_FAILURES = "box_failures";
+	/** The number of bytes uploaded. */
+	public static final String COLUMN_BYTES_UPLOADED = "bytes_uploaded";
+	/** The number of bytes downloaded. */
+	public static final String COLUMN_BYTES_DOWNLOADED = "bytes_downloaded";
+	/** The number of queries made to the SocialProvider. */
+	public static final String COLUMN_DB_QUERIES = "db_queries";
+	/** The number of writes made to the SocialProvider. */
+	public static final String COLUMN_DB_WRITES = "db_writes";
+	/** The durations of the phases of the sync. */
+	public static final String COLUMN_PHASES = "phases";
+	/** The statistics of the Box endpoints called. */
+	public static final String COLUMN_ENDPOINTS = "endpoints";
+
+	private static final String TABLE_SYNCS_CREATE =
+			"CREATE TABLE " + TABLE_SYNCS + " (" +
+			COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			COLUMN_STARTED + " INTEGER NOT NULL, " +
+			COLUMN_DURATION + " INTEGER NOT NULL, " +
+			COLUMN_ACCOUNT + " TEXT, " +
+			COLUMN_REQUEST + " TEXT, " +
+			COLUMN_ERROR + " TEXT, " +
+			COLUMN_SCANNED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_UPLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_DOWNLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_SKIPPED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_FAILED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_BOX_CALLS + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_BOX_FAILURES + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_BYTES_UPLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_BYTES_DOWNLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_DB_QUERIES + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_DB_WRITES + " INTEGER NOT NULL DEFAULT 0, " +
+			COLUMN_PHASES + " TEXT, " +
+			COLUMN_ENDPOINTS + " TEXT)";
+
+	/**
+	 * Initializes a new sync history.
+	 * @param context The context to operate in.
+	 */
+	public BoxSyncHistory(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(TABLE_SYNCS_CREATE);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.i(TAG, "Upgrading sync history from version " + oldVersion + " to " + newVersion);
+
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNCS);
+		onCreate(db);
+	}
+
+	/**
+	 * Adds a finished sync to the history, dropping the oldest syncs beyond
+	 * {@link #MAX_ENTRIES}.
+	 * @param account The name of the synced account.
+	 * @param request The direction and scope of the sync.
+	 * @param metrics The metrics of the sync.
+	 * @param error The error terminating the sync, or <code>null</code>.
+	 */
+	public synchronized void add(
+			String account, String request, BoxSyncMetrics metrics, String error) {
+		BoxGateway.Stats boxStats = metrics.getBoxStats();
+
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_STARTED, metrics.getStartTime());
+		values.put(COLUMN_DURATION, metrics.getDuration());
+		values.put(COLUMN_ACCOUNT, account);
+		values.put(COLUMN_REQUEST, request);
+		values.put(COLUMN_ERROR, error);
+		values.put(COLUMN_SCANNED, metrics.getScanned());
+		values.put(COLUMN_UPLOADED, metrics.getUploaded());
+		values.put(COLUMN_DOWNLOADED, metrics.getDownloaded());
+		values.put(COLUMN_SKIPPED, metrics.getSkipped());
+		values.put(COLUMN_FAILED, metrics.getFailed());
+		values.put(COLUMN_BOX_CALLS, boxStats.calls);
+		values.put(COLUMN_BOX_FAILURES, boxStats.failures);
+		values.put(COLUMN_BYTES_UPLOADED, boxStats.bytesUploaded);
+		values.put(COLUMN_BYTES_DOWNLOADED, boxStats.bytesDownloaded);
+		values.put(COLUMN_DB_QUERIES, metrics.getDatabaseQueries());
+		values.put(COLUMN_DB_WRITES, metrics.getDatabaseWrites());
+		values.put(COLUMN_PHASES, metrics.formatPhases());
+		values.put(COLUMN_ENDPOINTS, boxStats.formatEndpoints());
+
+		SQLiteDatabase db = getWritableDatabase();
+		long id = db.insert(TABLE_SYNCS, null, values);
+
+		db.delete(
+				TABLE_SYNCS,
+				COLUMN_ID + " <= ?",
+				new String[] { String.valueOf(id - MAX_ENTRIES) });
+	}
+
+	/**
+	 * Queries the most recent syncs, newest first. The caller is responsible
+	 * for closing the cursor.
+	 * @param limit The maximum number of syncs to return.
+	 * @return A cursor over the syncs, with the <code>COLUMN_*</code> columns.
+	 */
+	public synchronized Cursor getRecentSyncs(int limit) {
+		return getReadableDatabase().query(
+				TABLE_SYNCS, null, null, null, null, null,
+				COLUMN_ID + " DESC", String.valueOf(limit));
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Metrics of a single sync: the duration of every phase, the number of
+ * entities scanned, uploaded, downloaded, skipped and failed, the calls made
+ * to Box and the queries made to the SocialProvider. The entity counters are
+ * updated by the operations running in the background, so all methods are
+ * thread safe.
+ *
+ * @author Kato
+ */
+public class BoxSyncMetrics {
+
+	private long mStartTime;
+	private long mStartRealtime;
+	private long mDuration;
+	private Map<String, Long> mPhases;
+	private String mCurrentPhase;
+	private long mPhaseStart;
+
+	private int mScanned;
+	private int mUploaded;
+	private int mDownloaded;
+	private int mSkipped;
+	private int mFailed;
+
+	private BoxGateway.Stats mBoxStats;
+	private int mDatabaseQueries;
+	private int mDatabaseWrites;
+
+	/**
+	 * Initializes the metrics of a sync starting now.
+	 */
+	public BoxSyncMetrics() {
+		mStartTime = System.currentTimeMillis();
+		mStartRealtime = SystemClock.elapsedRealtime();
+		mDuration = -1;
+		mPhases = new LinkedHashMap<String, Long>();
+		mCurrentPhase = null;
+		mBoxStats = new BoxGateway.Stats();
+	}
+
+	/**
+	 * Ends the current phase, if any, and starts a new one. A phase entered
+	 * more than once accumulates its durations.
+	 * @param name The name of the phase.
+	 */
+	public synchronized void startPhase(String name) {
+		endPhase();
+
+		mCurrentPhase = name;
+		mPhaseStart = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Ends the current phase.
+	 */
+	public synchronized void endPhase() {
+		if (mCurrentPhase == null)
+			return;
+
+		long duration = SystemClock.elapsedRealtime() - mPhaseStart;
+		Long previous = mPhases.get(mCurrentPhase);
+		mPhases.put(mCurrentPhase, (previous != null ? previous : 0) + duration);
+
+		mCurrentPhase = null;
+	}
+
+	/**
+	 * Ends the current phase and the sync.
+	 */
+	public synchronized void finish() {
+		endPhase();
+
+		mDuration = SystemClock.elapsedRealtime() - mStartRealtime;
+	}
+
+	/**
+	 * Adds to the number of local entities scanned for changes.
+	 * @param count The number of entities.
+	 */
+	public synchronized void addScanned(int count) {
+		mScanned += count;
+	}
+
+	/**
+	 * Adds to the number of entities uploaded to Box.
+	 * @param count The number of entities.
+	 */
+	public synchronized void addUploaded(int count) {
+		mUploaded += count;
+	}
+
+	/**
+	 * Adds to the number of entities downloaded from Box and stored locally.
+	 * @param count The number of entities.
+	 */
+	public synchronized void addDownloaded(int count) {
+		mDownloaded += count;
+	}
+
+	/**
+	 * Adds to the number of entities skipped, either because they were
+	 * unchanged or because they could not be synced yet.
+	 * @param count The number of entities.
+	 */
+	public synchronized void addSkipped(int count) {
+		mSkipped += count;
+	}
+
+	/**
+	 * Adds to the number of entities which failed to sync.
+	 * @param count The number of entities.
+	 */
+	public synchronized void addFailed(int count) {
+		mFailed += count;
+	}
+
+	/**
+	 * Sets the statistics of the calls made to Box during the sync.
+	 * @param stats The statistics of the gateway.
+	 */
+	public synchronized void setBoxStats(BoxGateway.Stats stats) {
+		mBoxStats = stats;
+	}
+
+	/**
+	 * Sets the number of queries and writes made to the SocialProvider
+	 * during the sync.
+	 * @param queries The number of queries.
+	 * @param writes The number of inserts, updates and deletes.
+	 */
+	public synchronized void setDatabaseCounts(int queries, int writes) {
+		mDatabaseQueries = queries;
+		mDatabaseWrites = writes;
+	}
+
+	/**
+	 * Gets the time the sync started.
+	 * @return The time (in milliseconds since the epoch) the sync started.
+	 */
+	public synchronized long getStartTime() {
+		return mStartTime;
+	}
+
+	/**
+	 * Gets the duration of the sync.
+	 * @return The duration (in milliseconds), or -1 if the sync is not finished.
+	 */
+	public synchronized long getDuration() {
+		return mDuration;
+	}
+
+	/**
+	 * Gets the durations of the phases, in the order they were started.
+	 * @return A mapping between phase name and duration (in milliseconds).
+	 */
+	public synchronized Map<String, Long> getPhases() {
+		return new LinkedHashMap<String, Long>(mPhases);
+	}
+
+	/**
+	 * Gets the number of local entities scanned for changes.
+	 * @return The number of entities.
+	 */
+	public synchronized int getScanned() {
+		return mScanned;
+	}
+
+	/**
+	 * Gets the number of entities uploaded to Box.
+	 * @return The number of entities.
+	 */
+	public synchronized int getUploaded() {
+		return mUploaded;
+	}
+
+	/**
+	 * Gets the number of entities downloaded from Box and stored locally.
+	 * @return The number of entities.
+	 */
+	public synchronized int getDownloaded() {
+		return mDownloaded;
+	}
+
+	/**
+	 * Gets the number of entities skipped.
+	 * @return The number of entities.
+	 */
+	public synchronized int getSkipped() {
+		return mSkipped;
+	}
+
+	/**
+	 * Gets the number of entities which failed to sync.
+	 * @return The number of entities.
+	 */
+	public synchronized int getFailed() {
+		return mFailed;
+	}
+
+	/**
+	 * Gets the statistics of the calls made to Box.
+	 * @return The statistics of the gateway.
+	 */
+	public synchronized BoxGateway.Stats getBoxStats() {
+		return mBoxStats;
+	}
+
+	/**
+	 * Gets the number of queries made to the SocialProvider.
+	 * @return The number of queries.
+	 */
+	public synchronized int getDatabaseQueries() {
+		return mDatabaseQueries;
+	}
+
+	/**
+	 * Gets the number of inserts, updates and deletes made to the SocialProvider.
+	 * @return The number of writes.
+	 */
+	public synchronized int getDatabaseWrites() {
+		return mDatabaseWrites;
+	}
+
+	/**
+	 * Formats the durations of the phases.
+	 * @return The durations, e.g. <code>pull=120ms, push=45ms</code>.
+	 */
+	public synchronized String formatPhases() {
+		StringBuilder builder = new StringBuilder();
+
+		for (Map.Entry<String, Long> phase : mPhases.entrySet()) {
+			if (builder.length() > 0)
+				builder.append(", ");
+			builder.append(phase.getKey()).append('=').append(phase.getValue()).append("ms");
+		}
+
+		return builder.toString();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "duration=" + mDuration + "ms, scanned=" + mScanned + ", uploaded=" + mUploaded +
+				", downloaded=" + mDownloaded + ", skipped=" + mSkipped + ", failed=" + mFailed +
+				", db_queries=" + mDatabaseQueries + ", db_writes=" + mDatabaseWrites +
+				", bytes_up=" + mBoxStats.bytesUploaded +
+				", bytes_down=" + mBoxStats.bytesDownloaded;
+	}
+}
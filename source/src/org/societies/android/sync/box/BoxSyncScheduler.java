@@ -0,0 +1,162 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import org.societies.android.box.BoxConstants;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Adapts the interval of the periodic sync to the rate of changes. The
+ * interval is doubled after every sync without any local or remote changes,
+ * and reset to the minimum interval as soon as changes appear. Every account
+ * backs off on its own, as accounts are synced independently. Both bounds
+ * are set in the account preferences and shared by all accounts.
+ *
+ * @author Kato
+ */
+public class BoxSyncScheduler {
+
+	private static final String TAG = "BoxSyncScheduler";
+
+	/** The factor by which the interval grows after an idle sync. */
+	public static final int BACKOFF_FACTOR = 2;
+
+	private SharedPreferences mPreferences;
+
+	/**
+	 * Initializes a new sync scheduler.
+	 * @param preferences The Box preferences.
+	 */
+	public BoxSyncScheduler(SharedPreferences preferences) {
+		mPreferences = preferences;
+	}
+
+	/**
+	 * Gets the minimum interval between periodic syncs.
+	 * @return The minimum interval (in seconds).
+	 */
+	public long getMinInterval() {
+		return Math.max(1, mPreferences.getLong(
+				BoxConstants.PREFERENCE_SYNC_INTERVAL_MIN,
+				BoxConstants.ACCOUNT_SYNC_FREQUENCY));
+	}
+
+	/**
+	 * Gets the maximum interval between periodic syncs.
+	 * @return The maximum interval (in seconds).
+	 */
+	public long getMaxInterval() {
+		return Math.max(getMinInterval(), mPreferences.getLong(
+				BoxConstants.PREFERENCE_SYNC_INTERVAL_MAX,
+				BoxConstants.ACCOUNT_SYNC_FREQUENCY_MAX));
+	}
+
+	/**
+	 * Gets the current interval between periodic syncs of an account.
+	 * Accounts without an interval of their own fall back to the interval
+	 * shared by all accounts in older versions.
+	 * @param account The account.
+	 * @return The current interval (in seconds).
+	 */
+	public long getInterval(Account account) {
+		long interval = mPreferences.getLong(getIntervalKey(account), mPreferences.getLong(
+				BoxConstants.PREFERENCE_SYNC_INTERVAL, getMinInterval()));
+
+		return Math.min(getMaxInterval(), Math.max(getMinInterval(), interval));
+	}
+
+	/**
+	 * Gets the time within which a periodic sync following the previous one
+	 * is skipped.
+	 * @return The throttle interval (in seconds).
+	 */
+	public long getThrottleInterval() {
+		return getMinInterval() * 2 / 3;
+	}
+
+	/**
+	 * Adapts the periodic sync of the specified account to the number of
+	 * changes of the completed sync.
+	 * @param account The synced account.
+	 * @param authority The synced authority.
+	 * @param changeCount The number of local and remote changes synced.
+	 * @return The new interval (in seconds).
+	 */
+	public synchronized long onSyncCompleted(Account account, String authority, int changeCount) {
+		long interval = getInterval(account);
+		long nextInterval;
+
+		if (changeCount > 0)
+			nextInterval = getMinInterval();
+		else
+			nextInterval = Math.min(getMaxInterval(), interval * BACKOFF_FACTOR);
+
+		if (nextInterval != mPreferences.getLong(getIntervalKey(account), -1)) {
+			Log.i(TAG, "Changing sync interval of " + account.name + " from " + interval +
+					" to " + nextInterval + " seconds (" + changeCount + " changes).");
+
+			mPreferences.edit().putLong(getIntervalKey(account), nextInterval).commit();
+			ContentResolver.addPeriodicSync(account, authority, new Bundle(), nextInterval);
+		}
+
+		return nextInterval;
+	}
+
+	/**
+	 * Sets the bounds of the sync interval, and resets the periodic sync of
+	 * the specified accounts to the new minimum interval.
+	 * @param preferences The Box preferences.
+	 * @param minInterval The minimum interval (in seconds).
+	 * @param maxInterval The maximum interval (in seconds).
+	 * @param accounts The Box accounts.
+	 * @param authority The synced authority.
+	 */
+	public static void setBounds(
+			SharedPreferences preferences,
+			long minInterval,
+			long maxInterval,
+			Account[] accounts,
+			String authority) {
+		minInterval = Math.max(1, minInterval);
+		maxInterval = Math.max(minInterval, maxInterval);
+
+		SharedPreferences.Editor editor = preferences.edit()
+				.putLong(BoxConstants.PREFERENCE_SYNC_INTERVAL_MIN, minInterval)
+				.putLong(BoxConstants.PREFERENCE_SYNC_INTERVAL_MAX, maxInterval)
+				.remove(BoxConstants.PREFERENCE_SYNC_INTERVAL);
+
+		for (Account account : accounts)
+			editor.putLong(getIntervalKey(account), minInterval);
+		editor.commit();
+
+		for (Account account : accounts)
+			ContentResolver.addPeriodicSync(account, authority, new Bundle(), minInterval);
+	}
+
+	/**
+	 * Gets the preference key of the current interval of an account.
+	 * @param account The account.
+	 * @return The preference key.
+	 */
+	private static String getIntervalKey(Account account) {
+		return BoxConstants.PREFERENCE_SYNC_INTERVAL + "_" + account.name;
+	}
+}
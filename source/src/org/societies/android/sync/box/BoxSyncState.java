@@ -0,0 +1,261 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.societies.android.api.cis.SocialContract;
+import org.societies.android.platform.SyncState;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * The sync state of a Box account, as kept by the SocialProvider. The
+ * account row holds the time up to which the Box updates of the account have
+ * been applied. The rows of a community or account folder hold the generation
+ * and the hash tree digest of the manifest the folder was last reconciled
+ * with, either for all tables or per table.
+ *
+ * The rows of a folder are written in the same batch as the entities
+ * downloaded while reconciling it, so that an interrupted sync resumes with
+ * the folders it did not complete.
+ *
+ * @author Kato
+ */
+public class BoxSyncState {
+
+	private static final String[] PROJECTION = {
+		SyncState.TABLE, SyncState.WATERMARK, SyncState.SEQUENCE, SyncState.CURSOR
+	};
+
+	private ContentResolver mResolver;
+	private String mAccountType;
+	private String mAccountName;
+
+	/**
+	 * Initializes the sync state of an account.
+	 * @param resolver The content resolver.
+	 * @param accountType The type of the account.
+	 * @param accountName The name of the account.
+	 */
+	public BoxSyncState(ContentResolver resolver, String accountType, String accountName) {
+		mResolver = resolver;
+		mAccountType = accountType;
+		mAccountName = accountName;
+	}
+
+	/**
+	 * Gets the time up to which the Box updates of the account have been applied.
+	 * @return The Unix time (in seconds) of the watermark, 0 if the account
+	 * has not been synced, or -1 if the account has no sync state yet.
+	 */
+	public long getWatermark() {
+		Row row = getRows(SyncState.ALL).get(SyncState.ALL);
+
+		return (row != null ? row.mWatermark : -1);
+	}
+
+	/**
+	 * Sets the time up to which the Box updates of the account have been applied.
+	 * @param watermark The Unix time (in seconds) of the watermark.
+	 */
+	public void setWatermark(long watermark) {
+		mResolver.insert(
+				SyncState.CONTENT_URI,
+				getValues(SyncState.ALL, SyncState.ALL, watermark, -1, null));
+	}
+
+	/**
+	 * Checks whether a folder has been reconciled with the specified
+	 * manifest, for all the specified tables.
+	 * @param folderId The ID of the community or account folder.
+	 * @param tables The paths of the tables, or <code>null</code> for all tables.
+	 * @param generation The generation of the manifest.
+	 * @param digest The digest of the hash tree of the manifest.
+	 * @return Whether or not the folder is reconciled with the manifest.
+	 */
+	public boolean isReconciled(long folderId, Set<String> tables, long generation, String digest) {
+		Map<String, Row> rows = getRows(String.valueOf(folderId));
+
+		if (isReconciled(rows.get(SyncState.ALL), generation, digest))
+			return true;
+		else if (tables == null)
+			return false;
+
+		for (String table : tables)
+			if (!isReconciled(rows.get(table), generation, digest))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Gets the writes recording that a folder has been reconciled with the
+	 * specified manifest, to be applied together with the entities downloaded
+	 * while reconciling.
+	 * @param folderId The ID of the community or account folder.
+	 * @param tables The paths of the reconciled tables, or <code>null</code>
+	 * if all tables were reconciled.
+	 * @param generation The generation of the manifest.
+	 * @param digest The digest of the hash tree of the manifest.
+	 * @return The write operations.
+	 */
+	public List<ContentProviderOperation> newReconciledWrites(
+			long folderId, Set<String> tables, long generation, String digest) {
+		List<ContentProviderOperation> writes = new ArrayList<ContentProviderOperation>();
+		String community = String.valueOf(folderId);
+
+		if (tables == null)
+			writes.add(newWrite(SyncState.ALL, community, generation, digest));
+		else
+			for (String table : tables)
+				writes.add(newWrite(table, community, generation, digest));
+
+		return writes;
+	}
+
+	/**
+	 * Applies the specified writes of the sync state.
+	 * @param writes The write operations.
+	 * @throws Exception If an error occurs while writing.
+	 */
+	public void apply(List<ContentProviderOperation> writes) throws Exception {
+		mResolver.applyBatch(
+				SocialContract.AUTHORITY.getAuthority(),
+				new ArrayList<ContentProviderOperation>(writes));
+	}
+
+	/**
+	 * Resets the sync state of the account, so that the next sync fetches
+	 * all the updates and reconciles every folder.
+	 */
+	public void clear() {
+		mResolver.delete(
+				SyncState.CONTENT_URI,
+				SyncState.ACCOUNT_TYPE + " = ? AND " + SyncState.ACCOUNT_NAME + " = ?",
+				new String[] { mAccountType, mAccountName });
+
+		setWatermark(0);
+	}
+
+	/**
+	 * Checks whether a row records a reconcile with the specified manifest.
+	 * @param row The row, or <code>null</code>.
+	 * @param generation The generation of the manifest.
+	 * @param digest The digest of the hash tree of the manifest.
+	 * @return Whether or not the row matches the manifest.
+	 */
+	private static boolean isReconciled(Row row, long generation, String digest) {
+		return row != null && row.mSequence == generation && digest.equals(row.mCursor);
+	}
+
+	/**
+	 * Gets the operation writing the row of a folder and table.
+	 * @param table The path of the table, or {@link SyncState#ALL}.
+	 * @param community The ID of the folder.
+	 * @param generation The generation of the manifest.
+	 * @param digest The digest of the hash tree of the manifest.
+	 * @return The write operation.
+	 */
+	private ContentProviderOperation newWrite(
+			String table, String community, long generation, String digest) {
+		return ContentProviderOperation.newInsert(SyncState.CONTENT_URI)
+				.withValues(getValues(table, community, 0, generation, digest))
+				.build();
+	}
+
+	/**
+	 * Gets the values of a row of the account.
+	 * @param table The path of the table, or {@link SyncState#ALL}.
+	 * @param community The ID of the folder, or {@link SyncState#ALL}.
+	 * @param watermark The watermark.
+	 * @param sequence The sequence number.
+	 * @param cursor The cursor, or <code>null</code>.
+	 * @return The values of the row.
+	 */
+	private ContentValues getValues(
+			String table, String community, long watermark, long sequence, String cursor) {
+		ContentValues values = new ContentValues();
+
+		values.put(SyncState.ACCOUNT_TYPE, mAccountType);
+		values.put(SyncState.ACCOUNT_NAME, mAccountName);
+		values.put(SyncState.TABLE, table);
+		values.put(SyncState.COMMUNITY, community);
+		values.put(SyncState.WATERMARK, watermark);
+		values.put(SyncState.SEQUENCE, sequence);
+		values.put(SyncState.CURSOR, cursor);
+
+		return values;
+	}
+
+	/**
+	 * Gets the rows of the account for the specified community.
+	 * @param community The ID of the folder, or {@link SyncState#ALL}.
+	 * @return A mapping between table path and row.
+	 */
+	private Map<String, Row> getRows(String community) {
+		Map<String, Row> rows = new HashMap<String, Row>();
+
+		Cursor cursor = mResolver.query(
+				SyncState.CONTENT_URI,
+				PROJECTION,
+				SyncState.ACCOUNT_TYPE + " = ? AND " + SyncState.ACCOUNT_NAME + " = ? AND " +
+				SyncState.COMMUNITY + " = ?",
+				new String[] { mAccountType, mAccountName, community },
+				null);
+
+		if (cursor == null)
+			return rows;
+
+		try {
+			while (cursor.moveToNext())
+				rows.put(cursor.getString(0), new Row(
+						cursor.getLong(1), cursor.getLong(2), cursor.getString(3)));
+		} finally {
+			cursor.close();
+		}
+
+		return rows;
+	}
+
+	/**
+	 * A row of the sync state.
+	 */
+	private static class Row {
+		private long mWatermark;
+		private long mSequence;
+		private String mCursor;
+
+		/**
+		 * Initializes a new row.
+		 * @param watermark The watermark.
+		 * @param sequence The sequence number.
+		 * @param cursor The cursor, or <code>null</code>.
+		 */
+		public Row(long watermark, long sequence, String cursor) {
+			mWatermark = watermark;
+			mSequence = sequence;
+			mCursor = cursor;
+		}
+	}
+}
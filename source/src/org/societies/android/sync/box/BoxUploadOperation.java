@@ -18,18 +18,15 @@ package org.societies.android.sync.box;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
-import org.societies.android.box.BoxConstants;
 import org.societies.android.platform.entity.Entity;
 
 import android.content.ContentResolver;
 import android.util.Log;
 
 import com.box.androidlib.Box;
-import com.box.androidlib.BoxSynchronous;
-import com.box.androidlib.DAO.BoxFile;
 import com.box.androidlib.ResponseListeners.FileUploadListener;
-import com.box.androidlib.ResponseListeners.RenameListener;
 import com.box.androidlib.ResponseParsers.FileResponseParser;
 
 /**
@@ -42,19 +39,23 @@ public class BoxUploadOperation extends Thread {
 	private static final String TAG = "BoxUploadOperation";
 	
 	private Entity mEntity;
-	private BoxSynchronous mBoxInstance;
+	private BoxGateway mGateway;
 	private String mAuthToken;
 	private ContentResolver mResolver;
 	private long mTargetId;
 	private String mFileName;
+	private BoxHandler mBoxHandler;
+	private BoxJournal.Entry mJournalEntry;
 	
 	/**
 	 * Initializes an upload operation.
 	 * @param entity The entity to upload.
 	 * @param fileName The name of the file to upload to, or <code>null</code>
-	 * if the file name should be generated.
+	 * to overwrite the Box file of the entity.
 	 * @param targetId The ID of the folder to upload to.
 	 * @param authToken The authentication token.
+	 * @param boxHandler The BoxHandler instance.
+	 * @param journalEntry The journal entry of the operation.
 	 * @param resolver The content resolver.
 	 */
 	public BoxUploadOperation(
@@ -62,11 +63,15 @@ public class BoxUploadOperation extends Thread {
 			String fileName,
 			long targetId,
 			String authToken,
+			BoxHandler boxHandler,
+			BoxJournal.Entry journalEntry,
 			ContentResolver resolver) {
 		mEntity = entity;
+		mBoxHandler = boxHandler;
+		mJournalEntry = journalEntry;
 		mFileName = fileName;
 		mTargetId = targetId;
-		mBoxInstance = BoxSynchronous.getInstance(BoxConstants.API_KEY);
+		mGateway = boxHandler.getGateway();
 		mAuthToken = authToken;
 		mResolver = resolver;
 	}
@@ -74,70 +79,74 @@ public class BoxUploadOperation extends Thread {
 	@Override
 	public void run() {
 		try {
+			mBoxHandler.getCancellationToken().throwIfCancelled();
+			
 			uploadEntity();
+			mBoxHandler.getMetrics().addUploaded(1);
+		} catch (InterruptedIOException e) {
+			Log.i(TAG, "Upload cancelled: " + e.getMessage());
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
+			mBoxHandler.getMetrics().addFailed(1);
 		}
 	}
 	
 	/**
-	 * Uploads the entity to a file.
+	 * Uploads the entity to a file. Without a file name, the entity is
+	 * stored in a Box file of its own, named after its global ID, which is
+	 * overwritten. Entities without a Box file are packed by the Box handler
+	 * and never get here.
 	 * @throws IOException If an error occurs while uploading.
 	 */
 	private void uploadEntity() throws IOException {
-		long fileId = -1;
+		String uploadAction = Box.UPLOAD_ACTION_UPLOAD;
+		String fileName = mFileName;
+		long destinationId = mTargetId;
 		
-		String uploadAction = Box.UPLOAD_ACTION_OVERWRITE;
 		if (mFileName == null) {
-			try {
-				fileId = Long.parseLong(mEntity.getGlobalId());
-			} catch (NumberFormatException e) {
-				uploadAction = Box.UPLOAD_ACTION_UPLOAD;
-			}
-			mEntity.setGlobalId(null);
-		} else {
-			uploadAction = Box.UPLOAD_ACTION_UPLOAD;
+			if (!BoxHandler.isRemoteFileId(mEntity.getGlobalId()))
+				throw new IOException("Entity has no Box file: " + mEntity.getGlobalId());
+			
+			uploadAction = Box.UPLOAD_ACTION_OVERWRITE;
+			destinationId = Long.parseLong(mEntity.getGlobalId());
+			fileName = String.format(
+					BoxHandler.ENTITY_FILE_NAME_FORMAT,
+					BoxEntityType.forEntity(mEntity).getCode(),
+					mEntity.getGlobalId());
 		}
 		
+		mEntity.setSyncVersion(
+				BoxVersion.of(mEntity).increment(mBoxHandler.getDeviceId()).toString());
+		
+		String serialized = mEntity.serialize();
 		FileResponseParser response = upload(
 				uploadAction,
-				mEntity.serialize(),
-				(mFileName == null ? String.valueOf(mEntity.hashCode()) : mFileName),
-				(fileId != -1 ? fileId : mTargetId));
+				serialized,
+				fileName,
+				destinationId);
 		
 		if (response.getStatus().equals(FileUploadListener.STATUS_UPLOAD_OK)) {
-			if (mFileName == null) {
-				fileId = response.getFile().getId();
-				mEntity.setGlobalId(String.valueOf(fileId));
-				renameFile(response.getFile());
-			}
+			fileName = response.getFile().getFileName();
 			
+			mEntity.setSyncHash(BoxManifest.hash(serialized));
 			mEntity.setDirty(0);
 			mEntity.update(mResolver);
+			
+			mBoxHandler.getJournal().remove(mJournalEntry);
+			mBoxHandler.recordManifestEntry(
+					mTargetId,
+					mEntity.getGlobalId(),
+					new BoxManifest.Entry(
+							BoxEntityType.forEntity(mEntity).getCode(),
+							mEntity.getSyncHash(),
+							response.getFile().getId(),
+							fileName,
+							false));
 		} else {
 			throw new IOException("Failed to upload entity: " + response.getStatus());
 		}
 	}
 	
-	/**
-	 * Renames the specified file.
-	 * @param file The file to rename.
-	 * @throws IOException If an error occurs while renaming.
-	 */
-	private void renameFile(BoxFile file) throws IOException {
-		String status = mBoxInstance.rename(
-				mAuthToken,
-				Box.TYPE_FILE,
-				file.getId(),
-				String.format(
-						BoxHandler.ENTITY_FILE_NAME_FORMAT,
-						mEntity.getClass().getName(),
-						file.getId()));
-		
-		if (!status.equals(RenameListener.STATUS_S_RENAME_NODE))
-			throw new IOException("Failed to rename file: " + file.getFileName());
-	}
-	
 	/**
 	 * Uploads the specified content to a file.
 	 * @param action The action to perform (see Box.upload() doc).
@@ -152,24 +161,27 @@ public class BoxUploadOperation extends Thread {
 			String content,
 			String name,
 			long destinationId) throws IOException {
-		return mBoxInstance.upload(
+		return mGateway.upload(
 				mAuthToken,
 				action,
 				createInputStream(content),
 				name,
-				destinationId,
-				null,
-				null);
+				destinationId);
 	}
 	
 	/**
-	 * Creates an input stream containing the specified string.
+	 * Creates an input stream containing the specified string, compressed if
+	 * compression is enabled.
 	 * @param content The content of the stream.
 	 * @return An input stream containing the specified string.
+	 * @throws IOException If the content cannot be encoded.
 	 */
-	private InputStream createInputStream(String content) {
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes());
+	private InputStream createInputStream(String content) throws IOException {
+		byte[] bytes = content.getBytes("UTF-8");
+		
+		if (mBoxHandler.isCompressionEnabled())
+			bytes = BoxCompression.compress(bytes);
 		
-		return inputStream;
+		return new ByteArrayInputStream(bytes);
 	}
 }
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.societies.android.platform.entity.Entity;
+
+/**
+ * Version vector of an entity, counting the changes every device has
+ * uploaded. Comparing the version of a downloaded entity with the local one
+ * tells whether the download is newer, older, or was changed concurrently
+ * with the local entity. Concurrent changes are resolved the same way on
+ * every device: the last modified entity wins, and ties are broken by
+ * comparing the versions themselves. The winner carries the merged version,
+ * which supersedes both changes, so that a conflict is resolved once.
+ *
+ * A version is serialized as <code>device:count</code> pairs separated by
+ * commas, sorted by device ID.
+ *
+ * @author Kato
+ */
+public final class BoxVersion {
+
+	/**
+	 * The order of two versions.
+	 */
+	public enum Order {
+		/** The versions are the same. */
+		EQUAL,
+		/** The version precedes the other one. */
+		BEFORE,
+		/** The version follows the other one. */
+		AFTER,
+		/** The versions were changed concurrently. */
+		CONCURRENT
+	}
+
+	private static final String PAIR_SEPARATOR = ",";
+	private static final String COUNT_SEPARATOR = ":";
+
+	private final TreeMap<String, Long> mCounts;
+
+	/**
+	 * Initializes a new version with the specified counts.
+	 * @param counts A mapping between device ID and change count.
+	 */
+	private BoxVersion(TreeMap<String, Long> counts) {
+		mCounts = counts;
+	}
+
+	/**
+	 * Parses a serialized version. Versions which are missing or malformed,
+	 * such as the ones of entities never synced, are parsed as empty.
+	 * @param serialized The serialized version, or <code>null</code>.
+	 * @return The parsed version.
+	 */
+	public static BoxVersion parse(String serialized) {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+
+		if (serialized != null) {
+			for (String pair : serialized.split(PAIR_SEPARATOR)) {
+				int separatorIndex = pair.lastIndexOf(COUNT_SEPARATOR);
+				if (separatorIndex <= 0)
+					continue;
+
+				try {
+					counts.put(
+							pair.substring(0, separatorIndex),
+							Long.parseLong(pair.substring(separatorIndex + 1)));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		}
+
+		return new BoxVersion(counts);
+	}
+
+	/**
+	 * Gets the version of an entity.
+	 * @param entity The entity.
+	 * @return The version of the entity.
+	 */
+	public static BoxVersion of(Entity entity) {
+		return parse(entity.getSyncVersion());
+	}
+
+	/**
+	 * Gets the version following this one after a change made by the
+	 * specified device.
+	 * @param deviceId The ID of the device making the change.
+	 * @return The incremented version.
+	 */
+	public BoxVersion increment(String deviceId) {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>(mCounts);
+		counts.put(deviceId, getCount(deviceId) + 1);
+
+		return new BoxVersion(counts);
+	}
+
+	/**
+	 * Gets the version following both this version and the specified one.
+	 * @param other The version to merge with.
+	 * @return The merged version.
+	 */
+	public BoxVersion merge(BoxVersion other) {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>(mCounts);
+
+		for (Map.Entry<String, Long> count : other.mCounts.entrySet())
+			counts.put(count.getKey(), Math.max(count.getValue(), getCount(count.getKey())));
+
+		return new BoxVersion(counts);
+	}
+
+	/**
+	 * Compares this version with the specified one.
+	 * @param other The version to compare with.
+	 * @return The order of this version relative to the other one.
+	 */
+	public Order compare(BoxVersion other) {
+		boolean isBefore = false;
+		boolean isAfter = false;
+
+		for (Map.Entry<String, Long> count : mCounts.entrySet()) {
+			long otherCount = other.getCount(count.getKey());
+
+			if (count.getValue() < otherCount)
+				isBefore = true;
+			else if (count.getValue() > otherCount)
+				isAfter = true;
+		}
+
+		for (Map.Entry<String, Long> count : other.mCounts.entrySet())
+			if (!mCounts.containsKey(count.getKey()) && count.getValue() > 0)
+				isBefore = true;
+
+		if (isBefore && isAfter)
+			return Order.CONCURRENT;
+		else if (isBefore)
+			return Order.BEFORE;
+		else if (isAfter)
+			return Order.AFTER;
+		else
+			return Order.EQUAL;
+	}
+
+	/**
+	 * Checks whether a change of this version wins over a concurrent change
+	 * of the specified version. The outcome is the same on every device.
+	 * @param other The version of the concurrent change.
+	 * @param lastModified The Unix time (in seconds) of this change.
+	 * @param otherLastModified The Unix time (in seconds) of the concurrent change.
+	 * @return Whether or not this change wins.
+	 */
+	public boolean winsOver(BoxVersion other, long lastModified, long otherLastModified) {
+		if (lastModified != otherLastModified)
+			return lastModified > otherLastModified;
+
+		return toString().compareTo(other.toString()) > 0;
+	}
+
+	/**
+	 * Gets the number of changes the specified device made.
+	 * @param deviceId The ID of the device.
+	 * @return The change count of the device.
+	 */
+	private long getCount(String deviceId) {
+		Long count = mCounts.get(deviceId);
+
+		return (count != null ? count : 0);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof BoxVersion && mCounts.equals(((BoxVersion) o).mCounts);
+	}
+
+	@Override
+	public int hashCode() {
+		return mCounts.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder serialized = new StringBuilder();
+
+		for (Map.Entry<String, Long> count : mCounts.entrySet()) {
+			if (serialized.length() > 0)
+				serialized.append(PAIR_SEPARATOR);
+
+			serialized.append(count.getKey()).append(COUNT_SEPARATOR).append(count.getValue());
+		}
+
+		return serialized.toString();
+	}
+}
@@ -0,0 +1,674 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.sync.box;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.DAO.BoxFile;
+import com.box.androidlib.DAO.BoxFolder;
+import com.box.androidlib.DAO.Update;
+import com.box.androidlib.ResponseListeners.CreateFolderListener;
+import com.box.androidlib.ResponseListeners.DeleteListener;
+import com.box.androidlib.ResponseListeners.FileDownloadListener;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
+import com.box.androidlib.ResponseListeners.GetAccountTreeListener;
+import com.box.androidlib.ResponseListeners.GetFileInfoListener;
+import com.box.androidlib.ResponseListeners.GetUpdatesListener;
+import com.box.androidlib.ResponseListeners.InviteCollaboratorsListener;
+import com.box.androidlib.ResponseListeners.RenameListener;
+import com.box.androidlib.ResponseParsers.AccountTreeResponseParser;
+import com.box.androidlib.ResponseParsers.DefaultResponseParser;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+import com.box.androidlib.ResponseParsers.FolderResponseParser;
+import com.box.androidlib.ResponseParsers.UpdatesResponseParser;
+
+/**
+ * An in-process stand-in for Box, holding folders, files, updates and
+ * collaborators in memory. Every call can be delayed by a configurable
+ * latency and fail at a configurable rate, and the calls and bytes moved
+ * are counted, so that the sync can be tested and benchmarked offline.
+ * Given the same seed and calls, the backend behaves deterministically.
+ *
+ * @author Kato
+ */
+public class FakeBoxBackend implements BoxBackend {
+
+	/** The ID of the first folder or file created. */
+	public static final long FIRST_ID = 1000;
+
+	private Map<Long, FakeFolder> mFolders;
+	private Map<Long, FakeFile> mFiles;
+	private List<Update> mUpdates;
+	private long mNextId;
+
+	private Random mRandom;
+	private long mLatency;
+	private long mLatencyJitter;
+	private double mFailureRate;
+	private int mFailNext;
+	private int mAbortCount;
+
+	private Map<String, Integer> mCallCounts;
+	private long mBytesUploaded;
+	private long mBytesDownloaded;
+
+	/**
+	 * Initializes a new, empty backend without latency or failures.
+	 * @param seed The seed of the latency jitter and failure injection.
+	 */
+	public FakeBoxBackend(long seed) {
+		mFolders = new HashMap<Long, FakeFolder>();
+		mFiles = new LinkedHashMap<Long, FakeFile>();
+		mUpdates = new ArrayList<Update>();
+		mNextId = FIRST_ID;
+
+		mRandom = new Random(seed);
+		mLatency = 0;
+		mLatencyJitter = 0;
+		mFailureRate = 0;
+		mFailNext = 0;
+		mAbortCount = 0;
+
+		mCallCounts = new LinkedHashMap<String, Integer>();
+		mBytesUploaded = 0;
+		mBytesDownloaded = 0;
+
+		FakeFolder root = new FakeFolder();
+		root.id = BoxHandler.BOX_ROOT_FOLDER_ID;
+		root.name = "";
+		root.parentId = -1;
+		mFolders.put(root.id, root);
+	}
+
+	/**
+	 * Sets the latency of every call.
+	 * @param latency The latency (in milliseconds).
+	 * @param jitter The maximum random latency (in milliseconds) added to each call.
+	 */
+	public synchronized void setLatency(long latency, long jitter) {
+		mLatency = latency;
+		mLatencyJitter = jitter;
+	}
+
+	/**
+	 * Sets the rate at which calls fail with an {@link IOException}.
+	 * @param failureRate The failure rate, between 0 and 1.
+	 */
+	public synchronized void setFailureRate(double failureRate) {
+		mFailureRate = failureRate;
+	}
+
+	/**
+	 * Makes the next calls fail with an {@link IOException}.
+	 * @param count The number of calls to fail.
+	 */
+	public synchronized void failNextCalls(int count) {
+		mFailNext = count;
+	}
+
+	/**
+	 * Gets the number of calls made to the specified method, including failed calls.
+	 * @param method The name of the method, e.g. <code>upload</code>.
+	 * @return The number of calls.
+	 */
+	public synchronized int getCallCount(String method) {
+		Integer count = mCallCounts.get(method);
+		return (count == null ? 0 : count);
+	}
+
+	/**
+	 * Gets the total number of calls made, including failed calls.
+	 * @return The total number of calls.
+	 */
+	public synchronized int getCallCount() {
+		int total = 0;
+		for (Integer count : mCallCounts.values())
+			total += count;
+
+		return total;
+	}
+
+	/**
+	 * Gets the number of calls made per method.
+	 * @return A mapping between method name and number of calls.
+	 */
+	public synchronized Map<String, Integer> getCallCounts() {
+		return new LinkedHashMap<String, Integer>(mCallCounts);
+	}
+
+	/**
+	 * Gets the number of bytes uploaded.
+	 * @return The number of bytes uploaded.
+	 */
+	public synchronized long getBytesUploaded() {
+		return mBytesUploaded;
+	}
+
+	/**
+	 * Gets the number of bytes downloaded.
+	 * @return The number of bytes downloaded.
+	 */
+	public synchronized long getBytesDownloaded() {
+		return mBytesDownloaded;
+	}
+
+	/**
+	 * Resets the call and byte counters.
+	 */
+	public synchronized void resetCounters() {
+		mCallCounts.clear();
+		mBytesUploaded = 0;
+		mBytesDownloaded = 0;
+	}
+
+	/**
+	 * Gets the number of files stored.
+	 * @return The number of files.
+	 */
+	public synchronized int getFileCount() {
+		return mFiles.size();
+	}
+
+	/**
+	 * Gets the collaborators of the specified folder.
+	 * @param folderId The ID of the folder.
+	 * @return The email addresses of the collaborators, or <code>null</code>
+	 * if the folder does not exist.
+	 */
+	public synchronized Set<String> getCollaborators(long folderId) {
+		FakeFolder folder = mFolders.get(folderId);
+		return (folder == null ? null : new HashSet<String>(folder.collaborators));
+	}
+
+	public AccountTreeResponseParser getAccountTree(
+			String authToken, long folderId, String[] params) throws IOException {
+		beginCall("getAccountTree");
+
+		final BoxFolder tree;
+		synchronized (this) {
+			List<String> paramList = (params == null ?
+					new ArrayList<String>() : Arrays.asList(params));
+			FakeFolder folder = mFolders.get(folderId);
+
+			tree = (folder == null ? null : toBoxFolder(
+					folder,
+					!paramList.contains(Box.PARAM_ONELEVEL),
+					!paramList.contains(Box.PARAM_NOFILES),
+					true));
+		}
+
+		AccountTreeResponseParser response = new AccountTreeResponseParser() {
+			@Override
+			public BoxFolder getFolder() {
+				return tree;
+			}
+		};
+		response.setStatus(tree != null ?
+				GetAccountTreeListener.STATUS_LISTING_OK : GetAccountTreeListener.STATUS_E_FOLDER_ID);
+
+		return response;
+	}
+
+	public FileResponseParser getFileInfo(String authToken, long fileId) throws IOException {
+		beginCall("getFileInfo");
+
+		FileResponseParser response = new FileResponseParser();
+		synchronized (this) {
+			FakeFile file = mFiles.get(fileId);
+
+			if (file != null) {
+				response.setFile(toBoxFile(file));
+				response.setStatus(GetFileInfoListener.STATUS_S_GET_FILE_INFO);
+			} else {
+				response.setStatus(GetFileInfoListener.STATUS_E_ACCESS_DENIED);
+			}
+		}
+
+		return response;
+	}
+
+	public FolderResponseParser createFolder(
+			String authToken, long parentFolderId, String folderName, boolean share)
+			throws IOException {
+		beginCall("createFolder");
+
+		final BoxFolder result;
+		String status;
+		synchronized (this) {
+			FakeFolder parent = mFolders.get(parentFolderId);
+			FakeFolder existing = (parent == null ? null : findFolder(parentFolderId, folderName));
+
+			if (parent == null) {
+				result = null;
+				status = CreateFolderListener.STATUS_NO_PARENT;
+			} else if (existing != null) {
+				result = toBoxFolder(existing, false, false, false);
+				status = CreateFolderListener.STATUS_S_FOLDER_EXISTS;
+			} else {
+				FakeFolder folder = new FakeFolder();
+				folder.id = mNextId++;
+				folder.name = folderName;
+				folder.parentId = parentFolderId;
+				mFolders.put(folder.id, folder);
+
+				addUpdate("added", parentFolderId, null);
+
+				result = toBoxFolder(folder, false, false, false);
+				status = CreateFolderListener.STATUS_CREATE_OK;
+			}
+		}
+
+		FolderResponseParser response = new FolderResponseParser() {
+			@Override
+			public BoxFolder getFolder() {
+				return result;
+			}
+		};
+		response.setStatus(status);
+
+		return response;
+	}
+
+	public String delete(String authToken, String type, long targetId) throws IOException {
+		beginCall("delete");
+
+		synchronized (this) {
+			if (type.equals(Box.TYPE_FILE) && mFiles.remove(targetId) != null)
+				return DeleteListener.STATUS_S_DELETE_NODE;
+			else if (type.equals(Box.TYPE_FOLDER) && targetId != BoxHandler.BOX_ROOT_FOLDER_ID
+					&& mFolders.containsKey(targetId)) {
+				deleteFolder(targetId);
+				return DeleteListener.STATUS_S_DELETE_NODE;
+			} else
+				return DeleteListener.STATUS_E_DELETE_NODE;
+		}
+	}
+
+	public String rename(String authToken, String type, long targetId, String newName)
+			throws IOException {
+		beginCall("rename");
+
+		synchronized (this) {
+			if (type.equals(Box.TYPE_FILE)) {
+				FakeFile file = mFiles.get(targetId);
+
+				if (file == null)
+					return RenameListener.STATUS_E_NO_TARGET;
+				else if (!file.name.equals(newName) && findFile(file.folderId, newName) != null)
+					return RenameListener.STATUS_E_FILENAME_IN_USE;
+
+				file.name = newName;
+				file.updated = now();
+				addUpdate("updated", file.folderId, file);
+			} else {
+				FakeFolder folder = mFolders.get(targetId);
+
+				if (folder == null)
+					return RenameListener.STATUS_E_NO_TARGET;
+				else if (!folder.name.equals(newName) && findFolder(folder.parentId, newName) != null)
+					return RenameListener.STATUS_E_FILENAME_IN_USE;
+
+				folder.name = newName;
+			}
+
+			return RenameListener.STATUS_S_RENAME_NODE;
+		}
+	}
+
+	public UpdatesResponseParser getUpdates(
+			String authToken, long beginTimeStamp, long endTimeStamp, String[] params)
+			throws IOException {
+		beginCall("getUpdates");
+
+		final ArrayList<Update> updates = new ArrayList<Update>();
+		synchronized (this) {
+			for (Update update : mUpdates) {
+				if (update.getUpdated() >= beginTimeStamp && update.getUpdated() <= endTimeStamp)
+					updates.add(update);
+			}
+		}
+
+		UpdatesResponseParser response = new UpdatesResponseParser() {
+			@Override
+			public ArrayList<Update> getUpdates() {
+				return updates;
+			}
+		};
+		response.setStatus(GetUpdatesListener.STATUS_S_GET_UPDATES);
+
+		return response;
+	}
+
+	public String inviteCollaborators(
+			String authToken,
+			String type,
+			long targetId,
+			long[] userIds,
+			String[] emails,
+			String itemRoleName,
+			boolean resendInvite,
+			boolean noEmail,
+			String[] params) throws IOException {
+		beginCall("inviteCollaborators");
+
+		synchronized (this) {
+			FakeFolder folder = mFolders.get(targetId);
+
+			if (folder == null || !type.equals(Box.TYPE_FOLDER))
+				return InviteCollaboratorsListener.STATUS_E_INSUFFICIENT_PERMISSIONS;
+
+			boolean added = false;
+			for (String email : emails)
+				added |= folder.collaborators.add(email);
+
+			return (added ?
+					InviteCollaboratorsListener.STATUS_S_INVITE_COLLABORATORS :
+					InviteCollaboratorsListener.STATUS_USER_ALREADY_COLLABORATOR);
+		}
+	}
+
+	public DefaultResponseParser download(String authToken, long fileId, OutputStream outStream)
+			throws IOException {
+		beginCall("download");
+
+		byte[] content;
+		synchronized (this) {
+			FakeFile file = mFiles.get(fileId);
+			content = (file == null ? null : file.content);
+
+			if (content != null)
+				mBytesDownloaded += content.length;
+		}
+
+		DefaultResponseParser response = new DefaultResponseParser();
+		if (content != null) {
+			outStream.write(content);
+			response.setStatus(FileDownloadListener.STATUS_DOWNLOAD_OK);
+		} else {
+			response.setStatus(FileDownloadListener.STATUS_DOWNLOAD_FAIL);
+		}
+
+		return response;
+	}
+
+	public FileResponseParser upload(
+			String authToken,
+			String action,
+			InputStream inStream,
+			String fileName,
+			long destinationId) throws IOException {
+		beginCall("upload");
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read = inStream.read(buffer); read != -1; read = inStream.read(buffer))
+			content.write(buffer, 0, read);
+
+		FileResponseParser response = new FileResponseParser();
+		synchronized (this) {
+			FakeFile file;
+
+			if (action.equals(Box.UPLOAD_ACTION_OVERWRITE)) {
+				file = mFiles.get(destinationId);
+			} else if (!mFolders.containsKey(destinationId)) {
+				file = null;
+			} else {
+				file = (action.equals(Box.UPLOAD_ACTION_UPLOAD) ?
+						findFile(destinationId, fileName) : null);
+
+				if (file == null) {
+					file = new FakeFile();
+					file.id = mNextId++;
+					file.folderId = destinationId;
+					file.created = now();
+					mFiles.put(file.id, file);
+				}
+			}
+
+			if (file == null) {
+				response.setStatus(FileUploadListener.STATUS_UPLOAD_WRONG_FOLDER_ID);
+			} else {
+				boolean added = (file.content == null);
+
+				file.name = fileName;
+				file.content = content.toByteArray();
+				file.updated = now();
+				mBytesUploaded += file.content.length;
+
+				addUpdate(added ? "added" : "updated", file.folderId, file);
+
+				response.setFile(toBoxFile(file));
+				response.setStatus(FileUploadListener.STATUS_UPLOAD_OK);
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Aborts the calls waiting for their latency.
+	 */
+	public synchronized void abortCalls() {
+		mAbortCount++;
+		notifyAll();
+	}
+
+	/**
+	 * Counts a call, waits for the configured latency and injects failures.
+	 * @param method The name of the called method.
+	 * @throws IOException If the call is chosen to fail.
+	 */
+	private void beginCall(String method) throws IOException {
+		long latency;
+		boolean fail;
+		int abortCount;
+		synchronized (this) {
+			abortCount = mAbortCount;
+			mCallCounts.put(method, getCallCount(method) + 1);
+
+			latency = mLatency;
+			if (mLatencyJitter > 0)
+				latency += (long) (mRandom.nextDouble() * mLatencyJitter);
+
+			fail = (mFailNext > 0 || mRandom.nextDouble() < mFailureRate);
+			if (mFailNext > 0)
+				mFailNext--;
+		}
+
+		if (latency > 0) {
+			synchronized (this) {
+				long end = System.currentTimeMillis() + latency;
+
+				try {
+					for (long wait = latency;
+							wait > 0 && abortCount == mAbortCount;
+							wait = end - System.currentTimeMillis())
+						wait(wait);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted during " + method);
+				}
+
+				if (abortCount != mAbortCount)
+					throw new IOException("Aborted " + method);
+			}
+		}
+
+		if (fail)
+			throw new IOException("Injected failure of " + method);
+	}
+
+	/**
+	 * Records an update of a folder.
+	 * @param type The type of the update (added or updated).
+	 * @param folderId The ID of the updated folder.
+	 * @param file The added or updated file, or <code>null</code>.
+	 */
+	private void addUpdate(String type, long folderId, FakeFile file) {
+		Update update = new Update();
+		update.setId(mUpdates.size() + 1);
+		update.setUpdateType(type);
+		update.setFolderId(folderId);
+		update.setUpdated(now());
+
+		if (file != null)
+			update.getFiles().add(toBoxFile(file));
+
+		mUpdates.add(update);
+	}
+
+	/**
+	 * Deletes a folder and everything in it.
+	 * @param folderId The ID of the folder.
+	 */
+	private void deleteFolder(long folderId) {
+		for (FakeFolder folder : new ArrayList<FakeFolder>(mFolders.values())) {
+			if (folder.parentId == folderId)
+				deleteFolder(folder.id);
+		}
+
+		for (FakeFile file : new ArrayList<FakeFile>(mFiles.values())) {
+			if (file.folderId == folderId)
+				mFiles.remove(file.id);
+		}
+
+		mFolders.remove(folderId);
+	}
+
+	/**
+	 * Finds the file with the specified name in a folder.
+	 * @param folderId The ID of the folder.
+	 * @param name The name of the file.
+	 * @return The file, or <code>null</code> if not found.
+	 */
+	private FakeFile findFile(long folderId, String name) {
+		for (FakeFile file : mFiles.values()) {
+			if (file.folderId == folderId && file.name.equals(name))
+				return file;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finds the sub folder with the specified name in a folder.
+	 * @param parentId The ID of the parent folder.
+	 * @param name The name of the sub folder.
+	 * @return The sub folder, or <code>null</code> if not found.
+	 */
+	private FakeFolder findFolder(long parentId, String name) {
+		for (FakeFolder folder : mFolders.values()) {
+			if (folder.parentId == parentId && folder.name.equals(name))
+				return folder;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Builds the Box representation of a folder.
+	 * @param folder The folder.
+	 * @param recursive Whether or not to include the sub folders recursively.
+	 * @param withFiles Whether or not to include the files.
+	 * @param withFolders Whether or not to include the sub folders.
+	 * @return The Box folder.
+	 */
+	private BoxFolder toBoxFolder(
+			FakeFolder folder, boolean recursive, boolean withFiles, boolean withFolders) {
+		BoxFolder boxFolder = new BoxFolder();
+		boxFolder.setId(folder.id);
+		boxFolder.setFolderName(folder.name);
+		boxFolder.setParentFolderId(folder.parentId);
+		boxFolder.setHasCollaborators(folder.collaborators.size() > 0);
+
+		if (withFiles) {
+			for (FakeFile file : mFiles.values()) {
+				if (file.folderId == folder.id)
+					boxFolder.addChildFile(toBoxFile(file));
+			}
+		}
+
+		if (withFolders) {
+			for (FakeFolder subFolder : mFolders.values()) {
+				if (subFolder.parentId == folder.id && subFolder.id != folder.id)
+					boxFolder.addChildFolder(
+							toBoxFolder(subFolder, recursive, withFiles && recursive, recursive));
+			}
+		}
+
+		return boxFolder;
+	}
+
+	/**
+	 * Builds the Box representation of a file.
+	 * @param file The file.
+	 * @return The Box file.
+	 */
+	private static BoxFile toBoxFile(FakeFile file) {
+		BoxFile boxFile = new BoxFile();
+		boxFile.setId(file.id);
+		boxFile.setFileName(file.name);
+		boxFile.setFolderId(file.folderId);
+		boxFile.setCreated(file.created);
+		boxFile.setUpdated(file.updated);
+		boxFile.setSize(file.content == null ? 0 : file.content.length);
+
+		return boxFile;
+	}
+
+	/**
+	 * Gets the current Unix time.
+	 * @return The current Unix time (in seconds).
+	 */
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * A folder of the fake backend.
+	 */
+	private static class FakeFolder {
+		public long id;
+		public String name;
+		public long parentId;
+		public Set<String> collaborators = new HashSet<String>();
+	}
+
+	/**
+	 * A file of the fake backend.
+	 */
+	private static class FakeFile {
+		public long id;
+		public String name;
+		public long folderId;
+		public byte[] content;
+		public long created;
+		public long updated;
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.societies.android.sync.box.BoxCompression;
+import org.societies.android.sync.box.BoxPack;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests that compressed content is told from uncompressed content by its
+ * magic number, and that uncompressed content written by older versions is
+ * read unchanged.
+ *
+ * @author Kato
+ */
+public class BoxCompressionTest extends AndroidTestCase {
+
+	/**
+	 * Checks that compressed content starts with the gzip magic number and
+	 * is decompressed to the original content.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCompress() throws Exception {
+		byte[] content = newEntity(BoxCompression.COMPRESSION_THRESHOLD * 4);
+		byte[] compressed = BoxCompression.compress(content);
+
+		assertTrue(compressed.length < content.length);
+		assertEquals((byte) 0x1f, compressed[0]);
+		assertEquals((byte) 0x8b, compressed[1]);
+		assertTrue(BoxCompression.isCompressed(compressed, compressed.length));
+		assertTrue(Arrays.equals(content, BoxCompression.decompress(compressed)));
+		assertTrue(Arrays.equals(content, read(BoxCompression.openStream(
+				new ByteArrayInputStream(compressed)))));
+	}
+
+	/**
+	 * Checks that the magic number is only detected when both its bytes are
+	 * available, and never in serialized entities or pack segments.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testMagicDetection() throws Exception {
+		byte[] magic = new byte[] { (byte) 0x1f, (byte) 0x8b };
+
+		assertTrue(BoxCompression.isCompressed(magic, 2));
+		assertFalse(BoxCompression.isCompressed(magic, 1));
+		assertFalse(BoxCompression.isCompressed(new byte[0], 0));
+		assertFalse(BoxCompression.isCompressed(new byte[] { (byte) 0x8b, (byte) 0x1f }, 2));
+
+		byte[] entity = newEntity(BoxCompression.COMPRESSION_THRESHOLD);
+		byte[] pack = (BoxPack.PACK_MAGIC + "\n").getBytes("UTF-8");
+
+		assertFalse(BoxCompression.isCompressed(entity, entity.length));
+		assertFalse(BoxCompression.isCompressed(pack, pack.length));
+	}
+
+	/**
+	 * Checks that content too small to gain from compression, and content
+	 * which is not compressed, passes through unchanged.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testUncompressedPassesThrough() throws Exception {
+		byte[] small = newEntity(BoxCompression.COMPRESSION_THRESHOLD - 1);
+		byte[] large = newEntity(BoxCompression.COMPRESSION_THRESHOLD * 4);
+
+		assertSame(small, BoxCompression.compress(small));
+		assertSame(large, BoxCompression.decompress(large));
+		assertTrue(Arrays.equals(large, read(BoxCompression.openStream(
+				new ByteArrayInputStream(large)))));
+		assertEquals(0, read(BoxCompression.openStream(
+				new ByteArrayInputStream(new byte[0]))).length);
+		assertTrue(Arrays.equals(new byte[] { '{' }, read(BoxCompression.openStream(
+				new ByteArrayInputStream(new byte[] { '{' })))));
+	}
+
+	/**
+	 * Creates a serialized entity of the specified size.
+	 * @param size The size (in bytes) of the serialized entity.
+	 * @return The serialized entity.
+	 * @throws Exception If the entity cannot be encoded.
+	 */
+	private static byte[] newEntity(int size) throws Exception {
+		StringBuilder serialized = new StringBuilder("{\"name\":\"");
+		while (serialized.length() < size - 2)
+			serialized.append('a');
+		serialized.append("\"}");
+
+		return serialized.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Reads a stream to its end, and closes it.
+	 * @param inStream The stream to read.
+	 * @return The content of the stream.
+	 * @throws Exception If an error occurs while reading.
+	 */
+	private static byte[] read(InputStream inStream) throws Exception {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[1024];
+			for (int count = inStream.read(buffer); count != -1; count = inStream.read(buffer))
+				content.write(buffer, 0, count);
+		} finally {
+			inStream.close();
+		}
+
+		return content.toByteArray();
+	}
+}
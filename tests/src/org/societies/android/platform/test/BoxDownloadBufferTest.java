@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.societies.android.sync.box.BoxCompression;
+import org.societies.android.sync.box.BoxDownloadBuffer;
+import org.societies.android.sync.box.BoxManifest;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests that the download buffer keeps small content in memory within the
+ * shared budget, spills large content to disk, and hashes the decompressed
+ * content.
+ *
+ * @author Kato
+ */
+public class BoxDownloadBufferTest extends AndroidTestCase {
+
+	/**
+	 * Checks that content up to the spill threshold is kept in memory, and
+	 * that its memory is returned to the budget once released.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testSmallContentStaysInMemory() throws Exception {
+		long reserved = BoxDownloadBuffer.getReservedBytes();
+		byte[] content = newContent(BoxDownloadBuffer.SPILL_THRESHOLD);
+
+		BoxDownloadBuffer buffer = new BoxDownloadBuffer(getContext().getCacheDir());
+		try {
+			buffer.write(content);
+			buffer.close();
+
+			assertFalse(buffer.isSpilled());
+			assertEquals(content.length, buffer.size());
+			assertEquals(reserved + content.length, BoxDownloadBuffer.getReservedBytes());
+			assertTrue(Arrays.equals(content, buffer.toByteArray()));
+		} finally {
+			buffer.release();
+		}
+
+		assertEquals(reserved, BoxDownloadBuffer.getReservedBytes());
+	}
+
+	/**
+	 * Checks that content beyond the spill threshold moves to disk, and
+	 * gives its memory back to the budget when it does.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testLargeContentSpills() throws Exception {
+		long reserved = BoxDownloadBuffer.getReservedBytes();
+		byte[] content = newContent(BoxDownloadBuffer.SPILL_THRESHOLD + 1);
+
+		BoxDownloadBuffer buffer = new BoxDownloadBuffer(getContext().getCacheDir());
+		try {
+			buffer.write(content, 0, BoxDownloadBuffer.SPILL_THRESHOLD);
+			assertFalse(buffer.isSpilled());
+
+			buffer.write(content, BoxDownloadBuffer.SPILL_THRESHOLD, 1);
+			buffer.close();
+
+			assertTrue(buffer.isSpilled());
+			assertEquals(reserved, BoxDownloadBuffer.getReservedBytes());
+			assertEquals(content.length, buffer.size());
+			assertTrue(Arrays.equals(content, buffer.toByteArray()));
+			assertEquals(BoxManifest.hash(new String(content, "UTF-8")), buffer.getHash());
+		} finally {
+			buffer.release();
+		}
+
+		assertFalse(buffer.isSpilled());
+		assertEquals(reserved, BoxDownloadBuffer.getReservedBytes());
+	}
+
+	/**
+	 * Checks that downloads spill once together they use up the memory
+	 * budget, and that released downloads return their memory to it.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testMemoryBudget() throws Exception {
+		long reserved = BoxDownloadBuffer.getReservedBytes();
+		byte[] content = newContent(BoxDownloadBuffer.SPILL_THRESHOLD);
+		int maxBuffers = (int) (BoxDownloadBuffer.MEMORY_BUDGET / content.length) + 1;
+
+		List<BoxDownloadBuffer> buffers = new ArrayList<BoxDownloadBuffer>();
+		try {
+			BoxDownloadBuffer buffer = null;
+			while (buffers.size() < maxBuffers && (buffer == null || !buffer.isSpilled())) {
+				buffer = new BoxDownloadBuffer(getContext().getCacheDir());
+				buffers.add(buffer);
+				buffer.write(content);
+
+				assertTrue(BoxDownloadBuffer.getReservedBytes() <= BoxDownloadBuffer.MEMORY_BUDGET);
+			}
+
+			assertTrue(buffer.isSpilled());
+			assertTrue(Arrays.equals(content, buffer.toByteArray()));
+		} finally {
+			for (BoxDownloadBuffer buffer : buffers)
+				buffer.release();
+		}
+
+		assertEquals(reserved, BoxDownloadBuffer.getReservedBytes());
+	}
+
+	/**
+	 * Checks that the hash of compressed content is the hash of the
+	 * decompressed content, as stored in the manifest.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testHashOfCompressedContent() throws Exception {
+		int[] sizes = { BoxCompression.COMPRESSION_THRESHOLD, BoxDownloadBuffer.SPILL_THRESHOLD * 4 };
+
+		for (int size : sizes) {
+			byte[] content = newContent(size);
+			byte[] compressed = BoxCompression.compress(content);
+			assertTrue(BoxCompression.isCompressed(compressed, compressed.length));
+
+			BoxDownloadBuffer buffer = new BoxDownloadBuffer(getContext().getCacheDir());
+			try {
+				buffer.write(compressed);
+
+				assertTrue(buffer.isCompressed());
+				assertEquals(compressed.length, buffer.size());
+				assertEquals(BoxManifest.hash(new String(content, "UTF-8")), buffer.getHash());
+				assertTrue(Arrays.equals(content, buffer.toByteArray()));
+			} finally {
+				buffer.release();
+			}
+		}
+	}
+
+	/**
+	 * Creates the content of a serialized entity of the specified size.
+	 * @param size The size (in bytes) of the content.
+	 * @return The content.
+	 */
+	private static byte[] newContent(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++)
+			content[i] = (byte) ('a' + i % 26);
+
+		return content;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.platform.entity.Me;
+import org.societies.android.sync.box.BoxEntityType;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the registry of entity types, by which Box files are named and
+ * dispatched.
+ *
+ * @author Kato
+ */
+public class BoxEntityTypeTest extends AndroidTestCase {
+
+	/**
+	 * Checks that every registered type is found by its code and by the
+	 * class of its entities, and that no two types share a code.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCodeRoundTrip() throws Exception {
+		Set<String> codes = new HashSet<String>();
+
+		for (BoxEntityType type : BoxEntityType.getTypes()) {
+			assertTrue(codes.add(type.getCode()));
+			assertSame(type, BoxEntityType.forCode(type.getCode()));
+			assertSame(type, BoxEntityType.forClass(type.getEntityClass()));
+			assertSame(type, BoxEntityType.forEntity(type.newEntity()));
+			assertEquals(type.getCode(), type.toString());
+		}
+
+		assertEquals(9, codes.size());
+		assertEquals("cm", BoxEntityType.COMMUNITY.getCode());
+		assertEquals(Community.class, BoxEntityType.COMMUNITY.getEntityClass());
+	}
+
+	/**
+	 * Checks that the class names written by older versions are read as the
+	 * type of the class.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testLegacyClassName() throws Exception {
+		for (BoxEntityType type : BoxEntityType.getTypes())
+			assertSame(type, BoxEntityType.forCode(type.getEntityClass().getName()));
+	}
+
+	/**
+	 * Checks that unknown codes and entities not stored in Box are rejected.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testUnknownTypeRejected() throws Exception {
+		assertNull(BoxEntityType.forCode("zz"));
+		assertNull(BoxEntityType.forCode(""));
+		assertNull(BoxEntityType.forCode(Me.class.getName()));
+		assertNull(BoxEntityType.forClass(Me.class));
+
+		try {
+			BoxEntityType.forEntity(new Me());
+			fail("Unregistered entity type found.");
+		} catch (IllegalArgumentException e) { /* EXPECTED */ }
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.societies.android.sync.box.BoxGateway;
+import org.societies.android.sync.box.BoxHandler;
+import org.societies.android.sync.box.FakeBoxBackend;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.ResponseListeners.FileUploadListener;
+import com.box.androidlib.ResponseParsers.FileResponseParser;
+
+/**
+ * Tests the retries, the circuit breaker and the rate limiter of the
+ * gateway against the fake backend, and that writes whose response is lost
+ * are not applied twice.
+ *
+ * @author Kato
+ */
+public class BoxGatewayTest extends AndroidTestCase {
+
+	private static final String AUTH_TOKEN = "token";
+	private static final long MISSING_FILE_ID = 1;
+	private static final String FILE_NAME = "cm_1";
+
+	private LossyBackend mBackend;
+	private long mFolderId;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mBackend = new LossyBackend();
+		mFolderId = mBackend.createFolder(
+				AUTH_TOKEN, BoxHandler.BOX_ROOT_FOLDER_ID, "community", false)
+				.getFolder().getId();
+		mBackend.resetCounters();
+	}
+
+	/**
+	 * Checks that the backoff ceiling doubles with every attempt and is
+	 * bounded, however many attempts failed.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testBackoffCeiling() throws Exception {
+		assertEquals(BoxGateway.BACKOFF_BASE, BoxGateway.getBackoffCeiling(0));
+		assertEquals(2 * BoxGateway.BACKOFF_BASE, BoxGateway.getBackoffCeiling(1));
+
+		for (int attempt = 1; attempt < 100; attempt++) {
+			long ceiling = BoxGateway.getBackoffCeiling(attempt);
+
+			assertTrue(ceiling >= BoxGateway.getBackoffCeiling(attempt - 1));
+			assertTrue(ceiling > 0 && ceiling <= BoxGateway.BACKOFF_MAX);
+		}
+
+		assertEquals(BoxGateway.BACKOFF_MAX, BoxGateway.getBackoffCeiling(100));
+	}
+
+	/**
+	 * Checks that a failing read is retried until it succeeds, waiting no
+	 * longer than the backoff ceilings of the failed attempts.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testReadIsRetried() throws Exception {
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		mBackend.failNextCalls(BoxGateway.MAX_ATTEMPTS - 1);
+
+		long maxBackoff = 0;
+		for (int attempt = 0; attempt < BoxGateway.MAX_ATTEMPTS - 1; attempt++)
+			maxBackoff += BoxGateway.getBackoffCeiling(attempt);
+
+		long start = System.currentTimeMillis();
+		gateway.getFileInfo(AUTH_TOKEN, MISSING_FILE_ID);
+
+		assertTrue(System.currentTimeMillis() - start < maxBackoff + 500);
+		assertEquals(BoxGateway.MAX_ATTEMPTS - 1, gateway.getStats().retries);
+		assertEquals(BoxGateway.MAX_ATTEMPTS, mBackend.getCallCount("getFileInfo"));
+	}
+
+	/**
+	 * Checks that the circuit breaker opens once Box keeps failing, and
+	 * then rejects calls without calling Box.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testCircuitBreakerOpens() throws Exception {
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		mBackend.failNextCalls(BoxGateway.CIRCUIT_FAILURE_THRESHOLD);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				gateway.getFileInfo(AUTH_TOKEN, MISSING_FILE_ID);
+				fail("Failing call succeeded.");
+			} catch (IOException e) { /* EXPECTED */ }
+		}
+
+		assertTrue(gateway.isCircuitOpen());
+		assertEquals(BoxGateway.CIRCUIT_FAILURE_THRESHOLD, mBackend.getCallCount("getFileInfo"));
+
+		try {
+			gateway.getFileInfo(AUTH_TOKEN, MISSING_FILE_ID);
+			fail("Call went through an open circuit breaker.");
+		} catch (IOException e) { /* EXPECTED */ }
+
+		assertEquals(BoxGateway.CIRCUIT_FAILURE_THRESHOLD, mBackend.getCallCount("getFileInfo"));
+		assertTrue(gateway.getStats().rejected >= 2);
+	}
+
+	/**
+	 * Checks that calls beyond the burst are held back to the rate limit.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testRateLimit() throws Exception {
+		int rateLimit = 10;
+		int calls = 6;
+		BoxGateway gateway = new BoxGateway(mBackend, rateLimit, 1);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < calls; i++)
+			gateway.getFileInfo(AUTH_TOKEN, MISSING_FILE_ID);
+
+		long minDuration = (calls - 1) * 1000 / rateLimit;
+		assertTrue(System.currentTimeMillis() - start >= minDuration - 50);
+		assertTrue(gateway.getStats().throttledMillis >= minDuration - 50);
+	}
+
+	/**
+	 * Checks that an upload of a new file whose response is lost is looked
+	 * up rather than uploaded again.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testLostUploadIsNotRepeated() throws Exception {
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		mBackend.mLoseNext = 1;
+
+		FileResponseParser response = gateway.upload(
+				AUTH_TOKEN, Box.UPLOAD_ACTION_UPLOAD, newContent(), FILE_NAME, mFolderId);
+
+		assertEquals(FileUploadListener.STATUS_UPLOAD_OK, response.getStatus());
+		assertEquals(FILE_NAME, response.getFile().getFileName());
+		assertEquals(1, mBackend.getCallCount("upload"));
+		assertEquals(1, mBackend.getFileCount());
+		assertEquals(0, gateway.getStats().retries);
+	}
+
+	/**
+	 * Checks that an invitation whose response is lost is not sent again.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testLostInvitationIsNotRepeated() throws Exception {
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		mBackend.mLoseNext = 1;
+
+		try {
+			gateway.inviteCollaborators(AUTH_TOKEN, Box.TYPE_FOLDER, mFolderId, null,
+					new String[] { "member@example.com" }, "editor", false, true, null);
+			fail("Invitation with a lost response succeeded.");
+		} catch (IOException e) { /* EXPECTED */ }
+
+		assertEquals(1, mBackend.getCallCount("inviteCollaborators"));
+		assertEquals(0, gateway.getStats().retries);
+	}
+
+	/**
+	 * Checks that a name collision is reported rather than retried.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCollisionIsPermanent() throws Exception {
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		mBackend.mCollide = true;
+
+		FileResponseParser response = gateway.upload(
+				AUTH_TOKEN, Box.UPLOAD_ACTION_UPLOAD, newContent(), FILE_NAME, mFolderId);
+
+		assertEquals(FileUploadListener.STATUS_UPLOAD_SOME_FILES_FAILED, response.getStatus());
+		assertEquals(1, mBackend.mCollisions);
+		assertEquals(0, gateway.getStats().retries);
+	}
+
+	/**
+	 * Creates the content of an uploaded file.
+	 * @return The content, as a stream which can be reset.
+	 * @throws Exception If the content cannot be encoded.
+	 */
+	private static InputStream newContent() throws Exception {
+		return new ByteArrayInputStream("{\"globalId\":\"1\"}".getBytes("UTF-8"));
+	}
+
+	/**
+	 * Fake backend which can lose the response of a write after applying it,
+	 * and report uploads as name collisions.
+	 */
+	private static class LossyBackend extends FakeBoxBackend {
+		private int mLoseNext;
+		private boolean mCollide;
+		private int mCollisions;
+
+		public LossyBackend() {
+			super(0);
+		}
+
+		@Override
+		public FileResponseParser upload(
+				String authToken,
+				String action,
+				InputStream inStream,
+				String fileName,
+				long destinationId) throws IOException {
+			if (mCollide) {
+				mCollisions++;
+
+				FileResponseParser response = new FileResponseParser();
+				response.setStatus(FileUploadListener.STATUS_UPLOAD_SOME_FILES_FAILED);
+				return response;
+			}
+
+			FileResponseParser response =
+					super.upload(authToken, action, inStream, fileName, destinationId);
+			loseResponse();
+
+			return response;
+		}
+
+		@Override
+		public String inviteCollaborators(
+				String authToken,
+				String type,
+				long targetId,
+				long[] userIds,
+				String[] emails,
+				String itemRoleName,
+				boolean resendInvite,
+				boolean noEmail,
+				String[] params) throws IOException {
+			String status = super.inviteCollaborators(authToken, type, targetId, userIds,
+					emails, itemRoleName, resendInvite, noEmail, params);
+			loseResponse();
+
+			return status;
+		}
+
+		/**
+		 * Throws if the response of the current call is to be lost.
+		 * @throws IOException If the response is lost.
+		 */
+		private synchronized void loseResponse() throws IOException {
+			if (mLoseNext > 0) {
+				mLoseNext--;
+				throw new IOException("Response lost.");
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.societies.android.api.cis.SocialContract;
+import org.societies.android.platform.SocialProvider;
+import org.societies.android.platform.entity.Community;
+import org.societies.android.platform.entity.CommunityActivity;
+import org.societies.android.platform.entity.Entity;
+import org.societies.android.sync.box.BoxEntityType;
+import org.societies.android.sync.box.BoxGateway;
+import org.societies.android.sync.box.BoxHandler;
+import org.societies.android.sync.box.BoxJournal;
+import org.societies.android.sync.box.BoxManifest;
+import org.societies.android.sync.box.BoxPack;
+import org.societies.android.sync.box.BoxPackUploadOperation;
+import org.societies.android.sync.box.FakeBoxBackend;
+
+import android.content.ContentUris;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.box.androidlib.Box;
+
+/**
+ * Tests the Box handler against the fake backend, as a device reading the
+ * changes written by another device.
+ *
+ * @author Kato
+ */
+public class BoxHandlerTest extends ProviderTestCase2<SocialProvider> {
+
+	private static final String AUTH_TOKEN = "token";
+	private static final String ACCOUNT_NAME = "handler_test";
+	private static final String DEVICE_ID = "device";
+	private static final String OTHER_DEVICE_ID = "other";
+	private static final long SEED = 2012;
+
+	private MockContentResolver mResolver;
+	private FakeBoxBackend mBackend;
+	private BoxJournal mJournal;
+	private BoxHandler mHandler;
+	private long mFolderId;
+
+	public BoxHandlerTest() {
+		super(SocialProvider.class, SocialContract.AUTHORITY.getAuthority());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mResolver = getMockContentResolver();
+		mResolver.delete(SocialContract.CommunityActivity.CONTENT_URI, null, null);
+		mResolver.delete(SocialContract.Communities.CONTENT_URI, null, null);
+
+		mBackend = new FakeBoxBackend(SEED);
+		mFolderId = mBackend.createFolder(
+				AUTH_TOKEN, BoxHandler.BOX_ROOT_FOLDER_ID, "community", false)
+				.getFolder().getId();
+
+		mJournal = new BoxJournal(getContext(), ACCOUNT_NAME);
+		mHandler = new BoxHandler(
+				mResolver,
+				DEVICE_ID,
+				mJournal,
+				new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mJournal.close();
+
+		super.tearDown();
+	}
+
+	/**
+	 * Checks that a device which was offline while another device deleted
+	 * an entity and compacted away its tombstone still deletes the entity
+	 * when it reads the compacted segment.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testSyncAfterCompaction() throws Exception {
+		Community community = new Community();
+		community.setGlobalId(String.valueOf(mFolderId));
+		community.setName("Community");
+		long communityId = ContentUris.parseId(community.insert(mResolver));
+
+		CommunityActivity kept = newActivity(communityId, "kept");
+		CommunityActivity deleted = newActivity(communityId, "deleted");
+		long keptId = ContentUris.parseId(kept.insert(mResolver));
+		long deletedId = ContentUris.parseId(deleted.insert(mResolver));
+
+		long since = System.currentTimeMillis() / 1000;
+
+		BoxPack merged = new BoxPack(OTHER_DEVICE_ID, 0);
+		merged.append(kept);
+		merged.appendTombstone(deleted);
+
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("deleted", new BoxManifest.Entry(
+				BoxEntityType.COMMUNITY_ACTIVITY.getCode(), null, 1, "pack.other.0", true));
+		manifest.nextGeneration();
+
+		List<BoxPack> compacted =
+				BoxPackUploadOperation.compact(merged, OTHER_DEVICE_ID, 1, manifest, since);
+
+		assertEquals(1, compacted.size());
+		assertEquals(1, compacted.get(0).getLatestEntries().size());
+		assertFalse(compacted.get(0).getLatestEntries().get(0).isDeleted());
+
+		upload(compacted.get(0).getFileName(), compacted.get(0).toByteArray());
+		upload(BoxManifest.getFileName(OTHER_DEVICE_ID), manifest.serialize().getBytes("UTF-8"));
+
+		mHandler.initialize(AUTH_TOKEN);
+		mHandler.processUpdates(mHandler.getUpdatesSince(since));
+		mHandler.waitForRunningOperationsToComplete(true);
+
+		assertNull(Entity.getEntity(CommunityActivity.class, deletedId, mResolver));
+		assertNotNull(Entity.getEntity(CommunityActivity.class, keptId, mResolver));
+	}
+
+	/**
+	 * Checks that every device writes its own manifest, and that the
+	 * manifests of all devices are merged when read, so that no device
+	 * overwrites the entries of another.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testDeviceManifestsMerge() throws Exception {
+		BoxHandler other = new BoxHandler(
+				mResolver,
+				OTHER_DEVICE_ID,
+				mJournal,
+				new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		String type = BoxEntityType.COMMUNITY_ACTIVITY.getCode();
+
+		mHandler.initialize(AUTH_TOKEN);
+		mHandler.recordManifestEntry(mFolderId, "a1", new BoxManifest.Entry(
+				type, BoxManifest.hash("old"), 1, "pack.device.0", false));
+		mHandler.recordManifestEntry(mFolderId, "a2", new BoxManifest.Entry(
+				type, BoxManifest.hash("a2"), 1, "pack.device.0", false));
+
+		other.initialize(AUTH_TOKEN);
+		other.recordManifestEntry(mFolderId, "a1", new BoxManifest.Entry(
+				type, BoxManifest.hash("new"), 2, "pack.other.0", false));
+		other.recordManifestEntry(mFolderId, "a3", new BoxManifest.Entry(
+				type, null, 2, "pack.other.0", true));
+
+		mHandler.waitForRunningOperationsToComplete(true);
+		other.waitForRunningOperationsToComplete(true);
+
+		assertEquals(2, mBackend.getFileCount());
+
+		mHandler.initialize(AUTH_TOKEN);
+		BoxManifest manifest = mHandler.getManifest(mFolderId);
+
+		assertEquals(2, manifest.getGeneration());
+		assertEquals(3, manifest.getEntries().size());
+		assertEquals(BoxManifest.hash("new"), manifest.getEntries().get("a1").getHash());
+		assertEquals(BoxManifest.hash("a2"), manifest.getEntries().get("a2").getHash());
+		assertTrue(manifest.getEntries().get("a3").isDeleted());
+		mHandler.waitForRunningOperationsToComplete(true);
+	}
+
+	/**
+	 * Creates a community activity which is not stored in the database.
+	 * @param communityId The local ID of the community of the activity.
+	 * @param globalId The global ID of the activity.
+	 * @return The community activity.
+	 */
+	private static CommunityActivity newActivity(long communityId, String globalId) {
+		CommunityActivity activity = new CommunityActivity();
+		activity.setGlobalId(globalId);
+		activity.setFeedOwnerId(communityId);
+		activity.setActor("actor");
+		activity.setVerb("post");
+		activity.setObject("object");
+
+		return activity;
+	}
+
+	/**
+	 * Uploads a file to the community folder, as written by the other device.
+	 * @param fileName The name of the file.
+	 * @param content The content of the file.
+	 * @throws Exception If the upload fails.
+	 */
+	private void upload(String fileName, byte[] content) throws Exception {
+		mBackend.upload(
+				AUTH_TOKEN,
+				Box.UPLOAD_ACTION_UPLOAD,
+				new ByteArrayInputStream(content),
+				fileName,
+				mFolderId);
+	}
+}
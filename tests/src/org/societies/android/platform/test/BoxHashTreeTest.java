@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.societies.android.sync.box.BoxEntityType;
+import org.societies.android.sync.box.BoxHashTree;
+import org.societies.android.sync.box.BoxManifest;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the root digest of the hash tree and the comparison of the subtrees
+ * of two trees.
+ *
+ * @author Kato
+ */
+public class BoxHashTreeTest extends AndroidTestCase {
+
+	private static final String COMMUNITY = BoxEntityType.COMMUNITY.getCode();
+	private static final String PERSON = BoxEntityType.PERSON.getCode();
+
+	/** Enough entities to fill every bucket of a type. */
+	private static final int ENTITY_COUNT = BoxHashTree.BUCKET_COUNT * 4;
+
+	/**
+	 * Checks that trees holding the same entities have the same root digest,
+	 * whatever the order the entities were added in, and that any change of
+	 * an entity changes the root digest.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testDigest() throws Exception {
+		BoxHashTree tree = newTree();
+		BoxHashTree reversed = new BoxHashTree();
+		for (int i = ENTITY_COUNT - 1; i >= 0; i--)
+			reversed.put(COMMUNITY, "c" + i, BoxManifest.hash("c" + i));
+
+		assertEquals(ENTITY_COUNT, tree.size());
+		assertEquals(tree.getDigest(), reversed.getDigest());
+		assertEquals(0, tree.diff(reversed).size());
+
+		String digest = tree.getDigest();
+		tree.put(COMMUNITY, "c0", BoxManifest.hash("changed"));
+		assertFalse(digest.equals(tree.getDigest()));
+
+		tree.put(COMMUNITY, "c0", BoxManifest.hash("c0"));
+		assertEquals(digest, tree.getDigest());
+
+		tree.put(PERSON, "c0", BoxManifest.hash("c0"));
+		assertFalse(digest.equals(tree.getDigest()));
+
+		assertFalse(new BoxHashTree().getDigest().equals(digest));
+		assertEquals(new BoxHashTree().getDigest(), new BoxHashTree().getDigest());
+	}
+
+	/**
+	 * Checks that the comparison of two trees finds exactly the entities
+	 * which differ, across buckets and entity types.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testDiff() throws Exception {
+		BoxHashTree tree = newTree();
+		BoxHashTree other = newTree();
+
+		other.put(COMMUNITY, "c1", BoxManifest.hash("changed"));
+		other.put(COMMUNITY, "c" + (ENTITY_COUNT - 1), BoxManifest.hash("changed"));
+		other.put(COMMUNITY, "added", BoxManifest.hash("added"));
+		other.put(PERSON, "p1", BoxManifest.hash("p1"));
+		tree.put(PERSON, "p2", null);
+
+		Set<String> differing = tree.diff(other);
+
+		assertEquals(5, differing.size());
+		assertTrue(differing.contains("c1"));
+		assertTrue(differing.contains("c" + (ENTITY_COUNT - 1)));
+		assertTrue(differing.contains("added"));
+		assertTrue(differing.contains("p1"));
+		assertTrue(differing.contains("p2"));
+		assertEquals(differing, other.diff(tree));
+	}
+
+	/**
+	 * Checks that entities without a global ID are skipped, and that
+	 * entities which were never synced differ from synced ones.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testPutAll() throws Exception {
+		Map<String, String> hashes = new HashMap<String, String>();
+		hashes.put("c1", BoxManifest.hash("c1"));
+		hashes.put("c2", null);
+		hashes.put(null, BoxManifest.hash("local"));
+
+		BoxHashTree tree = new BoxHashTree();
+		tree.putAll(COMMUNITY, hashes);
+
+		BoxHashTree other = new BoxHashTree();
+		other.put(COMMUNITY, "c1", BoxManifest.hash("c1"));
+		other.put(COMMUNITY, "c2", BoxManifest.hash("c2"));
+
+		assertEquals(2, tree.size());
+		assertEquals(1, tree.diff(other).size());
+		assertTrue(tree.diff(other).contains("c2"));
+	}
+
+	/**
+	 * Creates a tree of communities spread across all buckets.
+	 * @return The tree.
+	 */
+	private static BoxHashTree newTree() {
+		BoxHashTree tree = new BoxHashTree();
+		for (int i = 0; i < ENTITY_COUNT; i++)
+			tree.put(COMMUNITY, "c" + i, BoxManifest.hash("c" + i));
+
+		return tree;
+	}
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.sync.box.BoxCancellationToken;
+import org.societies.android.sync.box.BoxDependencyQueue;
+import org.societies.android.sync.box.BoxGateway;
+import org.societies.android.sync.box.BoxHandler;
+import org.societies.android.sync.box.BoxHttpBackend;
+import org.societies.android.sync.box.BoxHttpTransport;
+import org.societies.android.sync.box.BoxJournal;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.box.androidlib.Box;
+import com.box.androidlib.ResponseListeners.FileDownloadListener;
+import com.box.androidlib.ResponseListeners.RenameListener;
+import com.box.androidlib.ResponseListeners.ResponseListener;
+import com.box.androidlib.Utils.BoxConfig;
+
+/**
+ * Tests the pooled HTTP transport against a local stand-in of Box, which
+ * counts the connections it accepts. The calls made per connection tell the
+ * handshakes saved compared to the Box library.
+ *
+ * @author Kato
+ */
+public class BoxHttpTransportTest extends AndroidTestCase {
+
+	private static final String AUTH_TOKEN = "token";
+	private static final int CALLS = 20;
+	private static final String FILE_CONTENT = "{\"globalId\":\"1001\"}";
+	private static final long CANCEL_DELAY = 200;
+
+	private StandInServer mServer;
+	private BoxHttpTransport mTransport;
+	private BoxHttpBackend mBackend;
+
+	private String mApiUrlScheme;
+	private String mApiUrlAuthority;
+	private String mDownloadUrlScheme;
+	private String mDownloadUrlAuthority;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mServer = new StandInServer();
+		mServer.start();
+
+		BoxConfig config = BoxConfig.getInstance();
+		mApiUrlScheme = config.getApiUrlScheme();
+		mApiUrlAuthority = config.getApiUrlAuthority();
+		mDownloadUrlScheme = config.getDownloadUrlScheme();
+		mDownloadUrlAuthority = config.getDownloadUrlAuthority();
+
+		config.setApiUrlScheme("http");
+		config.setApiUrlAuthority("127.0.0.1:" + mServer.getPort());
+		config.setDownloadUrlScheme("http");
+		config.setDownloadUrlAuthority("127.0.0.1:" + mServer.getPort());
+
+		mTransport = new BoxHttpTransport();
+		mBackend = new BoxHttpBackend("key", mTransport);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mTransport.shutdown();
+		mServer.close();
+
+		BoxConfig config = BoxConfig.getInstance();
+		config.setApiUrlScheme(mApiUrlScheme);
+		config.setApiUrlAuthority(mApiUrlAuthority);
+		config.setDownloadUrlScheme(mDownloadUrlScheme);
+		config.setDownloadUrlAuthority(mDownloadUrlAuthority);
+
+		super.tearDown();
+	}
+
+	/**
+	 * Checks that consecutive calls reuse a single connection.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testConsecutiveCallsReuseConnection() throws Exception {
+		for (int i = 0; i < CALLS; i++) {
+			assertEquals(
+					RenameListener.STATUS_S_RENAME_NODE,
+					mBackend.rename(AUTH_TOKEN, Box.TYPE_FILE, i, "cm_" + i));
+		}
+
+		assertEquals(CALLS, mServer.getRequestCount());
+		assertEquals(1, mServer.getConnectionCount());
+		assertEquals(CALLS, mTransport.getStats().requests);
+		assertEquals(1, mTransport.getStats().connections);
+		assertEquals(CALLS - 1, mTransport.getStats().getReusedConnections());
+	}
+
+	/**
+	 * Checks that downloads return their connection to the pool.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testDownloadsReuseConnection() throws Exception {
+		for (int i = 0; i < CALLS; i++) {
+			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+			assertEquals(
+					FileDownloadListener.STATUS_DOWNLOAD_OK,
+					mBackend.download(AUTH_TOKEN, i, outStream).getStatus());
+			assertEquals(FILE_CONTENT, outStream.toString("UTF-8"));
+		}
+
+		assertEquals(1, mServer.getConnectionCount());
+	}
+
+	/**
+	 * Checks that concurrent calls never open more connections than the pool holds.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testConcurrentCallsAreBounded() throws Exception {
+		final List<String> statuses = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < BoxHttpTransport.MAX_CONNECTIONS * 2; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < CALLS; j++) {
+						String status;
+						try {
+							status = mBackend.rename(AUTH_TOKEN, Box.TYPE_FILE, j, "ca_" + j);
+						} catch (IOException e) {
+							status = e.getMessage();
+						}
+
+						synchronized (statuses) {
+							statuses.add(status);
+						}
+					}
+				}
+			};
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		for (String status : statuses)
+			assertEquals(RenameListener.STATUS_S_RENAME_NODE, status);
+
+		assertEquals(threads.size() * CALLS, statuses.size());
+		assertTrue(mServer.getConnectionCount() <= BoxHttpTransport.MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Checks that an unavailable service is reported as a transient status.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testServiceUnavailable() throws Exception {
+		mServer.setUnavailable(true);
+
+		assertEquals(
+				ResponseListener.STATUS_SERVICE_UNAVAILABLE,
+				mBackend.rename(AUTH_TOKEN, Box.TYPE_FILE, 1, "cm_1"));
+		assertEquals(
+				ResponseListener.STATUS_SERVICE_UNAVAILABLE,
+				mBackend.download(AUTH_TOKEN, 1, new ByteArrayOutputStream()).getStatus());
+	}
+
+	/**
+	 * Checks that cancelling a sync aborts a call waiting for Box to answer,
+	 * well before the socket timeout.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testCancellationAbortsCall() throws Exception {
+		mServer.setStalled(true);
+
+		BoxGateway gateway = new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final BoxCancellationToken cancellation = new BoxCancellationToken();
+		gateway.setCancellationToken(cancellation);
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(CANCEL_DELAY);
+				} catch (InterruptedException e) { /* IGNORED */ }
+
+				cancellation.cancel();
+			}
+		}.start();
+
+		long start = System.currentTimeMillis();
+		try {
+			gateway.rename(AUTH_TOKEN, Box.TYPE_FILE, 1, "cm_1");
+			fail("Cancelled call completed.");
+		} catch (InterruptedIOException e) { /* EXPECTED */ }
+
+		assertTrue(System.currentTimeMillis() - start < CANCEL_DELAY + 800);
+		assertEquals(0, gateway.getStats().retries);
+	}
+
+	/**
+	 * Checks that cancelling a sync stops the fetch of a missing community
+	 * well before the cancellation timeout, without storing its dependents.
+	 * @throws Exception If the test fails.
+	 */
+	@MediumTest
+	public void testCancellationStopsDependencyFetch() throws Exception {
+		mServer.setStalled(true);
+
+		BoxJournal journal = new BoxJournal(getContext(), "cancel_test");
+		BoxHandler handler = new BoxHandler(
+				getContext().getContentResolver(),
+				"device",
+				journal,
+				new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		handler.initialize(AUTH_TOKEN);
+
+		BoxDependencyQueue queue = handler.getDependencyQueue();
+		assertTrue(queue.defer("1", new Community(), null));
+
+		Thread.sleep(CANCEL_DELAY);
+
+		long start = System.currentTimeMillis();
+		handler.cancelRunningOperations();
+		queue.waitForFetchesToComplete();
+
+		assertTrue(System.currentTimeMillis() - start < BoxHandler.CANCEL_TIMEOUT);
+		assertFalse(queue.defer("2", new Community(), null));
+		assertEquals(0, handler.getMetrics().getFailed());
+
+		journal.close();
+	}
+
+	/**
+	 * Local stand-in of Box, answering every REST call with a successful
+	 * rename and every download with a fixed entity. Connections are kept
+	 * alive until the client closes them.
+	 */
+	private static class StandInServer extends Thread {
+		private ServerSocket mServerSocket;
+		private List<Socket> mSockets;
+		private int mConnectionCount;
+		private int mRequestCount;
+		private boolean mUnavailable;
+		private boolean mStalled;
+
+		/**
+		 * Initializes a new stand-in listening on a free local port.
+		 * @throws IOException If the server socket cannot be opened.
+		 */
+		public StandInServer() throws IOException {
+			mServerSocket = new ServerSocket(0);
+			mSockets = new ArrayList<Socket>();
+		}
+
+		public int getPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		public synchronized int getConnectionCount() {
+			return mConnectionCount;
+		}
+
+		public synchronized int getRequestCount() {
+			return mRequestCount;
+		}
+
+		public synchronized void setUnavailable(boolean unavailable) {
+			mUnavailable = unavailable;
+		}
+
+		public synchronized void setStalled(boolean stalled) {
+			mStalled = stalled;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = mServerSocket.accept();
+
+					synchronized (this) {
+						mConnectionCount++;
+						mSockets.add(socket);
+					}
+
+					new Thread() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}.start();
+				}
+			} catch (IOException e) { /* CLOSED */ }
+		}
+
+		/**
+		 * Closes the server and all the connections it accepted.
+		 * @throws IOException If an error occurs while closing.
+		 */
+		public synchronized void close() throws IOException {
+			mStalled = false;
+			notifyAll();
+			mServerSocket.close();
+
+			for (Socket socket : mSockets)
+				socket.close();
+		}
+
+		/**
+		 * Holds back the answer to a request while the stand-in is stalled.
+		 */
+		private synchronized void waitWhileStalled() {
+			try {
+				while (mStalled)
+					wait();
+			} catch (InterruptedException e) { /* CLOSED */ }
+		}
+
+		/**
+		 * Answers the requests of a connection until it is closed.
+		 * @param socket The connection.
+		 */
+		private void serve(Socket socket) {
+			try {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				OutputStream outStream = socket.getOutputStream();
+
+				for (String requestLine = reader.readLine();
+						requestLine != null;
+						requestLine = reader.readLine()) {
+					if (requestLine.length() == 0)
+						continue;
+
+					String header = reader.readLine();
+					while (header != null && header.length() > 0)
+						header = reader.readLine();
+
+					boolean unavailable;
+					synchronized (this) {
+						mRequestCount++;
+						unavailable = mUnavailable;
+					}
+
+					waitWhileStalled();
+
+					String body;
+					if (requestLine.contains("/download/"))
+						body = FILE_CONTENT;
+					else
+						body = "<?xml version='1.0' encoding='UTF-8' ?>" +
+								"<response><status>" + RenameListener.STATUS_S_RENAME_NODE +
+								"</status></response>";
+
+					byte[] content = body.getBytes("UTF-8");
+					String head = (unavailable ?
+							"HTTP/1.1 503 Service Unavailable\r\n" : "HTTP/1.1 200 OK\r\n") +
+							"Content-Length: " + content.length + "\r\n" +
+							"Connection: keep-alive\r\n\r\n";
+
+					outStream.write(head.getBytes("UTF-8"));
+					outStream.write(content);
+					outStream.flush();
+				}
+			} catch (IOException e) { /* CLOSED */ }
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.sync.box.BoxJournal;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests that the journal of outbound operations resumes an interrupted
+ * upload where it stopped, and remembers the collaborators invited to
+ * every folder.
+ *
+ * @author Kato
+ */
+public class BoxJournalTest extends AndroidTestCase {
+
+	private static final String ACCOUNT_NAME = "journal_test";
+	private static final long TARGET_ID = 10;
+	private static final long REMOTE_FILE_ID = 20;
+
+	private BoxJournal mJournal;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mJournal = new BoxJournal(getContext(), ACCOUNT_NAME);
+		for (BoxJournal.Entry entry : mJournal.getEntries())
+			mJournal.remove(entry);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (BoxJournal.Entry entry : mJournal.getEntries())
+			mJournal.remove(entry);
+		mJournal.close();
+
+		super.tearDown();
+	}
+
+	/**
+	 * Checks that an upload interrupted before it completed is resumed by
+	 * the next sync, with the file it was uploaded to, and that journaling
+	 * it again does not add a second operation.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testResumeInterruptedUpload() throws Exception {
+		Community community = new Community();
+
+		BoxJournal.Entry upload = mJournal.add(
+				BoxJournal.TYPE_UPLOAD, community, "cm_c1", TARGET_ID);
+		BoxJournal.Entry pack = mJournal.add(
+				BoxJournal.TYPE_PACK, community, null, TARGET_ID);
+
+		assertFalse(upload.isResumed());
+		assertEquals(BoxJournal.STATUS_PENDING, upload.getStatus());
+		assertEquals(-1, upload.getRemoteFileId());
+
+		mJournal.setUploaded(upload, REMOTE_FILE_ID);
+		mJournal.close();
+
+		BoxJournal journal = new BoxJournal(getContext(), ACCOUNT_NAME);
+		try {
+			List<BoxJournal.Entry> entries = journal.getEntries();
+
+			assertEquals(2, entries.size());
+
+			BoxJournal.Entry resumed = entries.get(0);
+			assertTrue(resumed.isResumed());
+			assertEquals(upload.getId(), resumed.getId());
+			assertEquals(BoxJournal.TYPE_UPLOAD, resumed.getType());
+			assertEquals(Community.class, resumed.getEntityClass());
+			assertEquals(community.getId(), resumed.getEntityId());
+			assertEquals(TARGET_ID, resumed.getTargetId());
+			assertEquals("cm_c1", resumed.getFileName());
+			assertEquals(BoxJournal.STATUS_UPLOADED, resumed.getStatus());
+			assertEquals(REMOTE_FILE_ID, resumed.getRemoteFileId());
+
+			assertTrue(entries.get(1).isResumed());
+			assertEquals(pack.getId(), entries.get(1).getId());
+			assertEquals(BoxJournal.STATUS_PENDING, entries.get(1).getStatus());
+
+			BoxJournal.Entry again = journal.add(
+					BoxJournal.TYPE_UPLOAD, community, "cm_c1", TARGET_ID);
+			assertTrue(again.isResumed());
+			assertEquals(upload.getId(), again.getId());
+			assertEquals(REMOTE_FILE_ID, again.getRemoteFileId());
+			assertEquals(2, journal.getEntries().size());
+
+			journal.remove(again);
+			journal.remove(BoxJournal.TYPE_PACK, community);
+			assertEquals(0, journal.getEntries().size());
+		} finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Checks that the collaborators invited to a folder are remembered per
+	 * folder, without duplicates, so that only new members are invited.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCollaboratorCache() throws Exception {
+		long folderId = System.currentTimeMillis();
+		long otherFolderId = folderId + 1;
+
+		assertEquals(0, mJournal.getCollaborators(folderId).size());
+
+		mJournal.addCollaborators(folderId, Arrays.asList("a@example.com", "b@example.com"));
+		mJournal.addCollaborators(folderId, Arrays.asList("b@example.com", "c@example.com"));
+		mJournal.addCollaborators(otherFolderId, Arrays.asList("d@example.com"));
+
+		Set<String> collaborators = mJournal.getCollaborators(folderId);
+
+		assertEquals(3, collaborators.size());
+		assertTrue(collaborators.contains("a@example.com"));
+		assertTrue(collaborators.contains("b@example.com"));
+		assertTrue(collaborators.contains("c@example.com"));
+		assertEquals(1, mJournal.getCollaborators(otherFolderId).size());
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.sync.box.BoxEntityType;
+import org.societies.android.sync.box.BoxHashTree;
+import org.societies.android.sync.box.BoxManifest;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the manifest of a community folder: serialization, merging of the
+ * entries written by other devices, and finding the entities which differ
+ * from the local ones.
+ *
+ * @author Kato
+ */
+public class BoxManifestTest extends AndroidTestCase {
+
+	private static final String COMMUNITY = BoxEntityType.COMMUNITY.getCode();
+
+	/**
+	 * Checks that a manifest survives serialization, and that invalid
+	 * manifests are rejected.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testParse() throws Exception {
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("c1", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("c1"), 10, "cm_c1", false));
+		manifest.put("c2", new BoxManifest.Entry(COMMUNITY, null, 11, "cm_c2", true));
+		manifest.nextGeneration();
+
+		BoxManifest parsed = BoxManifest.parse(manifest.serialize());
+
+		assertEquals(1, parsed.getGeneration());
+		assertEquals(2, parsed.getEntries().size());
+		assertEquals(BoxManifest.hash("c1"), parsed.getEntries().get("c1").getHash());
+		assertEquals(10, parsed.getEntries().get("c1").getFile().getId());
+		assertEquals("cm_c1", parsed.getEntries().get("c1").getFile().getFileName());
+		assertTrue(parsed.getEntries().get("c2").isDeleted());
+
+		assertFalse(BoxManifest.parse("{}").hasEntries());
+		assertInvalid("");
+		assertInvalid("{\"entries\":");
+	}
+
+	/**
+	 * Checks that entries written by older versions, which named the entity
+	 * class rather than the type code, are read as the same type.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testLegacyEntryType() throws Exception {
+		BoxManifest.Entry entry = new BoxManifest.Entry(
+				Community.class.getName(), BoxManifest.hash("c1"), 10, "c1", false);
+
+		assertEquals(COMMUNITY, entry.getType());
+		assertEquals(BoxEntityType.COMMUNITY, entry.getEntityType());
+		assertNull(new BoxManifest.Entry("zz", null, 10, "c1", false).getEntityType());
+	}
+
+	/**
+	 * Checks that merging a manifest replaces the entries of the entities it
+	 * holds and keeps the others.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testMerge() throws Exception {
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("c1", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("old"), 10, "cm_c1", false));
+		manifest.put("c2", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("c2"), 11, "cm_c2", false));
+
+		BoxManifest other = new BoxManifest();
+		other.put("c1", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("new"), 12, "cm_c1", false));
+		other.put("c3", new BoxManifest.Entry(COMMUNITY, null, 13, "cm_c3", true));
+
+		manifest.merge(other);
+
+		assertEquals(3, manifest.getEntries().size());
+		assertEquals(BoxManifest.hash("new"), manifest.getEntries().get("c1").getHash());
+		assertEquals(12, manifest.getEntries().get("c1").getFile().getId());
+		assertEquals(BoxManifest.hash("c2"), manifest.getEntries().get("c2").getHash());
+		assertTrue(manifest.getEntries().get("c3").isDeleted());
+	}
+
+	/**
+	 * Checks that merging the manifests of several devices keeps the latest
+	 * entry of every entity, that entries written by older versions lose to
+	 * any other, and that the generations add up.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testMergeLatest() throws Exception {
+		BoxManifest legacy = BoxManifest.parse("{\"generation\":3,\"entries\":{" +
+				"\"c1\":{\"type\":\"cm\",\"hash\":\"legacy\",\"file\":10,\"name\":\"cm_c1\"}}}");
+		BoxManifest device = BoxManifest.parse("{\"generation\":2,\"entries\":{" +
+				"\"c1\":{\"type\":\"cm\",\"hash\":\"old\",\"file\":11,\"name\":\"pack.a.0\",\"ts\":100}," +
+				"\"c2\":{\"type\":\"cm\",\"hash\":\"new\",\"file\":11,\"name\":\"pack.a.0\",\"ts\":300}}}");
+		BoxManifest otherDevice = BoxManifest.parse("{\"generation\":1,\"entries\":{" +
+				"\"c1\":{\"type\":\"cm\",\"hash\":\"new\",\"file\":12,\"name\":\"pack.b.0\",\"ts\":200}," +
+				"\"c2\":{\"type\":\"cm\",\"file\":12,\"name\":\"pack.b.0\",\"del\":true,\"ts\":200}}}");
+
+		BoxManifest merged = new BoxManifest();
+		merged.mergeLatest(legacy);
+		merged.mergeLatest(device);
+		merged.mergeLatest(otherDevice);
+
+		assertEquals(6, merged.getGeneration());
+		assertEquals(2, merged.getEntries().size());
+		assertEquals("new", merged.getEntries().get("c1").getHash());
+		assertEquals(12, merged.getEntries().get("c1").getFile().getId());
+		assertEquals(200, merged.getEntries().get("c1").getTime());
+		assertFalse(merged.getEntries().get("c2").isDeleted());
+		assertEquals("new", merged.getEntries().get("c2").getHash());
+
+		merged.put("c3", new BoxManifest.Entry(COMMUNITY, "c3", 13, "cm_c3", false));
+		BoxManifest.Entry written = BoxManifest.parse(merged.serialize()).getEntries().get("c3");
+
+		assertTrue(written.getTime() > 0);
+		assertEquals(merged.getEntries().get("c3").getTime(), written.getTime());
+	}
+
+	/**
+	 * Checks that comparing a manifest with the local hashes finds exactly
+	 * the entities which were changed, added or removed, and ignores the
+	 * deleted entries of the manifest.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testDiff() throws Exception {
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("same", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("same"), 10, "cm_same", false));
+		manifest.put("changed", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("new"), 11, "cm_changed", false));
+		manifest.put("added", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("added"), 12, "cm_added", false));
+		manifest.put("deleted", new BoxManifest.Entry(COMMUNITY, null, 13, "cm_deleted", true));
+
+		BoxHashTree local = new BoxHashTree();
+		local.put(COMMUNITY, "same", BoxManifest.hash("same"));
+		local.put(COMMUNITY, "changed", BoxManifest.hash("old"));
+		local.put(COMMUNITY, "removed", BoxManifest.hash("removed"));
+
+		BoxHashTree remote = BoxHashTree.fromManifest(manifest);
+		Set<String> expected = new HashSet<String>();
+		expected.add("changed");
+		expected.add("added");
+		expected.add("removed");
+
+		assertEquals(3, remote.size());
+		assertEquals(expected, remote.diff(local));
+		assertEquals(expected, local.diff(remote));
+
+		local.put(COMMUNITY, "changed", BoxManifest.hash("new"));
+		local.put(COMMUNITY, "added", BoxManifest.hash("added"));
+		manifest.put("removed", new BoxManifest.Entry(COMMUNITY, BoxManifest.hash("removed"), 14, "cm_removed", false));
+
+		assertEquals(0, BoxHashTree.fromManifest(manifest).diff(local).size());
+	}
+
+	/**
+	 * Checks that the hash of a serialized entity is a stable, lower case
+	 * SHA-1 digest.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testHash() throws Exception {
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", BoxManifest.hash("abc"));
+		assertFalse(BoxManifest.hash("abc").equals(BoxManifest.hash("abd")));
+	}
+
+	/**
+	 * Asserts that the specified content is not a valid manifest.
+	 * @param serialized The content of the manifest.
+	 */
+	private static void assertInvalid(String serialized) {
+		try {
+			BoxManifest.parse(serialized);
+			fail("Invalid manifest parsed: " + serialized);
+		} catch (IOException e) { /* EXPECTED */ }
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.societies.android.platform.entity.Community;
+import org.societies.android.sync.box.BoxEntityType;
+import org.societies.android.sync.box.BoxManifest;
+import org.societies.android.sync.box.BoxPack;
+import org.societies.android.sync.box.BoxPackUploadOperation;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the pack segment format: parsing, superseded records and the
+ * compaction of the segments of a device.
+ *
+ * @author Kato
+ */
+public class BoxPackTest extends AndroidTestCase {
+
+	private static final String DEVICE_ID = "device";
+
+	/**
+	 * Checks that a segment survives serialization.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testParse() throws Exception {
+		BoxPack pack = new BoxPack(DEVICE_ID, 3);
+		String serialized = pack.append(newCommunity("c1", "Community"));
+		pack.appendTombstone(newCommunity("c2", null));
+
+		BoxPack parsed = BoxPack.parse(pack.toByteArray());
+		List<BoxPack.Entry> entries = parsed.getLatestEntries();
+
+		assertEquals(pack.getFileName(), parsed.getFileName());
+		assertEquals(2, entries.size());
+		assertEquals("c1", entries.get(0).getGlobalId());
+		assertEquals(BoxEntityType.COMMUNITY, entries.get(0).getEntityType());
+		assertEquals(serialized, parsed.getRecord(entries.get(0)));
+		assertTrue(entries.get(1).isDeleted());
+		assertNull(parsed.getRecord(entries.get(1)));
+	}
+
+	/**
+	 * Checks that segments with a bad magic line or header are rejected.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testParseRejectsBadHeader() throws Exception {
+		assertInvalid("UBIPACK0\n{\"entries\":[]}\n");
+		assertInvalid(BoxPack.PACK_MAGIC + "\n{\"entries\":[]}");
+		assertInvalid(BoxPack.PACK_MAGIC + "\n{\"entries\":\n");
+		assertInvalid(BoxPack.PACK_MAGIC + "\n{}\n");
+	}
+
+	/**
+	 * Checks that segments indexing records beyond their body are rejected.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testParseRejectsIndexOutOfBounds() throws Exception {
+		assertInvalid(BoxPack.PACK_MAGIC + "\n" +
+				"{\"writer\":\"device\",\"seq\":0,\"entries\":" +
+				"[{\"id\":\"c1\",\"type\":\"cm\",\"off\":0,\"len\":100,\"del\":false}]}\n" +
+				"{}\n");
+		assertInvalid(BoxPack.PACK_MAGIC + "\n" +
+				"{\"writer\":\"device\",\"seq\":0,\"entries\":" +
+				"[{\"id\":\"c1\",\"type\":\"cm\",\"off\":-1,\"len\":1,\"del\":false}]}\n" +
+				"{}\n");
+	}
+
+	/**
+	 * Checks that a newer record of an entity supersedes the older ones.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testNewerRecordSupersedes() throws Exception {
+		BoxPack pack = new BoxPack(DEVICE_ID, 0);
+		pack.append(newCommunity("c1", "Old"));
+		pack.append(newCommunity("c2", "Other"));
+		String newer = pack.append(newCommunity("c1", "New"));
+
+		BoxPack parsed = BoxPack.parse(pack.toByteArray());
+		List<BoxPack.Entry> entries = parsed.getLatestEntries();
+
+		assertEquals(3, parsed.getRecordCount());
+		assertEquals(2, entries.size());
+		assertEquals("c2", entries.get(0).getGlobalId());
+		assertEquals(newer, parsed.getRecord(entries.get(1)));
+
+		pack.appendTombstone(newCommunity("c1", null));
+		entries = pack.getLatestEntries();
+
+		assertEquals(2, entries.size());
+		assertTrue(entries.get(1).isDeleted());
+	}
+
+	/**
+	 * Checks that compaction keeps the latest records only, splits its
+	 * output at the maximum segment size, and drops the tombstones of
+	 * deletions recorded in the manifest or older than the retention.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCompaction() throws Exception {
+		StringBuilder largeName = new StringBuilder();
+		while (largeName.length() < BoxPackUploadOperation.SEGMENT_MAX_SIZE / 10)
+			largeName.append("Community ");
+
+		BoxPack merged = new BoxPack(DEVICE_ID, 0);
+		int communities = 25;
+		for (int i = 0; i < communities; i++) {
+			merged.append(newCommunity("c" + i, "Old"));
+			merged.append(newCommunity("c" + i, largeName.toString()));
+		}
+		merged.appendTombstone(newCommunity("recent", null));
+		merged.appendTombstone(newCommunity("covered", null));
+
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("covered", new BoxManifest.Entry(
+				BoxEntityType.COMMUNITY.getCode(), null, 1, "pack.device.0", true));
+
+		long now = System.currentTimeMillis() / 1000;
+		List<BoxPack> compacted =
+				BoxPackUploadOperation.compact(merged, DEVICE_ID, 4, manifest, now);
+
+		assertTrue(compacted.size() > 1);
+		assertEquals("pack.device.4", compacted.get(0).getFileName());
+
+		int records = 0;
+		boolean hasRecent = false;
+		for (BoxPack pack : compacted) {
+			assertTrue(pack.size() < BoxPackUploadOperation.SEGMENT_MAX_SIZE * 2);
+
+			for (BoxPack.Entry entry : BoxPack.parse(pack.toByteArray()).getLatestEntries()) {
+				records++;
+				hasRecent |= entry.getGlobalId().equals("recent");
+				assertFalse(entry.getGlobalId().equals("covered"));
+			}
+		}
+
+		assertEquals(communities + 1, records);
+		assertTrue(hasRecent);
+
+		long nextDay = now + 24 * 60 * 60;
+		hasRecent = false;
+		for (BoxPack pack : BoxPackUploadOperation.compact(merged, DEVICE_ID, 4, null, nextDay))
+			for (BoxPack.Entry entry : pack.getLatestEntries())
+				hasRecent |= entry.getGlobalId().equals("recent");
+		assertTrue(hasRecent);
+
+		long later = now + BoxPackUploadOperation.TOMBSTONE_RETENTION;
+		for (BoxPack pack : BoxPackUploadOperation.compact(merged, DEVICE_ID, 4, null, later))
+			for (BoxPack.Entry entry : pack.getLatestEntries())
+				assertFalse(entry.isDeleted());
+	}
+
+	/**
+	 * Checks that tombstones written without a time are kept by compaction
+	 * until the manifest records the deletion.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCompactionKeepsUntimedTombstones() throws Exception {
+		BoxPack pack = new BoxPack(DEVICE_ID, 0);
+		pack.appendTombstone(newCommunity("c1", null));
+
+		String content = new String(pack.toByteArray(), "UTF-8")
+				.replaceAll("\"ts\":\\d+", "\"ts\":0");
+		BoxPack legacy = BoxPack.parse(content.getBytes("UTF-8"));
+
+		assertEquals(0, legacy.getLatestEntries().get(0).getTime());
+
+		List<BoxPack> compacted = BoxPackUploadOperation.compact(
+				legacy, DEVICE_ID, 1, null, System.currentTimeMillis() / 1000);
+
+		assertEquals(1, compacted.size());
+		assertTrue(compacted.get(0).getLatestEntries().get(0).isDeleted());
+
+		BoxManifest manifest = new BoxManifest();
+		manifest.put("c1", new BoxManifest.Entry(
+				BoxEntityType.COMMUNITY.getCode(), null, 1, "pack.device.0", true));
+
+		assertEquals(0, BoxPackUploadOperation.compact(
+				legacy, DEVICE_ID, 1, manifest, System.currentTimeMillis() / 1000).size());
+	}
+
+	/**
+	 * Asserts that the specified content is not a valid pack segment.
+	 * @param content The content of the segment.
+	 * @throws Exception If the content cannot be encoded.
+	 */
+	private static void assertInvalid(String content) throws Exception {
+		try {
+			BoxPack.parse(content.getBytes("UTF-8"));
+			fail("Invalid pack segment parsed: " + content);
+		} catch (IOException e) { /* EXPECTED */ }
+	}
+
+	/**
+	 * Creates a community which is not stored in the database.
+	 * @param globalId The global ID of the community.
+	 * @param name The name of the community.
+	 * @return The community.
+	 */
+	private static Community newCommunity(String globalId, String name) {
+		Community community = new Community();
+		community.setGlobalId(globalId);
+		community.setName(name);
+
+		return community;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.societies.android.sync.box.BoxSyncHistory;
+import org.societies.android.sync.box.BoxSyncMetrics;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the metrics collected during a sync and their record in the sync
+ * history.
+ *
+ * @author Kato
+ */
+public class BoxSyncMetricsTest extends AndroidTestCase {
+
+	private static final String ACCOUNT_NAME = "metrics_test";
+	private static final long PHASE_DURATION = 20;
+
+	/**
+	 * Checks that phases are kept in the order they were started, and that
+	 * a phase entered more than once accumulates its durations.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testPhases() throws Exception {
+		BoxSyncMetrics metrics = new BoxSyncMetrics();
+
+		metrics.startPhase("pull");
+		Thread.sleep(PHASE_DURATION);
+		metrics.startPhase("push");
+		Thread.sleep(PHASE_DURATION);
+		metrics.startPhase("pull");
+		Thread.sleep(PHASE_DURATION);
+
+		assertEquals(-1, metrics.getDuration());
+
+		metrics.finish();
+		Map<String, Long> phases = metrics.getPhases();
+		Iterator<String> names = phases.keySet().iterator();
+
+		assertEquals(2, phases.size());
+		assertEquals("pull", names.next());
+		assertEquals("push", names.next());
+		assertTrue(phases.get("pull") >= 2 * PHASE_DURATION);
+		assertTrue(phases.get("push") >= PHASE_DURATION);
+		assertTrue(metrics.getDuration() >= phases.get("pull") + phases.get("push"));
+		assertTrue(metrics.formatPhases().startsWith("pull="));
+	}
+
+	/**
+	 * Checks that the counts of a sync add up, and are recorded in the sync
+	 * history.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testHistory() throws Exception {
+		BoxSyncMetrics metrics = new BoxSyncMetrics();
+		metrics.addScanned(3);
+		metrics.addScanned(2);
+		metrics.addUploaded(1);
+		metrics.addDownloaded(2);
+		metrics.addSkipped(4);
+		metrics.addFailed(1);
+		metrics.setDatabaseCounts(6, 7);
+		metrics.getBoxStats().calls = 8;
+		metrics.finish();
+
+		assertEquals(5, metrics.getScanned());
+
+		BoxSyncHistory history = new BoxSyncHistory(getContext());
+		try {
+			history.add(ACCOUNT_NAME, "upload", metrics, null);
+
+			Cursor cursor = history.getRecentSyncs(1);
+			try {
+				assertTrue(cursor.moveToFirst());
+				assertEquals(ACCOUNT_NAME, getString(cursor, BoxSyncHistory.COLUMN_ACCOUNT));
+				assertEquals(metrics.getStartTime(), getLong(cursor, BoxSyncHistory.COLUMN_STARTED));
+				assertEquals(metrics.getDuration(), getLong(cursor, BoxSyncHistory.COLUMN_DURATION));
+				assertEquals(5, getLong(cursor, BoxSyncHistory.COLUMN_SCANNED));
+				assertEquals(1, getLong(cursor, BoxSyncHistory.COLUMN_UPLOADED));
+				assertEquals(2, getLong(cursor, BoxSyncHistory.COLUMN_DOWNLOADED));
+				assertEquals(4, getLong(cursor, BoxSyncHistory.COLUMN_SKIPPED));
+				assertEquals(1, getLong(cursor, BoxSyncHistory.COLUMN_FAILED));
+				assertEquals(6, getLong(cursor, BoxSyncHistory.COLUMN_DB_QUERIES));
+				assertEquals(7, getLong(cursor, BoxSyncHistory.COLUMN_DB_WRITES));
+				assertEquals(8, getLong(cursor, BoxSyncHistory.COLUMN_BOX_CALLS));
+				assertNull(getString(cursor, BoxSyncHistory.COLUMN_ERROR));
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			history.close();
+		}
+	}
+
+	/**
+	 * Gets a text column of the current row.
+	 * @param cursor The cursor.
+	 * @param column The name of the column.
+	 * @return The value of the column.
+	 */
+	private static String getString(Cursor cursor, String column) {
+		return cursor.getString(cursor.getColumnIndex(column));
+	}
+
+	/**
+	 * Gets an integer column of the current row.
+	 * @param cursor The cursor.
+	 * @param column The name of the column.
+	 * @return The value of the column.
+	 */
+	private static long getLong(Cursor cursor, String column) {
+		return cursor.getLong(cursor.getColumnIndex(column));
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import org.societies.android.sync.box.BoxVersion;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests the ordering and merging of entity versions, and that concurrent
+ * changes are resolved the same way on both devices.
+ *
+ * @author Kato
+ */
+public class BoxVersionTest extends AndroidTestCase {
+
+	private static final String DEVICE_A = "a";
+	private static final String DEVICE_B = "b";
+
+	/**
+	 * Checks that a version survives serialization, and that malformed
+	 * versions are parsed as empty.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testParse() throws Exception {
+		BoxVersion version = BoxVersion.parse(null).increment(DEVICE_B).increment(DEVICE_A);
+
+		assertEquals("a:1,b:1", version.toString());
+		assertEquals(version, BoxVersion.parse(version.toString()));
+		assertEquals("", BoxVersion.parse("-1").toString());
+	}
+
+	/**
+	 * Checks the order of successive and concurrent versions.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testCompare() throws Exception {
+		BoxVersion base = BoxVersion.parse(null).increment(DEVICE_A);
+		BoxVersion changeA = base.increment(DEVICE_A);
+		BoxVersion changeB = base.increment(DEVICE_B);
+
+		assertEquals(BoxVersion.Order.EQUAL, base.compare(BoxVersion.parse(base.toString())));
+		assertEquals(BoxVersion.Order.BEFORE, base.compare(changeA));
+		assertEquals(BoxVersion.Order.AFTER, changeB.compare(base));
+		assertEquals(BoxVersion.Order.CONCURRENT, changeA.compare(changeB));
+		assertEquals(BoxVersion.Order.AFTER, changeA.merge(changeB).compare(changeB));
+	}
+
+	/**
+	 * Checks that both devices pick the same winner of concurrent changes,
+	 * whether or not the changes were made at the same time.
+	 * @throws Exception If the test fails.
+	 */
+	@SmallTest
+	public void testConcurrentChangesConverge() throws Exception {
+		BoxVersion base = BoxVersion.parse(null).increment(DEVICE_A);
+		BoxVersion changeA = base.increment(DEVICE_A);
+		BoxVersion changeB = base.increment(DEVICE_B);
+
+		assertTrue(changeB.winsOver(changeA, 2, 1));
+		assertFalse(changeA.winsOver(changeB, 1, 2));
+
+		assertTrue(changeA.winsOver(changeB, 1, 1) != changeB.winsOver(changeA, 1, 1));
+	}
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.util.Random;
+
+import org.societies.android.api.cis.SocialContract;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Populates the SocialProvider with a synthetic social graph covering all
+ * ten tables. The size of the graph grows linearly with the scale factor,
+ * about 98 entities per unit of scale, and the graph is generated from a
+ * seed so that the same scale and seed always give the same data.
+ *
+ * @author Kato
+ */
+public class ScaledDataPopulator extends TestDataPopulator {
+
+	/** The account type of the generated data. */
+	public static final String ACCOUNT_TYPE = "com.box";
+	/** The account name of the generated data. */
+	public static final String ACCOUNT_NAME = "benchmark@ubishare.org";
+
+	/** People per unit of scale. */
+	public static final int PEOPLE = 10;
+	/** Communities per unit of scale. */
+	public static final int COMMUNITIES = 1;
+	/** Services per unit of scale. */
+	public static final int SERVICES = 1;
+	/** Relationships per unit of scale. */
+	public static final int RELATIONSHIPS = 10;
+	/** Memberships per unit of scale. */
+	public static final int MEMBERSHIPS = 10;
+	/** Sharings per unit of scale. */
+	public static final int SHARINGS = 2;
+	/** People activities per unit of scale. */
+	public static final int PEOPLE_ACTIVITIES = 10;
+	/** Community activities per unit of scale. */
+	public static final int COMMUNITY_ACTIVITIES = 50;
+	/** Service activities per unit of scale. */
+	public static final int SERVICE_ACTIVITIES = 5;
+
+	private MockContentResolver mResolver;
+	private int mScale;
+	private Random mRandom;
+	private long[] mPeople;
+	private long[] mCommunities;
+	private long[] mServices;
+	private long[] mMemberships;
+	private long[] mSharings;
+	private long[] mCommunityActivities;
+
+	/**
+	 * Initializes a new populator.
+	 * @param resolver The resolver to insert the data through.
+	 * @param scale The scale factor of the graph.
+	 * @param seed The seed of the graph.
+	 */
+	public ScaledDataPopulator(MockContentResolver resolver, int scale, long seed) {
+		super(resolver);
+
+		mResolver = resolver;
+		mScale = scale;
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Gets the number of entities inserted by {@link #populate()}.
+	 * @return The number of entities.
+	 */
+	public int getEntityCount() {
+		return 1 + mScale * (PEOPLE + COMMUNITIES + SERVICES + RELATIONSHIPS +
+				MEMBERSHIPS + SHARINGS + PEOPLE_ACTIVITIES + COMMUNITY_ACTIVITIES +
+				SERVICE_ACTIVITIES);
+	}
+
+	@Override
+	public boolean populate() {
+		populateMe();
+		mPeople = populatePeople();
+		mCommunities = populateCommunities();
+		mServices = populateServices();
+		populateRelationships();
+		mMemberships = populateMemberships();
+		mSharings = populateSharings();
+		populatePeopleActivities();
+		mCommunityActivities = populateCommunityActivities();
+		populateServiceActivities();
+
+		return true;
+	}
+
+	/**
+	 * Modifies a share of the synced entities, marking them as dirty.
+	 * @param share The share (between 0 and 1) of each synced table to modify.
+	 * @return The number of modified entities.
+	 */
+	public int modify(double share) {
+		int count = 0;
+
+		count += modify(SocialContract.Communities.CONTENT_URI, mCommunities, share);
+		count += modify(SocialContract.CommunityActivity.CONTENT_URI, mCommunityActivities, share);
+		count += modify(SocialContract.Membership.CONTENT_URI, mMemberships, share);
+		count += modify(SocialContract.Sharing.CONTENT_URI, mSharings, share);
+
+		return count;
+	}
+
+	/**
+	 * Modifies the description of a random share of the specified rows.
+	 * @param contentUri The URI of the table.
+	 * @param ids The IDs of the rows.
+	 * @param share The share of the rows to modify.
+	 * @return The number of modified rows.
+	 */
+	private int modify(Uri contentUri, long[] ids, double share) {
+		int count = (int) Math.ceil(ids.length * share);
+
+		for (int i = 0; i < count; i++) {
+			ContentValues values = new ContentValues();
+			values.put(SocialContract.Communities.DESCRIPTION, "Modified" + mRandom.nextInt());
+			values.put(SocialContract.Communities.DIRTY, 1);
+
+			mResolver.update(
+					ContentUris.withAppendedId(contentUri, ids[mRandom.nextInt(ids.length)]),
+					values, null, null);
+		}
+
+		return count;
+	}
+
+	private void populateMe() {
+		ContentValues values = newValues();
+		values.put(SocialContract.Me.GLOBAL_ID, "Me@societies.org");
+		values.put(SocialContract.Me.NAME, "Me");
+		values.put(SocialContract.Me.DISPLAY_NAME, "Me");
+		values.put(SocialContract.Me.USER_NAME, ACCOUNT_NAME);
+		values.put(SocialContract.Me.PASSWORD, "Me");
+		insert(SocialContract.Me.CONTENT_URI, values);
+	}
+
+	private long[] populatePeople() {
+		long[] ids = new long[mScale * PEOPLE];
+
+		for (int i = 0; i < ids.length; i++) {
+			ContentValues values = newValues();
+			values.put(SocialContract.People.GLOBAL_ID, "Person" + i + "@societies.org");
+			values.put(SocialContract.People.NAME, "Person" + i);
+			values.put(SocialContract.People.USER_NAME, "person" + i + "@ubishare.org");
+			values.put(SocialContract.People.EMAIL, "person" + i + "@ubishare.org");
+			values.put(SocialContract.People.DESCRIPTION, randomText());
+			ids[i] = insert(SocialContract.People.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private long[] populateCommunities() {
+		long[] ids = new long[mScale * COMMUNITIES];
+
+		for (int i = 0; i < ids.length; i++) {
+			int owner = mRandom.nextInt(mPeople.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.Communities.GLOBAL_ID, "Community" + i + "@pending");
+			values.put(SocialContract.Communities.NAME, "Community" + i);
+			values.put(SocialContract.Communities.TYPE, "Community");
+			values.put(SocialContract.Communities.OWNER_ID, "Person" + owner + "@societies.org");
+			values.put(SocialContract.Communities._ID_OWNER, mPeople[owner]);
+			values.put(SocialContract.Communities.DESCRIPTION, randomText());
+			ids[i] = insert(SocialContract.Communities.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private long[] populateServices() {
+		long[] ids = new long[mScale * SERVICES];
+
+		for (int i = 0; i < ids.length; i++) {
+			int owner = mRandom.nextInt(mPeople.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.Services.GLOBAL_ID, "Service" + i + "@societies.org");
+			values.put(SocialContract.Services.NAME, "Service" + i);
+			values.put(SocialContract.Services.TYPE, "Service");
+			values.put(SocialContract.Services.APP_TYPE, "Service");
+			values.put(SocialContract.Services.OWNER_ID, "Person" + owner + "@societies.org");
+			values.put(SocialContract.Services._ID_OWNER, mPeople[owner]);
+			values.put(SocialContract.Services.DESCRIPTION, randomText());
+			values.put(SocialContract.Services.AVAILABLE, "true");
+			values.put(SocialContract.Services.DEPENDENCY, "na");
+			values.put(SocialContract.Services.CONFIG, "Service" + i);
+			values.put(SocialContract.Services.URL, "Service" + i);
+			ids[i] = insert(SocialContract.Services.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private void populateRelationships() {
+		for (int i = 0; i < mScale * RELATIONSHIPS; i++) {
+			int p1 = mRandom.nextInt(mPeople.length);
+			int p2 = mRandom.nextInt(mPeople.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.Relationship.GLOBAL_ID, "Relationship" + i + "@pending");
+			values.put(SocialContract.Relationship.GLOBAL_ID_P1, "Person" + p1 + "@societies.org");
+			values.put(SocialContract.Relationship._ID_P1, mPeople[p1]);
+			values.put(SocialContract.Relationship.GLOBAL_ID_P2, "Person" + p2 + "@societies.org");
+			values.put(SocialContract.Relationship._ID_P2, mPeople[p2]);
+			values.put(SocialContract.Relationship.TYPE, "friend");
+			insert(SocialContract.Relationship.CONTENT_URI, values);
+		}
+	}
+
+	private long[] populateMemberships() {
+		long[] ids = new long[mScale * MEMBERSHIPS];
+
+		for (int i = 0; i < ids.length; i++) {
+			int member = mRandom.nextInt(mPeople.length);
+			int community = i % mCommunities.length;
+
+			ContentValues values = newValues();
+			values.put(SocialContract.Membership.GLOBAL_ID, "Membership" + i + "@pending");
+			values.put(SocialContract.Membership.GLOBAL_ID_MEMBER, "Person" + member + "@societies.org");
+			values.put(SocialContract.Membership._ID_MEMBER, mPeople[member]);
+			values.put(SocialContract.Membership.GLOBAL_ID_COMMUNITY, "Community" + community + "@pending");
+			values.put(SocialContract.Membership._ID_COMMUNITY, mCommunities[community]);
+			values.put(SocialContract.Membership.TYPE, "member");
+			ids[i] = insert(SocialContract.Membership.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private long[] populateSharings() {
+		long[] ids = new long[mScale * SHARINGS];
+
+		for (int i = 0; i < ids.length; i++) {
+			int service = mRandom.nextInt(mServices.length);
+			int owner = mRandom.nextInt(mPeople.length);
+			int community = i % mCommunities.length;
+
+			ContentValues values = newValues();
+			values.put(SocialContract.Sharing.GLOBAL_ID, "Sharing" + i + "@pending");
+			values.put(SocialContract.Sharing.GLOBAL_ID_SERVICE, "Service" + service + "@societies.org");
+			values.put(SocialContract.Sharing._ID_SERVICE, mServices[service]);
+			values.put(SocialContract.Sharing.GLOBAL_ID_OWNER, "Person" + owner + "@societies.org");
+			values.put(SocialContract.Sharing._ID_OWNER, mPeople[owner]);
+			values.put(SocialContract.Sharing.GLOBAL_ID_COMMUNITY, "Community" + community + "@pending");
+			values.put(SocialContract.Sharing._ID_COMMUNITY, mCommunities[community]);
+			values.put(SocialContract.Sharing.TYPE, "Service");
+			ids[i] = insert(SocialContract.Sharing.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private void populatePeopleActivities() {
+		for (int i = 0; i < mScale * PEOPLE_ACTIVITIES; i++) {
+			int owner = mRandom.nextInt(mPeople.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.PeopleActivity.GLOBAL_ID, "PersonActivity" + i + "@pending");
+			values.put(SocialContract.PeopleActivity.GLOBAL_ID_FEED_OWNER, "Person" + owner + "@societies.org");
+			values.put(SocialContract.PeopleActivity._ID_FEED_OWNER, mPeople[owner]);
+			putActivity(values);
+			insert(SocialContract.PeopleActivity.CONTENT_URI, values);
+		}
+	}
+
+	private long[] populateCommunityActivities() {
+		long[] ids = new long[mScale * COMMUNITY_ACTIVITIES];
+
+		for (int i = 0; i < ids.length; i++) {
+			int community = mRandom.nextInt(mCommunities.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.CommunityActivity.GLOBAL_ID, "CommunityActivity" + i + "@pending");
+			values.put(SocialContract.CommunityActivity.GLOBAL_ID_FEED_OWNER, "Community" + community + "@pending");
+			values.put(SocialContract.CommunityActivity._ID_FEED_OWNER, mCommunities[community]);
+			putActivity(values);
+			ids[i] = insert(SocialContract.CommunityActivity.CONTENT_URI, values);
+		}
+
+		return ids;
+	}
+
+	private void populateServiceActivities() {
+		for (int i = 0; i < mScale * SERVICE_ACTIVITIES; i++) {
+			int service = mRandom.nextInt(mServices.length);
+
+			ContentValues values = newValues();
+			values.put(SocialContract.ServiceActivity.GLOBAL_ID, "ServiceActivity" + i + "@pending");
+			values.put(SocialContract.ServiceActivity.GLOBAL_ID_FEED_OWNER, "Service" + service + "@societies.org");
+			values.put(SocialContract.ServiceActivity._ID_FEED_OWNER, mServices[service]);
+			putActivity(values);
+			insert(SocialContract.ServiceActivity.CONTENT_URI, values);
+		}
+	}
+
+	/**
+	 * Puts random actor, verb, object and target values.
+	 * @param values The values of the activity.
+	 */
+	private void putActivity(ContentValues values) {
+		values.put(SocialContract.CommunityActivity.ACTOR, "Person" + mRandom.nextInt(mPeople.length));
+		values.put(SocialContract.CommunityActivity.VERB, "post");
+		values.put(SocialContract.CommunityActivity.OBJECT, randomText());
+		values.put(SocialContract.CommunityActivity.TARGET, "Target" + mRandom.nextInt(100));
+	}
+
+	/**
+	 * Creates the values shared by all the generated rows.
+	 * @return The values.
+	 */
+	private ContentValues newValues() {
+		ContentValues values = new ContentValues();
+		values.put(SocialContract.Communities.ACCOUNT_TYPE, ACCOUNT_TYPE);
+		values.put(SocialContract.Communities.ACCOUNT_NAME, ACCOUNT_NAME);
+		values.put(SocialContract.Communities.DIRTY, 1);
+
+		return values;
+	}
+
+	/**
+	 * Generates a text of 20 to 200 characters, making the entity sizes vary.
+	 * @return The text.
+	 */
+	private String randomText() {
+		int length = 20 + mRandom.nextInt(181);
+		StringBuilder builder = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++)
+			builder.append((char) ('a' + mRandom.nextInt(26)));
+
+		return builder.toString();
+	}
+
+	/**
+	 * Inserts a row.
+	 * @param contentUri The URI of the table.
+	 * @param values The values of the row.
+	 * @return The ID of the inserted row.
+	 */
+	private long insert(Uri contentUri, ContentValues values) {
+		return ContentUris.parseId(mResolver.insert(contentUri, values));
+	}
+}
@@ -24,9 +24,13 @@
  */
 package org.societies.android.platform.test;
 
+import java.util.ArrayList;
+
 import org.societies.android.api.cis.SocialContract;
 import org.societies.android.platform.SocialProvider;
+import org.societies.android.platform.SyncState;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -674,5 +678,73 @@ public void testInsertPeopleWithGlobalID(){
 		assertEquals(0, cursor.getInt(8));
 		cursor.close();
 	}
+
+	/**
+	 * Tests that a batch is applied in a single transaction, i.e. that none
+	 * of its operations are stored if one of them fails.
+	 */
+	public void testApplyBatchIsAtomic() throws Exception {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newInsert(SocialContract.People.CONTENT_URI)
+				.withValue(SocialContract.People.GLOBAL_ID, "batch@societies.org")
+				.withValue(SocialContract.People.NAME, "Batch")
+				.build());
+		//Inserting at a specific index is not supported:
+		operations.add(ContentProviderOperation.newInsert(
+				Uri.withAppendedPath(SocialContract.People.CONTENT_URI, "1"))
+				.withValue(SocialContract.People.GLOBAL_ID, "batch2@societies.org")
+				.build());
+
+		try {
+			resolver.applyBatch(SocialContract.AUTHORITY.getAuthority(), operations);
+			fail("Batch with unsupported operation was applied.");
+		} catch (IllegalArgumentException e) { /* EXPECTED */ }
+
+		String selection = SocialContract.People.GLOBAL_ID + " = 'batch@societies.org'";
+		Cursor cursor = resolver.query(SocialContract.People.CONTENT_URI,
+				null, selection, null, null);
+		assertEquals(0, cursor.getCount());
+		cursor.close();
+
+		operations.remove(1);
+		resolver.applyBatch(SocialContract.AUTHORITY.getAuthority(), operations);
+
+		cursor = resolver.query(SocialContract.People.CONTENT_URI,
+				null, selection, null, null);
+		assertEquals(1, cursor.getCount());
+		cursor.close();
+	}
+
+	/**
+	 * Tests that the sync state keeps a single row per account, table and
+	 * community, holding the values last inserted.
+	 */
+	public void testSyncStateReplacesScope() throws Exception {
+		ContentValues values = new ContentValues();
+		values.put(SyncState.ACCOUNT_TYPE, "box");
+		values.put(SyncState.ACCOUNT_NAME, "account");
+		values.put(SyncState.TABLE, SyncState.ALL);
+		values.put(SyncState.COMMUNITY, "1001");
+		values.put(SyncState.SEQUENCE, 1);
+		resolver.insert(SyncState.CONTENT_URI, values);
+
+		values.put(SyncState.SEQUENCE, 2);
+		resolver.insert(SyncState.CONTENT_URI, values);
+
+		values.put(SyncState.COMMUNITY, "1002");
+		resolver.insert(SyncState.CONTENT_URI, values);
+
+		String[] projection = { SyncState.SEQUENCE };
+		String selection = SyncState.COMMUNITY + " = '1001'";
+		Cursor cursor = resolver.query(SyncState.CONTENT_URI, projection, selection, null, null);
+		assertEquals(1, cursor.getCount());
+		assertTrue(cursor.moveToFirst());
+		assertEquals(2, cursor.getLong(0));
+		cursor.close();
+
+		cursor = resolver.query(SyncState.CONTENT_URI, projection, null, null, null);
+		assertEquals(2, cursor.getCount());
+		cursor.close();
+	}
 	
 }
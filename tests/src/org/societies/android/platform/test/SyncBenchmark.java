@@ -0,0 +1,408 @@
+/**
+ * Copyright 2012 UbiCollab.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.societies.android.platform.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.societies.android.api.cis.SocialContract;
+import org.societies.android.box.BoxConstants;
+import org.societies.android.platform.SocialProvider;
+import org.societies.android.platform.SyncState;
+import org.societies.android.sync.box.BoxGateway;
+import org.societies.android.sync.box.BoxHandler;
+import org.societies.android.sync.box.BoxJournal;
+import org.societies.android.sync.box.BoxSyncAdapter;
+import org.societies.android.sync.box.FakeBoxBackend;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+/**
+ * End-to-end benchmark of the Box sync. Each run populates the provider with
+ * a synthetic social graph of a given scale, then runs a full sync, an
+ * incremental sync of 1% of the synced entities and a sync without changes
+ * against a {@link FakeBoxBackend}. For every sync the wall time, Box calls,
+ * bytes moved, provider operations and peak heap are logged and appended to
+ * <code>sync_benchmark.csv</code> in the files directory of the application.
+ * The graph and the fake backend are seeded, so runs of the same scale are
+ * comparable between commits.
+ *
+ * The benchmarks of 10k entities and more are large tests, run with
+ * <code>-e size large</code>.
+ *
+ * @author Kato
+ */
+public class SyncBenchmark extends ProviderTestCase2<SyncBenchmark.CountingSocialProvider> {
+
+	private static final String TAG = "SyncBenchmark";
+
+	/** The seed of the graphs and the fake backend. */
+	public static final long SEED = 2012;
+	/** The share of the synced entities modified before the incremental sync. */
+	public static final double INCREMENTAL_SHARE = 0.01;
+	/** The name of the file the results are appended to. */
+	public static final String RESULT_FILE_NAME = "sync_benchmark.csv";
+	/** The header of the result file. */
+	public static final String RESULT_HEADER =
+			"scale,entities,sync,changes,wall_ms,box_calls,bytes_up,bytes_down," +
+			"db_queries,db_writes,peak_heap_kb,calls_per_method";
+
+	private static final Uri[] TABLES = new Uri[] {
+		SocialContract.Me.CONTENT_URI,
+		SocialContract.People.CONTENT_URI,
+		SocialContract.Communities.CONTENT_URI,
+		SocialContract.Services.CONTENT_URI,
+		SocialContract.Relationship.CONTENT_URI,
+		SocialContract.Membership.CONTENT_URI,
+		SocialContract.Sharing.CONTENT_URI,
+		SocialContract.PeopleActivity.CONTENT_URI,
+		SocialContract.CommunityActivity.CONTENT_URI,
+		SocialContract.ServiceActivity.CONTENT_URI
+	};
+
+	private MockContentResolver mResolver;
+	private Context mContext;
+	private FakeBoxBackend mBackend;
+	private BoxSyncAdapter mAdapter;
+	private Account mAccount;
+
+	public SyncBenchmark() {
+		super(CountingSocialProvider.class, SocialContract.AUTHORITY.getAuthority());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mResolver = getMockContentResolver();
+		mContext = new BenchmarkContext(getMockContext());
+		mContext.getSharedPreferences(BoxConstants.PREFERENCE_FILE, Context.MODE_PRIVATE)
+				.edit().clear().commit();
+
+		for (Uri table : TABLES)
+			mResolver.delete(table, null, null);
+		mResolver.delete(SyncState.CONTENT_URI, null, null);
+
+		mBackend = new FakeBoxBackend(SEED);
+		BoxHandler handler = new BoxHandler(
+				mResolver,
+				TAG,
+				new BoxJournal(mContext),
+				new BoxGateway(mBackend, Integer.MAX_VALUE, Integer.MAX_VALUE));
+
+		mAdapter = new BoxSyncAdapter(mContext, false, handler);
+		mAccount = new Account(ScaledDataPopulator.ACCOUNT_NAME, ScaledDataPopulator.ACCOUNT_TYPE);
+	}
+
+	/**
+	 * Checks the benchmark itself on a graph of about 100 entities.
+	 * @throws Exception If the benchmark fails.
+	 */
+	@MediumTest
+	public void testScale1() throws Exception {
+		runBenchmark(1);
+
+		assertTrue(mBackend.getFileCount() > 0);
+		assertEquals(0, countDirty(SocialContract.Communities.CONTENT_URI));
+		assertEquals(0, countDirty(SocialContract.CommunityActivity.CONTENT_URI));
+	}
+
+	/**
+	 * Benchmarks a graph of about 10k entities.
+	 * @throws Exception If the benchmark fails.
+	 */
+	@LargeTest
+	public void testScale100() throws Exception {
+		runBenchmark(100);
+	}
+
+	/**
+	 * Benchmarks a graph of about 100k entities.
+	 * @throws Exception If the benchmark fails.
+	 */
+	@LargeTest
+	public void testScale1000() throws Exception {
+		runBenchmark(1000);
+	}
+
+	/**
+	 * Benchmarks a graph of about 1M entities.
+	 * @throws Exception If the benchmark fails.
+	 */
+	@LargeTest
+	public void testScale10000() throws Exception {
+		runBenchmark(10000);
+	}
+
+	/**
+	 * Populates a graph of the specified scale and benchmarks a full sync,
+	 * an incremental sync and a sync without changes.
+	 * @param scale The scale factor of the graph.
+	 * @throws Exception If the benchmark fails.
+	 */
+	private void runBenchmark(int scale) throws Exception {
+		ScaledDataPopulator populator = new ScaledDataPopulator(mResolver, scale, SEED);
+		populator.populate();
+
+		Bundle extras = new Bundle();
+		extras.putBoolean(BoxSyncAdapter.EXTRA_FULL_SYNC, true);
+		extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+		runSync(scale, populator.getEntityCount(), "full", populator.getEntityCount(), extras);
+
+		int changes = populator.modify(INCREMENTAL_SHARE);
+		extras = new Bundle();
+		extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+		runSync(scale, populator.getEntityCount(), "incremental", changes, extras);
+
+		runSync(scale, populator.getEntityCount(), "unchanged", 0, extras);
+	}
+
+	/**
+	 * Runs and measures a single sync.
+	 * @param scale The scale factor of the graph.
+	 * @param entities The number of entities in the graph.
+	 * @param sync The name of the sync.
+	 * @param changes The number of local changes pushed by the sync.
+	 * @param extras The sync extras.
+	 * @throws Exception If the sync fails.
+	 */
+	private void runSync(int scale, int entities, String sync, int changes, Bundle extras)
+			throws Exception {
+		CountingSocialProvider provider = getProvider();
+		mBackend.resetCounters();
+		provider.resetCounters();
+		System.gc();
+
+		HeapSampler sampler = new HeapSampler();
+		sampler.start();
+
+		long start = System.nanoTime();
+		mAdapter.performSync(
+				mAccount,
+				extras,
+				SocialContract.AUTHORITY.getAuthority(),
+				TAG,
+				new SyncResult());
+		long wallTime = (System.nanoTime() - start) / 1000000;
+
+		long peakHeap = sampler.finish();
+
+		StringBuilder result = new StringBuilder();
+		result.append(scale).append(',')
+			.append(entities).append(',')
+			.append(sync).append(',')
+			.append(changes).append(',')
+			.append(wallTime).append(',')
+			.append(mBackend.getCallCount()).append(',')
+			.append(mBackend.getBytesUploaded()).append(',')
+			.append(mBackend.getBytesDownloaded()).append(',')
+			.append(provider.getQueryCount()).append(',')
+			.append(provider.getWriteCount()).append(',')
+			.append(peakHeap / 1024).append(',');
+
+		Map<String, Integer> calls = new TreeMap<String, Integer>(mBackend.getCallCounts());
+		boolean first = true;
+		for (Map.Entry<String, Integer> call : calls.entrySet()) {
+			if (!first)
+				result.append(' ');
+			result.append(call.getKey()).append('=').append(call.getValue());
+			first = false;
+		}
+
+		Log.i(TAG, result.toString());
+		appendResult(result.toString());
+	}
+
+	/**
+	 * Appends a line to the result file, writing the header first if the
+	 * file is new.
+	 * @param line The result line.
+	 * @throws IOException If an error occurs while writing.
+	 */
+	private void appendResult(String line) throws IOException {
+		File file = new File(getContext().getFilesDir(), RESULT_FILE_NAME);
+		boolean isNew = !file.exists();
+
+		FileWriter writer = new FileWriter(file, true);
+		try {
+			if (isNew)
+				writer.write(RESULT_HEADER + "\n");
+			writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Counts the dirty rows of the specified table.
+	 * @param contentUri The URI of the table.
+	 * @return The number of dirty rows.
+	 */
+	private int countDirty(Uri contentUri) {
+		Cursor cursor = mResolver.query(
+				contentUri, null, SocialContract.Communities.DIRTY + " = 1", null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * SocialProvider counting the operations made on it.
+	 */
+	public static class CountingSocialProvider extends SocialProvider {
+
+		private int mQueryCount;
+		private int mWriteCount;
+
+		/**
+		 * Gets the number of queries since the counters were reset.
+		 * @return The number of queries.
+		 */
+		public synchronized int getQueryCount() {
+			return mQueryCount;
+		}
+
+		/**
+		 * Gets the number of inserts, updates and deletes since the counters
+		 * were reset.
+		 * @return The number of writes.
+		 */
+		public synchronized int getWriteCount() {
+			return mWriteCount;
+		}
+
+		/**
+		 * Resets the counters.
+		 */
+		public synchronized void resetCounters() {
+			mQueryCount = 0;
+			mWriteCount = 0;
+		}
+
+		@Override
+		public Cursor query(Uri uri, String[] projection, String selection,
+				String[] selectionArgs, String sortOrder) {
+			synchronized (this) {
+				mQueryCount++;
+			}
+			return super.query(uri, projection, selection, selectionArgs, sortOrder);
+		}
+
+		@Override
+		public Uri insert(Uri uri, ContentValues values) {
+			synchronized (this) {
+				mWriteCount++;
+			}
+			return super.insert(uri, values);
+		}
+
+		@Override
+		public int update(Uri uri, ContentValues values, String selection,
+				String[] selectionArgs) {
+			synchronized (this) {
+				mWriteCount++;
+			}
+			return super.update(uri, values, selection, selectionArgs);
+		}
+
+		@Override
+		public int delete(Uri uri, String selection, String[] selectionArgs) {
+			synchronized (this) {
+				mWriteCount++;
+			}
+			return super.delete(uri, selection, selectionArgs);
+		}
+	}
+
+	/**
+	 * Context keeping the preferences of the benchmark apart from those of
+	 * the application.
+	 */
+	private static class BenchmarkContext extends ContextWrapper {
+
+		public BenchmarkContext(Context base) {
+			super(base);
+		}
+
+		@Override
+		public SharedPreferences getSharedPreferences(String name, int mode) {
+			return super.getSharedPreferences(TAG + "_" + name, mode);
+		}
+	}
+
+	/**
+	 * Samples the used heap until finished.
+	 */
+	private static class HeapSampler extends Thread {
+
+		private static final long INTERVAL = 20;
+
+		private volatile boolean mIsFinished = false;
+		private long mPeak = 0;
+
+		@Override
+		public void run() {
+			while (!mIsFinished) {
+				sample();
+
+				try {
+					Thread.sleep(INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Stops sampling.
+		 * @return The peak of the used heap (in bytes).
+		 * @throws InterruptedException If interrupted while waiting for the
+		 * sampler to stop.
+		 */
+		public long finish() throws InterruptedException {
+			mIsFinished = true;
+			interrupt();
+			join();
+			sample();
+
+			return mPeak;
+		}
+
+		private synchronized void sample() {
+			Runtime runtime = Runtime.getRuntime();
+			mPeak = Math.max(mPeak, runtime.totalMemory() - runtime.freeMemory());
+		}
+	}
+}